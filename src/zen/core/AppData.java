@@ -46,6 +46,12 @@ public ObservablePropertyManager observablePropertyManager;
 public enum ID_Types {
   Database_BLOB("db_blob_"),
   Database_KVP("db_kvp_"),
+  /** blobs that only live in memory, these aren't included in {@link #Database_BLOB} */
+  Database_BLOB_MEM("db_blob_mem_"),
+  /** kvps that only live in memory, these aren't included in {@link #Database_KVP} */
+  Database_KVP_MEM("db_kvp_mem_"),
+  /** kvps backed by a {@link zen.core.db.engine.LogStructuredEngine}, these aren't included in {@link #Database_KVP} */
+  Database_KVP_LOG("db_kvp_log_"),
   ObservableProperty("op_"),
   LocalEvents("evt_");
 
@@ -109,6 +115,11 @@ public String getResourceName(int id) {
   return getApplicationContext().getResources().getResourceEntryName(id);
 }
 
+/**
+ * @return the names of all the R.ids that start with the prefix of the given type, except the ones that
+ * belong to a type with a longer prefix (eg: {@link ID_Types#Database_KVP} doesn't return the
+ * {@link ID_Types#Database_KVP_MEM} ids)
+ */
 public String[] getResourceIds(ID_Types type) {
   ArrayList<String> retval = new ArrayList<String>();
   try {
@@ -117,7 +128,7 @@ public String[] getResourceIds(ID_Types type) {
     Field[] fieldRay = Class.forName(String.format("%s.R$id", packageName)).getFields();
     for (Field field : fieldRay) {
       String fname = field.getName();
-      if (fname.startsWith(prefix)) { retval.add(fname); }
+      if (fname.startsWith(prefix) && !_belongsToLongerPrefix(type, fname)) { retval.add(fname); }
     }
   }
   catch (ClassNotFoundException e) {
@@ -126,6 +137,18 @@ public String[] getResourceIds(ID_Types type) {
   return retval.toArray(new String[retval.size()]);
 }
 
+private static boolean _belongsToLongerPrefix(ID_Types type, String fname) {
+  for (ID_Types other : ID_Types.values()) {
+    String otherPrefix = other.getPrefix();
+    if (otherPrefix.length() > type.getPrefix().length() && otherPrefix.startsWith(type.getPrefix()) &&
+        fname.startsWith(otherPrefix))
+    {
+      return true;
+    }
+  }
+  return false;
+}
+
 /**
  * simply displays the fields in the <current_package>.R.id.class
  * <a href="http://goo.gl/E5dEkJ">Stackoverflow article on this</a>
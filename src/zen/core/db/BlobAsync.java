@@ -0,0 +1,168 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import android.os.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The {@link DBAsync} facade of a {@link DB_blob}, see
+ * {@link DBManager#getAsync_BLOB(int, zen.core.LifecycleHelper)}. Each method runs the {@link DB_blob}
+ * method of the same name on the executor, and passes what it returns to the callback on the main thread.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 8:50 PM
+ */
+public class BlobAsync extends DBAsync<DB_blob> {
+
+BlobAsync(DBHandle<DB_blob> handle, Executor executor, Handler handlerMainThread) {
+  super(handle, executor, handlerMainThread);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// reads
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** see {@link DB_blob#get(long)} */
+public DBFuture<String> get(final long id, DBCallback<String> callback) {
+  return submit(new Operation<DB_blob, String>() {
+    public String run(DB_blob db) {
+      return db.get(id);
+    }
+  }, callback);
+}
+
+/** see {@link DB_blob#getBytes(long)} */
+public DBFuture<byte[]> getBytes(final long id, DBCallback<byte[]> callback) {
+  return submit(new Operation<DB_blob, byte[]>() {
+    public byte[] run(DB_blob db) {
+      return db.getBytes(id);
+    }
+  }, callback);
+}
+
+/** see {@link DB_blob#getAll()} */
+public DBFuture<ArrayList<String>> getAll(DBCallback<ArrayList<String>> callback) {
+  return submit(new Operation<DB_blob, ArrayList<String>>() {
+    public ArrayList<String> run(DB_blob db) {
+      return db.getAll();
+    }
+  }, callback);
+}
+
+/** see {@link DB_blob#getPage(long, int)} */
+public DBFuture<ArrayList<DBRow>> getPage(final long afterId, final int limit, DBCallback<ArrayList<DBRow>> callback) {
+  return submit(new Operation<DB_blob, ArrayList<DBRow>>() {
+    public ArrayList<DBRow> run(DB_blob db) {
+      return db.getPage(afterId, limit);
+    }
+  }, callback);
+}
+
+/** see {@link DB_blob#query(String, DB_blob.Op, Object, int)} */
+public DBFuture<ArrayList<DBRow>> query(final String field, final DB_blob.Op op, final Object value, final int limit,
+                                        DBCallback<ArrayList<DBRow>> callback)
+{
+  return submit(new Operation<DB_blob, ArrayList<DBRow>>() {
+    public ArrayList<DBRow> run(DB_blob db) {
+      return db.query(field, op, value, limit);
+    }
+  }, callback);
+}
+
+/** see {@link DB_blob#search(String, int)} */
+public DBFuture<ArrayList<DB_blob.SearchHit>> search(final String query, final int limit,
+                                                     DBCallback<ArrayList<DB_blob.SearchHit>> callback)
+{
+  return submit(new Operation<DB_blob, ArrayList<DB_blob.SearchHit>>() {
+    public ArrayList<DB_blob.SearchHit> run(DB_blob db) {
+      return db.search(query, limit);
+    }
+  }, callback);
+}
+
+/** see {@link DB_blob#getRowCount()} */
+public DBFuture<Long> getRowCount(DBCallback<Long> callback) {
+  return submit(new Operation<DB_blob, Long>() {
+    public Long run(DB_blob db) {
+      return db.getRowCount();
+    }
+  }, callback);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// writes
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** see {@link DB_blob#add(String)} */
+public DBFuture<Long> add(final String payload, DBCallback<Long> callback) {
+  return submit(new Operation<DB_blob, Long>() {
+    public Long run(DB_blob db) {
+      return db.add(payload);
+    }
+  }, callback);
+}
+
+/** see {@link DB_blob#add(byte[])} */
+public DBFuture<Long> add(final byte[] payload, DBCallback<Long> callback) {
+  return submit(new Operation<DB_blob, Long>() {
+    public Long run(DB_blob db) {
+      return db.add(payload);
+    }
+  }, callback);
+}
+
+/** see {@link DB_blob#update(long, String)} */
+public DBFuture<String> update(final long id, final String newPayload, DBCallback<String> callback) {
+  return submit(new Operation<DB_blob, String>() {
+    public String run(DB_blob db) {
+      return db.update(id, newPayload);
+    }
+  }, callback);
+}
+
+/** see {@link DB_blob#update(long, byte[])} */
+public DBFuture<byte[]> update(final long id, final byte[] newPayload, DBCallback<byte[]> callback) {
+  return submit(new Operation<DB_blob, byte[]>() {
+    public byte[] run(DB_blob db) {
+      return db.update(id, newPayload);
+    }
+  }, callback);
+}
+
+/** see {@link DB_blob#remove(long)} */
+public DBFuture<String> remove(final long id, DBCallback<String> callback) {
+  return submit(new Operation<DB_blob, String>() {
+    public String run(DB_blob db) {
+      return db.remove(id);
+    }
+  }, callback);
+}
+
+/** see {@link DB_blob#addAll(Collection)} */
+public DBFuture<long[]> addAll(final Collection<String> payloads, DBCallback<long[]> callback) {
+  return submit(new Operation<DB_blob, long[]>() {
+    public long[] run(DB_blob db) {
+      return db.addAll(payloads);
+    }
+  }, callback);
+}
+
+}//end class BlobAsync
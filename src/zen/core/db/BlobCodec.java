@@ -0,0 +1,327 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * A compression codec for the payloads that are stored in a {@link DB_blob}. The id of the codec that
+ * compressed a payload is saved in the payload's header (see {@link BlobFormat}), so payloads written
+ * with different codecs (or none at all) can live side by side in the same table, and changing the
+ * codec of a db only affects new writes.
+ * <p/>
+ * There are 3 codecs:
+ * <ol>
+ * <li>{@link #NONE} - stores the payload as is</li>
+ * <li>{@link #DEFLATE} - zlib deflate, smaller output, but slower, good for payloads that are rarely read</li>
+ * <li>{@link #LZ4} - the LZ4 block format, a lot faster than deflate, but doesn't compress as well,
+ * good for payloads that are read often</li>
+ * </ol>
+ * Use {@link DB_blob#setCompression(BlobCodec, int)} to pick one for a db.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:40 PM
+ */
+public abstract class BlobCodec {
+
+public static final BlobCodec NONE    = new NoneCodec();
+public static final BlobCodec DEFLATE = new DeflateCodec();
+public static final BlobCodec LZ4     = new Lz4Codec();
+
+/** saved in the payload header, so these can never change */
+public final int    id;
+public final String name;
+
+private BlobCodec(int id, String name) {
+  this.id = id;
+  this.name = name;
+}
+
+/**
+ * @return the codec with the given id
+ *
+ * @throws IllegalArgumentException if there's no such codec (the payload header is corrupt)
+ */
+public static BlobCodec forId(int id) {
+  switch (id) {
+    case 0:
+      return NONE;
+    case 1:
+      return DEFLATE;
+    case 2:
+      return LZ4;
+    default:
+      throw new IllegalArgumentException("unknown blob codec id:" + id);
+  }
+}
+
+/** @return the compressed form of the given bytes, this might be bigger than the input */
+public abstract byte[] compress(byte[] src, int offset, int length);
+
+/**
+ * decompress the given bytes into dest
+ *
+ * @param originalLength the number of bytes that were compressed, exactly this many are written to dest
+ *
+ * @throws IllegalArgumentException if the compressed bytes are corrupt
+ */
+public abstract void decompress(byte[] src, int offset, int length, byte[] dest, int destOffset, int originalLength);
+
+public String toString() {
+  return name;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// none
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+private static class NoneCodec extends BlobCodec {
+
+  private NoneCodec() {
+    super(0, "none");
+  }
+
+  public byte[] compress(byte[] src, int offset, int length) {
+    return Arrays.copyOfRange(src, offset, offset + length);
+  }
+
+  public void decompress(byte[] src, int offset, int length, byte[] dest, int destOffset, int originalLength) {
+    if (length != originalLength) { throw new IllegalArgumentException("corrupt payload, length mismatch"); }
+    System.arraycopy(src, offset, dest, destOffset, length);
+  }
+
+}//end class NoneCodec
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// deflate
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+private static class DeflateCodec extends BlobCodec {
+
+  private DeflateCodec() {
+    super(1, "deflate");
+  }
+
+  public byte[] compress(byte[] src, int offset, int length) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    try {
+      deflater.setInput(src, offset, length);
+      deflater.finish();
+      byte[] buffer = new byte[Math.max(64, length / 2)];
+      int count = 0;
+      while (!deflater.finished()) {
+        if (count == buffer.length) { buffer = Arrays.copyOf(buffer, buffer.length * 2); }
+        count += deflater.deflate(buffer, count, buffer.length - count);
+      }
+      return Arrays.copyOf(buffer, count);
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  public void decompress(byte[] src, int offset, int length, byte[] dest, int destOffset, int originalLength) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(src, offset, length);
+      int count = 0;
+      while (count < originalLength) {
+        int read = inflater.inflate(dest, destOffset + count, originalLength - count);
+        if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) { break; }
+        count += read;
+      }
+      if (count != originalLength) { throw new IllegalArgumentException("corrupt deflate payload, length mismatch"); }
+    }
+    catch (DataFormatException e) {
+      throw new IllegalArgumentException("corrupt deflate payload", e);
+    }
+    finally {
+      inflater.end();
+    }
+  }
+
+}//end class DeflateCodec
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// lz4
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * A small, pure java implementation of the
+ * <a href="https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md">LZ4 block format</a>, using a
+ * single pass, greedy matcher with a 4K entry hash table. The output can be read by any LZ4 block decoder.
+ */
+private static class Lz4Codec extends BlobCodec {
+
+  private static final int MIN_MATCH     = 4;
+  /** the last match has to start at least this many bytes before the end of the input */
+  private static final int MF_LIMIT      = 12;
+  /** the last this many bytes of the input are always literals */
+  private static final int LAST_LITERALS = 5;
+  private static final int MAX_DISTANCE  = 65535;
+  private static final int HASH_LOG      = 12;
+  private static final int RUN_MASK      = 15;
+
+  private Lz4Codec() {
+    super(2, "lz4");
+  }
+
+  public byte[] compress(byte[] src, int offset, int length) {
+    byte[] dest = new byte[length + length / 255 + 16];
+    int end = offset + length;
+    int anchor = offset;
+    int destOffset = 0;
+
+    if (length > MF_LIMIT) {
+      int[] hashTable = new int[1 << HASH_LOG];
+      Arrays.fill(hashTable, -1);
+      int matchLimit = end - LAST_LITERALS;
+      int mfLimit = end - MF_LIMIT;
+      int srcOffset = offset;
+
+      while (srcOffset < mfLimit) {
+        int sequence = _readInt(src, srcOffset);
+        int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+        int ref = hashTable[hash];
+        hashTable[hash] = srcOffset;
+        if (ref < 0 || srcOffset - ref > MAX_DISTANCE || _readInt(src, ref) != sequence) {
+          srcOffset++;
+          continue;
+        }
+
+        // extend the match backwards over the pending literals, and then forwards
+        while (srcOffset > anchor && ref > offset && src[srcOffset - 1] == src[ref - 1]) {
+          srcOffset--;
+          ref--;
+        }
+        int matchLength = MIN_MATCH;
+        while (srcOffset + matchLength < matchLimit && src[srcOffset + matchLength] == src[ref + matchLength]) {
+          matchLength++;
+        }
+
+        // token, literals, offset, match length
+        int token = destOffset++;
+        int literalLength = srcOffset - anchor;
+        if (literalLength >= RUN_MASK) {
+          dest[token] = (byte) (RUN_MASK << 4);
+          destOffset = _writeLength(dest, destOffset, literalLength - RUN_MASK);
+        }
+        else { dest[token] = (byte) (literalLength << 4); }
+        System.arraycopy(src, anchor, dest, destOffset, literalLength);
+        destOffset += literalLength;
+
+        int distance = srcOffset - ref;
+        dest[destOffset++] = (byte) distance;
+        dest[destOffset++] = (byte) (distance >>> 8);
+
+        int extraLength = matchLength - MIN_MATCH;
+        if (extraLength >= RUN_MASK) {
+          dest[token] |= RUN_MASK;
+          destOffset = _writeLength(dest, destOffset, extraLength - RUN_MASK);
+        }
+        else { dest[token] |= extraLength; }
+
+        srcOffset += matchLength;
+        anchor = srcOffset;
+      }
+    }
+
+    // the rest of the input is written out as literals
+    int literalLength = end - anchor;
+    if (literalLength >= RUN_MASK) {
+      dest[destOffset++] = (byte) (RUN_MASK << 4);
+      destOffset = _writeLength(dest, destOffset, literalLength - RUN_MASK);
+    }
+    else { dest[destOffset++] = (byte) (literalLength << 4); }
+    System.arraycopy(src, anchor, dest, destOffset, literalLength);
+    destOffset += literalLength;
+
+    return Arrays.copyOf(dest, destOffset);
+  }
+
+  public void decompress(byte[] src, int offset, int length, byte[] dest, int destOffset, int originalLength) {
+    int srcEnd = offset + length;
+    int destStart = destOffset;
+    int destEnd = destOffset + originalLength;
+    try {
+      while (true) {
+        int token = src[offset++] & 0xFF;
+
+        int literalLength = token >>> 4;
+        if (literalLength == RUN_MASK) {
+          int b;
+          do {
+            b = src[offset++] & 0xFF;
+            literalLength += b;
+          } while (b == 255);
+        }
+        if (destOffset + literalLength > destEnd || offset + literalLength > srcEnd) {
+          throw new IllegalArgumentException("corrupt lz4 payload, literals overflow");
+        }
+        System.arraycopy(src, offset, dest, destOffset, literalLength);
+        offset += literalLength;
+        destOffset += literalLength;
+        if (offset >= srcEnd) { break; }
+
+        int distance = (src[offset++] & 0xFF) | ((src[offset++] & 0xFF) << 8);
+        int matchLength = token & RUN_MASK;
+        if (matchLength == RUN_MASK) {
+          int b;
+          do {
+            b = src[offset++] & 0xFF;
+            matchLength += b;
+          } while (b == 255);
+        }
+        matchLength += MIN_MATCH;
+
+        int ref = destOffset - distance;
+        if (distance == 0 || ref < destStart || destOffset + matchLength > destEnd) {
+          throw new IllegalArgumentException("corrupt lz4 payload, bad match");
+        }
+        // byte by byte, since the match can overlap the bytes it's producing
+        for (int i = 0; i < matchLength; i++) {
+          dest[destOffset++] = dest[ref++];
+        }
+      }
+    }
+    catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("corrupt lz4 payload, truncated", e);
+    }
+    if (destOffset != destEnd) { throw new IllegalArgumentException("corrupt lz4 payload, length mismatch"); }
+  }
+
+  private static int _readInt(byte[] buffer, int offset) {
+    return (buffer[offset] & 0xFF) |
+           ((buffer[offset + 1] & 0xFF) << 8) |
+           ((buffer[offset + 2] & 0xFF) << 16) |
+           ((buffer[offset + 3] & 0xFF) << 24);
+  }
+
+  private static int _writeLength(byte[] dest, int destOffset, int length) {
+    while (length >= 255) {
+      dest[destOffset++] = (byte) 255;
+      length -= 255;
+    }
+    dest[destOffset++] = (byte) length;
+    return destOffset;
+  }
+
+}//end class Lz4Codec
+
+}//end class BlobCodec
@@ -0,0 +1,171 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import org.json.*;
+
+import java.util.regex.*;
+
+/**
+ * A field extractor for a {@link DB_blob} whose payloads are JSON documents. Each field maps a path in
+ * the document (eg: <code>type</code>, <code>meta.timestamp</code>, or <code>items.0.sku</code>) to a
+ * typed column of the table. The value of the field is extracted when a String payload is written,
+ * and stored in its own indexed column, so {@link DB_blob#query(String, DB_blob.Op, Object, int)} and
+ * {@link DB_blob#queryRange(String, Object, Object, boolean, int)} can filter and sort the rows in SQLite,
+ * without loading (or parsing) the payloads that don't match.
+ * <p/>
+ * Payloads that aren't JSON, binary payloads, spilled payloads, and documents that don't have the path
+ * (or whose value can't be converted to the type of the field) leave the column null.
+ * <p/>
+ * Use {@link DB_blob#addField(BlobField)} (or {@link DBManager#addField(int, BlobField)}) to declare
+ * one. Fields aren't saved anywhere, so declare them every time the db is opened, before writing to it.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 4:20 PM
+ */
+public class BlobField {
+
+/** the storage class of the column, and the type that the JSON value is converted to */
+public enum Type {
+  TEXT("text"), INTEGER("integer"), REAL("real");
+
+  /** declared type of the column, which gives it the matching affinity */
+  public final String sqlType;
+
+  Type(String sqlType) {
+    this.sqlType = sqlType;
+  }
+}
+
+private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_]+");
+
+/** used in queries, see {@link DB_blob#query(String, DB_blob.Op, Object, int)} */
+public final String   name;
+/** dot separated path of the value in the document, numeric segments index into arrays */
+public final String   path;
+public final Type     type;
+/** name of the column that holds the value */
+public final String   column;
+private final String[] segments;
+
+/**
+ * @param name only letters, digits, and underscores
+ *
+ * @throws IllegalArgumentException if any param is null, or the name isn't valid
+ */
+public BlobField(String name, String path, Type type) {
+  if (name == null || path == null || type == null) { throw new IllegalArgumentException("name, path, and type can't be null"); }
+  if (!VALID_NAME.matcher(name).matches()) { throw new IllegalArgumentException("invalid field name: " + name); }
+  this.name = name;
+  this.path = path;
+  this.type = type;
+  this.column = "f_" + name;
+  this.segments = path.split("\\.");
+}
+
+/** @return a field that extracts a top level property of the document, with the same name as the field */
+public static BlobField text(String name) {return new BlobField(name, name, Type.TEXT);}
+
+public static BlobField integer(String name) {return new BlobField(name, name, Type.INTEGER);}
+
+public static BlobField real(String name) {return new BlobField(name, name, Type.REAL);}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// extraction
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * parse the given payload, so that the values of all the fields can be extracted from it
+ *
+ * @return null if the payload isn't a JSON object or array
+ */
+public static Object parse(String payload) {
+  int start = 0;
+  while (start < payload.length() && Character.isWhitespace(payload.charAt(start))) { start++; }
+  if (start == payload.length()) { return null; }
+  char first = payload.charAt(start);
+  if (first != '{' && first != '[') { return null; }
+  try {
+    return new JSONTokener(payload).nextValue();
+  }
+  catch (JSONException e) {
+    return null;
+  }
+}
+
+/**
+ * @param document the result of {@link #parse(String)}, might be null
+ *
+ * @return the value of this field in the given document, converted to {@link #type}: a String, Long, or
+ * Double; null if it can't be found or converted
+ */
+public Object extract(Object document) {
+  Object value = document;
+  for (String segment : segments) {
+    if (value instanceof JSONObject) { value = ((JSONObject) value).opt(segment); }
+    else if (value instanceof JSONArray) { value = ((JSONArray) value).opt(_index(segment)); }
+    else { return null; }
+  }
+  return convert(value);
+}
+
+/**
+ * @return the given value converted to {@link #type}, null if it's null (or {@link JSONObject#NULL}), an
+ * object or array, or it can't be converted
+ */
+public Object convert(Object value) {
+  if (value == null || value == JSONObject.NULL || value instanceof JSONObject || value instanceof JSONArray) {
+    return null;
+  }
+  switch (type) {
+    case TEXT:
+      return String.valueOf(value);
+    case INTEGER:
+      if (value instanceof Number) { return ((Number) value).longValue(); }
+      if (value instanceof Boolean) { return (Boolean) value ? 1L : 0L; }
+      try {
+        return Long.parseLong(value.toString().trim());
+      }
+      catch (NumberFormatException e) {
+        return null;
+      }
+    default:
+      if (value instanceof Number) { return ((Number) value).doubleValue(); }
+      try {
+        return Double.parseDouble(value.toString().trim());
+      }
+      catch (NumberFormatException e) {
+        return null;
+      }
+  }
+}
+
+private static int _index(String segment) {
+  try {
+    return Integer.parseInt(segment);
+  }
+  catch (NumberFormatException e) {
+    return -1;
+  }
+}
+
+public String toString() {
+  return String.format("%s (%s %s)", name, path, type.sqlType);
+}
+
+}//end class BlobField
@@ -0,0 +1,261 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * The on-disk format of the binary payloads in a {@link DB_blob}. Every payload that's stored in a BLOB
+ * value starts with a 6 byte header:
+ * <pre>
+ * [0]    {@link #MAGIC}
+ * [1]    flags: low 4 bits are the {@link BlobCodec#id}, {@link #FLAG_TEXT} is set if the payload is UTF-8 text,
+ *        {@link #FLAG_SPILLED} is set if the payload is in a {@link BlobSpillStore} file
+ * [2..5] length of the payload before it was compressed (big endian)
+ * [6..]  the payload, compressed by the codec; or the UTF-8 name of the file, if it's spilled
+ * </pre>
+ * Rows that were written before this format existed hold TEXT values, which don't have a header; these
+ * are told apart by the type of the value, not by its contents, so any string is still a valid payload.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:55 PM
+ */
+public class BlobFormat {
+
+public static final int  HEADER_LENGTH        = 6;
+public static final byte MAGIC                = (byte) 0xB7;
+/** set in the flags byte if the payload was added as a String */
+public static final int  FLAG_TEXT            = 0x80;
+/** set in the flags byte if the payload is stored in a {@link BlobSpillStore} file */
+public static final int  FLAG_SPILLED         = 0x40;
+/** the flags bits that hold the codec id */
+public static final int  CODEC_MASK           = 0x0F;
+/** references to spilled payloads are never longer than this */
+public static final int  MAX_REFERENCE_LENGTH = 128;
+
+private static final Charset UTF8 = Charset.forName("UTF-8");
+
+private BlobFormat() {}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// encoding
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * add a header to the given payload, compressing it with the given codec if it's at least threshold
+ * bytes long. if compressing it doesn't make it any smaller, it's stored as is.
+ *
+ * @param text  true if the payload is the UTF-8 form of a String
+ * @param stats can be null
+ *
+ * @return the value that's actually written to the db
+ */
+public static byte[] encode(byte[] data, int offset, int length, boolean text,
+                            BlobCodec codec, int threshold, Stats stats)
+{
+  byte[] compressed = null;
+  if (codec != BlobCodec.NONE && length >= threshold) {
+    long start = System.nanoTime();
+    compressed = codec.compress(data, offset, length);
+    if (stats != null) { stats.onCompress(length, compressed.length, System.nanoTime() - start); }
+    if (compressed.length >= length) { compressed = null; }
+  }
+
+  byte[] retval;
+  if (compressed == null) {
+    retval = new byte[HEADER_LENGTH + length];
+    _writeHeader(retval, BlobCodec.NONE, text, length);
+    System.arraycopy(data, offset, retval, HEADER_LENGTH, length);
+  }
+  else {
+    retval = new byte[HEADER_LENGTH + compressed.length];
+    _writeHeader(retval, codec, text, length);
+    System.arraycopy(compressed, 0, retval, HEADER_LENGTH, compressed.length);
+  }
+  if (stats != null) { stats.onWrite(length, retval.length); }
+  return retval;
+}
+
+/**
+ * @param fileName the name of the {@link BlobSpillStore} file that holds the payload
+ * @param length   the size of the payload
+ *
+ * @return the value that's written to the db for a spilled payload
+ */
+public static byte[] encodeReference(String fileName, int length, boolean text) {
+  byte[] name = fileName.getBytes(UTF8);
+  if (HEADER_LENGTH + name.length > MAX_REFERENCE_LENGTH) { throw new IllegalArgumentException("file name is too long"); }
+  byte[] retval = new byte[HEADER_LENGTH + name.length];
+  _writeHeader(retval, BlobCodec.NONE, text, length);
+  retval[1] |= FLAG_SPILLED;
+  System.arraycopy(name, 0, retval, HEADER_LENGTH, name.length);
+  return retval;
+}
+
+private static void _writeHeader(byte[] value, BlobCodec codec, boolean text, int length) {
+  value[0] = MAGIC;
+  value[1] = (byte) (codec.id | (text ? FLAG_TEXT : 0));
+  value[2] = (byte) (length >>> 24);
+  value[3] = (byte) (length >>> 16);
+  value[4] = (byte) (length >>> 8);
+  value[5] = (byte) length;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// decoding
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * strip the header from the given value, and decompress the payload
+ *
+ * @param stats can be null
+ *
+ * @throws IllegalArgumentException if the value doesn't have a valid header, or it's corrupt
+ */
+public static byte[] decode(byte[] value, Stats stats) {
+  if (isSpilled(value)) { throw new IllegalArgumentException("payload is spilled to a file, read it from the BlobSpillStore"); }
+  BlobCodec codec = getCodec(value);
+  int length = getOriginalLength(value);
+  if (codec == BlobCodec.NONE) {
+    if (value.length - HEADER_LENGTH != length) { throw new IllegalArgumentException("corrupt payload, length mismatch"); }
+    return Arrays.copyOfRange(value, HEADER_LENGTH, value.length);
+  }
+  byte[] retval = new byte[length];
+  long start = System.nanoTime();
+  codec.decompress(value, HEADER_LENGTH, value.length - HEADER_LENGTH, retval, 0, length);
+  if (stats != null) { stats.onDecompress(System.nanoTime() - start); }
+  return retval;
+}
+
+/** @return true if the given value starts with a valid header */
+public static boolean hasHeader(byte[] value) {
+  return value != null && value.length >= HEADER_LENGTH && value[0] == MAGIC;
+}
+
+/** @return true if the payload in the given value was added as a String */
+public static boolean isText(byte[] value) {
+  _checkHeader(value);
+  return (value[1] & FLAG_TEXT) != 0;
+}
+
+/** @return true if the given value is a reference to a {@link BlobSpillStore} file */
+public static boolean isSpilled(byte[] value) {
+  _checkHeader(value);
+  return (value[1] & FLAG_SPILLED) != 0;
+}
+
+/** @return the name of the {@link BlobSpillStore} file that the given reference points to */
+public static String getSpillFileName(byte[] value) {
+  if (!isSpilled(value)) { throw new IllegalArgumentException("payload isn't spilled"); }
+  return new String(value, HEADER_LENGTH, value.length - HEADER_LENGTH, UTF8);
+}
+
+/** @return the codec that the payload in the given value was compressed with */
+public static BlobCodec getCodec(byte[] value) {
+  _checkHeader(value);
+  return BlobCodec.forId(value[1] & CODEC_MASK);
+}
+
+/** @return the length of the payload in the given value, before it was compressed */
+public static int getOriginalLength(byte[] value) {
+  _checkHeader(value);
+  int length = ((value[2] & 0xFF) << 24) | ((value[3] & 0xFF) << 16) | ((value[4] & 0xFF) << 8) | (value[5] & 0xFF);
+  if (length < 0) { throw new IllegalArgumentException("corrupt payload header, negative length"); }
+  return length;
+}
+
+private static void _checkHeader(byte[] value) {
+  if (!hasHeader(value)) { throw new IllegalArgumentException("payload doesn't have a valid header"); }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// stats
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** compression ratio and codec time for a single {@link DB_blob}, see {@link DB_blob#getCodecStats()} */
+public static class Stats {
+
+  private long payloadsWritten;
+  private long bytesIn;
+  private long bytesStored;
+  private long compressCount;
+  /** bytes given to the codec, and the bytes it returned, see {@link #getCodecRatio()} */
+  private long compressIn;
+  private long compressOut;
+  private long compressNanos;
+  private long decompressCount;
+  private long decompressNanos;
+
+  synchronized void onWrite(int length, int storedLength) {
+    payloadsWritten++;
+    bytesIn += length;
+    bytesStored += storedLength;
+  }
+
+  synchronized void onCompress(int length, int compressedLength, long nanos) {
+    compressCount++;
+    compressIn += length;
+    compressOut += compressedLength;
+    compressNanos += nanos;
+  }
+
+  synchronized void onDecompress(long nanos) {
+    decompressCount++;
+    decompressNanos += nanos;
+  }
+
+  /** @return number of binary payloads written (compressed or not) */
+  public synchronized long getPayloadsWritten() {return payloadsWritten;}
+
+  /** @return total size of the binary payloads that were written, before compression */
+  public synchronized long getBytesIn() {return bytesIn;}
+
+  /** @return total size of the values that were actually written to the db, headers included */
+  public synchronized long getBytesStored() {return bytesStored;}
+
+  /** @return stored bytes / input bytes, so smaller is better; 1 if nothing's been written yet */
+  public synchronized float getCompressionRatio() {
+    return bytesIn == 0 ? 1f : (float) bytesStored / bytesIn;
+  }
+
+  /**
+   * @return compressed bytes / input bytes, for just the payloads that the codec was run on (including the
+   * ones that were stored as is, because compressing them didn't help); 1 if the codec hasn't been run yet
+   */
+  public synchronized float getCodecRatio() {
+    return compressIn == 0 ? 1f : (float) compressOut / compressIn;
+  }
+
+  public synchronized long getCompressCount() {return compressCount;}
+
+  public synchronized long getCompressNanos() {return compressNanos;}
+
+  public synchronized long getDecompressCount() {return decompressCount;}
+
+  public synchronized long getDecompressNanos() {return decompressNanos;}
+
+  public synchronized String toString() {
+    return String.format("written:%d in:%d stored:%d ratio:%.3f compress:%d (ratio:%.3f) in %.2f ms decompress:%d in %.2f ms",
+                         payloadsWritten, bytesIn, bytesStored, getCompressionRatio(),
+                         compressCount, getCodecRatio(), compressNanos / 1e6, decompressCount, decompressNanos / 1e6);
+  }
+
+}//end class Stats
+
+}//end class BlobFormat
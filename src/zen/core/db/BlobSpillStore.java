@@ -0,0 +1,189 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import zen.utlis.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Holds the payloads of a {@link DB_blob} that are too big to be stored in the db itself, one file per
+ * payload, in a directory next to the db file. The row in the db only holds a small reference to the
+ * file (see {@link BlobFormat#encodeReference(String, int, boolean)}).
+ * <p/>
+ * Files are written to a temp file, synced, and then renamed, so a file with a final name always holds
+ * a complete payload. The file is written before the row that references it, and deleted after that
+ * row is gone, so a crash can leave an orphaned file behind, but never a row without its file. Orphans
+ * are cleaned up by {@link #sweep(Set, long)}.
+ * <p/>
+ * Payloads are stored uncompressed, so that they can be read with {@link #map(String)} without copying
+ * them onto the heap.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 4:30 PM
+ */
+public class BlobSpillStore {
+
+private static final String SUFFIX     = ".blob";
+private static final String TMP_SUFFIX = ".tmp";
+
+private final File dir;
+
+/** @param dir the directory that holds the files, it's created when the first file is written */
+public BlobSpillStore(File dir) {
+  this.dir = dir;
+}
+
+public File getDirectory() {return dir;}
+
+/** @return the file that holds the payload with the given name */
+public File getFile(String name) {
+  if (name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0) {
+    throw new IllegalArgumentException("invalid spill file name:" + name);
+  }
+  return new File(dir, name);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// writes
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** write the given bytes to a new file @return the name of the file */
+public String write(byte[] data, int offset, int length) throws IOException {
+  return write(ByteBuffer.wrap(data, offset, length));
+}
+
+/** write the remaining bytes of the given buffer to a new file, its position isn't changed @return the name of the file */
+public String write(ByteBuffer data) throws IOException {
+  if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+    throw new IOException("couldn't create spill dir:" + dir);
+  }
+  String name = UUID.randomUUID().toString() + SUFFIX;
+  File tmpFile = new File(dir, name + TMP_SUFFIX);
+  FileOutputStream out = new FileOutputStream(tmpFile);
+  boolean written = false;
+  try {
+    FileChannel channel = out.getChannel();
+    ByteBuffer buffer = data.duplicate();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    out.getFD().sync();
+    written = true;
+  }
+  finally {
+    out.close();
+    if (!written) { tmpFile.delete(); }
+  }
+  if (!tmpFile.renameTo(getFile(name))) {
+    tmpFile.delete();
+    throw new IOException("couldn't rename spill file:" + tmpFile);
+  }
+  return name;
+}
+
+/** @return false if the file couldn't be deleted (or it doesn't exist) */
+public boolean delete(String name) {
+  return getFile(name).delete();
+}
+
+/** delete all the files @return the number of files that were deleted */
+public int deleteAll() {
+  int count = 0;
+  File[] files = dir.listFiles();
+  if (files == null) { return 0; }
+  for (File file : files) {
+    if (file.delete()) { count++; }
+  }
+  return count;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// reads
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** read the whole file onto the heap, prefer {@link #openStream(String)} or {@link #map(String)} */
+public byte[] read(String name, int length) throws IOException {
+  byte[] retval = new byte[length];
+  InputStream in = openStream(name);
+  try {
+    int count = 0;
+    while (count < length) {
+      int read = in.read(retval, count, length - count);
+      if (read < 0) { throw new EOFException("spill file is truncated:" + name); }
+      count += read;
+    }
+  }
+  finally {
+    in.close();
+  }
+  return retval;
+}
+
+/** @return a stream over the file, the caller has to close it */
+public InputStream openStream(String name) throws IOException {
+  return new BufferedInputStream(new FileInputStream(getFile(name)), 64 * 1024);
+}
+
+/**
+ * map the file into memory, read-only. the pages of the file are loaded by the OS as they are touched,
+ * so the payload is never copied onto the heap. the mapping stays valid after the file is deleted.
+ */
+public MappedByteBuffer map(String name) throws IOException {
+  RandomAccessFile file = new RandomAccessFile(getFile(name), "r");
+  try {
+    FileChannel channel = file.getChannel();
+    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+  }
+  finally {
+    file.close();
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// orphan cleanup
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * delete the files that aren't referenced by any row. files (and temp files) that were modified in the
+ * last graceMs are skipped, since they might belong to a write that hasn't committed its row yet.
+ *
+ * @param referenced the names of all the files that are referenced by rows in the db
+ *
+ * @return the number of files that were deleted
+ */
+public int sweep(Set<String> referenced, long graceMs) {
+  File[] files = dir.listFiles();
+  if (files == null) { return 0; }
+  long cutoff = System.currentTimeMillis() - graceMs;
+  int count = 0;
+  for (File file : files) {
+    if (referenced.contains(file.getName()) || file.lastModified() > cutoff) { continue; }
+    if (file.delete()) { count++; }
+  }
+  if (count > 0) {
+    AndroidUtils.log(IconPaths.Storage,
+                     String.format("BlobSpillStore - deleted %d orphaned files from %s", count, dir));
+  }
+  return count;
+}
+
+}//end class BlobSpillStore
@@ -0,0 +1,136 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import android.os.*;
+import zen.core.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the operations of one declared db on the bounded executor of the {@link DBManager} (see
+ * {@link #AsyncThreads} & {@link #AsyncQueueSize}), instead of on the caller's thread, and delivers their
+ * results to a {@link DBCallback} on the main thread (via {@link AppData#handlerMainThread}). The operations
+ * of a db run one at a time, in the order they were submitted (by any of the facades of that db), so a read
+ * always sees the writes that were submitted before it. Each operation returns a {@link DBFuture}, which can
+ * be cancelled. Even opening the db happens on the executor, so the
+ * first operation on a db that isn't open yet doesn't block the main thread either.
+ * <p/>
+ * Get one with {@link DBManager#getAsync_KVP(int, LifecycleHelper)} or
+ * {@link DBManager#getAsync_BLOB(int, LifecycleHelper)}, passing in the {@link LifecycleHelper} of the
+ * activity or fragment that's using it. The facade is added to it as a resource, so when the screen is
+ * destroyed, {@link #shutdown()} cancels all the operations that are still pending, and the callbacks of a
+ * destroyed screen are never called. Operations that are submitted after that are cancelled right away.
+ * <p/>
+ * {@link KvpAsync} and {@link BlobAsync} wrap the common operations of each type of db, anything else can
+ * be run with {@link #submit(Operation, DBCallback)}.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 8:50 PM
+ */
+public abstract class DBAsync<T extends DB_base> implements Shutdownable, DBConstantsIF {
+
+/** an operation on the db that's run on the executor, see {@link #submit(Operation, DBCallback)} */
+public interface Operation<T, R> {
+
+  /** @return the result that's passed to {@link DBCallback#onResult(Object)} */
+  public R run(T db) throws Exception;
+
+}//end interface Operation
+
+protected final DBHandle<T>      handle;
+private final   Executor         executor;
+private final   Handler          handlerMainThread;
+/** the operations that were submitted, and haven't finished (or been cancelled) yet */
+private final   Set<DBFuture<?>> pending = Collections.synchronizedSet(new HashSet<DBFuture<?>>());
+private volatile boolean         shutdown;
+
+protected DBAsync(DBHandle<T> handle, Executor executor, Handler handlerMainThread) {
+  this.handle = handle;
+  this.executor = executor;
+  this.handlerMainThread = handlerMainThread;
+}
+
+/** @return the name of the db that this runs the operations of */
+public String getDbName() {return handle.dbName;}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// submitting
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * run the given operation on the db, on the executor, after the operations that were submitted before it.
+ * if {@link #AsyncQueueSize} operations of the db are already waiting, the operation isn't run, and the
+ * callback gets a {@link RejectedExecutionException}.
+ *
+ * @param callback gets the result on the main thread, this may be null
+ *
+ * @return the pending result, which is already cancelled if this facade has been shut down
+ */
+public <R> DBFuture<R> submit(final Operation<? super T, R> operation, DBCallback<R> callback) {
+  DBFuture<R> future = new DBFuture<R>(new Callable<R>() {
+    public R call() throws Exception {
+      return operation.run(handle.get());
+    }
+  }, handlerMainThread, callback, this);
+  pending.add(future);
+  // checked after the add, so that a shutdown() that runs at the same time either cancels it or is seen here
+  if (shutdown) {
+    future.cancel(false);
+    return future;
+  }
+  try {
+    executor.execute(future);
+  }
+  catch (RejectedExecutionException e) {
+    future.fail(e);
+  }
+  return future;
+}
+
+/** called by the future when it's done, cancelled, or failed */
+void onDone(DBFuture<?> future) {
+  pending.remove(future);
+}
+
+/** @return the number of operations that were submitted, and haven't finished (or been cancelled) yet */
+public int getPendingCount() {return pending.size();}
+
+/** cancel all the operations that haven't finished yet, this facade can still be used afterwards */
+public void cancelAll() {
+  ArrayList<DBFuture<?>> futures;
+  synchronized (pending) {
+    futures = new ArrayList<DBFuture<?>>(pending);
+  }
+  for (DBFuture<?> future : futures) { future.cancel(false); }
+}
+
+/**
+ * cancel all the operations that haven't finished yet, and the ones that are submitted from now on; the
+ * {@link LifecycleHelper} that this was added to calls this when its screen is destroyed. the db isn't
+ * closed, the {@link DBManager} still owns it.
+ */
+public void shutdown() {
+  shutdown = true;
+  cancelAll();
+}
+
+public boolean isShutdown() {return shutdown;}
+
+}//end class DBAsync
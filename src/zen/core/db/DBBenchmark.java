@@ -0,0 +1,388 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import android.content.*;
+import android.database.*;
+import android.os.*;
+import zen.core.localevent.*;
+import zen.framework.*;
+import zen.utlis.*;
+
+import java.util.*;
+
+/**
+ * Micro-benchmarks for the db classes. Each one runs the same operations through 2 code paths, and
+ * reports the latency and heap allocations per op for each, so that the effect of a change can be
+ * measured on a real device. Allocations are counted with {@link Debug#getThreadAllocCount()}, so they
+ * only cover the calling thread, and they're only counted on debuggable builds.
+ * <p/>
+ * These write to (and then clear) the db that's passed in, so only run them on a scratch db.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 5:40 PM
+ */
+public class DBBenchmark {
+
+private DBBenchmark() {}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// statement cache
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** run {@link #statementCache(DB_kvp, int)} on a scratch in-memory db, which is shut down afterwards */
+public static ArrayList<Result> statementCache(Context ctx, int ops) {
+  DB_kvp db = new DB_kvp(ctx, "benchmark_statement_cache", DBConstantsIF.DbVersion, true);
+  try {
+    return statementCache(db, ops);
+  }
+  finally {
+    db.shutdown();
+  }
+}
+
+/**
+ * compare the {@link DBStatementCache} code path of {@link DB_kvp} (add, get, update, remove) with the
+ * way those operations used to be done: a {@link ContentValues} per write, a String[] of args per call,
+ * and SQL that's compiled by {@link android.database.sqlite.SQLiteDatabase#query} on every lookup. the
+ * cache and write-behind mode of the db should be off.
+ *
+ * @param ops number of keys that each op is run on
+ *
+ * @return one result per op per code path, these are also logged
+ */
+public static ArrayList<Result> statementCache(final DB_kvp db, int ops) {
+  final String[] keys = new String[ops];
+  final String[] values = new String[ops];
+  for (int i = 0; i < ops; i++) {
+    keys[i] = "bench_key_" + i;
+    values[i] = "bench_value_" + i;
+  }
+  final Context ctx = db.ctx;
+  final String dbName = db.dbName;
+
+  ArrayList<Result> retval = new ArrayList<Result>();
+  db.removeAll();
+
+  // the way it used to be done
+  retval.add(_measure("legacy add", ops, new Runnable() {
+    public void run() {
+      for (int i = 0; i < keys.length; i++) {
+        ContentValues map = new ContentValues();
+        map.put(DB_kvp.Schema.COL_KEY, keys[i]);
+        map.put(DB_kvp.Schema.COL_VALUE, values[i]);
+        db.dbConnection.replace(db.tableName, null, map);
+        LocalEventsManager.fireEvent(ctx, R.id.evt_db_kvp_change, dbName, null);
+      }
+    }
+  }));
+  retval.add(_measure("legacy get", ops, new Runnable() {
+    public void run() {
+      for (String key : keys) {
+        _legacyGet(db, key);
+      }
+    }
+  }));
+  // update and remove return the old value, so both code paths read it first
+  retval.add(_measure("legacy update", ops, new Runnable() {
+    public void run() {
+      for (int i = 0; i < keys.length; i++) {
+        _legacyGet(db, keys[i]);
+        ContentValues map = new ContentValues();
+        map.put(DB_kvp.Schema.COL_VALUE, values[i]);
+        db.dbConnection.update(db.tableName, map, DB_kvp.Schema.SQL_WHERE_COL_KEY, new String[]{keys[i]});
+        LocalEventsManager.fireEvent(ctx, R.id.evt_db_kvp_change, dbName, null);
+      }
+    }
+  }));
+  retval.add(_measure("legacy remove", ops, new Runnable() {
+    public void run() {
+      for (String key : keys) {
+        _legacyGet(db, key);
+        db.dbConnection.delete(db.tableName, DB_kvp.Schema.SQL_WHERE_COL_KEY, new String[]{key});
+        LocalEventsManager.fireEvent(ctx, R.id.evt_db_kvp_change, dbName, null);
+      }
+    }
+  }));
+
+  // through the statement cache
+  retval.add(_measure("cached add", ops, new Runnable() {
+    public void run() {
+      for (int i = 0; i < keys.length; i++) {
+        db.add(keys[i], values[i]);
+      }
+    }
+  }));
+  retval.add(_measure("cached get", ops, new Runnable() {
+    public void run() {
+      for (String key : keys) {
+        db.get(key);
+      }
+    }
+  }));
+  retval.add(_measure("cached update", ops, new Runnable() {
+    public void run() {
+      for (int i = 0; i < keys.length; i++) {
+        db.update(keys[i], values[i]);
+      }
+    }
+  }));
+  retval.add(_measure("cached remove", ops, new Runnable() {
+    public void run() {
+      for (String key : keys) {
+        db.remove(key);
+      }
+    }
+  }));
+
+  db.removeAll();
+  _log("statementCache", db, retval);
+  return retval;
+}
+
+/** a lookup by key, the way it used to be done: the SQL is compiled on every call */
+private static String _legacyGet(DB_kvp db, String key) {
+  Cursor cursor = db.dbConnection.query(db.tableName,
+                                        DB_kvp.Schema.COLS,
+                                        DB_kvp.Schema.SQL_WHERE_COL_KEY,
+                                        new String[]{key},
+                                        null, null, null);
+  try {
+    return cursor.moveToFirst() ? cursor.getString(cursor.getColumnIndex(DB_kvp.Schema.COL_VALUE)) : null;
+  }
+  finally {
+    cursor.close();
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// full text search
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * compare {@link DB_blob#search(String, int)} (and {@link DB_blob#searchPrefix(String, int)}) with the way
+ * payloads used to be searched: a scan of every row, with {@link String#contains(CharSequence)} run on each
+ * payload. the scan streams the rows with {@link DB_blob#forEach(DBRowVisitor)}, so it doesn't have to fit
+ * the whole table on the heap the way {@link DB_blob#getAll()} would. the documents are generated from a
+ * seeded random vocabulary, so runs are repeatable.
+ *
+ * @param docs    number of documents to add to the db, eg: 100,000
+ * @param queries number of (single word) queries that are run through each code path
+ *
+ * @return one result per code path, these are also logged
+ */
+public static ArrayList<Result> search(final DB_blob db, int docs, int queries) {
+  Random random = new Random(42);
+  String[] vocabulary = new String[5000];
+  for (int i = 0; i < vocabulary.length; i++) {
+    char[] word = new char[3 + random.nextInt(7)];
+    for (int j = 0; j < word.length; j++) { word[j] = (char) ('a' + random.nextInt(26)); }
+    vocabulary[i] = new String(word);
+  }
+
+  ArrayList<Result> retval = new ArrayList<Result>();
+  db.removeAll();
+  db.enableSearchIndex();
+
+  DB_blob.Batch batch = db.batch();
+  StringBuilder doc = new StringBuilder();
+  for (int i = 0; i < docs; i++) {
+    doc.setLength(0);
+    int words = 20 + random.nextInt(40);
+    for (int j = 0; j < words; j++) {
+      // skewed towards the start of the vocabulary, so that some words are common and most are rare
+      double skew = random.nextDouble();
+      doc.append(vocabulary[(int) (skew * skew * skew * vocabulary.length)]).append(' ');
+    }
+    batch.add(doc.toString());
+    if (batch.size() == 1000 || i == docs - 1) {
+      batch.commit();
+      batch = db.batch();
+    }
+  }
+
+  final String[] terms = new String[queries];
+  final String[] prefixes = new String[queries];
+  for (int i = 0; i < queries; i++) {
+    terms[i] = vocabulary[random.nextInt(vocabulary.length)];
+    prefixes[i] = terms[i].substring(0, 3);
+  }
+
+  retval.add(_measure("scan contains", queries, new Runnable() {
+    public void run() {
+      for (final String term : terms) {
+        final ArrayList<Long> hits = new ArrayList<Long>();
+        db.forEach(new DBRowVisitor() {
+          public boolean onRow(DBRow row) {
+            if (row.value != null && row.value.contains(term)) { hits.add(row.id); }
+            return true;
+          }
+        });
+      }
+    }
+  }));
+  retval.add(_measure("fts search", queries, new Runnable() {
+    public void run() {
+      for (String term : terms) {
+        db.search(term, 10);
+      }
+    }
+  }));
+  retval.add(_measure("fts prefix", queries, new Runnable() {
+    public void run() {
+      for (String prefix : prefixes) {
+        db.searchPrefix(prefix, 10);
+      }
+    }
+  }));
+
+  db.disableSearchIndex();
+  db.removeAll();
+  _log("search (" + docs + " docs)", db, retval);
+  return retval;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// storage engines
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * compare a {@link DB_kvp} that's backed by SQLite with one that's backed by a
+ * {@link zen.core.db.engine.LogStructuredEngine}, on a write-heavy workload: each key is added, then
+ * overwritten a few times (the way counters and session state are), read back, and removed. both go
+ * through the same {@link DB_kvp} API, so the difference is the storage path. the cache and write-behind
+ * mode of both dbs should be off.
+ *
+ * @param sqliteDb   a scratch db in a file of its own (not an in-memory one, it wouldn't do any I/O)
+ * @param logDb      a scratch db that's backed by a log-structured engine
+ * @param ops        number of keys that each op is run on
+ * @param overwrites number of times that each key is overwritten
+ *
+ * @return one result per op per db, these are also logged
+ */
+public static ArrayList<Result> engines(DB_kvp sqliteDb, DB_kvp logDb, int ops, int overwrites) {
+  final String[] keys = new String[ops];
+  final String[] values = new String[ops];
+  for (int i = 0; i < ops; i++) {
+    keys[i] = "bench_key_" + i;
+    values[i] = "bench_value_" + i + "_0123456789abcdef0123456789abcdef";
+  }
+
+  ArrayList<Result> retval = new ArrayList<Result>();
+  _engineWorkload("sqlite", sqliteDb, keys, values, overwrites, retval);
+  _engineWorkload("log", logDb, keys, values, overwrites, retval);
+
+  _log("engines (sqlite: " + sqliteDb.dbName + ")", logDb, retval);
+  return retval;
+}
+
+private static void _engineWorkload(String name, final DB_kvp db, final String[] keys, final String[] values,
+                                    final int overwrites, ArrayList<Result> results)
+{
+  db.removeAll();
+  results.add(_measure(name + " add", keys.length, new Runnable() {
+    public void run() {
+      for (int i = 0; i < keys.length; i++) {
+        db.add(keys[i], values[i]);
+      }
+    }
+  }));
+  results.add(_measure(name + " overwrite", keys.length * overwrites, new Runnable() {
+    public void run() {
+      for (int round = 0; round < overwrites; round++) {
+        for (int i = 0; i < keys.length; i++) {
+          db.update(keys[i], values[i]);
+        }
+      }
+    }
+  }));
+  results.add(_measure(name + " get", keys.length, new Runnable() {
+    public void run() {
+      for (String key : keys) {
+        db.get(key);
+      }
+    }
+  }));
+  results.add(_measure(name + " remove", keys.length, new Runnable() {
+    public void run() {
+      for (String key : keys) {
+        db.remove(key);
+      }
+    }
+  }));
+  db.removeAll();
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// measuring
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** run the given code once, and measure its time and allocations on this thread */
+@SuppressWarnings("deprecation")
+static Result _measure(String name, int ops, Runnable code) {
+  Debug.resetThreadAllocCount();
+  Debug.startAllocCounting();
+  long start = System.nanoTime();
+  try {
+    code.run();
+  }
+  finally {
+    Debug.stopAllocCounting();
+  }
+  long nanos = System.nanoTime() - start;
+  return new Result(name, ops, nanos, Debug.getThreadAllocCount(), Debug.getThreadAllocSize());
+}
+
+static void _log(String benchmark, DB_base db, ArrayList<Result> results) {
+  AndroidUtils.log(IconPaths.Storage, String.format("DBBenchmark - [%s] %s", db.dbName, benchmark));
+  for (Result result : results) {
+    AndroidUtils.log(IconPaths.Storage, " .. " + result);
+  }
+}
+
+/** the cost of running one op through one code path */
+public static class Result {
+
+  public final String name;
+  public final int    ops;
+  public final long   nanos;
+  public final long   allocCount;
+  public final long   allocBytes;
+
+  Result(String name, int ops, long nanos, long allocCount, long allocBytes) {
+    this.name = name;
+    this.ops = ops;
+    this.nanos = nanos;
+    this.allocCount = allocCount;
+    this.allocBytes = allocBytes;
+  }
+
+  public double getMicrosPerOp() {return ops == 0 ? 0 : nanos / 1000d / ops;}
+
+  public double getAllocsPerOp() {return ops == 0 ? 0 : (double) allocCount / ops;}
+
+  public double getAllocBytesPerOp() {return ops == 0 ? 0 : (double) allocBytes / ops;}
+
+  public String toString() {
+    return String.format("%-16s %8.1f us/op %8.1f allocs/op %10.1f bytes/op",
+                         name, getMicrosPerOp(), getAllocsPerOp(), getAllocBytesPerOp());
+  }
+
+}//end class Result
+
+}//end class DBBenchmark
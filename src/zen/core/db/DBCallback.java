@@ -0,0 +1,40 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import zen.utlis.*;
+
+/**
+ * Gets the result of an operation that was run by a {@link DBAsync} facade, on the main thread. Neither
+ * method is called if the operation was cancelled (eg: by the {@link zen.core.LifecycleHelper} of the
+ * screen that started it), even if the operation was done by then.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 8:50 PM
+ */
+public abstract class DBCallback<T> {
+
+/** called on the main thread with what the operation returned, which may be null */
+public abstract void onResult(T result);
+
+/** called on the main thread with what the operation threw, this just logs it, override it to do more */
+public void onError(Exception e) {
+  AndroidUtils.logErr(IconPaths.Storage, "DBCallback - problem running db operation", e);
+}
+
+}//end class DBCallback
@@ -0,0 +1,55 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+/**
+ * An immutable record of a single row that was changed in a {@link DB_kvp} or a {@link DB_blob}. These
+ * are delivered in a {@link DBChangeSet}.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 6:05 PM
+ */
+public class DBChange {
+
+/** what happened to the row */
+public enum Op {
+  /** the row was added (in a {@link DB_kvp} this might also have replaced an existing row with the same key) */
+  Add,
+  /** the value (or payload) of an existing row was changed */
+  Update,
+  /** the row was removed */
+  Remove
+}
+
+public final Op     op;
+/** the key of the row, this is null for {@link DB_blob} rows, and for {@link DB_kvp} writes that were done by id */
+public final String key;
+/** the {@link android.provider.BaseColumns#_ID} of the row, -1 if it isn't known (eg: {@link DB_kvp} writes by key) */
+public final long   id;
+
+public DBChange(Op op, String key, long id) {
+  this.op = op;
+  this.key = key;
+  this.id = id;
+}
+
+public String toString() {
+  return key == null ? String.format("%s[%d]", op, id) : String.format("%s[%s]", op, key);
+}
+
+}//end class DBChange
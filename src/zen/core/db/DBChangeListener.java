@@ -0,0 +1,37 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+/**
+ * In-process listener for the {@link DBChangeSet}s of a db, see
+ * {@link DB_base#addChangeListener(DBChangeListener)}. This gets the same change sets as the
+ * {@link zen.framework.R.id#evt_db_kvp_change} and {@link zen.framework.R.id#evt_db_blob_change} local
+ * events, without going through {@link android.support.v4.content.LocalBroadcastManager}.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 6:05 PM
+ */
+public interface DBChangeListener {
+
+/**
+ * called with each change set, on the thread that emitted it: the writer's thread if the db's change
+ * window is 0, otherwise the main thread. don't block in here.
+ */
+void onChanges(DBChangeSet changeSet);
+
+}//end interface DBChangeListener
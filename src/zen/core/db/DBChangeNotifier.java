@@ -0,0 +1,212 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import android.os.*;
+import zen.core.localevent.*;
+import zen.utlis.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Collects the rows that are changed in a single db, and emits them as one {@link DBChangeSet}: fired as
+ * the db's local event ({@link DB_base#getChangeEventId()}) with the change set as its object payload,
+ * and passed to the db's {@link DBChangeListener}s.
+ * <p/>
+ * With a change window of 0 (the default, see {@link #ChangeWindowMs}), a change set is emitted for each
+ * committed write or {@link DB_kvp.Batch}, right after it commits, on the writer's thread. With a
+ * window greater than 0, all the changes made within the window (starting with the first one) are
+ * coalesced into a single change set, which is emitted on the main thread when the window closes. This
+ * replaces the one event per row that every write used to fire, with its Intent, history entry and
+ * broadcast dispatch.
+ * <p/>
+ * The changes that are made in a {@link DBSharedFile#runInTransaction(Runnable)} are held back until that
+ * transaction ends: they're committed (as above) if it commits, and dropped if it's rolled back, so
+ * listeners never hear about writes that didn't happen.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 6:15 PM
+ */
+public class DBChangeNotifier implements DBConstantsIF {
+
+private final DB_base db;
+private final CopyOnWriteArrayList<DBChangeListener> listeners = new CopyOnWriteArrayList<DBChangeListener>();
+private final Runnable                               emitter   = new Runnable() {
+  public void run() {
+    emit();
+  }
+};
+
+/** pending changes, keyed by key (or by id, when there's no key) */
+private LinkedHashMap<Object, DBChange> pending = new LinkedHashMap<Object, DBChange>();
+private boolean pendingCleared;
+/** changes made in the current shared transaction, see {@link #endSharedTransaction(boolean)} */
+private LinkedHashMap<Object, DBChange> held = new LinkedHashMap<Object, DBChange>();
+private boolean heldCleared;
+private boolean emitScheduled;
+private long    sequence;
+private volatile long    windowMs = ChangeWindowMs;
+private          Handler handler;
+
+public DBChangeNotifier(DB_base db) {
+  this.db = db;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// config
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * @param windowMs 0 means emit a change set for every commit, otherwise coalesce the changes made
+ *                 within this many ms into one change set, and emit it on the main thread
+ */
+public void setWindow(long windowMs) {
+  if (windowMs < 0) { throw new IllegalArgumentException("windowMs can't be negative"); }
+  this.windowMs = windowMs;
+  if (windowMs == 0) { emit(); }
+}
+
+public long getWindow() {return windowMs;}
+
+public void addListener(DBChangeListener listener) {
+  listeners.addIfAbsent(listener);
+}
+
+public void removeListener(DBChangeListener listener) {
+  listeners.remove(listener);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// collecting changes
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * record a change to a row, it's not emitted until {@link #commit()} is called
+ *
+ * @param key null if it isn't known
+ * @param id  -1 if it isn't known
+ */
+public void add(DBChange.Op op, String key, long id) {
+  boolean shared = _inSharedTransaction();
+  synchronized (this) { _add(shared ? held : pending, op, key, id); }
+}
+
+/** record that all the rows were removed, this drops the changes that were recorded before it */
+public void clear() {
+  boolean shared = _inSharedTransaction();
+  synchronized (this) {
+    if (shared) {
+      held.clear();
+      heldCleared = true;
+    }
+    else {
+      pending.clear();
+      pendingCleared = true;
+    }
+  }
+}
+
+/**
+ * the changes recorded so far have been committed, so emit them now (if the window is 0), or when the
+ * current window closes
+ */
+public void commit() {
+  // the shared transaction commits them when it ends
+  if (_inSharedTransaction()) { return; }
+  long window = windowMs;
+  if (window == 0) {
+    emit();
+    return;
+  }
+  synchronized (this) {
+    if (emitScheduled || (pending.isEmpty() && !pendingCleared)) { return; }
+    emitScheduled = true;
+    if (handler == null) { handler = new Handler(Looper.getMainLooper()); }
+  }
+  handler.postDelayed(emitter, window);
+}
+
+/** same as calling {@link #add(DBChange.Op, String, long)} and then {@link #commit()} */
+public void commit(DBChange.Op op, String key, long id) {
+  add(op, key, id);
+  commit();
+}
+
+/**
+ * called when the {@link DBSharedFile#runInTransaction(Runnable)} that this db's writes joined has ended;
+ * the changes that were held back are committed if it committed, otherwise they're dropped
+ */
+void endSharedTransaction(boolean committed) {
+  synchronized (this) {
+    if (committed) {
+      if (heldCleared) {
+        pending.clear();
+        pendingCleared = true;
+      }
+      for (DBChange change : held.values()) { _add(pending, change.op, change.key, change.id); }
+    }
+    held = new LinkedHashMap<Object, DBChange>();
+    heldCleared = false;
+  }
+  if (committed) { commit(); }
+}
+
+/** true if the current thread is in a shared transaction, this db is enlisted in it if so */
+private boolean _inSharedTransaction() {
+  DBSharedFile sharedFile = db.sharedFile;
+  return sharedFile != null && sharedFile.enlist(db);
+}
+
+private static void _add(LinkedHashMap<Object, DBChange> changes, DBChange.Op op, String key, long id) {
+  Object rowKey = key != null ? key : (Object) id;
+  DBChange previous = changes.remove(rowKey);
+  // an update to a row that was added in the same change set is still an add
+  if (previous != null && previous.op == DBChange.Op.Add && op == DBChange.Op.Update) { op = DBChange.Op.Add; }
+  changes.put(rowKey, new DBChange(op, key, id));
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// emitting change sets
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** emit the changes that are pending right now (if there are any), without waiting for the window to close */
+public void emit() {
+  DBChangeSet changeSet;
+  synchronized (this) {
+    emitScheduled = false;
+    if (pending.isEmpty() && !pendingCleared) { return; }
+    changeSet = new DBChangeSet(db.dbName, ++sequence, pendingCleared, new ArrayList<DBChange>(pending.values()));
+    pending = new LinkedHashMap<Object, DBChange>();
+    pendingCleared = false;
+  }
+  LocalEventsManager.fireEvent(db.ctx, db.getChangeEventId(), db.dbName, changeSet);
+  for (DBChangeListener listener : listeners) {
+    try {
+      listener.onChanges(changeSet);
+    }
+    catch (RuntimeException e) {
+      AndroidUtils.logErr(IconPaths.Storage, "DBChangeNotifier - [" + db.dbName + "] listener failed", e);
+    }
+  }
+}
+
+/** @return the number of change sets that have been emitted */
+public synchronized long getSequence() {return sequence;}
+
+}//end class DBChangeNotifier
@@ -0,0 +1,97 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import java.util.*;
+
+/**
+ * An immutable set of the rows that were changed in a db, during one transaction or one notification
+ * window (see {@link DBChangeNotifier}). This is the object payload of the
+ * {@link zen.framework.R.id#evt_db_kvp_change} and {@link zen.framework.R.id#evt_db_blob_change} local
+ * events, and it's what {@link DBChangeListener}s get.
+ * <p/>
+ * Changes to the same row are coalesced, so there's at most one {@link DBChange} per key (or id), in the
+ * order that the rows were first changed. If {@link #isCleared()} is true, then every row was removed
+ * (eg: by {@link DB_kvp#removeAll()}) or rewritten in bulk (eg: by
+ * {@link DB_base#importFrom(java.io.InputStream, boolean)}) before the changes in this set were made, so
+ * listeners should reload everything instead of applying the changes one at a time.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 6:05 PM
+ */
+public class DBChangeSet {
+
+public final String dbName;
+/** change sets of a db are numbered 1, 2, 3, ... so listeners can tell if they've missed one */
+public final long   sequence;
+
+private final boolean         cleared;
+private final List<DBChange>  changes;
+
+DBChangeSet(String dbName, long sequence, boolean cleared, List<DBChange> changes) {
+  this.dbName = dbName;
+  this.sequence = sequence;
+  this.cleared = cleared;
+  this.changes = Collections.unmodifiableList(changes);
+}
+
+/** @return true if all the rows were removed (or rewritten in bulk) before the changes in this set were made */
+public boolean isCleared() {return cleared;}
+
+/** @return the changes, this list can't be modified */
+public List<DBChange> getChanges() {return changes;}
+
+public int size() {return changes.size();}
+
+public boolean isEmpty() {return !cleared && changes.isEmpty();}
+
+/** @return the keys of all the changed rows, that have a key */
+public Set<String> getKeys() {
+  LinkedHashSet<String> retval = new LinkedHashSet<String>();
+  for (DBChange change : changes) {
+    if (change.key != null) { retval.add(change.key); }
+  }
+  return retval;
+}
+
+/** @return the ids of all the changed rows, that have an id */
+public Set<Long> getIds() {
+  LinkedHashSet<Long> retval = new LinkedHashSet<Long>();
+  for (DBChange change : changes) {
+    if (change.id != -1) { retval.add(change.id); }
+  }
+  return retval;
+}
+
+/**
+ * @return true if the row with the given key might have been changed: it was changed, or all the rows
+ * were removed, or a row whose key isn't known (it was changed by id) was changed
+ */
+public boolean affectsKey(String key) {
+  if (cleared) { return true; }
+  for (DBChange change : changes) {
+    if (change.key == null || key.equals(change.key)) { return true; }
+  }
+  return false;
+}
+
+public String toString() {
+  return String.format("%s#%d%s%s", dbName, sequence, cleared ? " cleared " : " ", changes);
+}
+
+}//end class DBChangeSet
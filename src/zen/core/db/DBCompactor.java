@@ -0,0 +1,265 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import android.database.*;
+import android.database.sqlite.*;
+import android.os.*;
+import zen.core.db.engine.*;
+import zen.utlis.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reclaims the free pages left behind by deletes, without rewriting the whole database file
+ * the way <a href="http://sqlite.org/lang_vacuum.html">VACUUM</a> does.
+ * <p/>
+ * All the databases are put in
+ * <a href="http://sqlite.org/pragma.html#pragma_auto_vacuum">auto_vacuum=INCREMENTAL</a> mode
+ * (see {@link #configure(SQLiteDatabase)}). After rows are deleted, {@link DB_base#onRowsDeleted()}
+ * asks this class to check the freelist of that database on a background thread. Once the free pages
+ * cross {@link #CompactionMinFreePages} and {@link #CompactionFreeRatio}, they are given back to the
+ * filesystem in steps of {@link #CompactionPagesPerStep} pages, pausing {@link #CompactionStepPauseMs}
+ * between steps so that writers on other threads aren't starved.
+ * <p/>
+ * {@link DBManager} owns an instance of this class, and also uses it to compact every database
+ * when the app is idle ({@link DBManager#scheduleIdleCompaction()}).
+ * <p/>
+ * Dbs that are backed by a {@link LogStructuredEngine} have no SQLite file; for them, this runs
+ * {@link LogStructuredEngine#compact()} instead (which merges the segments of the log).
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 10:12 AM
+ */
+public class DBCompactor implements DBConstantsIF {
+
+private static final String SQL_AUTO_VACUUM_MODE    = "PRAGMA auto_vacuum";
+private static final String SQL_AUTO_VACUUM_INCR    = "PRAGMA auto_vacuum = INCREMENTAL";
+private static final String SQL_FREELIST_COUNT      = "PRAGMA freelist_count";
+private static final String SQL_PAGE_COUNT          = "PRAGMA page_count";
+private static final String SQL_INCREMENTAL_VACUUM  = "PRAGMA incremental_vacuum(%d)";
+private static final String SQL_VACUUM              = "VACUUM";
+/** value of {@link #SQL_AUTO_VACUUM_MODE} when the db is in incremental mode */
+private static final int    AUTO_VACUUM_INCREMENTAL = 2;
+
+/** runs all the compaction work, one database at a time */
+private final ScheduledExecutorService executor;
+/** databases that already have a check (or a compaction) queued up */
+private final Set<DB_base>             pending = Collections.synchronizedSet(new HashSet<DB_base>());
+/** bookkeeping for each database that's been compacted */
+private final Map<DB_base, Stats>      statsMap = Collections.synchronizedMap(new WeakHashMap<DB_base, Stats>());
+
+public DBCompactor() {
+  executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "DBCompactor");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// schema hooks
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * call this from {@link SQLiteOpenHelper#onConfigure(SQLiteDatabase)}. new databases are created in incremental
+ * mode; databases created before this class existed are converted by the first
+ * {@link #onRowsDeleted(DB_base)} or {@link #compact(DB_base)} that runs on them.
+ */
+public static void configure(SQLiteDatabase database) {
+  database.execSQL(SQL_AUTO_VACUUM_INCR);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// scheduling
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * rows were deleted from the given db, so check its freelist on the background thread, and compact
+ * it if it's fragmented enough. this returns right away, and multiple calls for the same db are
+ * coalesced until the check runs.
+ */
+public void onRowsDeleted(DB_base db) {
+  _schedule(db, false);
+}
+
+/** compact the given db on the background thread, regardless of how fragmented it is */
+public void compact(DB_base db) {
+  _schedule(db, true);
+}
+
+private void _schedule(final DB_base db, final boolean force) {
+  if (db == null || !pending.add(db)) { return; }
+  try {
+    executor.execute(new Runnable() {
+      public void run() {
+        pending.remove(db);
+        _run(db, force);
+      }
+    });
+  }
+  catch (RejectedExecutionException e) {
+    // the compactor has been shut down
+    pending.remove(db);
+  }
+}
+
+/** stop the background thread, any compaction in progress is abandoned after its current step */
+public void shutdown() {
+  executor.shutdownNow();
+  pending.clear();
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// actual compaction
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** runs on the background thread */
+private void _run(DB_base db, boolean force) {
+  try {
+    if (db.engine instanceof LogStructuredEngine) {
+      _compactLog(db, (LogStructuredEngine) db.engine, force);
+      return;
+    }
+    SQLiteDatabase connection = db.dbConnection;
+    if (connection == null || !connection.isOpen()) { return; }
+
+    Stats stats = getStats(db);
+    _ensureIncrementalMode(db, connection);
+
+    long freePages = DatabaseUtils.longForQuery(connection, SQL_FREELIST_COUNT, null);
+    long totalPages = DatabaseUtils.longForQuery(connection, SQL_PAGE_COUNT, null);
+    stats.lastFreePages = freePages;
+    stats.lastTotalPages = totalPages;
+
+    if (freePages == 0) { return; }
+    if (!force &&
+        (freePages < CompactionMinFreePages || freePages < totalPages * CompactionFreeRatio))
+    {
+      return;
+    }
+
+    long start = SystemClock.elapsedRealtime();
+    long reclaimed = 0;
+    while (freePages > 0 && !Thread.currentThread().isInterrupted()) {
+      if (db.dbConnection != connection || !connection.isOpen()) { break; }
+      _incrementalVacuum(connection, CompactionPagesPerStep);
+      long remaining = DatabaseUtils.longForQuery(connection, SQL_FREELIST_COUNT, null);
+      if (remaining >= freePages) { break; }
+      reclaimed += freePages - remaining;
+      freePages = remaining;
+      if (freePages > 0) { Thread.sleep(CompactionStepPauseMs); }
+    }
+
+    stats.passes++;
+    stats.pagesReclaimed += reclaimed;
+    stats.lastFreePages = freePages;
+    db.onCompacted();
+
+    AndroidUtils.log(IconPaths.Storage,
+                     String.format("DBCompactor - [%s] reclaimed %d of %d pages in %d ms",
+                                   db.dbName, reclaimed, totalPages, SystemClock.elapsedRealtime() - start));
+  }
+  catch (InterruptedException e) {
+    Thread.currentThread().interrupt();
+  }
+  catch (Exception e) {
+    AndroidUtils.logErr(IconPaths.Storage,
+                        String.format("DBCompactor - [%s] problem compacting db", db.dbName), e);
+  }
+}
+
+/**
+ * the engine compacts itself in the background once it has enough garbage, so this only does anything
+ * when it's forced, or when the engine hasn't gotten around to it yet. {@link DB_base#onCompacted()} isn't
+ * called here, the db gets it from {@link LogStructuredEngine#setCompactionListener(Runnable)} for every
+ * compaction, including the ones that the engine runs on its own.
+ */
+private void _compactLog(DB_base db, LogStructuredEngine engine, boolean force) {
+  if (!force && !engine.needsCompaction()) { return; }
+  long start = SystemClock.elapsedRealtime();
+  long reclaimed = engine.compact();
+  getStats(db).passes++;
+  AndroidUtils.log(IconPaths.Storage,
+                   String.format("DBCompactor - [%s] reclaimed %d bytes of log in %d ms, %s",
+                                 db.dbName, reclaimed, SystemClock.elapsedRealtime() - start, engine));
+}
+
+/**
+ * databases that were created before incremental mode existed have to be rewritten once, with a full
+ * VACUUM, for the mode change to take effect.
+ */
+private void _ensureIncrementalMode(DB_base db, SQLiteDatabase connection) {
+  if (DatabaseUtils.longForQuery(connection, SQL_AUTO_VACUUM_MODE, null) == AUTO_VACUUM_INCREMENTAL) { return; }
+  connection.execSQL(SQL_AUTO_VACUUM_INCR);
+  connection.execSQL(SQL_VACUUM);
+  AndroidUtils.log(IconPaths.Storage,
+                   String.format("DBCompactor - [%s] converted db to incremental auto_vacuum", db.dbName));
+}
+
+/** incremental_vacuum only does its work as its result rows are stepped through, so drain the cursor */
+private void _incrementalVacuum(SQLiteDatabase connection, int pages) {
+  Cursor cursor = connection.rawQuery(String.format(SQL_INCREMENTAL_VACUUM, pages), null);
+  try {
+    while (cursor.moveToNext()) {}
+  }
+  finally {
+    cursor.close();
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// stats
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** @return the compaction bookkeeping for the given db, never null */
+public Stats getStats(DB_base db) {
+  synchronized (statsMap) {
+    Stats stats = statsMap.get(db);
+    if (stats == null) {
+      stats = new Stats();
+      statsMap.put(db, stats);
+    }
+    return stats;
+  }
+}
+
+/** freelist growth and compaction work done for a single database */
+public static class Stats {
+
+  /** free pages seen the last time the freelist was checked */
+  public volatile long lastFreePages;
+  /** total pages seen the last time the freelist was checked */
+  public volatile long lastTotalPages;
+  /** number of compactions that actually ran */
+  public volatile long passes;
+  /** total number of pages given back to the filesystem */
+  public volatile long pagesReclaimed;
+
+  public String toString() {
+    return String.format("free:%d/%d passes:%d reclaimed:%d",
+                         lastFreePages, lastTotalPages, passes, pagesReclaimed);
+  }
+
+}//end class Stats
+
+}//end class DBCompactor
@@ -31,4 +31,158 @@ public interface DBConstantsIF {
 
 int DbVersion = 1;
 
+/**
+ * row id returned by writes that were queued instead of being written right away (see
+ * {@link DB_kvp#enableWriteBehind(int, long)}). real row ids start at 1, so this is never a real one.
+ */
+long RowIdPending = 0;
+
+/**
+ * open the dbs in write-ahead logging mode, so that reads run on a pool of read-only connections,
+ * concurrently with the writer (see {@link DB_base})
+ */
+boolean EnableWriteAheadLogging = true;
+
+/**
+ * default change notification window, 0 means that a change set is emitted after every commit, see
+ * {@link DBChangeNotifier}
+ */
+long ChangeWindowMs = 0;
+
+/**
+ * host all the declared dbs as tables in a single file ({@link #SharedFileName}) that share one connection,
+ * instead of giving each one a file of its own; see {@link DBSharedFile}. this is off by default, apps opt
+ * in. the move is one-way: dbs that already have files of their own are migrated into the shared file the
+ * first time it's opened, and their old files are deleted, so turning this off again later starts those
+ * dbs over with empty files.
+ */
+boolean ConsolidatedStorage = false;
+/** name of the file that hosts all the declared dbs when {@link #ConsolidatedStorage} is true */
+String  SharedFileName      = "zen_dbs";
+
+/**
+ * open all the declared dbs in parallel on background threads as soon as {@link DBManager} is created,
+ * instead of waiting for each one to be used, see {@link DBManager#warmUp()}. this is off by default, so
+ * that creating the DBManager doesn't start any threads; apps can also call warmUp() themselves.
+ */
+boolean WarmUpOnLaunch = false;
+/** max number of background threads used by {@link DBManager#warmUp()} */
+int     WarmUpThreads  = 2;
+
+/** number of rows read per query when streaming through a table, see {@link DB_base#forEach(DBRowVisitor)} */
+int ScanWindowSize = 256;
+
+/**
+ * payloads that are at least this many bytes long are compressed, when a codec is set on a
+ * {@link DB_blob} (see {@link DB_blob#setCompression(BlobCodec, int)})
+ */
+int BlobCompressionThreshold = 1024;
+
+/**
+ * {@link DB_blob} payloads that are at least this many bytes long are stored in files next to the db,
+ * instead of in the db itself (see {@link DB_blob#setSpillThreshold(int)})
+ */
+int  BlobSpillThreshold     = 1024 * 1024;
+/** spill files that are younger than this are never treated as orphans, see {@link DB_blob#sweepOrphans()} */
+long BlobSpillOrphanGraceMs = 10 * 60 * 1000;
+
+/**
+ * FTS tokenizer used by the search index of a {@link DB_blob} (see {@link DB_blob#enableSearchIndex()}).
+ * "simple" only folds ASCII case; "unicode61" is better for non-English text, but needs API 21+.
+ */
+String BlobSearchTokenizer       = "simple";
+/** markers wrapped around the matches in {@link DB_blob.SearchHit#snippet} */
+String BlobSearchSnippetStart    = "[";
+String BlobSearchSnippetEnd      = "]";
+/** marks the text that was cut out of a snippet */
+String BlobSearchSnippetEllipsis = "...";
+/** max number of tokens in a snippet */
+int    BlobSearchSnippetTokens   = 16;
+
+/** a {@link DBSnapshot} is written in chunks of (roughly) this many bytes, each with its own checksum */
+int SnapshotChunkBytes      = 64 * 1024;
+/** number of rows written per transaction by {@link DB_base#importFrom(java.io.InputStream, boolean)} */
+int SnapshotImportBatchRows = 1000;
+/**
+ * a replacing {@link DB_base#importFrom(java.io.InputStream, boolean)} reads the rows into a table with this
+ * suffix, which only takes the place of the db's table once the whole stream has been read
+ */
+String SnapshotStagingSuffix = "_import";
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// expiry stuff (used by DBExpirySweeper)
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** time between sweeps of the expired rows of the kvp dbs */
+long ExpirySweepIntervalMs = 5 * 60 * 1000;
+/** max number of expired rows that are deleted in one write */
+int  ExpirySweepBatchSize  = 500;
+/** time to wait between batches, so that other writers get a turn */
+long ExpirySweepPauseMs    = 50;
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// log-structured engine stuff (used by LogStructuredEngine)
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** the active segment of a {@link zen.core.db.engine.LogStructuredEngine} is sealed once it's this big */
+int     LogSegmentBytes              = 4 * 1024 * 1024;
+/**
+ * force every write of a {@link zen.core.db.engine.LogStructuredEngine} to storage before it returns. when
+ * this is false, writes survive a crash of the app process but not of the device (segments are still
+ * forced when they're sealed, and when the engine is closed).
+ */
+boolean LogSyncWrites                = false;
+/** don't bother compacting the sealed segments until they hold at least this many bytes of garbage */
+long    LogCompactionMinGarbageBytes = 1024 * 1024;
+/** compact once this fraction of the bytes in the sealed segments are garbage (overwritten or deleted) */
+float   LogCompactionGarbageRatio    = 0.5f;
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// bloom filter stuff (used by KvpBloomFilter)
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** default false positive rate of the bloom filter of a {@link DB_kvp}, this costs ~1.2 bytes per key */
+double BloomFilterFalsePositiveRate = 0.01;
+/** when the filter is (re)built, it's sized for at least this many times the number of keys in the db */
+int    BloomFilterHeadroom          = 2;
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// async stuff (used by DBAsync)
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * number of background threads that run the operations submitted to the {@link DBAsync} facades. reads run
+ * concurrently in write-ahead logging mode, but writes are serialized anyway, so a couple is enough.
+ */
+int AsyncThreads   = 2;
+/** max number of operations of a db that can be waiting to run, operations submitted past this are rejected */
+int AsyncQueueSize = 256;
+/** how long {@link DBManager#shutdown()} waits for the operations that are running to finish */
+int AsyncShutdownTimeoutMs = 10000;
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// stats stuff (used by DBStats)
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** record the counts and latencies of the operations on every db, see {@link DBStats} */
+boolean EnableDBStats       = true;
+/**
+ * time between dumps of the stats of the open dbs to the log, see {@link DBManager#startStatsDump(long)}; 0
+ * (the default) means never
+ */
+long    StatsDumpIntervalMs = 0;
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// compaction stuff (used by DBCompactor)
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** don't bother compacting until at least this many pages are on the freelist */
+int   CompactionMinFreePages = 64;
+/** compact once this fraction of the pages in the db file are on the freelist */
+float CompactionFreeRatio    = 0.2f;
+/** max number of pages that are reclaimed in one incremental_vacuum step */
+int   CompactionPagesPerStep = 128;
+/** time to wait between incremental_vacuum steps, so that other writers get a turn */
+long  CompactionStepPauseMs  = 50;
+
 }//end class DBConstantsIF
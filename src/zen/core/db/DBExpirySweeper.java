@@ -0,0 +1,192 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package zen.core.db;
+
+import android.os.*;
+import zen.utlis.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Deletes the expired rows of {@link DB_kvp}s on a background thread (see {@link DB_kvp#setDefaultTtl(long)}).
+ * Lookups already treat expired rows as absent, so this is only about giving the space back, and it's done
+ * in small steps: every {@link #ExpirySweepIntervalMs}, each registered db is swept in batches of
+ * {@link #ExpirySweepBatchSize} rows (each batch is its own short write), pausing
+ * {@link #ExpirySweepPauseMs} between batches so that writers on other threads aren't starved. The deletes
+ * feed into the {@link DBCompactor} as usual.
+ * <p/>
+ * {@link DBManager} owns an instance of this class, and registers every kvp db when it's opened.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 8:30 PM
+ */
+public class DBExpirySweeper implements DBConstantsIF {
+
+/** runs all the sweeps, one database at a time */
+private final ScheduledExecutorService executor;
+/** the dbs that are swept */
+private final CopyOnWriteArrayList<DB_kvp> dbs      = new CopyOnWriteArrayList<DB_kvp>();
+/** bookkeeping for each database that's been swept */
+private final Map<DB_kvp, Stats>           statsMap = Collections.synchronizedMap(new WeakHashMap<DB_kvp, Stats>());
+private       boolean                      started;
+
+public DBExpirySweeper() {
+  executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "DBExpirySweeper");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// scheduling
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** sweep the given db periodically, the periodic sweeps start with the first db that's added */
+public synchronized void add(DB_kvp db) {
+  dbs.addIfAbsent(db);
+  if (started) { return; }
+  started = true;
+  try {
+    executor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        _sweepAll();
+      }
+    }, ExpirySweepIntervalMs, ExpirySweepIntervalMs, TimeUnit.MILLISECONDS);
+  }
+  catch (RejectedExecutionException e) {
+    // the sweeper has been shut down
+  }
+}
+
+/** stop sweeping the given db (eg: before it's shut down) */
+public void remove(DB_kvp db) {
+  dbs.remove(db);
+}
+
+/** sweep all the registered dbs on the background thread right away, this returns right away */
+public void sweepNow() {
+  try {
+    executor.execute(new Runnable() {
+      public void run() {
+        _sweepAll();
+      }
+    });
+  }
+  catch (RejectedExecutionException e) {
+    // the sweeper has been shut down
+  }
+}
+
+/** stop the background thread, any sweep in progress is abandoned after its current batch */
+public void shutdown() {
+  executor.shutdownNow();
+  dbs.clear();
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// actual sweeping
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** runs on the background thread */
+private void _sweepAll() {
+  for (DB_kvp db : dbs) {
+    if (Thread.currentThread().isInterrupted()) { return; }
+    _sweep(db);
+  }
+}
+
+/** runs on the background thread */
+private void _sweep(DB_kvp db) {
+  try {
+    long start = SystemClock.elapsedRealtime();
+    int expired = 0;
+    int batches = 0;
+    while (!Thread.currentThread().isInterrupted()) {
+      int rowCount = db.sweepExpired(ExpirySweepBatchSize);
+      expired += rowCount;
+      batches++;
+      if (rowCount < ExpirySweepBatchSize) { break; }
+      Thread.sleep(ExpirySweepPauseMs);
+    }
+
+    Stats stats = getStats(db);
+    stats.sweeps++;
+    stats.rowsExpired += expired;
+    stats.lastSweepRows = expired;
+    stats.lastSweepBatches = batches;
+    stats.lastSweepMs = SystemClock.elapsedRealtime() - start;
+
+    if (expired > 0) {
+      AndroidUtils.log(IconPaths.Storage,
+                       String.format("DBExpirySweeper - [%s] deleted %d expired rows in %d batches, %d ms",
+                                     db.dbName, expired, batches, stats.lastSweepMs));
+    }
+  }
+  catch (InterruptedException e) {
+    Thread.currentThread().interrupt();
+  }
+  catch (Exception e) {
+    AndroidUtils.logErr(IconPaths.Storage,
+                        String.format("DBExpirySweeper - [%s] problem sweeping db", db.dbName), e);
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// stats
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** @return the sweep bookkeeping for the given db, never null */
+public Stats getStats(DB_kvp db) {
+  synchronized (statsMap) {
+    Stats stats = statsMap.get(db);
+    if (stats == null) {
+      stats = new Stats();
+      statsMap.put(db, stats);
+    }
+    return stats;
+  }
+}
+
+/** expired rows deleted from a single database */
+public static class Stats {
+
+  /** number of sweeps that ran */
+  public volatile long sweeps;
+  /** total number of expired rows that were deleted */
+  public volatile long rowsExpired;
+  /** rows deleted by the last sweep */
+  public volatile long lastSweepRows;
+  /** batches run by the last sweep */
+  public volatile long lastSweepBatches;
+  /** time taken by the last sweep, including the pauses between batches */
+  public volatile long lastSweepMs;
+
+  public String toString() {
+    return String.format("sweeps:%d expired:%d last:%d rows/%d batches/%d ms",
+                         sweeps, rowsExpired, lastSweepRows, lastSweepBatches, lastSweepMs);
+  }
+
+}//end class Stats
+
+}//end class DBExpirySweeper
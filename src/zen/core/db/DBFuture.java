@@ -0,0 +1,120 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import android.os.*;
+import zen.utlis.*;
+
+import java.util.concurrent.*;
+
+/**
+ * The pending result of an operation that was submitted to a {@link DBAsync} facade. It's a regular
+ * {@link Future}, so it can be waited on from a background thread, but it's mostly meant to be cancelled:
+ * once {@link #cancel(boolean)} is called, the operation doesn't run if it hasn't started yet, and its
+ * {@link DBCallback} is never called, even if the operation has already finished and its result is on its
+ * way to the main thread.
+ * <p/>
+ * Cancelling never interrupts an operation that's running (that would leave the statements of the db in
+ * an unknown state), so a write that has started is always committed, it's just not reported.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 8:50 PM
+ */
+public class DBFuture<T> extends FutureTask<T> {
+
+private final Handler       handler;
+private final DBCallback<T> callback;
+private final DBAsync<?>    owner;
+/** set by {@link #cancel(boolean)}, which may be after the operation is done (unlike {@link #isCancelled()}) */
+private volatile boolean    discarded;
+
+DBFuture(Callable<T> operation, Handler handler, DBCallback<T> callback, DBAsync<?> owner) {
+  super(operation);
+  this.handler = handler;
+  this.callback = callback;
+  this.owner = owner;
+}
+
+/**
+ * don't run the operation if it hasn't started, and don't call the {@link DBCallback}; call this on the main
+ * thread to be sure that the callback isn't called after this returns
+ *
+ * @param mayInterruptIfRunning ignored, a running operation is never interrupted
+ *
+ * @return false if the operation had already finished (its callback is still dropped)
+ */
+@Override
+public boolean cancel(boolean mayInterruptIfRunning) {
+  discarded = true;
+  return super.cancel(false);
+}
+
+/** @return true if {@link #cancel(boolean)} was called, whether or not the operation had finished by then */
+public boolean isDiscarded() {return discarded;}
+
+/** fail the operation without running it (eg: when the executor rejects it) */
+void fail(Exception e) {
+  setException(e);
+}
+
+/** runs on the thread that ran the operation, the callback is posted to the main thread from here */
+@Override
+protected void done() {
+  owner.onDone(this);
+  if (callback == null || discarded) { return; }
+  handler.post(new Runnable() {
+    public void run() {
+      _deliver();
+    }
+  });
+}
+
+/** runs on the main thread */
+private void _deliver() {
+  if (discarded) { return; }
+  T result;
+  try {
+    result = get();
+  }
+  catch (ExecutionException e) {
+    Throwable cause = e.getCause();
+    _onError(cause instanceof Exception ? (Exception) cause : e);
+    return;
+  }
+  catch (Exception e) {
+    _onError(e);
+    return;
+  }
+  try {
+    callback.onResult(result);
+  }
+  catch (Exception e) {
+    AndroidUtils.logErr(IconPaths.Storage, "DBFuture - problem running onResult of callback", e);
+  }
+}
+
+private void _onError(Exception error) {
+  try {
+    callback.onError(error);
+  }
+  catch (Exception e) {
+    AndroidUtils.logErr(IconPaths.Storage, "DBFuture - problem running onError of callback", e);
+  }
+}
+
+}//end class DBFuture
@@ -0,0 +1,155 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package zen.core.db;
+
+import android.os.*;
+import zen.utlis.*;
+
+import java.util.concurrent.*;
+
+/**
+ * A lazily opened db that's declared in the R.id. Nothing is opened when the handle is created; the db is
+ * opened (and created or upgraded, if need be) by the first call to {@link #get()}, or by {@link #open()}
+ * on a warm-up thread (see {@link DBManager#warmUp()}), whichever comes first.
+ * <p/>
+ * The open runs in a {@link FutureTask}, so it only ever runs once: a caller that needs the db while it's
+ * being opened on another thread just blocks until that open is done, and callers that need other dbs
+ * aren't held up at all.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 7:05 PM
+ */
+public class DBHandle<T extends DB_base> {
+
+public final String dbName;
+
+private final FutureTask<T> task;
+/** set by {@link #shutdown()}, a db that's opened after this is closed right away */
+private volatile boolean    closed;
+/** set as soon as the db is opened, guarded by this */
+private          T          opened;
+private volatile long       openTimeMs = -1;
+
+/** @param opener creates the db (which opens its connection), this is run at most once */
+public DBHandle(String dbName, final Callable<T> opener) {
+  this.dbName = dbName;
+  task = new FutureTask<T>(new Callable<T>() {
+    public T call() throws Exception {
+      long start = SystemClock.elapsedRealtime();
+      T db = opener.call();
+      openTimeMs = SystemClock.elapsedRealtime() - start;
+      AndroidUtils.log(IconPaths.Storage,
+                       String.format("DBHandle - [%s] opened in %d ms on %s",
+                                     DBHandle.this.dbName, openTimeMs, Thread.currentThread().getName()));
+      synchronized (DBHandle.this) {
+        opened = db;
+        if (closed) { db.shutdown(); }
+      }
+      return db;
+    }
+  });
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// opening
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** open the db on the calling thread, unless it's already open (or being opened on another thread) */
+public void open() {
+  task.run();
+}
+
+/**
+ * @return the db, opening it on the calling thread first if nobody else has. if it's being opened on
+ * another thread, this blocks until it's open.
+ *
+ * @throws IllegalStateException if the handle has been shut down
+ * @throws RuntimeException      whatever the db threw when it was opened (eg: a SQLiteException)
+ */
+public T get() {
+  if (closed) { throw new IllegalStateException("db " + dbName + " has been shut down"); }
+  task.run();
+  return _await();
+}
+
+/** @return true if the db has been opened (successfully or not), {@link #get()} won't block if this is true */
+public boolean isOpen() {
+  return task.isDone();
+}
+
+/** @return null if the db hasn't been opened yet, or the open failed, otherwise the db */
+public T peek() {
+  if (!task.isDone()) { return null; }
+  try {
+    return _await();
+  }
+  catch (RuntimeException e) {
+    return null;
+  }
+}
+
+/** @return how long it took to open the db, -1 if it hasn't been opened yet */
+public long getOpenTimeMs() {return openTimeMs;}
+
+/** wait for the task to finish, without giving up if the calling thread is interrupted */
+private T _await() {
+  boolean interrupted = false;
+  try {
+    while (true) {
+      try {
+        return task.get();
+      }
+      catch (InterruptedException e) {
+        interrupted = true;
+      }
+      catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+        if (cause instanceof Error) { throw (Error) cause; }
+        throw new RuntimeException("problem opening db " + dbName, cause);
+      }
+    }
+  }
+  finally {
+    if (interrupted) { Thread.currentThread().interrupt(); }
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// closing
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * shut down the db if it's been opened; if it's being opened right now it's shut down as soon as the open
+ * is done, and if it hasn't been opened yet it never will be.
+ */
+public void shutdown() {
+  synchronized (this) {
+    if (closed) { return; }
+    closed = true;
+    if (opened != null) { opened.shutdown(); }
+  }
+  task.cancel(false);
+}
+
+public String toString() {
+  return String.format("%s [%s]", dbName, closed ? "closed" : task.isDone() ? "open" : "not open");
+}
+
+}//end class DBHandle
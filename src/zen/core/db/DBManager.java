@@ -17,10 +17,15 @@
 package zen.core.db;
 
 import android.content.*;
+import android.os.*;
 import zen.core.*;
+import zen.core.db.engine.*;
+import zen.core.observableprops.*;
 import zen.utlis.*;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This class collects all the database related stuff in one place. this class has to be instantiated
@@ -31,7 +36,40 @@ import java.util.*;
  * blobs {@link AppData.ID_Types#Database_BLOB} &
  * kvps {@link AppData.ID_Types#Database_KVP}
  * make it really easy to declare your desired
- * databases, and these will all be created when this class is instantiated by it's constructor.
+ * databases. The constructor just registers a {@link DBHandle} for each of them, it doesn't open
+ * anything; each db is opened the first time it's used ({@link #getDB_KVP(int)}, {@link #getDB_BLOB(int)}),
+ * and only that caller has to wait for it. Call {@link #warmUp()} to open all of them in parallel on a
+ * background pool, so that they're usually open by the time the first activity needs them; the constructor
+ * does this itself when {@link #WarmUpOnLaunch} is true (it's off by default).
+ * <p/>
+ * When {@link #ConsolidatedStorage} is true (it's off by default), all the dbs are hosted as tables in a
+ * single {@link DBSharedFile}, and share its connection; their public API doesn't change. Dbs that were
+ * created in files of their own are migrated into it the first time it's opened, and their old files are
+ * deleted. This can't be undone: turning it off again later doesn't copy the rows back out.
+ * <p/>
+ * Dbs declared with the in-memory R.ids, for
+ * blobs {@link AppData.ID_Types#Database_BLOB_MEM} &
+ * kvps {@link AppData.ID_Types#Database_KVP_MEM}, have the same API, and are fetched the same way, but they
+ * are backed by in-memory SQLite databases that never touch flash (or the shared file). Use them for session
+ * caches, whose rows are gone when the app process is. They aren't compacted, since there's no file to shrink.
+ * <p/>
+ * Kvps declared with {@link AppData.ID_Types#Database_KVP_LOG} R.ids also have the same API, but they're
+ * backed by a {@link LogStructuredEngine} instead of SQLite: every write is appended to a log in a dir of
+ * their own (next to the db files), which is a lot cheaper for stores that are mostly overwritten (counters,
+ * session state). They're never hosted in the shared file, and they compact themselves; {@link #compactAll()}
+ * just forces it.
+ * <p/>
+ * Use {@link #getAsync_KVP(int, LifecycleHelper)} & {@link #getAsync_BLOB(int, LifecycleHelper)} to run
+ * the operations of a db on a background executor, with their results delivered on the main thread, from
+ * code that runs on the main thread (see {@link DBAsync}).
+ * <p/>
+ * Use {@link #observe_KVP(int, String, ObservablePropertyListener, LifecycleHelper)} to have the value of a
+ * key (or of all the keys with a prefix) delivered to an {@link ObservablePropertyListener} on the main
+ * thread whenever it changes (see {@link KvpLiveQuery}).
+ * <p/>
+ * Every db records the counts and latencies of its operations in a {@link DBStats}; {@link #getStats()}
+ * takes a snapshot of them for all the open dbs, and {@link #dumpStats()} writes them to the log. Dumping
+ * them periodically is opt-in: call {@link #startStatsDump(long)}, or set {@link #StatsDumpIntervalMs}.
  * <p/>
  * All the lifecycle stuff is tied to {@link AppData} and it takes care of creation and destruction of
  * all the database resources.
@@ -40,65 +78,559 @@ public class DBManager implements DBConstantsIF {
 
 protected final String[] db_blob_IDs;
 protected final String[] db_kvp_IDs;
+protected final String[] db_blob_mem_IDs;
+protected final String[] db_kvp_mem_IDs;
+protected final String[] db_kvp_log_IDs;
 private final   AppData  data;
-/** stores db connections to all dbs declared in R.id blobs {@link AppData.ID_Types#Database_BLOB} */
-private HashMap<String, DB_blob> DB_blob_map = new HashMap<String, DB_blob>();
-/** stores db connections to all dbs declared in R.id kvps {@link AppData.ID_Types#Database_KVP} */
-private HashMap<String, DB_kvp>  DB_kvp_map  = new HashMap<String, DB_kvp>();
+/**
+ * stores lazy db handles for all dbs declared in R.id blobs {@link AppData.ID_Types#Database_BLOB} &
+ * {@link AppData.ID_Types#Database_BLOB_MEM}
+ */
+private HashMap<String, DBHandle<DB_blob>> DB_blob_map = new HashMap<String, DBHandle<DB_blob>>();
+/**
+ * stores lazy db handles for all dbs declared in R.id kvps {@link AppData.ID_Types#Database_KVP},
+ * {@link AppData.ID_Types#Database_KVP_MEM} & {@link AppData.ID_Types#Database_KVP_LOG}
+ */
+private HashMap<String, DBHandle<DB_kvp>>  DB_kvp_map  = new HashMap<String, DBHandle<DB_kvp>>();
+/** reclaims free pages in all the dbs on a background thread */
+private final DBCompactor     compactor     = new DBCompactor();
+/** deletes the expired rows of the kvp dbs on a background thread */
+private final DBExpirySweeper expirySweeper = new DBExpirySweeper();
+
+/** hosts all the declared dbs when {@link #ConsolidatedStorage} is true, otherwise this is null */
+private final DBSharedFile sharedFile;
+/** runs {@link #warmUp()}, this is null until it's called */
+private ExecutorService warmUpExecutor;
+/** runs the operations of the {@link DBAsync} facades, this is null until the first one is created */
+private ThreadPoolExecutor asyncExecutor;
+/** runs the operations of each db one at a time on the {@link #asyncExecutor}, by db name */
+private final HashMap<String, DBSerialExecutor> serialExecutors = new HashMap<String, DBSerialExecutor>();
+/** runs the periodic {@link #dumpStats()}, this is null until {@link #startStatsDump(long)} is called */
+private ScheduledExecutorService        statsExecutor;
+/** the stats of each db as of the last {@link #dumpStats()}, so that each dump only has the ops since then */
+private final HashMap<String, DBStats.Snapshot> dumpedStats = new HashMap<String, DBStats.Snapshot>();
 
 /**
- * create all the declared dbs (kvp & blob) in the R.id for
+ * register lazy handles for all the declared dbs (kvp & blob) in the R.id for
  * blobs {@link AppData.ID_Types#Database_BLOB} &
- * kvps {@link AppData.ID_Types#Database_KVP}
+ * kvps {@link AppData.ID_Types#Database_KVP}, and their in-memory variants
+ * {@link AppData.ID_Types#Database_BLOB_MEM} & {@link AppData.ID_Types#Database_KVP_MEM}, and the
+ * log-structured kvps {@link AppData.ID_Types#Database_KVP_LOG}. none of them are opened here.
  */
-public DBManager(Context ctx, AppData data) {
+public DBManager(final Context ctx, AppData data) {
 
   this.data = data;
 
   db_blob_IDs = data.getResourceIds(AppData.ID_Types.Database_BLOB);
-  for (String dbBlob_Name : db_blob_IDs) {
-    DB_blob_map.put(dbBlob_Name, new DB_blob(ctx, dbBlob_Name, DbVersion));
+  db_kvp_IDs = data.getResourceIds(AppData.ID_Types.Database_KVP);
+  db_blob_mem_IDs = data.getResourceIds(AppData.ID_Types.Database_BLOB_MEM);
+  db_kvp_mem_IDs = data.getResourceIds(AppData.ID_Types.Database_KVP_MEM);
+  db_kvp_log_IDs = data.getResourceIds(AppData.ID_Types.Database_KVP_LOG);
+  sharedFile = ConsolidatedStorage ? new DBSharedFile(ctx, SharedFileName, DbVersion, db_kvp_IDs, db_blob_IDs) : null;
+
+  for (final String dbBlob_Name : db_blob_IDs) {
+    DB_blob_map.put(dbBlob_Name, new DBHandle<DB_blob>(dbBlob_Name, new Callable<DB_blob>() {
+      public DB_blob call() {
+        DB_blob db = sharedFile == null ? new DB_blob(ctx, dbBlob_Name, DbVersion) :
+                     new DB_blob(ctx, dbBlob_Name, sharedFile);
+        db.setCompactor(compactor);
+        return db;
+      }
+    }));
   }
 
-  db_kvp_IDs = data.getResourceIds(AppData.ID_Types.Database_KVP);
-  for (String dbKVP_name : db_kvp_IDs) {
-    DB_kvp_map.put(dbKVP_name, new DB_kvp(ctx, dbKVP_name, DbVersion));
+  for (final String dbKVP_name : db_kvp_IDs) {
+    DB_kvp_map.put(dbKVP_name, new DBHandle<DB_kvp>(dbKVP_name, new Callable<DB_kvp>() {
+      public DB_kvp call() {
+        DB_kvp db = sharedFile == null ? new DB_kvp(ctx, dbKVP_name, DbVersion) :
+                    new DB_kvp(ctx, dbKVP_name, sharedFile);
+        db.setCompactor(compactor);
+        expirySweeper.add(db);
+        return db;
+      }
+    }));
   }
 
+  for (final String dbBlob_Name : db_blob_mem_IDs) {
+    DB_blob_map.put(dbBlob_Name, new DBHandle<DB_blob>(dbBlob_Name, new Callable<DB_blob>() {
+      public DB_blob call() {
+        return new DB_blob(ctx, dbBlob_Name, DbVersion, true);
+      }
+    }));
+  }
+
+  for (final String dbKVP_name : db_kvp_mem_IDs) {
+    DB_kvp_map.put(dbKVP_name, new DBHandle<DB_kvp>(dbKVP_name, new Callable<DB_kvp>() {
+      public DB_kvp call() {
+        DB_kvp db = new DB_kvp(ctx, dbKVP_name, DbVersion, true);
+        expirySweeper.add(db);
+        return db;
+      }
+    }));
+  }
+
+  for (final String dbKVP_name : db_kvp_log_IDs) {
+    DB_kvp_map.put(dbKVP_name, new DBHandle<DB_kvp>(dbKVP_name, new Callable<DB_kvp>() {
+      public DB_kvp call() {
+        LogStructuredEngine engine = LogStructuredEngine.open(ctx.getDatabasePath(dbKVP_name));
+        if (engine.getDroppedBytes() > 0) {
+          AndroidUtils.logErr(IconPaths.Storage,
+                              String.format("DBManager - [%s] dropped %d bytes of torn writes while recovering",
+                                            dbKVP_name, engine.getDroppedBytes()));
+        }
+        DB_kvp db = new DB_kvp(ctx, dbKVP_name, engine);
+        db.setCompactor(compactor);
+        expirySweeper.add(db);
+        return db;
+      }
+    }));
+  }
+
+  if (WarmUpOnLaunch) { warmUp(); }
+  if (EnableDBStats && StatsDumpIntervalMs > 0) { startStatsDump(StatsDumpIntervalMs); }
+
 }
 
 /**
  * get a reference to the {@link DB_blob} that's bound to this in the R.id for
- * blobs {@link AppData.ID_Types#Database_BLOB}
+ * blobs {@link AppData.ID_Types#Database_BLOB}. if it isn't open yet, it's opened on the calling thread
+ * (or, if it's being opened by {@link #warmUp()}, this blocks until that's done).
  */
 public DB_blob getDB_BLOB(int id) {
-  return DB_blob_map.get(data.getResourceName(id));
+  return getDB_BLOB(data.getResourceName(id));
 }
 
 /**
  * get a reference to the {@link DB_blob} that's bound to this in the R.id for
- * blobs {@link AppData.ID_Types#Database_BLOB}
+ * blobs {@link AppData.ID_Types#Database_BLOB}. if it isn't open yet, it's opened on the calling thread
+ * (or, if it's being opened by {@link #warmUp()}, this blocks until that's done).
  */
 public DB_blob getDB_BLOB(String dbName) {
-  return DB_blob_map.get(dbName);
+  DBHandle<DB_blob> handle = DB_blob_map.get(dbName);
+  return handle == null ? null : handle.get();
 }
 
 /**
  * get a reference to the {@link DB_kvp} that's bound to this in the R.id for
- * kvps {@link AppData.ID_Types#Database_KVP}
+ * kvps {@link AppData.ID_Types#Database_KVP}. if it isn't open yet, it's opened on the calling thread
+ * (or, if it's being opened by {@link #warmUp()}, this blocks until that's done).
  */
 public DB_kvp getDB_KVP(String dbName) {
-  return DB_kvp_map.get(dbName);
+  DBHandle<DB_kvp> handle = DB_kvp_map.get(dbName);
+  return handle == null ? null : handle.get();
 }
 
 /**
  * get a reference to the {@link DB_kvp} that's bound to this in the R.id for
- * kvps {@link AppData.ID_Types#Database_KVP}
+ * kvps {@link AppData.ID_Types#Database_KVP}. if it isn't open yet, it's opened on the calling thread
+ * (or, if it's being opened by {@link #warmUp()}, this blocks until that's done).
  */
 public DB_kvp getDB_KVP(int id) {
-  return DB_kvp_map.get(data.getResourceName(id));
+  return getDB_KVP(data.getResourceName(id));
+}
+
+/** @return the lazy handle for the {@link DB_kvp} with the given name, null if it isn't declared */
+public DBHandle<DB_kvp> getHandle_KVP(String dbName) {
+  return DB_kvp_map.get(dbName);
+}
+
+/** @return the lazy handle for the {@link DB_blob} with the given name, null if it isn't declared */
+public DBHandle<DB_blob> getHandle_BLOB(String dbName) {
+  return DB_blob_map.get(dbName);
+}
+
+/** same as {@link #getAsync_KVP(int, LifecycleHelper)}, for code that isn't tied to a screen */
+public KvpAsync getAsync_KVP(int id) {
+  return getAsync_KVP(id, null);
+}
+
+/**
+ * get a {@link DBAsync} facade for the {@link DB_kvp} that's bound to this in the R.id, which runs its
+ * operations on a background executor, and delivers their results on the main thread. use this instead of
+ * {@link #getDB_KVP(int)} on the main thread (eg: in onCreate), nothing is opened by this.
+ *
+ * @param lifecycle the facade is added to it as a resource, so that pending operations are cancelled (and
+ *                  their callbacks dropped) when its screen is destroyed; this may be null
+ *
+ * @return null if there's no such db
+ */
+public KvpAsync getAsync_KVP(int id, LifecycleHelper lifecycle) {
+  DBHandle<DB_kvp> handle = DB_kvp_map.get(data.getResourceName(id));
+  if (handle == null) { return null; }
+  KvpAsync retval = new KvpAsync(handle, _getSerialExecutor(handle), data.handlerMainThread);
+  if (lifecycle != null) { lifecycle.addResource(retval); }
+  return retval;
+}
+
+/** same as {@link #getAsync_BLOB(int, LifecycleHelper)}, for code that isn't tied to a screen */
+public BlobAsync getAsync_BLOB(int id) {
+  return getAsync_BLOB(id, null);
+}
+
+/**
+ * get a {@link DBAsync} facade for the {@link DB_blob} that's bound to this in the R.id, same as
+ * {@link #getAsync_KVP(int, LifecycleHelper)}
+ *
+ * @return null if there's no such db
+ */
+public BlobAsync getAsync_BLOB(int id, LifecycleHelper lifecycle) {
+  DBHandle<DB_blob> handle = DB_blob_map.get(data.getResourceName(id));
+  if (handle == null) { return null; }
+  BlobAsync retval = new BlobAsync(handle, _getSerialExecutor(handle), data.handlerMainThread);
+  if (lifecycle != null) { lifecycle.addResource(retval); }
+  return retval;
+}
+
+/**
+ * observe the value of a key in the {@link DB_kvp} that's bound to this in the R.id, see
+ * {@link DB_kvp#observe(String, ObservablePropertyListener)}. the db is opened on the calling thread if it
+ * isn't open yet.
+ *
+ * @param lifecycle the {@link KvpLiveQuery} is added to it as a resource, so that it stops when its screen
+ *                  is destroyed; this may be null
+ *
+ * @return null if there's no such db
+ */
+public KvpLiveQuery observe_KVP(int id, String key, ObservablePropertyListener listener,
+                                LifecycleHelper lifecycle) {
+  DB_kvp db = getDB_KVP(id);
+  if (db == null) { return null; }
+  KvpLiveQuery retval = db.observe(key, listener);
+  if (lifecycle != null) { lifecycle.addResource(retval); }
+  return retval;
+}
+
+/**
+ * same as {@link #observe_KVP(int, String, ObservablePropertyListener, LifecycleHelper)}, for all the keys
+ * that start with the given prefix, see {@link DB_kvp#observePrefix(String, ObservablePropertyListener)}
+ *
+ * @return null if there's no such db
+ */
+public KvpLiveQuery observePrefix_KVP(int id, String prefix, ObservablePropertyListener listener,
+                                      LifecycleHelper lifecycle) {
+  DB_kvp db = getDB_KVP(id);
+  if (db == null) { return null; }
+  KvpLiveQuery retval = db.observePrefix(prefix, listener);
+  if (lifecycle != null) { lifecycle.addResource(retval); }
+  return retval;
+}
+
+/**
+ * @return the executor that all the {@link DBAsync} facades of the given db share, which runs its operations
+ * one at a time, in the order they were submitted, on the {@link #asyncExecutor}
+ */
+private synchronized DBSerialExecutor _getSerialExecutor(DBHandle<?> handle) {
+  DBSerialExecutor retval = serialExecutors.get(handle.dbName);
+  if (retval == null) {
+    retval = new DBSerialExecutor(_getAsyncExecutor());
+    serialExecutors.put(handle.dbName, retval);
+  }
+  return retval;
+}
+
+/**
+ * the executor that's shared by all the {@link DBAsync} facades: {@link #AsyncThreads} threads (that go
+ * away when they're idle), and a queue of up to {@link #AsyncQueueSize} operations
+ */
+private synchronized ThreadPoolExecutor _getAsyncExecutor() {
+  if (asyncExecutor == null) {
+    asyncExecutor = new ThreadPoolExecutor(AsyncThreads, AsyncThreads, 30, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<Runnable>(AsyncQueueSize),
+                                           new ThreadFactory() {
+                                             private int count;
+
+                                             public Thread newThread(Runnable runnable) {
+                                               Thread thread = new Thread(runnable, "DBAsync-" + (++count));
+                                               thread.setDaemon(true);
+                                               return thread;
+                                             }
+                                           });
+    asyncExecutor.allowCoreThreadTimeOut(true);
+  }
+  return asyncExecutor;
+}
+
+/** @return all the declared dbs (kvp & blob) that have been opened so far, nothing is opened by this */
+private ArrayList<DB_base> _getOpenDbs() {
+  ArrayList<DB_base> retval = new ArrayList<DB_base>();
+  for (DBHandle<DB_kvp> handle : DB_kvp_map.values()) {
+    DB_kvp db = handle.peek();
+    if (db != null) { retval.add(db); }
+  }
+  for (DBHandle<DB_blob> handle : DB_blob_map.values()) {
+    DB_blob db = handle.peek();
+    if (db != null) { retval.add(db); }
+  }
+  return retval;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// warm up
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * open all the declared dbs (kvp & blob) in parallel, on a pool of up to {@link #WarmUpThreads} background
+ * threads. this returns right away; a db that's needed before its turn comes up is just opened by the
+ * thread that needs it. calling this more than once does nothing.
+ */
+public synchronized void warmUp() {
+  if (warmUpExecutor != null) { return; }
+  ArrayList<DBHandle<?>> handles = new ArrayList<DBHandle<?>>();
+  handles.addAll(DB_kvp_map.values());
+  handles.addAll(DB_blob_map.values());
+  if (handles.isEmpty()) { return; }
+
+  warmUpExecutor = Executors.newFixedThreadPool(Math.min(WarmUpThreads, handles.size()), new ThreadFactory() {
+    private int count;
+
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "DBManager-warmUp-" + (++count));
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  for (final DBHandle<?> handle : handles) {
+    warmUpExecutor.execute(new Runnable() {
+      public void run() {
+        try {
+          handle.open();
+        }
+        catch (Exception e) {
+          // the error is thrown again to whoever calls get() on the handle
+          AndroidUtils.logErr(IconPaths.Storage, "DBManager.warmUp - problem opening " + handle.dbName, e);
+        }
+      }
+    });
+  }
+  // let the threads die once all the dbs are open
+  warmUpExecutor.shutdown();
+}
+
+/**
+ * put a {@link KvpCache} in front of the lookups of the {@link DB_kvp} that's bound to this in the R.id for
+ * kvps {@link AppData.ID_Types#Database_KVP}
+ *
+ * @param maxEntries max number of entries held in the cache
+ * @param maxBytes   max number of bytes (approximately) held in the cache
+ *
+ * @return the newly created cache, use this to get the hit/miss/eviction counts
+ */
+public KvpCache enableCache(int id, int maxEntries, long maxBytes) {
+  return enableCache(data.getResourceName(id), maxEntries, maxBytes);
+}
+
+/**
+ * put a {@link KvpCache} in front of the lookups of the {@link DB_kvp} that's bound to this in the R.id for
+ * kvps {@link AppData.ID_Types#Database_KVP}
+ *
+ * @param maxEntries max number of entries held in the cache
+ * @param maxBytes   max number of bytes (approximately) held in the cache
+ *
+ * @return the newly created cache, use this to get the hit/miss/eviction counts
+ */
+public KvpCache enableCache(String dbName, int maxEntries, long maxBytes) {
+  KvpCache cache = new KvpCache(maxEntries, maxBytes);
+  getDB_KVP(dbName).setCache(cache);
+  return cache;
+}
+
+/** turn off the {@link KvpCache} for the {@link DB_kvp} that's bound to this in the R.id */
+public void disableCache(int id) {
+  getDB_KVP(id).setCache(null);
+}
+
+/**
+ * put a {@link KvpBloomFilter} in front of the lookups of the {@link DB_kvp} that's bound to this in the
+ * R.id, with a false positive rate of {@link #BloomFilterFalsePositiveRate}; see
+ * {@link DB_kvp#enableBloomFilter(long, double)}. this streams all the keys in the db, so don't call it
+ * on the main thread.
+ *
+ * @param expectedKeys number of keys that the db is expected to grow to
+ *
+ * @return the newly built filter, use this to get its false positive rate and size
+ */
+public KvpBloomFilter enableBloomFilter(int id, long expectedKeys) {
+  return enableBloomFilter(data.getResourceName(id), expectedKeys, BloomFilterFalsePositiveRate);
+}
+
+/** same as {@link #enableBloomFilter(int, long)}, with the given false positive rate */
+public KvpBloomFilter enableBloomFilter(String dbName, long expectedKeys, double falsePositiveRate) {
+  return getDB_KVP(dbName).enableBloomFilter(expectedKeys, falsePositiveRate);
+}
+
+/** turn off the {@link KvpBloomFilter} for the {@link DB_kvp} that's bound to this in the R.id */
+public void disableBloomFilter(int id) {
+  getDB_KVP(id).disableBloomFilter();
+}
+
+/**
+ * turn on write-behind mode for the {@link DB_kvp} that's bound to this in the R.id for
+ * kvps {@link AppData.ID_Types#Database_KVP}; see {@link DB_kvp#enableWriteBehind(int, long)}.
+ * the queued writes are flushed by {@link #flush()} and {@link #shutdown()}.
+ *
+ * @param maxPending flush as soon as this many keys are queued
+ * @param maxDelayMs flush once the oldest queued write is this old
+ */
+public void enableWriteBehind(int id, int maxPending, long maxDelayMs) {
+  getDB_KVP(id).enableWriteBehind(maxPending, maxDelayMs);
+}
+
+/**
+ * declare a {@link BlobField} on the {@link DB_blob} that's bound to this in the R.id for
+ * blobs {@link AppData.ID_Types#Database_BLOB}; see {@link DB_blob#addField(BlobField)}
+ *
+ * @return true if the column for the field was created (and filled in)
+ */
+public boolean addField(int id, BlobField field) {
+  return getDB_BLOB(id).addField(field);
+}
+
+/**
+ * write out the queued writes of all the declared kvp dbs that are in write-behind mode, and block
+ * until they're committed. don't call this on the main thread.
+ *
+ * @return false if some of the queued writes couldn't be committed
+ */
+public boolean flush() {
+  boolean retval = true;
+  for (DB_base db : _getOpenDbs()) {
+    if (db instanceof DB_kvp && !((DB_kvp) db).flush()) { retval = false; }
+  }
+  return retval;
+}
+
+/** @return the file that hosts all the declared dbs, null unless {@link #ConsolidatedStorage} is true */
+public DBSharedFile getSharedFile() {
+  return sharedFile;
+}
+
+/**
+ * run the given code in a single transaction, so that its writes to any of the declared dbs are committed
+ * together; see {@link DBSharedFile#runInTransaction(Runnable)}
+ *
+ * @throws IllegalStateException if {@link #ConsolidatedStorage} is off, since each db has its own file then
+ */
+public void runInTransaction(Runnable body) {
+  if (sharedFile == null) { throw new IllegalStateException("writes across dbs need ConsolidatedStorage"); }
+  sharedFile.runInTransaction(body);
+}
+
+/** @return the {@link DBCompactor} that's shared by all the declared dbs */
+public DBCompactor getCompactor() {
+  return compactor;
+}
+
+/** @return the {@link DBExpirySweeper} that deletes the expired rows of all the declared kvp dbs */
+public DBExpirySweeper getExpirySweeper() {
+  return expirySweeper;
+}
+
+/**
+ * compact all the declared dbs (kvp & blob) that have been opened on the background {@link DBCompactor}
+ * thread, no matter how fragmented they are. this returns right away.
+ */
+public void compactAll() {
+  for (DB_base db : _getOpenDbs()) {
+    if (!db.inMemory) { compactor.compact(db); }
+  }
+}
+
+/**
+ * run {@link #compactAll()} the next time the calling thread's message queue goes idle (eg: after the
+ * first activity is done drawing). this must be called from a thread that has a {@link Looper}, which is
+ * typically the main thread.
+ */
+public void scheduleIdleCompaction() {
+  Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+    public boolean queueIdle() {
+      compactAll();
+      return false;
+    }
+  });
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// stats
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * @return a snapshot of the {@link DBStats} of every declared db that's been opened, by db name. the dbs
+ * that haven't been opened yet aren't opened just for this.
+ */
+public TreeMap<String, DBStats.Snapshot> getStats() {
+  TreeMap<String, DBStats.Snapshot> retval = new TreeMap<String, DBStats.Snapshot>();
+  for (DB_base db : _getOpenDbs()) {
+    retval.put(db.dbName, db.getStats().snapshot(db.dbName));
+  }
+  return retval;
+}
+
+/** @return a snapshot of the {@link DBStats} of the given db, null if it hasn't been opened yet */
+public DBStats.Snapshot getStats(String dbName) {
+  DBHandle<? extends DB_base> handle = DB_kvp_map.containsKey(dbName) ? DB_kvp_map.get(dbName) :
+                                       DB_blob_map.get(dbName);
+  DB_base db = handle == null ? null : handle.peek();
+  return db == null ? null : db.getStats().snapshot(dbName);
+}
+
+/** start over from 0 with the {@link DBStats} of all the open dbs */
+public synchronized void resetStats() {
+  for (DB_base db : _getOpenDbs()) { db.getStats().reset(); }
+  dumpedStats.clear();
+}
+
+/**
+ * log the ops that were recorded on each open db since the last time this was called (or since it was
+ * opened), skipping the dbs that had none. this is called every {@link #StatsDumpIntervalMs} on a
+ * background thread, see {@link #startStatsDump(long)}.
+ */
+public synchronized void dumpStats() {
+  for (DBStats.Snapshot snapshot : getStats().values()) {
+    DBStats.Snapshot period = snapshot.minus(dumpedStats.get(snapshot.dbName));
+    dumpedStats.put(snapshot.dbName, snapshot);
+    if (period.getCount() > 0) { AndroidUtils.log(IconPaths.Storage, "DBManager - stats " + period); }
+  }
+}
+
+/**
+ * call {@link #dumpStats()} every intervalMs on a background thread, this replaces the current schedule.
+ * nothing is dumped unless this is called; the constructor only calls it when {@link #StatsDumpIntervalMs}
+ * is greater than 0 (it's 0 by default). {@link #stopStatsDump()} and {@link #shutdown()} stop it.
+ */
+public synchronized void startStatsDump(long intervalMs) {
+  stopStatsDump();
+  statsExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "DBManager-stats");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+  statsExecutor.scheduleWithFixedDelay(new Runnable() {
+    public void run() {
+      try {
+        dumpStats();
+      }
+      catch (Exception e) {
+        AndroidUtils.logErr(IconPaths.Storage, "DBManager - problem dumping stats", e);
+      }
+    }
+  }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+}
+
+/** stop the periodic {@link #dumpStats()} */
+public synchronized void stopStatsDump() {
+  if (statsExecutor != null) {
+    statsExecutor.shutdownNow();
+    statsExecutor = null;
+  }
 }
 
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// self test method
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
 /**
  * test all the declared dbs (kvp & blob)
  */
@@ -110,6 +642,20 @@ public void test() {
   for (String dbEnum : db_blob_IDs) {
     getDB_BLOB(dbEnum).test();
   }
+
+  for (String dbEnum : db_kvp_mem_IDs) {
+    getDB_KVP(dbEnum).test();
+  }
+
+  for (String dbEnum : db_blob_mem_IDs) {
+    getDB_BLOB(dbEnum).test();
+  }
+
+  for (String dbEnum : db_kvp_log_IDs) {
+    getDB_KVP(dbEnum).test();
+  }
+
+  dumpStats();
 }
 
 /**
@@ -117,6 +663,12 @@ public void test() {
  * blobs {@link AppData.ID_Types#Database_BLOB} &
  * kvps {@link AppData.ID_Types#Database_KVP}
  * <p/>
+ * Any writes queued in write-behind mode ({@link #enableWriteBehind(int, int, long)}) are flushed before
+ * the connections are closed.
+ * <p/>
+ * The {@link DBAsync} operations that are waiting are cancelled, and the ones that are running are given up
+ * to {@link #AsyncShutdownTimeoutMs} to finish (they're never interrupted) before the dbs are closed.
+ * <p/>
  * This is deprecated because the maps are no longer static. The initial implementation
  * used static maps, which is why there was this explicit release mechanism; this is
  * due to Android persisting the value of static objects between app lifecycle instances,
@@ -125,14 +677,44 @@ public void test() {
 @Deprecated
 public void shutdown() {
 
-  for (String dbEnum : db_kvp_IDs) {
-    getDB_KVP(dbEnum).shutdown();
+  compactor.shutdown();
+  expirySweeper.shutdown();
+  stopStatsDump();
+  ThreadPoolExecutor executor;
+  synchronized (this) {
+    // the dbs are about to be closed, so the queued operations are cancelled instead of run
+    for (DBSerialExecutor serialExecutor : serialExecutors.values()) { serialExecutor.shutdown(); }
+    serialExecutors.clear();
+    executor = asyncExecutor;
+    asyncExecutor = null;
+  }
+  if (executor != null) {
+    // the operations that are running are never interrupted (see DBFuture), so wait for them to finish
+    // before their dbs are closed
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(AsyncShutdownTimeoutMs, TimeUnit.MILLISECONDS)) {
+        AndroidUtils.logErr(IconPaths.Storage,
+                            "DBManager.shutdown - async operations still running after " +
+                            AsyncShutdownTimeoutMs + " ms, closing the dbs anyway");
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
-  for (String dbEnum : db_blob_IDs) {
-    getDB_BLOB(dbEnum).shutdown();
+  // dbs that haven't been opened yet are not opened just to be closed
+  for (DBHandle<DB_kvp> handle : DB_kvp_map.values()) {
+    handle.shutdown();
   }
 
+  for (DBHandle<DB_blob> handle : DB_blob_map.values()) {
+    handle.shutdown();
+  }
+
+  if (sharedFile != null) { sharedFile.close(); }
+
   DB_kvp_map.clear();
   DB_blob_map.clear();
 
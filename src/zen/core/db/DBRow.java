@@ -0,0 +1,65 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+/**
+ * An immutable row that's been read from a {@link DB_kvp} or a {@link DB_blob}, by
+ * {@link DB_base#getPage(long, int)}, {@link DB_base#forEach(DBRowVisitor)}, or {@link DB_base#iterator()}.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 2:30 PM
+ */
+public class DBRow {
+
+/** the {@link android.provider.BaseColumns#_ID} of the row */
+public final long   id;
+/** the key of the row, this is null for {@link DB_blob} rows */
+public final String key;
+/** the value (or payload) of the row, this is null for binary {@link DB_blob} payloads */
+public final String value;
+/** the payload of the row if it's a binary {@link DB_blob} payload, otherwise null */
+public final byte[]  bytes;
+/**
+ * true if the payload is too big to be loaded with the row (see {@link DB_blob#setSpillThreshold(int)}),
+ * in which case value and bytes are both null. read it with {@link DB_blob#openStream(long)} or
+ * {@link DB_blob#map(long)}.
+ */
+public final boolean spilled;
+
+public DBRow(long id, String key, String value) {
+  this(id, key, value, null, false);
+}
+
+public DBRow(long id, String key, byte[] bytes) {
+  this(id, key, null, bytes, false);
+}
+
+DBRow(long id, String key, String value, byte[] bytes, boolean spilled) {
+  this.id = id;
+  this.key = key;
+  this.value = value;
+  this.bytes = bytes;
+  this.spilled = spilled;
+}
+
+public String toString() {
+  String payload = spilled ? "<spilled>" : bytes == null ? value : String.format("<%d bytes>", bytes.length);
+  return key == null ? String.format("[%d] %s", id, payload) : String.format("[%d] %s=%s", id, key, payload);
+}
+
+}//end class DBRow
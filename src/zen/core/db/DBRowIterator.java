@@ -0,0 +1,75 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import java.util.*;
+
+/**
+ * Iterates over the rows of a {@link DB_kvp} or a {@link DB_blob} in {@link DBRow#id} order, reading them
+ * one window at a time with {@link DB_base#getPage(long, int)}. No cursor is held open between windows
+ * (each window's cursor is closed before it's returned), so this never needs to be closed, it can be
+ * abandoned at any time, and it only ever holds one window of rows in memory.
+ * <p/>
+ * Since each window is a separate query, rows that are added or removed while iterating may or may not
+ * be seen, but rows are never seen twice.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 2:30 PM
+ */
+public class DBRowIterator implements Iterator<DBRow> {
+
+private final DB_base          db;
+private final int              windowSize;
+private       ArrayList<DBRow> window   = new ArrayList<DBRow>();
+private       int              position = 0;
+private       long             lastId;
+private       boolean          done;
+
+/**
+ * @param afterId    start with the first row whose id is greater than this (0 means start at the beginning)
+ * @param windowSize max number of rows read per query
+ */
+public DBRowIterator(DB_base db, long afterId, int windowSize) {
+  if (windowSize <= 0) { throw new IllegalArgumentException("windowSize must be positive"); }
+  this.db = db;
+  this.windowSize = windowSize;
+  this.lastId = afterId;
+}
+
+public boolean hasNext() {
+  if (position < window.size()) { return true; }
+  if (done) { return false; }
+  window = db.getPage(lastId, windowSize);
+  position = 0;
+  if (window.size() < windowSize) { done = true; }
+  if (window.isEmpty()) { return false; }
+  lastId = window.get(window.size() - 1).id;
+  return true;
+}
+
+public DBRow next() {
+  if (!hasNext()) { throw new NoSuchElementException(); }
+  return window.get(position++);
+}
+
+/** not supported, use the remove methods of the db instead */
+public void remove() {
+  throw new UnsupportedOperationException("use the remove methods of the db instead");
+}
+
+}//end class DBRowIterator
@@ -0,0 +1,36 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+/**
+ * Implement this to stream through the rows of a {@link DB_kvp} or a {@link DB_blob} with
+ * {@link DB_base#forEach(DBRowVisitor)}, without loading all of them into memory.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 2:30 PM
+ */
+public interface DBRowVisitor {
+
+/**
+ * this is called once for each row, in {@link DBRow#id} order
+ *
+ * @return true to keep going, false to stop (no more rows are read after this)
+ */
+public boolean onRow(DBRow row);
+
+}//end interface DBRowVisitor
@@ -0,0 +1,99 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the operations of one db one at a time, in the order they were submitted, on the executor that's
+ * shared by all the {@link DBAsync} facades (see {@link DBManager}). Only the operation that's running (or
+ * about to) is handed to the shared executor; the rest wait here, so the operations of different dbs still
+ * run in parallel, but a write is never overtaken by a read (or another write) that was submitted after it,
+ * even if they were submitted through different facades.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 11:45 PM
+ */
+class DBSerialExecutor implements Executor, DBConstantsIF {
+
+private final Executor            executor;
+/** the operations that are waiting for the one that's running, guarded by this */
+private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+/** the operation that's been handed to the executor, null if nothing is running, guarded by this */
+private       Runnable            active;
+private       boolean             shutdown;
+
+DBSerialExecutor(Executor executor) {
+  this.executor = executor;
+}
+
+/**
+ * queue the operation, it's run after all the ones that were queued before it
+ *
+ * @throws RejectedExecutionException if {@link #AsyncQueueSize} operations are already waiting, or this has
+ *                                    been shut down
+ */
+public synchronized void execute(Runnable operation) {
+  if (shutdown) { throw new RejectedExecutionException("the db has been shut down"); }
+  if (queue.size() >= AsyncQueueSize) { throw new RejectedExecutionException("too many operations are waiting"); }
+  queue.add(operation);
+  if (active == null) { _runNext(); }
+}
+
+/**
+ * hand the next operation to the executor. if the executor rejects it, it's failed (or cancelled), and the
+ * one after it is tried.
+ */
+private synchronized void _runNext() {
+  while ((active = queue.poll()) != null) {
+    final Runnable operation = active;
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            operation.run();
+          }
+          finally {
+            _runNext();
+          }
+        }
+      });
+      return;
+    }
+    catch (RejectedExecutionException e) {
+      if (operation instanceof DBFuture) { ((DBFuture<?>) operation).fail(e); }
+      else if (operation instanceof Future) { ((Future<?>) operation).cancel(false); }
+    }
+  }
+}
+
+/**
+ * cancel the operations that are waiting, and the one that's running (which isn't interrupted, see
+ * {@link DBFuture#cancel(boolean)}); operations that are submitted after this are rejected
+ */
+synchronized void shutdown() {
+  shutdown = true;
+  if (active instanceof Future) { ((Future<?>) active).cancel(false); }
+  for (Runnable operation : queue) {
+    if (operation instanceof Future) { ((Future<?>) operation).cancel(false); }
+  }
+  queue.clear();
+}
+
+}//end class DBSerialExecutor
@@ -0,0 +1,322 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package zen.core.db;
+
+import android.content.*;
+import android.database.*;
+import android.database.sqlite.*;
+import zen.utlis.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A single db file that hosts all the declared kvp and blob dbs, each one in a table of its own (named after
+ * the db). All of them share one {@link SQLiteDatabase}, so there's just one page cache, one set of file
+ * descriptors, and one journal (or write-ahead log) for the whole app, instead of one of each per db. Since
+ * they share a connection, writes to several dbs can also be committed atomically, see
+ * {@link #runInTransaction(Runnable)}.
+ * <p/>
+ * The tables of all the declared dbs are created when the file is opened. Dbs that were created before
+ * this class existed live in files of their own; when one of those files is found, its rows are copied
+ * into the db's table (the old file is <a href="http://sqlite.org/lang_attach.html">attached</a> to the
+ * shared connection, so the copy is a single insert-select), and then the old file is deleted. If the copy
+ * fails, the old file is left alone, and the copy is tried again the next time the shared file is opened.
+ * <p/>
+ * The migration is one-way. Once a db has been copied, its old file is gone, and nothing copies the rows
+ * back out of the shared file; an app that turns {@link #ConsolidatedStorage} off again gets empty dbs in
+ * new files of their own (the shared file is left where it is). So only turn it on once, for good.
+ * <p/>
+ * {@link DBManager} creates one of these when {@link #ConsolidatedStorage} is true, and closes it in
+ * {@link DBManager#shutdown()}, after all the dbs it hosts are shut down.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 7:40 PM
+ */
+public class DBSharedFile implements DBConstantsIF {
+
+private static final String SQL_ATTACH_LEGACY    = "attach database ? as legacy";
+private static final String SQL_DETACH_LEGACY    = "detach database legacy";
+private static final String SQL_LEGACY_HAS_TABLE = "select count(*) from legacy.sqlite_master " +
+                                                   "where type = 'table' and name = ?";
+private static final String SQL_COPY_LEGACY      = "insert or ignore into main.%s(%s) select %s from legacy.%s";
+
+public final  String   fileName;
+public final  int      dbVersion;
+private final Context  ctx;
+private final String[] kvpNames;
+private final String[] blobNames;
+
+/** the connection that's shared by all the dbs, guarded by this */
+private SQLiteDatabase connection;
+/** set by {@link #close()}, the connection can't be opened again after this, guarded by this */
+private boolean        closed;
+/** the {@link #runInTransaction(Runnable)} that the current thread is in, if any */
+private final ThreadLocal<Transaction> transaction = new ThreadLocal<Transaction>();
+
+/**
+ * @param fileName  name of the db file that hosts all the tables
+ * @param kvpNames  the names of the {@link DB_kvp}s that are hosted in this file
+ * @param blobNames the names of the {@link DB_blob}s that are hosted in this file
+ */
+public DBSharedFile(Context ctx, String fileName, int dbVersion, String[] kvpNames, String[] blobNames) {
+  this.ctx = ctx;
+  this.fileName = fileName;
+  this.dbVersion = dbVersion;
+  this.kvpNames = kvpNames;
+  this.blobNames = blobNames;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// connection
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * @return the shared connection, which is opened (and the tables are created, and the old per db files
+ * are migrated) the first time this is called. don't close it, use {@link #close()}.
+ *
+ * @throws IllegalStateException if this file has been closed; this keeps a db whose open was still in
+ *                               flight when {@link DBManager#shutdown()} ran from opening a new connection
+ *                               that nobody would close
+ */
+public synchronized SQLiteDatabase getConnection() {
+  if (closed) { throw new IllegalStateException("DBSharedFile - [" + fileName + "] has been closed"); }
+  if (connection == null) { connection = _open(); }
+  return connection;
+}
+
+/** @return true if the shared connection is open */
+public synchronized boolean isOpen() {
+  return connection != null && connection.isOpen();
+}
+
+/** close the shared connection, call this after all the dbs that are hosted in this file are shut down */
+public synchronized void close() {
+  closed = true;
+  if (connection != null) {
+    connection.close();
+    connection = null;
+  }
+}
+
+/**
+ * run the given code in a single transaction, so that all the writes it makes (to any of the dbs hosted in
+ * this file) are committed together, or not at all if it throws. the writes of each db join this
+ * transaction instead of committing on their own, and their changes are held back until it ends (see
+ * {@link DB_base#onSharedTransactionEnd(boolean)}); they're emitted if it commits, and dropped if it's
+ * rolled back. calls can be nested, only the outermost one commits.
+ */
+public void runInTransaction(Runnable body) {
+  SQLiteDatabase database = getConnection();
+  Transaction outer = transaction.get();
+  Transaction current = outer != null ? outer : new Transaction();
+  if (outer == null) { transaction.set(current); }
+  boolean committed = false;
+  try {
+    if (database.isWriteAheadLoggingEnabled()) { database.beginTransactionNonExclusive(); }
+    else { database.beginTransaction(); }
+    boolean success = false;
+    try {
+      body.run();
+      database.setTransactionSuccessful();
+      success = true;
+    }
+    finally {
+      database.endTransaction();
+    }
+    committed = success;
+  }
+  finally {
+    // a nested call that fails rolls back the outermost one too
+    if (!committed) { current.failed = true; }
+    if (outer == null) {
+      transaction.remove();
+      for (DB_base db : current.dbs) { db.onSharedTransactionEnd(!current.failed); }
+    }
+  }
+}
+
+/**
+ * add the db to the {@link #runInTransaction(Runnable)} that the current thread is in, so that it's told
+ * when that transaction ends
+ *
+ * @return false if the current thread isn't in one
+ */
+boolean enlist(DB_base db) {
+  Transaction current = transaction.get();
+  if (current == null) { return false; }
+  current.dbs.add(db);
+  return true;
+}
+
+/** The state of a {@link #runInTransaction(Runnable)}, it's only used by the thread that's running it */
+private static class Transaction {
+
+  /** the dbs that made changes in the transaction */
+  final LinkedHashSet<DB_base> dbs = new LinkedHashSet<DB_base>();
+  boolean failed;
+
+}//end class Transaction
+
+/**
+ * the file is opened without write-ahead logging, since attaching the old files (which happens before anyone
+ * else gets the connection) turns it off anyway; it's turned on once the migration is done.
+ */
+private SQLiteDatabase _open() {
+  Helper helper = new Helper();
+  helper.setWriteAheadLoggingEnabled(false);
+  SQLiteDatabase database = helper.getWritableDatabase();
+
+  for (String dbName : kvpNames) {
+    _migrate(database, dbName, DB_kvp.Schema.TABLE_MAP);
+  }
+  for (String dbName : blobNames) {
+    _migrate(database, dbName, DB_blob.Schema.TABLE_PAYLOAD);
+  }
+
+  if (EnableWriteAheadLogging) { database.enableWriteAheadLogging(); }
+  return database;
+}
+
+/** create the tables of all the declared dbs, if they don't exist yet */
+private void _createTables(SQLiteDatabase database) {
+  for (String dbName : kvpNames) {
+    database.execSQL(new DB_kvp.Sql(dbName).createTable);
+  }
+  for (String dbName : blobNames) {
+    database.execSQL(new DB_blob.Sql(dbName).createTable);
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// migration of the old per db files
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * if the db still has a file of its own, copy the rows from its table into the db's table in the shared file,
+ * and delete the old file. the ids are kept, so that references to them stay valid. rows that were already
+ * copied (by an earlier attempt that didn't get to delete the old file) are skipped. only the cols that both
+ * tables have are copied, so old files that were created before a col was added (eg: the
+ * {@link DB_kvp.Schema#COL_EXPIRES} col) can still be migrated, and newer ones keep the values of those cols.
+ */
+private void _migrate(SQLiteDatabase database, String dbName, String legacyTable) {
+  File legacyFile = ctx.getDatabasePath(dbName);
+  if (legacyFile == null || !legacyFile.exists()) { return; }
+
+  try {
+    database.execSQL(SQL_ATTACH_LEGACY, new Object[]{legacyFile.getPath()});
+    try {
+      if (DatabaseUtils.longForQuery(database, SQL_LEGACY_HAS_TABLE, new String[]{legacyTable}) > 0) {
+        String colList = _join(_getCommonCols(database, dbName, legacyTable));
+        database.beginTransaction();
+        try {
+          database.execSQL(String.format(SQL_COPY_LEGACY, dbName, colList, colList, legacyTable));
+          database.setTransactionSuccessful();
+        }
+        finally {
+          database.endTransaction();
+        }
+      }
+    }
+    finally {
+      database.execSQL(SQL_DETACH_LEGACY);
+    }
+  }
+  catch (SQLException e) {
+    AndroidUtils.logErr(IconPaths.Storage,
+                        String.format("DBSharedFile - [%s] problem migrating %s, will try again on next open",
+                                      fileName, dbName), e);
+    return;
+  }
+
+  ctx.deleteDatabase(dbName);
+  AndroidUtils.log(IconPaths.Storage,
+                   String.format("DBSharedFile - [%s] migrated %s into its own table", fileName, dbName));
+}
+
+/** @return the names of the cols that the given table in the shared file, and the legacy table, both have */
+private static ArrayList<String> _getCommonCols(SQLiteDatabase database, String table, String legacyTable) {
+  ArrayList<String> retval = _getCols(database, "main", table);
+  retval.retainAll(_getCols(database, "legacy", legacyTable));
+  return retval;
+}
+
+private static ArrayList<String> _getCols(SQLiteDatabase database, String schema, String table) {
+  ArrayList<String> retval = new ArrayList<String>();
+  Cursor cursor = database.rawQuery("PRAGMA " + schema + ".table_info(" + table + ")", null);
+  try {
+    int nameIndex = cursor.getColumnIndex("name");
+    while (cursor.moveToNext()) { retval.add(cursor.getString(nameIndex)); }
+  }
+  finally {
+    cursor.close();
+  }
+  return retval;
+}
+
+private static String _join(List<String> cols) {
+  StringBuilder sb = new StringBuilder();
+  for (String col : cols) {
+    if (sb.length() > 0) { sb.append(", "); }
+    sb.append(col);
+  }
+  return sb.toString();
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// db schema creation
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** opens the shared file, and creates the tables of the declared dbs every time it's opened */
+private class Helper extends SQLiteOpenHelper {
+
+  private Helper() {
+    super(ctx, fileName, null, dbVersion);
+  }
+
+  /** put the db in incremental auto_vacuum mode before any tables are created, see {@link DBCompactor} */
+  public void onConfigure(SQLiteDatabase database) {
+    DBCompactor.configure(database);
+  }
+
+  /** nothing to do here, since the tables are created in {@link #onOpen(SQLiteDatabase)} */
+  public void onCreate(SQLiteDatabase database) {}
+
+  /** upgrade the db when the version changes, by dropping the tables of all the declared dbs */
+  public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+    AndroidUtils.logErr(IconPaths.Storage,
+                        "DBSharedFile - [" + fileName + "] upgrading db to a newer version");
+    for (String dbName : kvpNames) {
+      database.execSQL(new DB_kvp.Sql(dbName).dropTable);
+    }
+    for (String dbName : blobNames) {
+      DB_blob.Sql sql = new DB_blob.Sql(dbName);
+      database.execSQL(sql.dropTable);
+      database.execSQL(sql.dropSearchTable);
+    }
+  }
+
+  /** dbs that were declared after the file was created get their tables here */
+  public void onOpen(SQLiteDatabase database) {
+    _createTables(database);
+  }
+
+}//end class Helper
+
+}//end class DBSharedFile
@@ -0,0 +1,333 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * The binary snapshot format that {@link DB_base#exportTo(OutputStream, boolean)} writes and
+ * {@link DB_base#importFrom(InputStream, boolean)} reads. A snapshot is written and read one chunk at a time,
+ * so the memory it takes doesn't depend on the size of the db (only on the size of the biggest row).
+ * <p/>
+ * The layout is:
+ * <ol>
+ * <li>header: magic (int), {@link #VERSION} (byte), kind (byte, {@link #KIND_KVP} or {@link #KIND_BLOB}),
+ * flags (byte, {@link #FLAG_DEFLATE} if the rest of the stream is deflated)</li>
+ * <li>chunks: length of the records (int), CRC32 of the records (int), and then the records themselves;
+ * a chunk is cut once it holds {@link #SnapshotChunkBytes} bytes</li>
+ * <li>end: a chunk length of 0, followed by the total number of rows (long)</li>
+ * </ol>
+ * A kvp record is: key, value (both as an int length followed by UTF-8 bytes), and expiry time (long, 0
+ * means never). A blob record is: type (byte, {@link #RECORD_TEXT} or {@link #RECORD_BYTES}), id (long),
+ * and the payload (int length followed by the bytes, UTF-8 for text).
+ * <p/>
+ * All numbers are big endian (see {@link DataOutputStream}).
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 7:10 PM
+ */
+public class DBSnapshot implements DBConstantsIF {
+
+/** "ZSNP" */
+public static final int  MAGIC        = 0x5A534E50;
+public static final int  VERSION      = 1;
+public static final byte KIND_KVP     = 1;
+public static final byte KIND_BLOB    = 2;
+public static final byte FLAG_DEFLATE = 0x01;
+/** blob record types */
+public static final byte RECORD_TEXT  = 1;
+public static final byte RECORD_BYTES = 2;
+
+private static final Charset UTF8        = Charset.forName("UTF-8");
+/** room for the record that fills a chunk up past {@link #SnapshotChunkBytes} */
+private static final int     CHUNK_SLACK = 1024;
+
+private DBSnapshot() {}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// writing
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * Writes the records of a snapshot to a stream. Call {@link #finish()} when all the rows have been written;
+ * the stream isn't closed by this class.
+ */
+public static class Writer {
+
+  private final DataOutputStream      out;
+  private final Deflater              deflater;
+  private final DeflaterOutputStream  deflaterStream;
+  private final byte                  kind;
+  /** the records of the current chunk */
+  private final ByteArrayOutputStream chunk    = new ByteArrayOutputStream(SnapshotChunkBytes + CHUNK_SLACK);
+  private final DataOutputStream      chunkOut = new DataOutputStream(chunk);
+  private final CRC32                 crc      = new CRC32();
+  private long rowCount;
+
+  /** write the header to the given stream */
+  public Writer(OutputStream stream, byte kind, boolean compress) throws IOException {
+    this.kind = kind;
+    DataOutputStream header = new DataOutputStream(stream);
+    header.writeInt(MAGIC);
+    header.writeByte(VERSION);
+    header.writeByte(kind);
+    header.writeByte(compress ? FLAG_DEFLATE : 0);
+    header.flush();
+    if (compress) {
+      deflater = new Deflater(Deflater.BEST_SPEED);
+      deflaterStream = new DeflaterOutputStream(stream, deflater, SnapshotChunkBytes);
+      out = new DataOutputStream(deflaterStream);
+    }
+    else {
+      deflater = null;
+      deflaterStream = null;
+      out = new DataOutputStream(new BufferedOutputStream(stream, SnapshotChunkBytes));
+    }
+  }
+
+  /** @param expiresAt ms since the epoch, 0 means never */
+  public void writeKvp(String key, String value, long expiresAt) throws IOException {
+    _checkKind(KIND_KVP);
+    _writeBytes(key.getBytes(UTF8));
+    _writeBytes(value.getBytes(UTF8));
+    chunkOut.writeLong(expiresAt);
+    _endRecord();
+  }
+
+  /** @param text true if the payload is the UTF-8 form of a String */
+  public void writeBlob(long id, boolean text, byte[] payload) throws IOException {
+    _checkKind(KIND_BLOB);
+    chunkOut.writeByte(text ? RECORD_TEXT : RECORD_BYTES);
+    chunkOut.writeLong(id);
+    _writeBytes(payload);
+    _endRecord();
+  }
+
+  /** write out the last chunk and the end marker, and flush the stream */
+  public void finish() throws IOException {
+    _writeChunk();
+    out.writeInt(0);
+    out.writeLong(rowCount);
+    out.flush();
+    if (deflaterStream != null) {
+      deflaterStream.finish();
+      deflater.end();
+    }
+  }
+
+  public long getRowCount() {return rowCount;}
+
+  private void _checkKind(byte expected) {
+    if (kind != expected) { throw new IllegalStateException("can't write this record to a snapshot of kind " + kind); }
+  }
+
+  private void _writeBytes(byte[] bytes) throws IOException {
+    chunkOut.writeInt(bytes.length);
+    chunkOut.write(bytes);
+  }
+
+  private void _endRecord() throws IOException {
+    rowCount++;
+    if (chunk.size() >= SnapshotChunkBytes) { _writeChunk(); }
+  }
+
+  private void _writeChunk() throws IOException {
+    if (chunk.size() == 0) { return; }
+    crc.reset();
+    byte[] records = chunk.toByteArray();
+    crc.update(records, 0, records.length);
+    out.writeInt(records.length);
+    out.writeInt((int) crc.getValue());
+    out.write(records);
+    chunk.reset();
+  }
+
+}//end class Writer
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// reading
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * Reads the records of a snapshot from a stream, one at a time. Each chunk's checksum is verified before
+ * any of its records are returned. The stream isn't closed by this class, but the reader has to be closed
+ * (see {@link #close()}) once it's done with, even if reading it failed.
+ */
+public static class Reader {
+
+  private final DataInputStream in;
+  private final Inflater        inflater;
+  private final byte            kind;
+  private final CRC32           crc     = new CRC32();
+  /** the records of the current chunk */
+  private byte[]                chunk   = new byte[0];
+  private DataInputStream       records = new DataInputStream(new ByteArrayInputStream(chunk));
+  private long                  rowCount;
+  private boolean               done;
+
+  /** the current record */
+  private String  key;
+  private String  value;
+  private long    expiresAt;
+  private long    id;
+  private boolean text;
+  private byte[]  payload;
+
+  /**
+   * read the header from the given stream
+   *
+   * @throws IOException if it isn't a snapshot of the given kind, or it was written by a newer version
+   */
+  public Reader(InputStream stream, byte kind) throws IOException {
+    this.kind = kind;
+    DataInputStream header = new DataInputStream(stream);
+    if (header.readInt() != MAGIC) { throw new IOException("not a db snapshot"); }
+    int version = header.readUnsignedByte();
+    if (version > VERSION) { throw new IOException("unsupported db snapshot version: " + version); }
+    int actualKind = header.readByte();
+    if (actualKind != kind) { throw new IOException("expected a db snapshot of kind " + kind + ", not " + actualKind); }
+    if ((header.readByte() & FLAG_DEFLATE) != 0) {
+      inflater = new Inflater();
+      in = new DataInputStream(new InflaterInputStream(stream, inflater, SnapshotChunkBytes));
+    }
+    else {
+      inflater = null;
+      in = new DataInputStream(new BufferedInputStream(stream, SnapshotChunkBytes));
+    }
+  }
+
+  /**
+   * move to the next record
+   *
+   * @return false if there are no more records
+   *
+   * @throws IOException if the snapshot is truncated or corrupt
+   */
+  public boolean next() throws IOException {
+    if (done) { return false; }
+    if (records.available() == 0 && !_readChunk()) {
+      done = true;
+      close();
+      return false;
+    }
+    try {
+      _readRecord();
+    }
+    catch (EOFException e) {
+      throw new IOException("corrupt db snapshot, record runs past the end of its chunk");
+    }
+    rowCount++;
+    return true;
+  }
+
+  /** release the native memory of the inflater (for deflated snapshots), this can be called more than once */
+  public void close() {
+    if (inflater != null) { inflater.end(); }
+  }
+
+  /** @return the number of records that have been read so far */
+  public long getRowCount() {return rowCount;}
+
+  /** @return the key of the current kvp record */
+  public String getKey() {return key;}
+
+  /** @return the value of the current kvp record */
+  public String getValue() {return value;}
+
+  /** @return the expiry time of the current kvp record, 0 means never */
+  public long getExpiresAt() {return expiresAt;}
+
+  /** @return the id of the current blob record */
+  public long getId() {return id;}
+
+  /** @return true if the payload of the current blob record is the UTF-8 form of a String */
+  public boolean isText() {return text;}
+
+  /** @return the payload of the current blob record */
+  public byte[] getPayload() {return payload;}
+
+  /** @return the payload of the current blob record as a String */
+  public String getText() {return new String(payload, UTF8);}
+
+  private void _readRecord() throws IOException {
+    if (kind == KIND_KVP) {
+      key = new String(_readBytes(), UTF8);
+      value = new String(_readBytes(), UTF8);
+      expiresAt = records.readLong();
+      return;
+    }
+    byte type = records.readByte();
+    if (type != RECORD_TEXT && type != RECORD_BYTES) { throw new IOException("corrupt db snapshot, record type: " + type); }
+    text = type == RECORD_TEXT;
+    id = records.readLong();
+    payload = _readBytes();
+  }
+
+  private byte[] _readBytes() throws IOException {
+    int length = records.readInt();
+    if (length < 0 || length > records.available()) { throw new EOFException(); }
+    byte[] bytes = new byte[length];
+    records.readFully(bytes);
+    return bytes;
+  }
+
+  /** @return false if the end marker was read */
+  private boolean _readChunk() throws IOException {
+    int length = in.readInt();
+    if (length == 0) {
+      long expected = in.readLong();
+      if (expected != rowCount) {
+        throw new IOException("corrupt db snapshot, expected " + expected + " rows, but read " + rowCount);
+      }
+      return false;
+    }
+    if (length < 0) { throw new IOException("corrupt db snapshot, chunk length: " + length); }
+    int checksum = in.readInt();
+    _readChunkBytes(length);
+    crc.reset();
+    crc.update(chunk, 0, length);
+    if ((int) crc.getValue() != checksum) { throw new IOException("corrupt db snapshot, chunk checksum mismatch"); }
+    records = new DataInputStream(new ByteArrayInputStream(chunk, 0, length));
+    return true;
+  }
+
+  /**
+   * read the given number of bytes into {@link #chunk}. most chunks are at most {@link #SnapshotChunkBytes}
+   * plus some slack for the record that filled them up, so that much is allocated up front. a chunk can be
+   * bigger than that when it holds a row that's bigger than a chunk; the length of such a chunk isn't
+   * trusted (it might be corrupt), so the buffer only grows as its bytes actually arrive, instead of being
+   * allocated all at once.
+   */
+  private void _readChunkBytes(int length) throws IOException {
+    int upFront = Math.min(length, SnapshotChunkBytes + CHUNK_SLACK);
+    if (chunk.length < upFront) { chunk = new byte[SnapshotChunkBytes + CHUNK_SLACK]; }
+    int read = 0;
+    while (read < length) {
+      if (read == chunk.length) { chunk = Arrays.copyOf(chunk, (int) Math.min(length, 2L * chunk.length)); }
+      int count = in.read(chunk, read, Math.min(length, chunk.length) - read);
+      if (count < 0) { throw new IOException("corrupt db snapshot, chunk runs past the end of the stream"); }
+      read += count;
+    }
+  }
+
+}//end class Reader
+
+}//end class DBSnapshot
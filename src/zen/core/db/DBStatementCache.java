@@ -0,0 +1,140 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import android.database.sqlite.*;
+
+import java.util.*;
+
+/**
+ * A pool of precompiled {@link SQLiteStatement}s for the fixed operations of a {@link DB_base}, so that
+ * SQL is parsed and compiled once per statement, instead of on every call, and so that reads and writes
+ * can bind their args with {@link SQLiteStatement#bindString(int, String)} and
+ * {@link SQLiteStatement#bindLong(int, long)}, without creating a {@link android.content.ContentValues}
+ * or a String[] of args each time.
+ * <p/>
+ * A {@link SQLiteStatement} can only be used by one thread at a time, so each SQL string has a small
+ * stack of idle statements: {@link #acquire(String)} takes one (compiling a new one if none are idle),
+ * and {@link #release(String, SQLiteStatement)} clears its bindings and puts it back. At most
+ * {@link #MaxIdlePerSql} idle statements are kept per SQL string, the rest are closed when released.
+ * <pre>
+ * SQLiteStatement statement = statementCache.acquire(SQL);
+ * try {
+ *   statement.bindString(1, key);
+ *   return statement.simpleQueryForString();
+ * }
+ * finally {
+ *   statementCache.release(SQL, statement);
+ * }
+ * </pre>
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 5:10 PM
+ */
+public class DBStatementCache {
+
+/** max number of idle statements kept for each SQL string */
+public static final int MaxIdlePerSql = 4;
+
+private final DB_base db;
+private final HashMap<String, ArrayList<SQLiteStatement>> idleMap     =
+    new HashMap<String, ArrayList<SQLiteStatement>>();
+/** the {@link #generation} that each statement that's in use was acquired in */
+private final IdentityHashMap<SQLiteStatement, Integer>   acquiredMap =
+    new IdentityHashMap<SQLiteStatement, Integer>();
+
+/** bumped by {@link #clear()}, statements that were acquired before that are closed when they're released */
+private int  generation;
+private long compiled;
+private long reused;
+
+public DBStatementCache(DB_base db) {
+  this.db = db;
+}
+
+/**
+ * @return an idle statement for the given SQL, or a newly compiled one. it has to be given back with
+ * {@link #release(String, SQLiteStatement)} when the caller is done with it.
+ */
+public SQLiteStatement acquire(String sql) {
+  int acquiredIn;
+  synchronized (this) {
+    acquiredIn = generation;
+    ArrayList<SQLiteStatement> idle = idleMap.get(sql);
+    if (idle != null && !idle.isEmpty()) {
+      SQLiteStatement statement = idle.remove(idle.size() - 1);
+      acquiredMap.put(statement, acquiredIn);
+      reused++;
+      return statement;
+    }
+    compiled++;
+  }
+  SQLiteStatement statement = db.dbConnection.compileStatement(sql);
+  synchronized (this) {
+    acquiredMap.put(statement, acquiredIn);
+  }
+  return statement;
+}
+
+/** give back a statement that was returned by {@link #acquire(String)} */
+public void release(String sql, SQLiteStatement statement) {
+  statement.clearBindings();
+  synchronized (this) {
+    Integer acquiredIn = acquiredMap.remove(statement);
+    if (acquiredIn != null && acquiredIn == generation) {
+      ArrayList<SQLiteStatement> idle = idleMap.get(sql);
+      if (idle == null) {
+        idle = new ArrayList<SQLiteStatement>(MaxIdlePerSql);
+        idleMap.put(sql, idle);
+      }
+      if (idle.size() < MaxIdlePerSql) {
+        idle.add(statement);
+        return;
+      }
+    }
+  }
+  statement.close();
+}
+
+/**
+ * close all the idle statements. statements that are in use right now are closed when they are
+ * released. call this before the db connection is closed, and after the schema changes.
+ */
+public void clear() {
+  ArrayList<SQLiteStatement> toClose = new ArrayList<SQLiteStatement>();
+  synchronized (this) {
+    generation++;
+    for (ArrayList<SQLiteStatement> idle : idleMap.values()) {
+      toClose.addAll(idle);
+    }
+    idleMap.clear();
+  }
+  for (SQLiteStatement statement : toClose) {
+    statement.close();
+  }
+}
+
+public synchronized long getCompiledCount() {return compiled;}
+
+public synchronized long getReusedCount() {return reused;}
+
+public synchronized String toString() {
+  return String.format("compiled:%d reused:%d", compiled, reused);
+}
+
+}//end class DBStatementCache
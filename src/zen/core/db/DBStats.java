@@ -0,0 +1,274 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Operation counts, rows & bytes, and latency histograms for one {@link DB_base}, per type of operation
+ * (see {@link Op}). Every db records into its own instance ({@link DB_base#getStats()}), and
+ * {@link DBManager#getStats()} collects them for all the open dbs.
+ * <p/>
+ * This is meant to be left on in production, so recording an operation is just two calls to
+ * {@link System#nanoTime()} and a handful of atomic adds, with no locks and no allocation. The latencies
+ * go into log2 buckets (bucket i holds the ops that took [2^(i-1), 2^i) ns), so the percentiles that are
+ * derived from them are only accurate to within a factor of 2, which is plenty to tell which db (and which
+ * operation) is slow. Set {@link #EnableDBStats} to false to compile all of it out.
+ * <p/>
+ * The bytes are the chars of the keys and the string values (which is the UTF-8 size for ASCII), and the
+ * size of the binary payloads.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 7:40 PM
+ */
+public class DBStats implements DBConstantsIF {
+
+/** the types of operations that are recorded */
+public enum Op {
+  /** lookups by key or id, including {@link DB_kvp#containsKey(String)} */
+  Get,
+  /** inserts, including replacing a key in {@link DB_kvp} */
+  Add,
+  /** updates of an existing key or id, including {@link DB_kvp#compareAndSet(String, String, String)} */
+  Update,
+  /** removes by key or id */
+  Remove,
+  /** reads of more than one row: pages, getAll, field queries and searches */
+  Scan,
+  /** {@link DB_kvp.Batch} and {@link DB_blob.Batch} commits, the rows are the queued operations */
+  Batch
+}
+
+/** number of latency buckets, the last one holds everything that took longer than 2^(BUCKETS-2) ns (~4.6 min) */
+public static final int BUCKETS = 40;
+
+private static final int COUNT  = 0;
+private static final int ROWS   = 1;
+private static final int BYTES  = 2;
+private static final int NANOS  = 3;
+private static final int MAX    = 4;
+private static final int FIELDS = 5;
+
+private static final Op[] OPS = Op.values();
+
+/** one array per op: the counters, followed by the buckets */
+private final AtomicLongArray[] counters = new AtomicLongArray[OPS.length];
+/** when this was created or last reset, from {@link System#currentTimeMillis()} */
+private volatile long startTimeMs = System.currentTimeMillis();
+
+public DBStats() {
+  for (int i = 0; i < OPS.length; i++) {
+    counters[i] = new AtomicLongArray(FIELDS + BUCKETS);
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// recording
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** @return the start time to pass to {@link #record(Op, long, long, long)} */
+public long start() {
+  return EnableDBStats ? System.nanoTime() : 0;
+}
+
+/**
+ * record an operation that started at the given time, and finished just now
+ *
+ * @param start what {@link #start()} returned before the operation ran
+ * @param rows  the rows that were read or written
+ * @param bytes the bytes that were read or written
+ */
+public void record(Op op, long start, long rows, long bytes) {
+  if (!EnableDBStats) { return; }
+  long nanos = Math.max(0, System.nanoTime() - start);
+  AtomicLongArray array = counters[op.ordinal()];
+  array.incrementAndGet(COUNT);
+  if (rows != 0) { array.addAndGet(ROWS, rows); }
+  if (bytes != 0) { array.addAndGet(BYTES, bytes); }
+  array.addAndGet(NANOS, nanos);
+  array.incrementAndGet(FIELDS + Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+  long max;
+  do {
+    max = array.get(MAX);
+  } while (nanos > max && !array.compareAndSet(MAX, max, nanos));
+}
+
+/** @return the number of chars in the given strings, nulls count as 0 */
+static long sizeOf(String key, String value) {
+  return (key == null ? 0 : key.length()) + (value == null ? 0 : value.length());
+}
+
+/** @return the chars of the keys and string values, plus the size of the binary payloads, of the rows */
+static long sizeOf(List<DBRow> rows) {
+  long retval = 0;
+  for (DBRow row : rows) {
+    retval += sizeOf(row.key, row.value) + (row.bytes == null ? 0 : row.bytes.length);
+  }
+  return retval;
+}
+
+/** start over from 0, the ops that are being recorded while this runs may land on either side */
+public void reset() {
+  for (AtomicLongArray array : counters) {
+    for (int i = 0; i < array.length(); i++) {
+      array.set(i, 0);
+    }
+  }
+  startTimeMs = System.currentTimeMillis();
+}
+
+/**
+ * @return a copy of the counters as they are now; it's not atomic across the counters, so an op that's
+ * recorded while this runs may be counted in some of them, but not in others
+ */
+public Snapshot snapshot(String dbName) {
+  OpStats[] ops = new OpStats[OPS.length];
+  for (int i = 0; i < OPS.length; i++) {
+    AtomicLongArray array = counters[i];
+    long[] buckets = new long[BUCKETS];
+    for (int b = 0; b < BUCKETS; b++) {
+      buckets[b] = array.get(FIELDS + b);
+    }
+    ops[i] = new OpStats(OPS[i], array.get(COUNT), array.get(ROWS), array.get(BYTES), array.get(NANOS),
+                         array.get(MAX), buckets);
+  }
+  return new Snapshot(dbName, startTimeMs, System.currentTimeMillis(), ops);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// snapshots
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** an immutable copy of the stats of one db, see {@link #snapshot(String)} */
+public static class Snapshot {
+
+  public final String dbName;
+  /** the start of the period that this covers, from {@link System#currentTimeMillis()} */
+  public final long   fromTimeMs;
+  /** when this was taken, from {@link System#currentTimeMillis()} */
+  public final long   toTimeMs;
+
+  private final OpStats[] ops;
+
+  Snapshot(String dbName, long fromTimeMs, long toTimeMs, OpStats[] ops) {
+    this.dbName = dbName;
+    this.fromTimeMs = fromTimeMs;
+    this.toTimeMs = toTimeMs;
+    this.ops = ops;
+  }
+
+  public OpStats get(Op op) {return ops[op.ordinal()];}
+
+  /** @return the total number of ops of all types */
+  public long getCount() {
+    long retval = 0;
+    for (OpStats op : ops) { retval += op.count; }
+    return retval;
+  }
+
+  /**
+   * @return the ops that were recorded between the given (earlier) snapshot of the same db and this
+   * one; the max latencies aren't per period, so they're the ones of this snapshot
+   */
+  public Snapshot minus(Snapshot earlier) {
+    if (earlier == null || earlier.fromTimeMs != fromTimeMs) { return this; }
+    OpStats[] retval = new OpStats[ops.length];
+    for (int i = 0; i < ops.length; i++) {
+      retval[i] = ops[i].minus(earlier.ops[i]);
+    }
+    return new Snapshot(dbName, earlier.toTimeMs, toTimeMs, retval);
+  }
+
+  /** one line per type of op that was recorded at least once */
+  public String toString() {
+    StringBuilder sb = new StringBuilder(String.format("[%s] %d ops in %d s", dbName, getCount(),
+                                                       (toTimeMs - fromTimeMs) / 1000));
+    for (OpStats op : ops) {
+      if (op.count > 0) { sb.append("\n .. ").append(op); }
+    }
+    return sb.toString();
+  }
+
+}//end class Snapshot
+
+/** the stats of one type of op, in a {@link Snapshot} */
+public static class OpStats {
+
+  public final Op   op;
+  public final long count;
+  public final long rows;
+  public final long bytes;
+  public final long totalNanos;
+  public final long maxNanos;
+
+  /** see {@link #BUCKETS} */
+  private final long[] buckets;
+
+  OpStats(Op op, long count, long rows, long bytes, long totalNanos, long maxNanos, long[] buckets) {
+    this.op = op;
+    this.count = count;
+    this.rows = rows;
+    this.bytes = bytes;
+    this.totalNanos = totalNanos;
+    this.maxNanos = maxNanos;
+    this.buckets = buckets;
+  }
+
+  /** @return the number of ops that took [2^(bucket-1), 2^bucket) ns, bucket 0 holds the ones that took 0 ns */
+  public long getBucket(int bucket) {return buckets[bucket];}
+
+  public double getMeanMicros() {return count == 0 ? 0 : totalNanos / 1000d / count;}
+
+  public double getMaxMicros() {return maxNanos / 1000d;}
+
+  /**
+   * @param percentile eg: 99 for the p99
+   *
+   * @return the upper bound of the bucket that the given percentile of the ops fall into, so the actual
+   * latency is somewhere in [half of this, this]
+   */
+  public double getPercentileMicros(double percentile) {
+    if (count == 0) { return 0; }
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      seen += buckets[b];
+      if (seen >= rank) { return Math.min(1L << b, Math.max(maxNanos, 1)) / 1000d; }
+    }
+    return getMaxMicros();
+  }
+
+  OpStats minus(OpStats earlier) {
+    long[] retval = new long[BUCKETS];
+    for (int b = 0; b < BUCKETS; b++) {
+      retval[b] = buckets[b] - earlier.buckets[b];
+    }
+    return new OpStats(op, count - earlier.count, rows - earlier.rows, bytes - earlier.bytes,
+                       totalNanos - earlier.totalNanos, maxNanos, retval);
+  }
+
+  public String toString() {
+    return String.format("%-6s n:%d rows:%d bytes:%d mean:%.0fus p50:%.0fus p90:%.0fus p99:%.0fus max:%.0fus",
+                         op, count, rows, bytes, getMeanMicros(), getPercentileMicros(50), getPercentileMicros(90),
+                         getPercentileMicros(99), getMaxMicros());
+  }
+
+}//end class OpStats
+
+}//end class DBStats
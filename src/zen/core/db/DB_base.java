@@ -17,10 +17,28 @@
 package zen.core.db;
 
 import android.content.*;
+import android.database.*;
 import android.database.sqlite.*;
+import zen.core.db.engine.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
 
 /**
  * Base class for impl of {@link DB_kvp} and {@link DB_blob}.
+ * <p/>
+ * When {@link #EnableWriteAheadLogging} is true, the dbs are opened in
+ * <a href="http://sqlite.org/wal.html">write-ahead logging</a> mode. In this mode, the
+ * {@link SQLiteDatabase} keeps one primary connection that's used for writes (and anything that runs
+ * inside a transaction), plus a bounded pool of read-only connections (its size is set by the platform).
+ * Queries that aren't in a transaction are automatically run on the read-only connections, so reader
+ * threads see a snapshot of the last commit, and run concurrently with each other and with the writer,
+ * instead of queueing up behind it. This is why the reads in {@link DB_kvp} and {@link DB_blob} are never
+ * wrapped in a transaction, and why writes use {@link #beginWriteTransaction()}.
+ * <p/>
+ * A db can also be backed by a {@link StorageEngine} instead of SQLite (see {@link #engine}), in which case
+ * {@link #dbConnection} is null, and the subclass runs its operations on the engine.
  *
  * @author Nazmul Idris
  * @version 1.0
@@ -36,20 +54,289 @@ public Context        ctx;
 public String         dbName;
 /** stores the db version */
 public int            dbVersion;
+/** the table that holds the rows of this db */
+public final String   tableName;
+/** the file that hosts this db's table, null if this db has a file of its own */
+public final DBSharedFile sharedFile;
+/** true if this db lives only in memory, and never touches the filesystem */
+public final boolean      inMemory;
+/** the engine that holds the rows of this db, null if they're in {@link #dbConnection} */
+public final StorageEngine engine;
+/** reclaims free pages after deletes, this may be null, see {@link #setCompactor(DBCompactor)} */
+protected DBCompactor compactor;
+/** precompiled statements for the fixed operations, clear this before the connection is closed */
+protected final DBStatementCache statementCache = new DBStatementCache(this);
+/** collects the changed rows, and emits them as {@link DBChangeSet}s */
+protected final DBChangeNotifier changeNotifier = new DBChangeNotifier(this);
+/** counts and latencies of the operations on this db, the subclasses record into this */
+protected final DBStats          stats          = new DBStats();
+
+/**
+ * @param tableName  the table that holds the rows
+ * @param sharedFile the file that hosts the table, the connection to it is shared with the other dbs that
+ *                   it hosts. if this is null, then the db is opened in a file of its own (named after the
+ *                   db) with {@link #actuallyCreateDatabase()}.
+ */
+public DB_base(Context ctx, String dbName, int dbVersion, String tableName, DBSharedFile sharedFile) {
+  this(ctx, dbName, dbVersion, tableName, sharedFile, false);
+}
+
+/**
+ * @param inMemory true to open the db in an in-memory SQLite database, which is gone when it's closed (see
+ *                 {@link #getDatabaseFileName()}). the sharedFile must be null.
+ */
+protected DB_base(Context ctx, String dbName, int dbVersion, String tableName, DBSharedFile sharedFile,
+                  boolean inMemory)
+{
+  if (inMemory && sharedFile != null) { throw new IllegalArgumentException("an in-memory db can't be in a shared file"); }
+  this.ctx = ctx;
+  this.dbName = dbName;
+  this.dbVersion = dbVersion;
+  this.tableName = tableName;
+  this.sharedFile = sharedFile;
+  this.inMemory = inMemory;
+  this.engine = null;
+  dbConnection = sharedFile == null ? actuallyCreateDatabase() : sharedFile.getConnection();
+}
 
-public DB_base(Context ctx, String dbName, int dbVersion) {
+/**
+ * constructor for a db whose rows are held by the given engine, no SQLite db is opened for it (so
+ * {@link #actuallyCreateDatabase()} isn't called, and {@link #dbConnection} stays null)
+ */
+protected DB_base(Context ctx, String dbName, int dbVersion, StorageEngine engine) {
+  if (engine == null) { throw new IllegalArgumentException("engine can't be null"); }
   this.ctx = ctx;
   this.dbName = dbName;
   this.dbVersion = dbVersion;
-  dbConnection = actuallyCreateDatabase();
+  this.tableName = dbName;
+  this.sharedFile = null;
+  this.inMemory = false;
+  this.engine = engine;
 }
 
 public abstract SQLiteDatabase actuallyCreateDatabase();
 
+/**
+ * @return the name of the file to pass to the {@link SQLiteOpenHelper} in {@link #actuallyCreateDatabase()},
+ * null for an in-memory db (which is what tells the helper to create one in memory)
+ */
+protected String getDatabaseFileName() {
+  return inMemory ? null : dbName;
+}
+
+/** close the db connection, and release everything that's tied to it */
+public abstract void shutdown();
+
+/**
+ * add the given column to {@link #tableName}, if the table doesn't have it yet. this is for columns that
+ * were added after tables were created with older versions of the schema, so that they don't have to be
+ * dropped (which is what happens when {@link #DbVersion} changes).
+ *
+ * @param definition the type (and constraints) of the column, eg: "integer"
+ *
+ * @return true if the column was added
+ */
+protected boolean ensureColumn(String column, String definition) {
+  Cursor cursor = dbConnection.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+  try {
+    int nameIndex = cursor.getColumnIndex("name");
+    while (cursor.moveToNext()) {
+      if (column.equalsIgnoreCase(cursor.getString(nameIndex))) { return false; }
+    }
+  }
+  finally {
+    cursor.close();
+  }
+  dbConnection.execSQL("alter table " + tableName + " add column " + column + " " + definition);
+  return true;
+}
+
+/** close the connection, unless it's shared with other dbs (in which case its {@link DBSharedFile} closes it) */
+protected void closeConnection() {
+  if (dbConnection != null) {
+    if (sharedFile == null) { dbConnection.close(); }
+    dbConnection = null;
+  }
+}
+
+/**
+ * open the db using the given helper, in write-ahead logging mode if {@link #EnableWriteAheadLogging} is
+ * true. subclasses should call this from {@link #actuallyCreateDatabase()}.
+ */
+protected SQLiteDatabase openDatabase(SQLiteOpenHelper helper) {
+  helper.setWriteAheadLoggingEnabled(EnableWriteAheadLogging);
+  return helper.getWritableDatabase();
+}
+
+/** @return true if this db is in write-ahead logging mode, and reads run on a pool of read-only connections */
+public boolean isWriteAheadLoggingEnabled() {
+  return dbConnection != null && dbConnection.isWriteAheadLoggingEnabled();
+}
+
+/**
+ * begin a transaction for a batch of writes. in write-ahead logging mode this doesn't take an exclusive
+ * lock, so readers keep going on the read-only connections while the batch is running. it's ended with
+ * the usual {@link SQLiteDatabase#setTransactionSuccessful()} & {@link SQLiteDatabase#endTransaction()}.
+ */
+protected void beginWriteTransaction() {
+  if (dbConnection.isWriteAheadLoggingEnabled()) { dbConnection.beginTransactionNonExclusive(); }
+  else { dbConnection.beginTransaction(); }
+}
+
+/**
+ * @return the R.id of the local event that's fired with a {@link DBChangeSet} when rows in this db are
+ * changed
+ */
+public abstract int getChangeEventId();
+
+/**
+ * coalesce the changes made within windowMs into a single {@link DBChangeSet}, see
+ * {@link DBChangeNotifier#setWindow(long)}. 0 means emit one after every commit.
+ */
+public void setChangeWindow(long windowMs) {changeNotifier.setWindow(windowMs);}
+
+/** get the {@link DBChangeSet}s of this db in-process, without going through local events */
+public void addChangeListener(DBChangeListener listener) {changeNotifier.addListener(listener);}
+
+public void removeChangeListener(DBChangeListener listener) {changeNotifier.removeListener(listener);}
+
+public DBChangeNotifier getChangeNotifier() {return changeNotifier;}
+
+/** @return the pool of precompiled statements used by this db */
+public DBStatementCache getStatementCache() {return statementCache;}
+
+/** @return the counts and latencies of the operations on this db, see {@link DBManager#getStats()} */
+public DBStats getStats() {return stats;}
+
 /** get the db name */
 public String getDbName() {return dbName;}
 
 /** get the db version */
 public int getDbVersion() {return dbVersion;}
 
+/** set the {@link DBCompactor} that reclaims free pages after deletes; if this is null, nothing is reclaimed */
+public void setCompactor(DBCompactor compactor) {this.compactor = compactor;}
+
+/** call this after rows are deleted, so that the {@link #compactor} can check if this db needs compacting */
+protected void onRowsDeleted() {
+  if (compactor != null) { compactor.onRowsDeleted(this); }
+}
+
+/**
+ * this is called when a {@link DBSharedFile#runInTransaction(Runnable)} that this db made changes in has
+ * ended, on the thread that ran it
+ *
+ * @param committed false if the transaction was rolled back
+ */
+protected void onSharedTransactionEnd(boolean committed) {
+  changeNotifier.endSharedTransaction(committed);
+}
+
+/**
+ * this is called on the {@link DBCompactor} thread after it's reclaimed free pages from this db, or on the
+ * engine's own thread after a {@link zen.core.db.engine.LogStructuredEngine} has compacted its log
+ */
+protected void onCompacted() {}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// streaming
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * keyset pagination over the rows of the table: get at most limit rows whose id is greater than afterId,
+ * in id order. to get the next page, pass in the id of the last row of this page.
+ *
+ * @param afterId 0 means start at the beginning
+ * @param limit   max number of rows, must be positive
+ *
+ * @return this might be empty if there are no more rows, but will never be null
+ *
+ * @throws IllegalArgumentException if limit isn't positive
+ */
+public abstract ArrayList<DBRow> getPage(long afterId, int limit);
+
+/**
+ * stream all the rows of the table through the given visitor, in id order, reading {@link #ScanWindowSize}
+ * rows at a time. memory use doesn't depend on the size of the table, and no cursor is left open if the
+ * visitor stops early or throws.
+ *
+ * @return the number of rows that were visited
+ */
+public long forEach(DBRowVisitor visitor) {
+  return forEach(0, ScanWindowSize, visitor);
+}
+
+/**
+ * stream the rows whose id is greater than afterId through the given visitor, in id order, reading
+ * windowSize rows at a time.
+ *
+ * @return the number of rows that were visited
+ *
+ * @throws IllegalArgumentException if windowSize isn't positive
+ */
+public long forEach(long afterId, int windowSize, DBRowVisitor visitor) {
+  if (windowSize <= 0) { throw new IllegalArgumentException("windowSize must be positive"); }
+  long count = 0;
+  long lastId = afterId;
+  while (true) {
+    ArrayList<DBRow> window = getPage(lastId, windowSize);
+    for (DBRow row : window) {
+      count++;
+      if (!visitor.onRow(row)) { return count; }
+    }
+    if (window.size() < windowSize) { return count; }
+    lastId = window.get(window.size() - 1).id;
+  }
+}
+
+/** @return an iterator over all the rows of the table, that reads {@link #ScanWindowSize} rows at a time */
+public DBRowIterator iterator() {
+  return new DBRowIterator(this, 0, ScanWindowSize);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// snapshots
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * write all the rows of this db to the given stream, in the {@link DBSnapshot} format. the rows are read
+ * {@link #ScanWindowSize} at a time, so memory use doesn't depend on the size of the db. each window is
+ * read from the last commit, but rows that are written while the export is running may or may not make
+ * it in; pause writes if you need a point-in-time copy. the stream isn't closed.
+ *
+ * @param compress deflate everything after the header of the snapshot
+ *
+ * @return the number of rows that were written
+ */
+public abstract long exportTo(OutputStream out, boolean compress) throws IOException;
+
+/** same as {@link #exportTo(OutputStream, boolean)}, starting at the current position of the channel */
+public long exportTo(FileChannel channel, boolean compress) throws IOException {
+  return exportTo(Channels.newOutputStream(channel), compress);
+}
+
+/**
+ * read the rows in the given {@link DBSnapshot} stream into this db, {@link #SnapshotImportBatchRows} rows
+ * per transaction. no changes are emitted per row; a single {@link DBChangeSet} whose
+ * {@link DBChangeSet#isCleared()} is true is emitted at the end, so listeners reload everything. the
+ * stream isn't closed.
+ * <p/>
+ * when replacing, the rows are read into a staging table (named with {@link #SnapshotStagingSuffix}), which
+ * takes the place of this db's table in a single transaction once the end of the stream, and its row count,
+ * have been checked; if the stream turns out to be corrupt, this db is left as it was. otherwise, the batches
+ * that were read before the bad chunk stay committed.
+ *
+ * @param replace true to replace all the rows in this db with the ones in the stream
+ *
+ * @return the number of rows that were imported
+ *
+ * @throws IOException if the stream can't be read, or isn't a valid snapshot of this kind of db
+ */
+public abstract long importFrom(InputStream in, boolean replace) throws IOException;
+
+/** same as {@link #importFrom(InputStream, boolean)}, starting at the current position of the channel */
+public long importFrom(FileChannel channel, boolean replace) throws IOException {
+  return importFrom(Channels.newInputStream(channel), replace);
+}
+
 }//end class DB_base
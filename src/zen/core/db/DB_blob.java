@@ -20,10 +20,12 @@ import android.content.*;
 import android.database.*;
 import android.database.sqlite.*;
 import android.provider.*;
-import zen.core.localevent.*;
 import zen.framework.*;
 import zen.utlis.*;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
 
 /**
@@ -32,8 +34,27 @@ import java.util.*;
  * that it creates a table that has 2 columns:
  * <ol>
  * <li>ID column (long) that uniquely identifies this row</li>
- * <li>Payload column (string) that contains a String which is the payload text</li>
+ * <li>Payload column that contains the payload, either a String, or bytes</li>
  * </ol>
+ * Binary payloads ({@link #add(byte[])}, {@link #add(ByteBuffer)}) are stored as BLOB values, with a small
+ * header in front of them (see {@link BlobFormat}). If a codec is set on the db with
+ * {@link #setCompression(BlobCodec, int)}, then payloads (binary or String) that are bigger than the
+ * threshold are compressed before they are written, and decompressed when they are read back. Small
+ * String payloads are still stored as TEXT values, the same way they always were.
+ * <p/>
+ * Payloads that are bigger than {@link #setSpillThreshold(int)} are not stored in the db at all; they
+ * are written (uncompressed) to a file in a {@link BlobSpillStore} next to the db file, and the row just
+ * holds a reference to the file. This keeps multi-megabyte values out of SQLite pages and cursor windows.
+ * Use {@link #openStream(long)} or {@link #map(long)} to read them without loading them onto the heap.
+ * The files are deleted along with their rows, and orphans left behind by a crash are cleaned up by
+ * {@link #sweepOrphans()}.
+ * <p/>
+ * An (opt-in) full text search index can be kept over the String payloads, see {@link #enableSearchIndex()},
+ * {@link #search(String, int)}, and {@link #searchPrefix(String, int)}.
+ * <p/>
+ * For JSON payloads, {@link BlobField}s can be declared with {@link #addField(BlobField)}; their values are
+ * extracted on write into indexed columns, which {@link #query(String, Op, Object, int)} and
+ * {@link #queryRange(String, Object, Object, boolean, int)} filter and sort on.
  *
  * @author Nazmul Idris
  * @version 1.0
@@ -41,30 +62,99 @@ import java.util.*;
  */
 public class DB_blob extends DB_base {
 
+private static final Charset UTF8         = Charset.forName("UTF-8");
+/** BM25 parameters, see {@link #search(String, int)} */
+private static final double  BM25_K1      = 1.2;
+private static final double  BM25_B       = 0.75;
+/** keeps words that are in more than half the rows from having a negative weight */
+private static final double  BM25_MIN_IDF = 1e-6;
+
+/** the statements for {@link #tableName} */
+private final    Sql              sql;
+private volatile BlobCodec        codec                = BlobCodec.NONE;
+private volatile int              compressionThreshold = BlobCompressionThreshold;
+private final    BlobFormat.Stats codecStats           = new BlobFormat.Stats();
+private volatile int              spillThreshold       = BlobSpillThreshold;
+/** null for in-memory dbs, which keep all their payloads inline */
+private final    BlobSpillStore   spillStore;
+/** true if the {@link Sql#searchTable} exists, see {@link #enableSearchIndex()} */
+private volatile boolean          searchIndexEnabled;
+/** the fields declared with {@link #addField(BlobField)} */
+private volatile Fields           fields;
+
 /** constructor that creates the db connection, release this in {@link #shutdown()} */
 public DB_blob(Context ctx, String dbName, int dbVersion) {
-  super(ctx, dbName, dbVersion);
+  this(ctx, dbName, dbVersion, false);
+}
+
+/**
+ * constructor that creates the db connection, release this in {@link #shutdown()}
+ *
+ * @param inMemory true to keep the db in memory only, eg: for session caches, tests, and benchmarks. it
+ *                 has the same API, but nothing is written to flash (so payloads are never spilled, see
+ *                 {@link #setSpillThreshold(int)}), and the rows are gone after {@link #shutdown()}.
+ */
+public DB_blob(Context ctx, String dbName, int dbVersion, boolean inMemory) {
+  super(ctx, dbName, dbVersion, Schema.TABLE_PAYLOAD, null, inMemory);
+  sql = new Sql(tableName);
+  fields = new Fields(sql, new BlobField[0]);
+  if (inMemory) {
+    spillStore = null;
+    spillThreshold = Integer.MAX_VALUE;
+  }
+  else { spillStore = new BlobSpillStore(new File(ctx.getDatabasePath(dbName).getParentFile(), dbName + "_spill")); }
+  searchIndexEnabled = _hasSearchTable();
+}
+
+/**
+ * constructor for a db that's hosted in a table (named after the db) of the given shared file, which must
+ * have already created it; see {@link DBSharedFile}
+ */
+public DB_blob(Context ctx, String dbName, DBSharedFile sharedFile) {
+  super(ctx, dbName, sharedFile.dbVersion, dbName, sharedFile);
+  sql = new Sql(tableName);
+  fields = new Fields(sql, new BlobField[0]);
+  spillStore = new BlobSpillStore(new File(ctx.getDatabasePath(dbName).getParentFile(), dbName + "_spill"));
+  searchIndexEnabled = _hasSearchTable();
 }
 
 /** actually create the db connection, release this in {@link #shutdown()} */
 @Override
 public SQLiteDatabase actuallyCreateDatabase() {
-  return new Schema(ctx, dbName, dbVersion).getWritableDatabase();
+  return openDatabase(new Schema(ctx, getDatabaseFileName(), dbVersion));
+}
+
+@Override
+public int getChangeEventId() {
+  return R.id.evt_db_blob_change;
 }
 
 
 /**
  * remove the row with the given id from the table
  *
- * @return null if the id couldn't be found, otherwise returns the value that was removed ({@link Schema#COL_DATA})
+ * @return null if the id couldn't be found, otherwise returns the value that was removed ({@link Schema#COL_DATA}),
+ * this is an empty String for binary and spilled payloads (the spill file is deleted without being loaded)
  */
 public String remove(long id) {
-  String retval = get(id);
-  int rowCount = dbConnection.delete(Schema.TABLE_PAYLOAD,
-                                     Schema.SQL_WHERE_COL_ID,
-                                     new String[]{String.valueOf(id)});
-  if (rowCount > 0) { dbConnection.execSQL(Schema.SQL_PURGE); }
-  LocalEventsManager.fireEvent(ctx, R.id.evt_db_blob_change, dbName, null);
+  long start = stats.start();
+  String retval = _getOld(id);
+  String spillFile = _getSpillFileName(id);
+  int rowCount;
+  SQLiteStatement statement = statementCache.acquire(sql.deleteById);
+  try {
+    statement.bindLong(1, id);
+    rowCount = statement.executeUpdateDelete();
+  }
+  finally {
+    statementCache.release(sql.deleteById, statement);
+  }
+  if (rowCount > 0) {
+    if (spillFile != null) { spillStore.delete(spillFile); }
+    onRowsDeleted();
+    changeNotifier.commit(DBChange.Op.Remove, null, id);
+  }
+  stats.record(DBStats.Op.Remove, start, rowCount, DBStats.sizeOf(null, retval));
   return retval;
 }
 
@@ -72,26 +162,150 @@ public String remove(long id) {
  * get the payload string for the row, with {@link Schema#COL_ID} equal to the given id
  *
  * @return null if the id can't be found, otherwise returns the value from the {@link Schema#COL_DATA}
+ *
+ * @throws IllegalStateException if the row has a binary payload, read those with {@link #getBytes(long)}
  */
 public String get(long id) {
-  Cursor cursor = dbConnection.query(Schema.TABLE_PAYLOAD,
+  long start = stats.start();
+  String retval = _get(id);
+  stats.record(DBStats.Op.Get, start, retval == null ? 0 : 1, DBStats.sizeOf(null, retval));
+  return retval;
+}
+
+/** {@link #get(long)}, without recording it in the {@link #stats} */
+private String _get(long id) {
+  Cursor cursor = dbConnection.query(tableName,
                                      Schema.COLS,
                                      Schema.SQL_WHERE_COL_ID,
                                      new String[]{String.valueOf(id)},
                                      null, null, null);
-  cursor.moveToFirst();
-  String retval = resolveCursor(cursor);
-  cursor.close();
+  try {
+    if (!cursor.moveToFirst()) { return null; }
+    int dataIndex = cursor.getColumnIndex(Schema.COL_DATA);
+    if (_isBinary(cursor, dataIndex)) {
+      throw new IllegalStateException("DB_blob - [" + dbName + "] row " + id + " has a binary payload, use getBytes()");
+    }
+    return _readString(cursor, dataIndex);
+  }
+  finally {
+    cursor.close();
+  }
+}
+
+/**
+ * @return the payload of the row with the given id, for {@link #update(long, String)} and {@link #remove(long)}
+ * to return: null if the row can't be found, and an empty String if it has a binary payload, or if it's
+ * spilled (spill files aren't loaded just to be returned)
+ */
+private String _getOld(long id) {
+  Cursor cursor = dbConnection.query(tableName,
+                                     Schema.COLS,
+                                     Schema.SQL_WHERE_COL_ID,
+                                     new String[]{String.valueOf(id)},
+                                     null, null, null);
+  try {
+    if (!cursor.moveToFirst()) { return null; }
+    int dataIndex = cursor.getColumnIndex(Schema.COL_DATA);
+    if (cursor.getType(dataIndex) != Cursor.FIELD_TYPE_BLOB) { return cursor.getString(dataIndex); }
+    byte[] value = cursor.getBlob(dataIndex);
+    if (!BlobFormat.hasHeader(value) || !BlobFormat.isText(value) || BlobFormat.isSpilled(value)) { return ""; }
+    return new String(BlobFormat.decode(value, codecStats), UTF8);
+  }
+  finally {
+    cursor.close();
+  }
+}
+
+/**
+ * get the payload for the row, with {@link Schema#COL_ID} equal to the given id, as bytes. String
+ * payloads are returned in their UTF-8 form.
+ *
+ * @return null if the id can't be found
+ */
+public byte[] getBytes(long id) {
+  long start = stats.start();
+  byte[] retval = _toBytes(_getValue(id));
+  stats.record(DBStats.Op.Get, start, retval == null ? 0 : 1, retval == null ? 0 : retval.length);
   return retval;
 }
 
+/**
+ * open a stream over the payload of the row with the given id. spilled payloads are streamed straight
+ * from their file, without loading them onto the heap. the caller has to close the stream.
+ *
+ * @return null if the id can't be found
+ */
+public InputStream openStream(long id) throws IOException {
+  Object value = _getValue(id);
+  if (value instanceof byte[] && BlobFormat.isSpilled((byte[]) value)) {
+    return spillStore.openStream(BlobFormat.getSpillFileName((byte[]) value));
+  }
+  byte[] payload = _toBytes(value);
+  return payload == null ? null : new ByteArrayInputStream(payload);
+}
+
+/**
+ * get a read-only buffer over the payload of the row with the given id. spilled payloads are memory
+ * mapped from their file, so their pages are loaded by the OS as they are read, and never copied onto
+ * the heap. other payloads are loaded onto the heap.
+ *
+ * @return null if the id can't be found
+ */
+public ByteBuffer map(long id) throws IOException {
+  Object value = _getValue(id);
+  if (value instanceof byte[] && BlobFormat.isSpilled((byte[]) value)) {
+    return spillStore.map(BlobFormat.getSpillFileName((byte[]) value));
+  }
+  byte[] payload = _toBytes(value);
+  return payload == null ? null : ByteBuffer.wrap(payload).asReadOnlyBuffer();
+}
+
+/** @return the raw value of {@link Schema#COL_DATA} for the given id: a String, a byte[], or null if it can't be found */
+private Object _getValue(long id) {
+  Cursor cursor = dbConnection.query(tableName,
+                                     Schema.COLS,
+                                     Schema.SQL_WHERE_COL_ID,
+                                     new String[]{String.valueOf(id)},
+                                     null, null, null);
+  try {
+    if (!cursor.moveToFirst()) { return null; }
+    return _rawValue(cursor, cursor.getColumnIndex(Schema.COL_DATA));
+  }
+  finally {
+    cursor.close();
+  }
+}
+
+/** @return the name of the spill file for the row with the given id, null if the row isn't spilled (or can't be found) */
+private String _getSpillFileName(long id) {
+  Cursor cursor = dbConnection.query(tableName,
+                                     Schema.COLS,
+                                     Schema.SQL_WHERE_REF_ID,
+                                     new String[]{String.valueOf(id)},
+                                     null, null, null);
+  try {
+    if (!cursor.moveToFirst()) { return null; }
+    byte[] value = cursor.getBlob(cursor.getColumnIndex(Schema.COL_DATA));
+    return BlobFormat.hasHeader(value) && BlobFormat.isSpilled(value) ? BlobFormat.getSpillFileName(value) : null;
+  }
+  finally {
+    cursor.close();
+  }
+}
+
 /**
  * gets the number of rows in the table. <a href="http://goo.gl/hxFjq">more info</a>
  *
  * @return number of rows in the table
  */
 public long getRowCount() {
-  return DatabaseUtils.queryNumEntries(dbConnection, Schema.TABLE_PAYLOAD);
+  SQLiteStatement statement = statementCache.acquire(sql.count);
+  try {
+    return statement.simpleQueryForLong();
+  }
+  finally {
+    statementCache.release(sql.count, statement);
+  }
 }
 
 //XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
@@ -100,52 +314,798 @@ public long getRowCount() {
 
 /** simply drops and re-creates the db */
 public void removeAll() {
-  dbConnection.execSQL(Schema.SQL_DROP_DB);
-  dbConnection.execSQL(Schema.SQL_CREATE_DB);
-  LocalEventsManager.fireEvent(ctx, R.id.evt_db_blob_change, dbName, null);
+  _recreateTable();
+  onRowsDeleted();
+  changeNotifier.clear();
+  changeNotifier.commit();
+}
+
+/** drop and re-create the table, along with its field columns and search index, and delete the spill files */
+private void _recreateTable() {
+  dbConnection.execSQL(sql.dropTable);
+  dbConnection.execSQL(sql.dropSearchTable);
+  dbConnection.execSQL(sql.createTable);
+  for (BlobField field : fields.list) { _createFieldColumn(field); }
+  if (searchIndexEnabled) { _createSearchIndex(); }
+  statementCache.clear();
+  if (spillStore != null) { spillStore.deleteAll(); }
 }
 
 /**
- * get all the payloads in the table, and return them in a list
+ * get all the String payloads in the table, and return them in a list. binary payloads are skipped, use
+ * {@link #forEach(DBRowVisitor)} to read those.
  *
  * @return this list might be empty if the table is empty, but will never be null
  */
 public ArrayList<String> getAll() {
   ArrayList<String> retval = new ArrayList<String>();
+  long bytes = 0;
+  long start = stats.start();
   Cursor cursor = getAllCursor();
 
-  cursor.moveToFirst();
-  String value = null;
-  do {
-    value = resolveCursor(cursor);
-    if (value != null) { retval.add(value); }
+  try {
+    int dataIndex = cursor.getColumnIndex(Schema.COL_DATA);
+    while (cursor.moveToNext()) {
+      String value = _readString(cursor, dataIndex);
+      if (value != null) {
+        retval.add(value);
+        bytes += value.length();
+      }
+    }
   }
-  while (cursor.moveToNext());
-  cursor.close();
+  finally {
+    cursor.close();
+  }
+  stats.record(DBStats.Op.Scan, start, retval.size(), bytes);
+
+  return retval;
+}
 
+/**
+ * keyset pagination over the rows of the table, see {@link DB_base#getPage(long, int)}. use
+ * {@link #forEach(DBRowVisitor)} or {@link #iterator()} instead of {@link #getAll()} for large tables.
+ */
+@Override
+public ArrayList<DBRow> getPage(long afterId, int limit) {
+  if (limit <= 0) { throw new IllegalArgumentException("limit must be positive"); }
+  long start = stats.start();
+  ArrayList<DBRow> retval = new ArrayList<DBRow>(Math.min(limit, ScanWindowSize));
+  Cursor cursor = dbConnection.query(tableName,
+                                     Schema.COLS,
+                                     Schema.SQL_WHERE_ID_GT,
+                                     new String[]{String.valueOf(afterId)},
+                                     null, null,
+                                     Schema.COL_ID,
+                                     String.valueOf(limit));
+  try {
+    int idIndex = cursor.getColumnIndex(Schema.COL_ID);
+    int dataIndex = cursor.getColumnIndex(Schema.COL_DATA);
+    while (cursor.moveToNext()) {
+      retval.add(_readRow(cursor, idIndex, dataIndex));
+    }
+  }
+  finally {
+    cursor.close();
+  }
+  stats.record(DBStats.Op.Scan, start, retval.size(), DBStats.sizeOf(retval));
   return retval;
 }
 
 public Cursor getAllCursor() {
-  return dbConnection.query(Schema.TABLE_PAYLOAD,
+  return dbConnection.query(tableName,
                             Schema.COLS,
                             null, null, null, null, null);
 }
 
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// json fields
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * declare a field, whose value is extracted from every String payload that's written from now on, and
+ * stored in an indexed column. if the column didn't exist yet, the value is also extracted from all the
+ * payloads that are already in the table. fields aren't saved, so declare them every time the db is
+ * opened, before writing to it; use {@link #reindexField(String)} if payloads were written without it.
+ *
+ * @return true if the column was created (and filled in), false if it already existed
+ *
+ * @throws IllegalArgumentException if a different field with the same name was already declared
+ */
+public synchronized boolean addField(BlobField field) {
+  if (field == null) { throw new IllegalArgumentException("field can't be null!"); }
+  BlobField declared = fields.get(field.name);
+  if (declared != null) {
+    if (declared.path.equals(field.path) && declared.type == field.type) { return false; }
+    throw new IllegalArgumentException("field " + field.name + " is already declared as " + declared);
+  }
+
+  boolean created;
+  beginWriteTransaction();
+  try {
+    created = _createFieldColumn(field);
+    fields = fields.with(sql, field);
+    if (created) { _fillField(field); }
+    dbConnection.setTransactionSuccessful();
+  }
+  finally {
+    dbConnection.endTransaction();
+  }
+  return created;
+}
+
+/** @return the fields declared with {@link #addField(BlobField)} */
+public List<BlobField> getFields() {
+  return Collections.unmodifiableList(Arrays.asList(fields.list));
+}
+
+/**
+ * extract the value of the given field from all the payloads in the table again
+ *
+ * @throws IllegalArgumentException if the field hasn't been declared
+ */
+public void reindexField(String name) {
+  BlobField field = _getField(name);
+  beginWriteTransaction();
+  try {
+    _fillField(field);
+    dbConnection.setTransactionSuccessful();
+  }
+  finally {
+    dbConnection.endTransaction();
+  }
+}
+
+/**
+ * find the rows whose field compares to the given value with the given op, in the order of the field
+ * (and then {@link Schema#COL_ID}). only the payloads of the rows that match are loaded.
+ *
+ * @param value converted to the type of the field, eg: "42" matches 42 in an INTEGER field
+ * @param limit max number of rows to return
+ *
+ * @return the rows that match, never null; rows whose field is null never match
+ *
+ * @throws IllegalArgumentException if the field hasn't been declared, or the value can't be converted
+ */
+public ArrayList<DBRow> query(String field, Op op, Object value, int limit) {
+  if (op == null) { throw new IllegalArgumentException("op can't be null!"); }
+  BlobField blobField = _getField(field);
+  return _queryField(blobField.column + " " + op.sql + " ?",
+                     new String[]{_toArg(blobField, value)},
+                     blobField.column + " asc, " + Schema.COL_ID + " asc",
+                     limit);
+}
+
+/**
+ * find the rows whose field is in the range [from, to), ordered by the field (and then {@link Schema#COL_ID})
+ *
+ * @param from       lowest value (inclusive), null means there's no lower bound
+ * @param to         highest value (exclusive), null means there's no upper bound
+ * @param descending true to return the rows with the highest values first
+ * @param limit      max number of rows to return
+ *
+ * @return the rows that match, never null; rows whose field is null never match
+ *
+ * @throws IllegalArgumentException if the field hasn't been declared, or a bound can't be converted
+ */
+public ArrayList<DBRow> queryRange(String field, Object from, Object to, boolean descending, int limit) {
+  BlobField blobField = _getField(field);
+  StringBuilder where = new StringBuilder(blobField.column).append(" is not null");
+  ArrayList<String> args = new ArrayList<String>(2);
+  if (from != null) {
+    where.append(" and ").append(blobField.column).append(" >= ?");
+    args.add(_toArg(blobField, from));
+  }
+  if (to != null) {
+    where.append(" and ").append(blobField.column).append(" < ?");
+    args.add(_toArg(blobField, to));
+  }
+  String order = descending ? " desc" : " asc";
+  return _queryField(where.toString(),
+                     args.toArray(new String[args.size()]),
+                     blobField.column + order + ", " + Schema.COL_ID + order,
+                     limit);
+}
+
+private ArrayList<DBRow> _queryField(String where, String[] args, String orderBy, int limit) {
+  if (limit <= 0) { throw new IllegalArgumentException("limit must be positive"); }
+  long start = stats.start();
+  ArrayList<DBRow> retval = new ArrayList<DBRow>(Math.min(limit, ScanWindowSize));
+  Cursor cursor = dbConnection.query(tableName,
+                                     Schema.COLS,
+                                     where,
+                                     args,
+                                     null, null,
+                                     orderBy,
+                                     String.valueOf(limit));
+  try {
+    int idIndex = cursor.getColumnIndex(Schema.COL_ID);
+    int dataIndex = cursor.getColumnIndex(Schema.COL_DATA);
+    while (cursor.moveToNext()) {
+      retval.add(_readRow(cursor, idIndex, dataIndex));
+    }
+  }
+  finally {
+    cursor.close();
+  }
+  stats.record(DBStats.Op.Scan, start, retval.size(), DBStats.sizeOf(retval));
+  return retval;
+}
+
+private BlobField _getField(String name) {
+  BlobField field = fields.get(name);
+  if (field == null) { throw new IllegalArgumentException("field " + name + " isn't declared on " + dbName); }
+  return field;
+}
+
+/**
+ * @return the given value converted to the type of the field, as a query arg. the column's affinity turns
+ * it back into a number for INTEGER and REAL fields.
+ */
+private static String _toArg(BlobField field, Object value) {
+  Object converted = field.convert(value);
+  if (converted == null) { throw new IllegalArgumentException("can't convert " + value + " to " + field); }
+  return converted.toString();
+}
+
+/** add the column (and index) for the given field, if it's missing @return true if the column was created */
+private boolean _createFieldColumn(BlobField field) {
+  boolean created = ensureColumn(field.column, field.type.sqlType);
+  dbConnection.execSQL(sql.createFieldIndex(field));
+  return created;
+}
+
+/** extract the given field from all the String payloads in the table, must be called in a write transaction */
+private void _fillField(final BlobField field) {
+  final String update = sql.updateField(field);
+  final SQLiteStatement statement = statementCache.acquire(update);
+  try {
+    long rows = forEach(new DBRowVisitor() {
+      public boolean onRow(DBRow row) {
+        Object value = row.value == null ? null : field.extract(BlobField.parse(row.value));
+        _bindField(statement, 1, value);
+        statement.bindLong(2, row.id);
+        statement.executeUpdateDelete();
+        return true;
+      }
+    });
+    AndroidUtils.log(IconPaths.Storage, "DB_blob - [" + dbName + "] extracted field " + field + " from " + rows + " rows");
+  }
+  finally {
+    statementCache.release(update, statement);
+  }
+}
+
+/** bind a value returned by {@link BlobField#extract(Object)} */
+private static void _bindField(SQLiteStatement statement, int index, Object value) {
+  if (value == null) { statement.bindNull(index); }
+  else if (value instanceof Long) { statement.bindLong(index, (Long) value); }
+  else if (value instanceof Double) { statement.bindDouble(index, (Double) value); }
+  else { statement.bindString(index, value.toString()); }
+}
+
+/** bind the values of all the fields, starting at the given index */
+private static void _bindFields(SQLiteStatement statement, int index, Object[] values) {
+  for (int i = 0; i < values.length; i++) { _bindField(statement, index + i, values[i]); }
+}
+
+/** comparisons supported by {@link #query(String, Op, Object, int)} */
+public enum Op {
+  EQ("="), NE("!="), LT("<"), LE("<="), GT(">"), GE(">=");
+
+  final String sql;
+
+  Op(String sql) {
+    this.sql = sql;
+  }
+}
+
+/**
+ * The fields declared on a db, along with the statements that write a payload and its field values. This
+ * is immutable, adding a field replaces it.
+ */
+private static class Fields {
+
+  private static final Object[] NO_VALUES = new Object[0];
+
+  final BlobField[] list;
+  final String      insert;
+  /** same as {@link #insert}, with the id of the row as the first arg */
+  final String      insertWithId;
+  final String      updateById;
+
+  Fields(Sql sql, BlobField[] list) {
+    this.list = list;
+    insert = sql.insert(list, false);
+    insertWithId = sql.insert(list, true);
+    updateById = sql.updateById(list);
+  }
+
+  Fields with(Sql sql, BlobField field) {
+    BlobField[] newList = Arrays.copyOf(list, list.length + 1);
+    newList[list.length] = field;
+    return new Fields(sql, newList);
+  }
+
+  BlobField get(String name) {
+    for (BlobField field : list) {
+      if (field.name.equals(name)) { return field; }
+    }
+    return null;
+  }
+
+  /** @return the values of all the fields in the given String payload */
+  Object[] extract(String payload) {
+    if (list.length == 0) { return NO_VALUES; }
+    Object document = BlobField.parse(payload);
+    Object[] retval = new Object[list.length];
+    if (document == null) { return retval; }
+    for (int i = 0; i < list.length; i++) { retval[i] = list[i].extract(document); }
+    return retval;
+  }
+
+  /** @return the values of all the fields for a binary payload, which are all null */
+  Object[] none() {
+    return list.length == 0 ? NO_VALUES : new Object[list.length];
+  }
+
+}//end class Fields
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// full text search
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * create a <a href="http://sqlite.org/fts3.html">FTS4</a> index over the String payloads of this db, and
+ * index the payloads that are already in it. the index is kept in sync with the table by triggers, so every
+ * add, update, remove (and batch) keeps it current, and it stays around (across restarts) until
+ * {@link #disableSearchIndex()} is called.
+ * <p/>
+ * only String payloads that are stored in the db are indexed: binary payloads and spilled payloads (see
+ * {@link #setSpillThreshold(int)}) are not. while the index is on, String payloads aren't compressed, since
+ * the triggers can only index TEXT values; String payloads that were compressed before this call are
+ * decompressed and indexed here. the index holds its own copy of the text, so it roughly doubles the size
+ * of the text that's in the db.
+ */
+public void enableSearchIndex() {
+  if (searchIndexEnabled) { return; }
+  // stop compressing String payloads before the triggers exist, so that no compressed ones slip past them
+  searchIndexEnabled = true;
+  boolean created = false;
+  beginWriteTransaction();
+  try {
+    _createSearchIndex();
+    _backfillSearchIndex();
+    dbConnection.setTransactionSuccessful();
+    created = true;
+  }
+  finally {
+    dbConnection.endTransaction();
+    if (!created) { searchIndexEnabled = false; }
+  }
+  AndroidUtils.log(IconPaths.Storage, "DB_blob - [" + dbName + "] created search index");
+}
+
+/** drop the search index and its triggers */
+public void disableSearchIndex() {
+  beginWriteTransaction();
+  try {
+    for (String trigger : sql.dropSearchTriggers) { dbConnection.execSQL(trigger); }
+    dbConnection.execSQL(sql.dropSearchTable);
+    dbConnection.setTransactionSuccessful();
+  }
+  finally {
+    dbConnection.endTransaction();
+  }
+  searchIndexEnabled = false;
+}
+
+public boolean isSearchIndexEnabled() {return searchIndexEnabled;}
+
+/**
+ * find the payloads that match the given query, ranked by
+ * <a href="http://en.wikipedia.org/wiki/Okapi_BM25">BM25</a> (best match first). the query uses the
+ * <a href="http://sqlite.org/fts3.html#section_3">FTS query syntax</a>, eg: <code>coffee beans</code>,
+ * <code>"flat white"</code>, <code>espress*</code>, <code>coffee OR tea</code>, <code>coffee -decaf</code>.
+ * the payloads that match are ranked in Java, but only the top ones are loaded (to build their snippets).
+ *
+ * @param limit max number of hits to return
+ *
+ * @return the best hits, might be empty, but never null
+ *
+ * @throws IllegalStateException if the search index isn't enabled, see {@link #enableSearchIndex()}
+ * @throws SQLException          if the query isn't valid FTS syntax
+ */
+public ArrayList<SearchHit> search(String query, int limit) {
+  if (query == null) { throw new IllegalArgumentException("query can't be null!"); }
+  if (limit <= 0) { throw new IllegalArgumentException("limit must be positive"); }
+  if (!searchIndexEnabled) {
+    throw new IllegalStateException("search index isn't enabled for " + dbName + ", see enableSearchIndex()");
+  }
+
+  long start = stats.start();
+  // min-heap (the worst of the best hits so far is at the head) of the top hits
+  PriorityQueue<SearchHit> top = new PriorityQueue<SearchHit>(limit, Collections.reverseOrder(SearchHit.BY_RANK));
+  Cursor cursor = dbConnection.rawQuery(sql.searchRank, new String[]{query});
+  try {
+    while (cursor.moveToNext()) {
+      double score = _bm25(cursor.getBlob(1));
+      if (top.size() < limit) { top.add(new SearchHit(cursor.getLong(0), score, null)); }
+      else if (score > top.peek().score) {
+        top.poll();
+        top.add(new SearchHit(cursor.getLong(0), score, null));
+      }
+    }
+  }
+  finally {
+    cursor.close();
+  }
+
+  ArrayList<SearchHit> retval = new ArrayList<SearchHit>(top);
+  if (!retval.isEmpty()) {
+    Collections.sort(retval, SearchHit.BY_RANK);
+    retval = _addSnippets(query, retval);
+  }
+  stats.record(DBStats.Op.Scan, start, retval.size(), 0);
+  return retval;
+}
+
+/**
+ * find the payloads that contain all the words in the given text, where the last word can be the prefix
+ * of a word (eg: as the user types a search query). the words aren't interpreted as FTS syntax.
+ *
+ * @return the best hits, same as {@link #search(String, int)}
+ */
+public ArrayList<SearchHit> searchPrefix(String prefix, int limit) {
+  if (prefix == null) { throw new IllegalArgumentException("prefix can't be null!"); }
+  String query = toPrefixQuery(prefix);
+  if (query.length() == 0) { return new ArrayList<SearchHit>(); }
+  return search(query, limit);
+}
+
+/**
+ * @return an FTS query that matches all the words in the given text, with the last word matched as a
+ * prefix, eg: <code>flat whi</code> becomes <code>"flat" "whi*"</code>. empty if there are no words.
+ */
+static String toPrefixQuery(String text) {
+  StringBuilder query = new StringBuilder();
+  String[] words = text.trim().split("\\s+");
+  for (int i = 0; i < words.length; i++) {
+    String word = words[i].replace("\"", "");
+    if (word.length() == 0) { continue; }
+    if (query.length() > 0) { query.append(' '); }
+    query.append('"').append(word);
+    if (i == words.length - 1) { query.append('*'); }
+    query.append('"');
+  }
+  return query.toString();
+}
+
+/**
+ * score one row, given its <code>matchinfo(fts, 'pcnalx')</code>, which is an array of native order
+ * uint32s: p (phrases), c (columns, always 1 here), n (rows), a (avg tokens per row), l (tokens in
+ * this row), and then 3 values per phrase: hits in this row, hits in all rows, rows with hits.
+ */
+private static double _bm25(byte[] matchinfo) {
+  ByteBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+  int phrases = info.getInt(0);
+  double rows = info.getInt(8) & 0xFFFFFFFFL;
+  double avgLength = Math.max(1, info.getInt(12) & 0xFFFFFFFFL);
+  double length = info.getInt(16) & 0xFFFFFFFFL;
+  double lengthNorm = BM25_K1 * (1 - BM25_B + BM25_B * length / avgLength);
+  double score = 0;
+  for (int i = 0; i < phrases; i++) {
+    int offset = 20 + 12 * i;
+    double hits = info.getInt(offset) & 0xFFFFFFFFL;
+    if (hits == 0) { continue; }
+    double rowsWithHits = info.getInt(offset + 8) & 0xFFFFFFFFL;
+    double idf = Math.max(BM25_MIN_IDF, Math.log((rows - rowsWithHits + 0.5) / (rowsWithHits + 0.5)));
+    score += idf * hits * (BM25_K1 + 1) / (hits + lengthNorm);
+  }
+  return score;
+}
+
+/** @return the given (ranked) hits, with their snippets filled in */
+private ArrayList<SearchHit> _addSnippets(String query, ArrayList<SearchHit> hits) {
+  StringBuilder ids = new StringBuilder();
+  for (SearchHit hit : hits) {
+    if (ids.length() > 0) { ids.append(','); }
+    ids.append(hit.id);
+  }
+  HashMap<Long, String> snippets = new HashMap<Long, String>();
+  Cursor cursor = dbConnection.rawQuery(String.format(sql.searchSnippets, ids),
+                                        new String[]{BlobSearchSnippetStart, BlobSearchSnippetEnd,
+                                                     BlobSearchSnippetEllipsis, query});
+  try {
+    while (cursor.moveToNext()) {
+      snippets.put(cursor.getLong(0), cursor.getString(1));
+    }
+  }
+  finally {
+    cursor.close();
+  }
+  ArrayList<SearchHit> retval = new ArrayList<SearchHit>(hits.size());
+  for (SearchHit hit : hits) {
+    retval.add(new SearchHit(hit.id, hit.score, snippets.get(hit.id)));
+  }
+  return retval;
+}
+
+/** create the search table and the triggers that keep it in sync (this doesn't index the existing rows) */
+private void _createSearchIndex() {
+  dbConnection.execSQL(sql.createSearchTable);
+  for (String trigger : sql.createSearchTriggers) { dbConnection.execSQL(trigger); }
+}
+
+/** index the String payloads that are already in the table, must be called in a write transaction */
+private void _backfillSearchIndex() {
+  // TEXT payloads are copied over in one go
+  dbConnection.execSQL(sql.backfillSearch);
+
+  // compressed String payloads have to be decompressed first
+  SQLiteStatement statement = statementCache.acquire(sql.insertSearch);
+  Cursor cursor = dbConnection.query(tableName,
+                                     Schema.COLS,
+                                     Schema.SQL_WHERE_BLOB,
+                                     null, null, null, null);
+  try {
+    int idIndex = cursor.getColumnIndex(Schema.COL_ID);
+    int dataIndex = cursor.getColumnIndex(Schema.COL_DATA);
+    while (cursor.moveToNext()) {
+      byte[] value = cursor.getBlob(dataIndex);
+      if (!BlobFormat.hasHeader(value) || !BlobFormat.isText(value) || BlobFormat.isSpilled(value)) { continue; }
+      statement.bindLong(1, cursor.getLong(idIndex));
+      statement.bindString(2, new String(BlobFormat.decode(value, codecStats), UTF8));
+      statement.executeInsert();
+    }
+  }
+  finally {
+    cursor.close();
+    statementCache.release(sql.insertSearch, statement);
+  }
+}
+
+private boolean _hasSearchTable() {
+  return DatabaseUtils.longForQuery(dbConnection, Schema.SQL_COUNT_TABLES, new String[]{sql.searchTable}) > 0;
+}
+
+/** a payload that matched a search, see {@link #search(String, int)} */
+public static class SearchHit {
+
+  /** best hits first, ties are broken by id */
+  static final Comparator<SearchHit> BY_RANK = new Comparator<SearchHit>() {
+    public int compare(SearchHit lhs, SearchHit rhs) {
+      int retval = Double.compare(rhs.score, lhs.score);
+      if (retval != 0) { return retval; }
+      return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+    }
+  };
+
+  /** {@link Schema#COL_ID} of the row */
+  public final long   id;
+  /** BM25 score, higher is better */
+  public final double score;
+  /**
+   * the fragment of the payload that matched, with the matches wrapped in
+   * {@link DBConstantsIF#BlobSearchSnippetStart} and {@link DBConstantsIF#BlobSearchSnippetEnd}
+   */
+  public final String snippet;
+
+  SearchHit(long id, double score, String snippet) {
+    this.id = id;
+    this.score = score;
+    this.snippet = snippet;
+  }
+
+  public String toString() {
+    return String.format("id:%d score:%.3f snippet:%s", id, score, snippet);
+  }
+
+}//end class SearchHit
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// payload encoding
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * compress payloads that are at least thresholdBytes long with the given codec. this only affects
+ * payloads that are written after this call, rows that are already in the db keep their codec.
+ *
+ * @param codec {@link BlobCodec#NONE} turns compression off
+ */
+public void setCompression(BlobCodec codec, int thresholdBytes) {
+  if (codec == null) { throw new IllegalArgumentException("codec can't be null, use BlobCodec.NONE"); }
+  if (thresholdBytes < 0) { throw new IllegalArgumentException("thresholdBytes can't be negative"); }
+  this.codec = codec;
+  this.compressionThreshold = thresholdBytes;
+}
+
+public BlobCodec getCodec() {return codec;}
+
+public int getCompressionThreshold() {return compressionThreshold;}
+
+/** @return compression ratio and codec time for the payloads written (and read) by this object */
+public BlobFormat.Stats getCodecStats() {return codecStats;}
+
 /**
- * simple helper to get the value of the {@link Schema#COL_DATA} from the given cursor
+ * payloads that are at least thresholdBytes long are written to a file in the {@link BlobSpillStore},
+ * instead of the db. this only affects payloads that are written after this call.
  *
- * @return null if there is a problem dereferencing this cursor
+ * @param thresholdBytes {@link Integer#MAX_VALUE} turns spilling off
+ *
+ * @throws IllegalStateException if this is an in-memory db, and spilling isn't being turned off
  */
-private String resolveCursor(Cursor cursor) {
+public void setSpillThreshold(int thresholdBytes) {
+  if (thresholdBytes <= 0) { throw new IllegalArgumentException("thresholdBytes must be positive"); }
+  if (inMemory && thresholdBytes != Integer.MAX_VALUE) { throw new IllegalStateException("in-memory dbs don't spill payloads"); }
+  this.spillThreshold = thresholdBytes;
+}
+
+public int getSpillThreshold() {return spillThreshold;}
+
+/** @return null for in-memory dbs, since they never spill their payloads */
+public BlobSpillStore getSpillStore() {return spillStore;}
+
+/**
+ * delete the spill files that aren't referenced by any row, ie, files that were left behind when the
+ * process died between writing a file and committing its row (or between deleting a row and its file).
+ * files younger than {@link #BlobSpillOrphanGraceMs} are left alone. this is also run after the db is
+ * compacted.
+ *
+ * @return the number of files that were deleted
+ */
+public int sweepOrphans() {
+  if (spillStore == null) { return 0; }
+  return spillStore.sweep(_getSpillFileNames(tableName), BlobSpillOrphanGraceMs);
+}
+
+/** @return the names of the spill files that the rows of the given table refer to */
+private HashSet<String> _getSpillFileNames(String table) {
+  HashSet<String> retval = new HashSet<String>();
+  Cursor cursor = dbConnection.query(table,
+                                     Schema.COLS,
+                                     Schema.SQL_WHERE_REFS,
+                                     null, null, null, null);
+  try {
+    int dataIndex = cursor.getColumnIndex(Schema.COL_DATA);
+    while (cursor.moveToNext()) {
+      byte[] value = cursor.getBlob(dataIndex);
+      if (BlobFormat.hasHeader(value) && BlobFormat.isSpilled(value)) {
+        retval.add(BlobFormat.getSpillFileName(value));
+      }
+    }
+  }
+  finally {
+    cursor.close();
+  }
+  return retval;
+}
+
+@Override
+protected void onCompacted() {
+  sweepOrphans();
+}
+
+/**
+ * @return the value to write for the given String payload: the String itself if it isn't going to be
+ * compressed (so it's stored as TEXT, like it always was), otherwise the compressed bytes. Strings aren't
+ * compressed while the search index is on, see {@link #enableSearchIndex()}.
+ */
+private Object _encode(String payload) {
+  BlobCodec codec = searchIndexEnabled ? BlobCodec.NONE : this.codec;
+  int threshold = Math.min(codec == BlobCodec.NONE ? Integer.MAX_VALUE : compressionThreshold, spillThreshold);
+  // a char is at most 3 bytes in UTF-8, so this skips the encoding step for strings that are too short
+  if ((long) payload.length() * 3 < threshold) { return payload; }
+  byte[] utf8 = payload.getBytes(UTF8);
+  if (utf8.length >= spillThreshold) { return _spill(ByteBuffer.wrap(utf8), true); }
+  if (codec == BlobCodec.NONE || utf8.length < compressionThreshold) { return payload; }
+  return BlobFormat.encode(utf8, 0, utf8.length, true, codec, compressionThreshold, codecStats);
+}
+
+/** @return the value to write for the given binary payload */
+private byte[] _encode(byte[] payload, int offset, int length) {
+  if (length >= spillThreshold) { return _spill(ByteBuffer.wrap(payload, offset, length), false); }
+  return BlobFormat.encode(payload, offset, length, false, codec, compressionThreshold, codecStats);
+}
+
+/** @return the value to write for the remaining bytes of the given buffer, its position isn't changed */
+private byte[] _encode(ByteBuffer payload) {
+  if (payload.remaining() >= spillThreshold) { return _spill(payload, false); }
+  if (payload.hasArray()) {
+    return _encode(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+  }
+  byte[] bytes = new byte[payload.remaining()];
+  payload.duplicate().get(bytes);
+  return _encode(bytes, 0, bytes.length);
+}
+
+/** write the remaining bytes of the given buffer to a spill file @return the reference to write to the db */
+private byte[] _spill(ByteBuffer payload, boolean text) {
+  int length = payload.remaining();
+  try {
+    return BlobFormat.encodeReference(spillStore.write(payload), length, text);
+  }
+  catch (IOException e) {
+    throw new IllegalStateException("couldn't write payload to spill file in " + spillStore.getDirectory(), e);
+  }
+}
+
+/** a value returned by one of the _encode() methods wasn't written, so delete its spill file, if it has one */
+private void _discard(Object value) {
+  if (value instanceof byte[] && BlobFormat.isSpilled((byte[]) value)) {
+    spillStore.delete(BlobFormat.getSpillFileName((byte[]) value));
+  }
+}
+
+/** @return the payload in the given BLOB value, read from its spill file if it's spilled; null if that fails */
+private byte[] _decode(byte[] value) {
+  if (!BlobFormat.isSpilled(value)) { return BlobFormat.decode(value, codecStats); }
+  String fileName = BlobFormat.getSpillFileName(value);
   try {
-    return cursor.getString(cursor.getColumnIndex(Schema.COL_DATA));
+    return spillStore.read(fileName, BlobFormat.getOriginalLength(value));
   }
-  catch (Exception e) {
+  catch (IOException e) {
+    AndroidUtils.logErr(IconPaths.Storage, "DB_blob - [" + dbName + "] problem reading spill file " + fileName, e);
     return null;
   }
 }
 
+/** @return the raw value at the given column: a String for TEXT values, a byte[] for BLOB values, or null */
+private static Object _rawValue(Cursor cursor, int index) {
+  switch (cursor.getType(index)) {
+    case Cursor.FIELD_TYPE_BLOB:
+      return cursor.getBlob(index);
+    case Cursor.FIELD_TYPE_NULL:
+      return null;
+    default:
+      return cursor.getString(index);
+  }
+}
+
+/** @return the given raw value as bytes, String payloads are encoded as UTF-8 */
+private byte[] _toBytes(Object value) {
+  if (value instanceof byte[]) { return _decode((byte[]) value); }
+  return value == null ? null : ((String) value).getBytes(UTF8);
+}
+
+/**
+ * @return the String payload at the given column, read from its spill file if it's spilled; null for
+ * binary payloads (which aren't Strings), or if the spill file can't be read
+ */
+private String _readString(Cursor cursor, int index) {
+  if (cursor.getType(index) != Cursor.FIELD_TYPE_BLOB) { return cursor.getString(index); }
+  byte[] value = cursor.getBlob(index);
+  if (!BlobFormat.hasHeader(value) || !BlobFormat.isText(value)) { return null; }
+  byte[] payload = _decode(value);
+  return payload == null ? null : new String(payload, UTF8);
+}
+
+/** @return true if the payload at the given column was added as bytes, and not as a String */
+private static boolean _isBinary(Cursor cursor, int index) {
+  if (cursor.getType(index) != Cursor.FIELD_TYPE_BLOB) { return false; }
+  byte[] value = cursor.getBlob(index);
+  return !BlobFormat.hasHeader(value) || !BlobFormat.isText(value);
+}
+
+/**
+ * @return a row with a String value for String payloads, or bytes for binary payloads. spilled payloads
+ * aren't loaded, see {@link DBRow#spilled}.
+ */
+private DBRow _readRow(Cursor cursor, int idIndex, int dataIndex) {
+  long id = cursor.getLong(idIndex);
+  if (cursor.getType(dataIndex) != Cursor.FIELD_TYPE_BLOB) { return new DBRow(id, null, cursor.getString(dataIndex)); }
+  byte[] value = cursor.getBlob(dataIndex);
+  if (BlobFormat.isSpilled(value)) { return new DBRow(id, null, null, null, true); }
+  byte[] payload = BlobFormat.decode(value, codecStats);
+  if (BlobFormat.isText(value)) { return new DBRow(id, null, new String(payload, UTF8)); }
+  return new DBRow(id, null, payload);
+}
+
+/** bind a value returned by one of the _encode() methods */
+private static void _bind(SQLiteStatement statement, int index, Object value) {
+  if (value instanceof byte[]) { statement.bindBlob(index, (byte[]) value); }
+  else { statement.bindString(index, (String) value); }
+}
+
 /** test all the code in this class, assume that onCreate() has already been called */
 public void test() {
 
@@ -169,7 +1129,7 @@ public void test() {
 
   // dumping db contents
   AndroidUtils.log(IconPaths.Storage, ">> dumping entire table contents <<");
-  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(Schema.TABLE_PAYLOAD,
+  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(tableName,
                                                                                           Schema.COLS,
                                                                                           null,
                                                                                           null,
@@ -198,7 +1158,7 @@ public void test() {
 
   // dumping db contents
   AndroidUtils.log(IconPaths.Storage, ">> dumping entire table contents <<");
-  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(Schema.TABLE_PAYLOAD,
+  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(tableName,
                                                                                           Schema.COLS,
                                                                                           null,
                                                                                           null,
@@ -206,6 +1166,128 @@ public void test() {
                                                                                           null,
                                                                                           null)));
 
+  // streaming
+  AndroidUtils.log(IconPaths.Storage, ">> getPage() <<");
+  AndroidUtils.log(IconPaths.Storage, getPage(0, 2).toString());
+  AndroidUtils.log(IconPaths.Storage, ">> forEach() <<");
+  forEach(new DBRowVisitor() {
+    public boolean onRow(DBRow row) {
+      AndroidUtils.log(IconPaths.Storage, " .. " + row);
+      return true;
+    }
+  });
+
+  // batch
+  AndroidUtils.log(IconPaths.Storage, ">> addAll() <<");
+  long[] batchIds = addAll(Arrays.asList("test4", "test5"));
+  AndroidUtils.log(IconPaths.Storage, "added test4 & test5, ids:" + Arrays.toString(batchIds));
+  AndroidUtils.log(IconPaths.Storage, ">> batch() <<");
+  long[] batchResults = batch().update(batchIds[0], "test4mod").remove(batchIds[1]).commit();
+  AndroidUtils.log(IconPaths.Storage, "updated test4, removed test5, results:" + Arrays.toString(batchResults));
+  AndroidUtils.log(IconPaths.Storage, " .. get test4: " + get(batchIds[0]) + ", get test5: " + get(batchIds[1]));
+
+  // binary payloads & compression
+  AndroidUtils.log(IconPaths.Storage, ">> add(byte[]) <<");
+  byte[] binary = new byte[4096];
+  for (int i = 0; i < binary.length; i++) { binary[i] = (byte) (i % 64); }
+  long id_plain = add(binary);
+  setCompression(BlobCodec.LZ4, 512);
+  long id_lz4 = add(binary);
+  setCompression(BlobCodec.DEFLATE, 512);
+  long id_deflate = add(ByteBuffer.wrap(binary));
+  StringBuilder bigText = new StringBuilder();
+  for (int i = 0; i < 200; i++) { bigText.append("compressible text ").append(i % 10).append(' '); }
+  long id_text = add(bigText.toString());
+  setCompression(BlobCodec.NONE, BlobCompressionThreshold);
+  AndroidUtils.log(IconPaths.Storage, "plain ok:" + Arrays.equals(binary, getBytes(id_plain)) +
+                                      ", lz4 ok:" + Arrays.equals(binary, getBytes(id_lz4)) +
+                                      ", deflate ok:" + Arrays.equals(binary, getBytes(id_deflate)) +
+                                      ", text ok:" + bigText.toString().equals(get(id_text)));
+  AndroidUtils.log(IconPaths.Storage, "codec stats: " + codecStats);
+  try {
+    AndroidUtils.log(IconPaths.Storage, "get() of a binary payload didn't throw: " + get(id_plain));
+  }
+  catch (IllegalStateException e) {
+    AndroidUtils.log(IconPaths.Storage, "get() of a binary payload threw: " + e.getMessage());
+  }
+
+  // spilling large payloads (in-memory dbs never spill)
+  AndroidUtils.log(IconPaths.Storage, ">> setSpillThreshold() <<");
+  setSpillThreshold(inMemory ? Integer.MAX_VALUE : 1024);
+  long id_spilled = add(binary);
+  try {
+    ByteBuffer mapped = map(id_spilled);
+    byte[] mappedBytes = new byte[mapped.remaining()];
+    mapped.get(mappedBytes);
+    AndroidUtils.log(IconPaths.Storage, "spilled ok:" + Arrays.equals(binary, getBytes(id_spilled)) +
+                                        ", mapped ok:" + Arrays.equals(binary, mappedBytes) +
+                                        ", row:" + getPage(id_spilled - 1, 1));
+  }
+  catch (IOException e) {
+    AndroidUtils.logErr(IconPaths.Storage, "problem mapping spilled payload", e);
+  }
+  setSpillThreshold(inMemory ? Integer.MAX_VALUE : BlobSpillThreshold);
+  remove(id_spilled);
+  String[] spillFiles = spillStore == null ? null : spillStore.getDirectory().list();
+  AndroidUtils.log(IconPaths.Storage, "files left in spill dir after remove: " +
+                                      (spillFiles == null ? 0 : spillFiles.length));
+
+  // json fields
+  AndroidUtils.log(IconPaths.Storage, ">> addField() <<");
+  add("{\"type\":\"note\",\"meta\":{\"ts\":300}}");
+  AndroidUtils.log(IconPaths.Storage, "created type:" + addField(BlobField.text("type")) +
+                                      ", created ts:" + addField(new BlobField("ts", "meta.ts", BlobField.Type.INTEGER)));
+  batch().add("{\"type\":\"message\",\"meta\":{\"ts\":100}}")
+         .add("{\"type\":\"note\",\"meta\":{\"ts\":200}}")
+         .add("not json")
+         .commit();
+  AndroidUtils.log(IconPaths.Storage, ">> query() <<");
+  AndroidUtils.log(IconPaths.Storage, "type = note: " + query("type", Op.EQ, "note", 10));
+  AndroidUtils.log(IconPaths.Storage, "ts > 150: " + query("ts", Op.GT, 150, 10));
+  AndroidUtils.log(IconPaths.Storage, ">> queryRange() <<");
+  AndroidUtils.log(IconPaths.Storage, "ts in [100, 300) desc: " + queryRange("ts", 100, 300, true, 10));
+
+  // full text search
+  AndroidUtils.log(IconPaths.Storage, ">> enableSearchIndex() <<");
+  long id_doc1 = add("the quick brown fox jumps over the lazy dog");
+  enableSearchIndex();
+  long id_doc2 = add("a quick espresso before the standup");
+  long id_doc3 = add("the fox and the hound, quick quick quick");
+  AndroidUtils.log(IconPaths.Storage, ">> search() <<");
+  AndroidUtils.log(IconPaths.Storage, "quick: " + search("quick", 10));
+  AndroidUtils.log(IconPaths.Storage, "fox -hound: " + search("fox -hound", 10));
+  AndroidUtils.log(IconPaths.Storage, ">> searchPrefix() <<");
+  AndroidUtils.log(IconPaths.Storage, "quick esp: " + searchPrefix("quick esp", 10));
+  update(id_doc2, "a flat white before the standup");
+  remove(id_doc1);
+  AndroidUtils.log(IconPaths.Storage, "after update & remove, quick: " + search("quick", 10) +
+                                      ", flat: " + search("flat", 10));
+  removeAll();
+  AndroidUtils.log(IconPaths.Storage, "after removeAll, fox: " + search("fox", 10) + ", ids were: " +
+                                      id_doc1 + "," + id_doc2 + "," + id_doc3);
+  disableSearchIndex();
+  AndroidUtils.log(IconPaths.Storage, "enabled after disableSearchIndex(): " + isSearchIndexEnabled());
+
+  // snapshots
+  AndroidUtils.log(IconPaths.Storage, ">> exportTo() / importFrom() <<");
+  add("snapshot text");
+  long id_snapshot = add(binary);
+  try {
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    long exported = exportTo(snapshot, false);
+    long imported = importFrom(new ByteArrayInputStream(snapshot.toByteArray()), true);
+    AndroidUtils.log(IconPaths.Storage, "exported:" + exported + ", snapshot bytes:" + snapshot.size() +
+                                        ", imported:" + imported + ", rows:" + getRowCount() +
+                                        ", binary ok:" + Arrays.equals(binary, getBytes(id_snapshot)));
+    byte[] corrupt = snapshot.toByteArray();
+    corrupt[corrupt.length / 2] ^= 0x55;
+    importFrom(new ByteArrayInputStream(corrupt), false);
+    AndroidUtils.logErr(IconPaths.Storage, "corrupt snapshot wasn't detected");
+  }
+  catch (IOException e) {
+    AndroidUtils.log(IconPaths.Storage, "corrupt snapshot detected: " + e.getMessage());
+  }
+
   // removeAll
   AndroidUtils.log(IconPaths.Storage, ">> removeAll() <<");
   removeAll();
@@ -219,7 +1301,7 @@ public void test() {
 
   // dumping db contents
   AndroidUtils.log(IconPaths.Storage, ">> dumping entire table contents <<");
-  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(Schema.TABLE_PAYLOAD,
+  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(tableName,
                                                                                           Schema.COLS,
                                                                                           null,
                                                                                           null,
@@ -233,19 +1315,18 @@ public void test() {
  * updates the row with the new payload, and returns the old payload
  *
  * @return null means that the row with given id couldn't be found,
- * otherwise return the old value of {@link Schema#COL_DATA} before the update.
+ * otherwise return the old value of {@link Schema#COL_DATA} before the update (an empty String if it was a
+ * binary or spilled payload).
  */
 public String update(long id, String newPayload) {
-  ContentValues map = new ContentValues();
-  map.put(Schema.COL_DATA, newPayload);
-  String retval = get(id);
+  long start = stats.start();
+  String retval = _getOld(id);
+  int rowCount = 0;
   if (retval != null) {
-    dbConnection.update(Schema.TABLE_PAYLOAD,
-                        map,
-                        Schema.SQL_WHERE_COL_ID,
-                        new String[]{String.valueOf(id)});
-    LocalEventsManager.fireEvent(ctx, R.id.evt_db_blob_change, dbName, null);
+    Fields fields = this.fields;
+    rowCount = _update(id, _encode(newPayload), fields, fields.extract(newPayload));
   }
+  stats.record(DBStats.Op.Update, start, rowCount, rowCount == 0 ? 0 : DBStats.sizeOf(null, newPayload));
   return retval;
 }
 
@@ -260,23 +1341,536 @@ public String update(long id, String newPayload) {
  */
 public long add(String payload) {
   if (payload == null) { throw new IllegalArgumentException("payload can't be null!"); }
-  ContentValues map = new ContentValues();
-  map.put(Schema.COL_DATA, payload);
-  long rowId = dbConnection.insert(Schema.TABLE_PAYLOAD, null, map);
-  LocalEventsManager.fireEvent(ctx, R.id.evt_db_blob_change, dbName, null);
+  long start = stats.start();
+  Fields fields = this.fields;
+  long rowId = _insert(_encode(payload), fields, fields.extract(payload));
+  stats.record(DBStats.Op.Add, start, rowId == -1 ? 0 : 1, rowId == -1 ? 0 : payload.length());
+  return rowId;
+}
+
+/**
+ * insert the given binary payload into the table, it's compressed if a codec is set, see
+ * {@link #setCompression(BlobCodec, int)}
+ *
+ * @return -1 means that an error occurred, otherwise
+ * returns the {@link Schema#COL_ID} value for the newly created row
+ *
+ * @throws IllegalArgumentException if the payload is null
+ */
+public long add(byte[] payload) {
+  if (payload == null) { throw new IllegalArgumentException("payload can't be null!"); }
+  long start = stats.start();
+  Fields fields = this.fields;
+  long rowId = _insert(_encode(payload, 0, payload.length), fields, fields.none());
+  stats.record(DBStats.Op.Add, start, rowId == -1 ? 0 : 1, rowId == -1 ? 0 : payload.length);
+  return rowId;
+}
+
+/**
+ * insert the remaining bytes of the given buffer into the table, same as {@link #add(byte[])}. the
+ * position of the buffer isn't changed.
+ */
+public long add(ByteBuffer payload) {
+  if (payload == null) { throw new IllegalArgumentException("payload can't be null!"); }
+  long start = stats.start();
+  Fields fields = this.fields;
+  long rowId = _insert(_encode(payload), fields, fields.none());
+  stats.record(DBStats.Op.Add, start, rowId == -1 ? 0 : 1, rowId == -1 ? 0 : payload.remaining());
+  return rowId;
+}
+
+/** insert a value returned by one of the _encode() methods, along with the values of the given fields */
+private long _insert(Object value, Fields fields, Object[] fieldValues) {
+  long rowId;
+  SQLiteStatement statement = statementCache.acquire(fields.insert);
+  try {
+    _bind(statement, 1, value);
+    _bindFields(statement, 2, fieldValues);
+    rowId = statement.executeInsert();
+  }
+  catch (SQLException e) {
+    AndroidUtils.logErr(IconPaths.Storage, "DB_blob - [" + dbName + "] problem adding payload", e);
+    rowId = -1;
+  }
+  finally {
+    statementCache.release(fields.insert, statement);
+  }
+  if (rowId == -1) { _discard(value); }
+  else { changeNotifier.commit(DBChange.Op.Add, null, rowId); }
   return rowId;
 }
 
+/**
+ * replace the payload of the given row with a value returned by one of the _encode() methods, along with
+ * the values of the given fields
+ *
+ * @return the number of rows that were changed
+ */
+private int _update(long id, Object value, Fields fields, Object[] fieldValues) {
+  String oldSpillFile = _getSpillFileName(id);
+  int rowCount;
+  SQLiteStatement statement = statementCache.acquire(fields.updateById);
+  try {
+    _bind(statement, 1, value);
+    _bindFields(statement, 2, fieldValues);
+    statement.bindLong(2 + fieldValues.length, id);
+    rowCount = statement.executeUpdateDelete();
+  }
+  finally {
+    statementCache.release(fields.updateById, statement);
+  }
+  if (rowCount > 0) {
+    if (oldSpillFile != null) { spillStore.delete(oldSpillFile); }
+    changeNotifier.commit(DBChange.Op.Update, null, id);
+  }
+  else { _discard(value); }
+  return rowCount;
+}
+
+/**
+ * updates the row with the new binary payload, and returns the old payload
+ *
+ * @return null means that the row with given id couldn't be found,
+ * otherwise return the old payload as bytes
+ */
+public byte[] update(long id, byte[] newPayload) {
+  if (newPayload == null) { throw new IllegalArgumentException("payload can't be null!"); }
+  long start = stats.start();
+  byte[] retval = _toBytes(_getValue(id));
+  int rowCount = 0;
+  if (retval != null) {
+    Fields fields = this.fields;
+    rowCount = _update(id, _encode(newPayload, 0, newPayload.length), fields, fields.none());
+  }
+  stats.record(DBStats.Op.Update, start, rowCount, rowCount == 0 ? 0 : newPayload.length);
+  return retval;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// snapshots
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * payloads are written uncompressed (and spilled payloads are read in from their files), so the snapshot
+ * doesn't depend on the codec or spill threshold of this db. see {@link DB_base#exportTo(OutputStream, boolean)}
+ *
+ * @throws IOException if a spill file can't be read
+ */
+@Override
+public long exportTo(OutputStream out, boolean compress) throws IOException {
+  DBSnapshot.Writer writer = new DBSnapshot.Writer(out, DBSnapshot.KIND_BLOB, compress);
+  long lastId = 0;
+  int rows = ScanWindowSize;
+  while (rows == ScanWindowSize) {
+    rows = 0;
+    Cursor cursor = dbConnection.query(tableName,
+                                       Schema.COLS,
+                                       Schema.SQL_WHERE_ID_GT,
+                                       new String[]{String.valueOf(lastId)},
+                                       null, null,
+                                       Schema.COL_ID,
+                                       String.valueOf(ScanWindowSize));
+    try {
+      int idIndex = cursor.getColumnIndex(Schema.COL_ID);
+      int dataIndex = cursor.getColumnIndex(Schema.COL_DATA);
+      while (cursor.moveToNext()) {
+        rows++;
+        lastId = cursor.getLong(idIndex);
+        switch (cursor.getType(dataIndex)) {
+          case Cursor.FIELD_TYPE_NULL:
+            break;
+          case Cursor.FIELD_TYPE_BLOB:
+            byte[] value = cursor.getBlob(dataIndex);
+            byte[] payload = _decode(value);
+            if (payload == null) { throw new IOException("couldn't read the payload of row " + lastId); }
+            writer.writeBlob(lastId, BlobFormat.isText(value), payload);
+            break;
+          default:
+            writer.writeBlob(lastId, true, cursor.getString(dataIndex).getBytes(UTF8));
+        }
+      }
+    }
+    finally {
+      cursor.close();
+    }
+  }
+  writer.finish();
+  return writer.getRowCount();
+}
+
+/**
+ * the payloads are written the same way {@link #add(String)} and {@link #add(byte[])} write them (so they're
+ * compressed, spilled, indexed, and have their fields extracted). if replace is true, the rows keep their
+ * ids, otherwise they get new ids. see {@link DB_base#importFrom(InputStream, boolean)}
+ */
+@Override
+public long importFrom(InputStream in, boolean replace) throws IOException {
+  // the header is checked before anything in the db is touched
+  DBSnapshot.Reader reader = new DBSnapshot.Reader(in, DBSnapshot.KIND_BLOB);
+  long imported = 0;
+  boolean changed = false;
+  try {
+    imported = replace ? _importStaged(reader) : _importRows(reader, fields, fields.insert, false);
+    changed = true;
+  }
+  finally {
+    reader.close();
+    // without replace, the batches that were committed before a bad chunk are in the db
+    if (changed || !replace) {
+      if (replace) { onRowsDeleted(); }
+      changeNotifier.clear();
+      changeNotifier.commit();
+    }
+  }
+  AndroidUtils.log(IconPaths.Storage, "DB_blob - [" + dbName + "] imported " + imported + " rows");
+  return imported;
+}
+
+/**
+ * read the rows with the given insert (of {@link Fields#insert} or {@link Fields#insertWithId}),
+ * {@link #SnapshotImportBatchRows} per transaction
+ */
+private long _importRows(DBSnapshot.Reader reader, Fields fields, String insert, boolean withId)
+    throws IOException
+{
+  long imported = 0;
+  boolean more = true;
+  while (more) {
+    int rows = 0;
+    boolean committed = false;
+    // values written in this transaction, their spill files are deleted if it's rolled back
+    ArrayList<Object> written = new ArrayList<Object>();
+    SQLiteStatement statement = statementCache.acquire(insert);
+    beginWriteTransaction();
+    try {
+      while (rows < SnapshotImportBatchRows && (more = reader.next())) {
+        Object value;
+        Object[] fieldValues;
+        if (reader.isText()) {
+          String text = reader.getText();
+          value = _encode(text);
+          fieldValues = fields.extract(text);
+        }
+        else {
+          byte[] payload = reader.getPayload();
+          value = _encode(payload, 0, payload.length);
+          fieldValues = fields.none();
+        }
+        written.add(value);
+        int index = 1;
+        if (withId) { statement.bindLong(index++, reader.getId()); }
+        _bind(statement, index++, value);
+        _bindFields(statement, index, fieldValues);
+        statement.executeInsert();
+        rows++;
+      }
+      dbConnection.setTransactionSuccessful();
+      committed = true;
+    }
+    finally {
+      dbConnection.endTransaction();
+      statementCache.release(insert, statement);
+      if (!committed) {
+        for (Object value : written) { _discard(value); }
+      }
+    }
+    imported += rows;
+  }
+  return imported;
+}
+
+/**
+ * read the rows into a staging table, which takes the place of the db's table in a single transaction once
+ * the whole stream has been read (and its row count checked). if the stream is corrupt, the staging table
+ * and its spill files are removed, and the db's table isn't touched; otherwise the spill files of the old
+ * table are deleted once it's gone.
+ */
+private long _importStaged(DBSnapshot.Reader reader) throws IOException {
+  Fields fields = this.fields;
+  Sql staging = new Sql(sql.table + SnapshotStagingSuffix);
+  // the spill files of an import that didn't finish are left to sweepOrphans()
+  dbConnection.execSQL(staging.dropTable);
+  dbConnection.execSQL(staging.createTable);
+  for (BlobField field : fields.list) { dbConnection.execSQL(staging.addFieldColumn(field)); }
+  long imported;
+  HashSet<String> oldSpillFiles = null;
+  boolean swapped = false;
+  try {
+    imported = _importRows(reader, fields, staging.insert(fields.list, true), true);
+    beginWriteTransaction();
+    try {
+      if (spillStore != null) { oldSpillFiles = _getSpillFileNames(tableName); }
+      // the search triggers go with the old table
+      dbConnection.execSQL(sql.dropTable);
+      dbConnection.execSQL(sql.dropSearchTable);
+      dbConnection.execSQL(staging.renameTo(sql.table));
+      statementCache.clear();
+      for (BlobField field : fields.list) { dbConnection.execSQL(sql.createFieldIndex(field)); }
+      if (searchIndexEnabled) {
+        _createSearchIndex();
+        _backfillSearchIndex();
+      }
+      dbConnection.setTransactionSuccessful();
+    }
+    finally {
+      dbConnection.endTransaction();
+    }
+    swapped = true;
+  }
+  finally {
+    // the cached statements of both tables are stale now
+    statementCache.clear();
+    if (!swapped) { _dropStaging(staging); }
+  }
+  if (oldSpillFiles != null) {
+    for (String name : oldSpillFiles) { spillStore.delete(name); }
+  }
+  return imported;
+}
+
+/** drop the staging table of an import that failed, and delete the spill files that its rows refer to */
+private void _dropStaging(Sql staging) {
+  try {
+    HashSet<String> spillFiles = spillStore == null ? null : _getSpillFileNames(staging.table);
+    dbConnection.execSQL(staging.dropTable);
+    if (spillFiles != null) {
+      for (String name : spillFiles) { spillStore.delete(name); }
+    }
+  }
+  catch (SQLException e) {
+    AndroidUtils.logErr(IconPaths.Storage, "DB_blob - [" + dbName + "] problem dropping the import table", e);
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// batch operations
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * insert all the given payloads in one transaction, and emit a single
+ * {@link DBChangeSet} for all of them.
+ *
+ * @return the {@link Schema#COL_ID} values for the newly created rows, in the iteration order of
+ * the collection (-1 means that an error occurred for that payload)
+ *
+ * @throws IllegalArgumentException if any payload is null
+ */
+public long[] addAll(Collection<String> payloads) {
+  Batch batch = batch();
+  for (String payload : payloads) {
+    batch.add(payload);
+  }
+  return batch.commit();
+}
+
+/** @return a new {@link Batch} for this db, nothing is written until {@link Batch#commit()} is called */
+public Batch batch() {
+  return new Batch();
+}
+
+/**
+ * Collects add/update/remove operations and runs all of them in a single transaction when
+ * {@link #commit()} is called. Each kind of operation uses one precompiled statement from the
+ * {@link DBStatementCache} for every row. All the rows that were changed are emitted in a single
+ * {@link DBChangeSet} after the commit.
+ * <p/>
+ * Payloads are encoded (and large ones spilled to files) when the batch is committed, not when they
+ * are queued, so a batch that's never committed doesn't leave any spill files behind. This also means
+ * that a byte[] payload is read when the batch is committed, so don't change it before then.
+ */
+public class Batch {
+
+  private final ArrayList<Integer> opList      = new ArrayList<Integer>();
+  private final ArrayList<Long>    idList      = new ArrayList<Long>();
+  /** the payloads as they were queued, either Strings or byte[] */
+  private final ArrayList<Object>   payloadList    = new ArrayList<Object>();
+  /** the values of the fields for each payload */
+  private final ArrayList<Object[]> fieldValueList = new ArrayList<Object[]>();
+  /** the fields that were declared when this batch was created */
+  private final Fields              fields         = DB_blob.this.fields;
+
+  private Batch() {}
+
+  /**
+   * queue an insert of the given payload, same as {@link DB_blob#add(String)}
+   *
+   * @throws IllegalArgumentException if the payload is null
+   */
+  public Batch add(String payload) {
+    if (payload == null) { throw new IllegalArgumentException("payload can't be null!"); }
+    return _queue(Schema.OP_ADD, -1, payload, fields.extract(payload));
+  }
+
+  /**
+   * queue an insert of the given binary payload, same as {@link DB_blob#add(byte[])}
+   *
+   * @throws IllegalArgumentException if the payload is null
+   */
+  public Batch add(byte[] payload) {
+    if (payload == null) { throw new IllegalArgumentException("payload can't be null!"); }
+    return _queue(Schema.OP_ADD, -1, payload, fields.none());
+  }
+
+  /**
+   * queue an update of the row with the given id, same as {@link DB_blob#update(long, String)}
+   *
+   * @throws IllegalArgumentException if the payload is null
+   */
+  public Batch update(long id, String newPayload) {
+    if (newPayload == null) { throw new IllegalArgumentException("payload can't be null!"); }
+    return _queue(Schema.OP_UPDATE, id, newPayload, fields.extract(newPayload));
+  }
+
+  /**
+   * queue an update of the row with the given id to a binary payload, same as
+   * {@link DB_blob#update(long, byte[])}
+   *
+   * @throws IllegalArgumentException if the payload is null
+   */
+  public Batch update(long id, byte[] newPayload) {
+    if (newPayload == null) { throw new IllegalArgumentException("payload can't be null!"); }
+    return _queue(Schema.OP_UPDATE, id, newPayload, fields.none());
+  }
+
+  /** queue a removal of the row with the given id, same as {@link DB_blob#remove(long)} */
+  public Batch remove(long id) {
+    return _queue(Schema.OP_REMOVE, id, null, null);
+  }
+
+  /** @return the number of operations queued so far */
+  public int size() {return opList.size();}
+
+  private Batch _queue(int op, long id, Object payload, Object[] fieldValues) {
+    opList.add(op);
+    idList.add(id);
+    payloadList.add(payload);
+    fieldValueList.add(fieldValues);
+    return this;
+  }
+
+  /**
+   * run all the queued operations in one transaction. if any of them fails, then none of them
+   * are applied, and no changes are emitted.
+   *
+   * @return one result per queued operation (in the order they were queued): for adds, this is the
+   * {@link Schema#COL_ID} of the new row (-1 means an error occurred); for updates and removes, this
+   * is the number of rows that were changed.
+   */
+  public long[] commit() {
+    long[] retval = new long[opList.size()];
+    if (retval.length == 0) { return retval; }
+    long start = stats.start();
+
+    // encode (and spill) the payloads before the transaction, so the file writes don't hold it up
+    Object[] encoded = new Object[retval.length];
+    try {
+      for (int i = 0; i < retval.length; i++) { encoded[i] = _encodeQueued(payloadList.get(i)); }
+    }
+    catch (RuntimeException e) {
+      for (Object value : encoded) { _discard(value); }
+      throw e;
+    }
+
+    SQLiteStatement addStmt = null;
+    SQLiteStatement updateStmt = null;
+    SQLiteStatement removeStmt = null;
+    boolean rowsRemoved = false;
+    boolean committed = false;
+    // spill files of the rows that were replaced or removed, these are deleted once the commit is done
+    ArrayList<String> oldSpillFiles = new ArrayList<String>();
+
+    beginWriteTransaction();
+    try {
+      for (int i = 0; i < retval.length; i++) {
+        switch (opList.get(i)) {
+          case Schema.OP_ADD:
+            if (addStmt == null) { addStmt = statementCache.acquire(fields.insert); }
+            _bind(addStmt, 1, encoded[i]);
+            _bindFields(addStmt, 2, fieldValueList.get(i));
+            retval[i] = addStmt.executeInsert();
+            if (retval[i] == -1) { _discard(encoded[i]); }
+            break;
+          case Schema.OP_UPDATE:
+            if (updateStmt == null) { updateStmt = statementCache.acquire(fields.updateById); }
+            _bind(updateStmt, 1, encoded[i]);
+            _bindFields(updateStmt, 2, fieldValueList.get(i));
+            updateStmt.bindLong(2 + fields.list.length, idList.get(i));
+            String replacedSpillFile = _getSpillFileName(idList.get(i));
+            retval[i] = updateStmt.executeUpdateDelete();
+            if (retval[i] > 0) {
+              if (replacedSpillFile != null) { oldSpillFiles.add(replacedSpillFile); }
+            }
+            else { _discard(encoded[i]); }
+            break;
+          case Schema.OP_REMOVE:
+            if (removeStmt == null) { removeStmt = statementCache.acquire(sql.deleteById); }
+            removeStmt.bindLong(1, idList.get(i));
+            String removedSpillFile = _getSpillFileName(idList.get(i));
+            retval[i] = removeStmt.executeUpdateDelete();
+            if (retval[i] > 0) {
+              rowsRemoved = true;
+              if (removedSpillFile != null) { oldSpillFiles.add(removedSpillFile); }
+            }
+            break;
+        }
+      }
+      dbConnection.setTransactionSuccessful();
+      committed = true;
+    }
+    finally {
+      dbConnection.endTransaction();
+      if (addStmt != null) { statementCache.release(fields.insert, addStmt); }
+      if (updateStmt != null) { statementCache.release(fields.updateById, updateStmt); }
+      if (removeStmt != null) { statementCache.release(sql.deleteById, removeStmt); }
+      if (!committed) {
+        // none of the new payloads were written, so their spill files are orphans now
+        for (Object value : encoded) { _discard(value); }
+      }
+    }
+
+    for (String spillFile : oldSpillFiles) { spillStore.delete(spillFile); }
+    if (rowsRemoved) { onRowsDeleted(); }
+    for (int i = 0; i < retval.length; i++) {
+      switch (opList.get(i)) {
+        case Schema.OP_ADD:
+          if (retval[i] != -1) { changeNotifier.add(DBChange.Op.Add, null, retval[i]); }
+          break;
+        case Schema.OP_UPDATE:
+          if (retval[i] > 0) { changeNotifier.add(DBChange.Op.Update, null, idList.get(i)); }
+          break;
+        case Schema.OP_REMOVE:
+          if (retval[i] > 0) { changeNotifier.add(DBChange.Op.Remove, null, idList.get(i)); }
+          break;
+      }
+    }
+    changeNotifier.commit();
+    long bytes = 0;
+    for (Object payload : payloadList) {
+      if (payload instanceof String) { bytes += ((String) payload).length(); }
+      else if (payload instanceof byte[]) { bytes += ((byte[]) payload).length; }
+    }
+    stats.record(DBStats.Op.Batch, start, retval.length, bytes);
+    return retval;
+  }
+
+  /** @return the value to write for a queued payload, null for removes */
+  private Object _encodeQueued(Object payload) {
+    if (payload instanceof String) { return _encode((String) payload); }
+    if (payload instanceof byte[]) { return _encode((byte[]) payload, 0, ((byte[]) payload).length); }
+    return null;
+  }
+
+}//end class Batch
+
 //XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
 // self test method
 //XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
 
 /** close the db connection */
 public void shutdown() {
-  if (dbConnection != null) {
-    dbConnection.close();
-    dbConnection = null;
-  }
+  changeNotifier.emit();
+  statementCache.clear();
+  closeConnection();
 }
 
 //XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
@@ -292,37 +1886,166 @@ public static class Schema extends SQLiteOpenHelper implements DBConstantsIF {
   public static final  String   TABLE_PAYLOAD    = "payload";
   /** UID for a row */
   public static final  String   COL_ID           = BaseColumns._ID;
+  /** declared as a blob, but legacy tables declare it as text; both hold TEXT and BLOB values just fine */
   public static final  String   COL_DATA         = "data";
   /** all the cols in the table */
   public static final  String[] COLS             = {COL_ID, COL_DATA};
-  /** command to <a href="http://sqlite.org/lang_vacuum.html">purge</a> deleted rows */
+  /**
+   * command to <a href="http://sqlite.org/lang_vacuum.html">purge</a> deleted rows
+   *
+   * @deprecated a full VACUUM after every delete blocks all the other writers; deleted rows are now
+   * reclaimed in the background by the {@link DBCompactor} (see {@link DBCompactor#compact(DB_base)})
+   */
+  @Deprecated
   public static final  String   SQL_PURGE        = "VACUUM";
-  /** create a table with 2 cols. the PK col is autoincrement, so nothing has to be set on it */
-  private static final String   SQL_CREATE_DB    = "create table " + TABLE_PAYLOAD + "(" +
-                                                   COL_ID + " integer primary key autoincrement, " +
-                                                   COL_DATA + " text not null" +
-                                                   ")";
-  private static final String   SQL_DROP_DB      = "drop table if exists " + TABLE_PAYLOAD;
-  private static final String   SQL_WHERE_COL_ID = COL_ID + " = ?";
+  static final         String   SQL_WHERE_COL_ID = COL_ID + " = ?";
+  private static final String   SQL_WHERE_ID_GT  = COL_ID + " > ?";
+  /** rows that might be references to spilled payloads, this avoids loading any real payloads */
+  private static final String   SQL_WHERE_REFS   = "typeof(" + COL_DATA + ") = 'blob' and length(" + COL_DATA +
+                                                   ") <= " + BlobFormat.MAX_REFERENCE_LENGTH;
+  private static final String   SQL_WHERE_REF_ID = SQL_WHERE_COL_ID + " and " + SQL_WHERE_REFS;
+  private static final String   SQL_WHERE_BLOB   = "typeof(" + COL_DATA + ") = 'blob'";
+  private static final String   SQL_COUNT_TABLES = "select count(*) from sqlite_master where type = 'table' and name = ?";
+  /** the only column of the search table */
+  static final         String   COL_BODY         = "body";
+  /** operation types queued in a {@link Batch} */
+  private static final int      OP_ADD           = 0;
+  private static final int      OP_UPDATE        = 1;
+  private static final int      OP_REMOVE        = 2;
+
+  /** the statements for {@link #TABLE_PAYLOAD}, which is the only table in a db file of its own */
+  private static final Sql      SQL              = new Sql(TABLE_PAYLOAD);
 
   /** constructor */
   private Schema(Context context, String dbName, int dbVersion) {
     super(context, dbName, null, dbVersion);
   }
 
+  /** put the db in incremental auto_vacuum mode before any tables are created, see {@link DBCompactor} */
+  public void onConfigure(SQLiteDatabase database) {
+    DBCompactor.configure(database);
+  }
+
   /** create the database for the first time */
   public void onCreate(SQLiteDatabase database) {
-    database.execSQL(SQL_CREATE_DB);
+    database.execSQL(SQL.createTable);
   }
 
   /** upgrade the db when the version changes */
   public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
     AndroidUtils.logErr(IconPaths.Storage,
                         getClass().getSimpleName() + "upgrading db to a newer version");
-    database.execSQL(SQL_DROP_DB);
+    database.execSQL(SQL.dropTable);
+    database.execSQL(SQL.dropSearchTable);
     onCreate(database);
   }
 
 }//end class Schema
 
+/**
+ * The statements for a single blob table. A db in a file of its own uses {@link Schema#TABLE_PAYLOAD}, and a
+ * db that's hosted in a {@link DBSharedFile} uses a table named after the db.
+ */
+static class Sql {
+
+  final String   table;
+  final String   createTable;
+  final String   dropTable;
+  /** statements that are precompiled in the {@link DBStatementCache} */
+  final String   count;
+  final String   deleteById;
+  /** the FTS4 table that holds the search index, see {@link DB_blob#enableSearchIndex()} */
+  final String   searchTable;
+  final String   createSearchTable;
+  final String   dropSearchTable;
+  /** keep the search table in sync with the payloads that are stored as TEXT */
+  final String[] createSearchTriggers;
+  final String[] dropSearchTriggers;
+  final String   backfillSearch;
+  final String   insertSearch;
+  /** docid and matchinfo of all the rows that match the query */
+  final String   searchRank;
+  /** docid and snippet of the rows that match the query, format this with the list of ids */
+  final String   searchSnippets;
+
+  Sql(String table) {
+    this.table = table;
+    createTable = "create table if not exists " + table + "(" +
+                  Schema.COL_ID + " integer primary key autoincrement, " +
+                  Schema.COL_DATA + " blob not null" +
+                  ")";
+    dropTable = "drop table if exists " + table;
+    count = "select count(*) from " + table;
+    deleteById = "delete from " + table + " where " + Schema.SQL_WHERE_COL_ID;
+
+    searchTable = table + "_fts";
+    createSearchTable = "create virtual table if not exists " + searchTable + " using fts4(" +
+                        Schema.COL_BODY + ", tokenize=" + BlobSearchTokenizer + ", prefix=\"2,3\")";
+    dropSearchTable = "drop table if exists " + searchTable;
+    String isText = "typeof(new." + Schema.COL_DATA + ") = 'text'";
+    String deleteOld = "delete from " + searchTable + " where docid = old." + Schema.COL_ID + "; ";
+    String[] triggers = {searchTable + "_ai", searchTable + "_ad", searchTable + "_au"};
+    createSearchTriggers = new String[]{
+        "create trigger if not exists " + triggers[0] + " after insert on " + table + " when " + isText +
+        " begin insert into " + searchTable + "(docid, " + Schema.COL_BODY + ") values (new." + Schema.COL_ID +
+        ", new." + Schema.COL_DATA + "); end",
+        "create trigger if not exists " + triggers[1] + " after delete on " + table + " begin " + deleteOld + "end",
+        "create trigger if not exists " + triggers[2] + " after update of " + Schema.COL_DATA + " on " + table +
+        " begin " + deleteOld + "insert into " + searchTable + "(docid, " + Schema.COL_BODY + ") select new." +
+        Schema.COL_ID + ", new." + Schema.COL_DATA + " where " + isText + "; end"
+    };
+    dropSearchTriggers = new String[triggers.length];
+    for (int i = 0; i < triggers.length; i++) { dropSearchTriggers[i] = "drop trigger if exists " + triggers[i]; }
+    backfillSearch = "insert into " + searchTable + "(docid, " + Schema.COL_BODY + ") select " + Schema.COL_ID +
+                     ", " + Schema.COL_DATA + " from " + table + " where typeof(" + Schema.COL_DATA + ") = 'text'";
+    insertSearch = "insert into " + searchTable + "(docid, " + Schema.COL_BODY + ") values (?, ?)";
+    searchRank = "select docid, matchinfo(" + searchTable + ", 'pcnalx') from " + searchTable +
+                 " where " + searchTable + " match ?";
+    searchSnippets = "select docid, snippet(" + searchTable + ", ?, ?, ?, -1, " + BlobSearchSnippetTokens + ") from " +
+                     searchTable + " where " + searchTable + " match ? and docid in (%s)";
+  }
+
+  /**
+   * @return insert of a payload, followed by the values of the given fields, see {@link Fields}. this is
+   * precompiled in the {@link DBStatementCache}, as is {@link #updateById(BlobField[])}.
+   *
+   * @param withId true to set the id of the row too, it's the first arg
+   */
+  String insert(BlobField[] fields, boolean withId) {
+    StringBuilder cols = new StringBuilder(withId ? Schema.COL_ID + ", " : "").append(Schema.COL_DATA);
+    StringBuilder args = new StringBuilder(withId ? "?, ?" : "?");
+    for (BlobField field : fields) {
+      cols.append(", ").append(field.column);
+      args.append(", ?");
+    }
+    return "insert into " + table + "(" + cols + ") values (" + args + ")";
+  }
+
+  /** @return update of the payload, and the values of the given fields, of the row with the given id */
+  String updateById(BlobField[] fields) {
+    StringBuilder cols = new StringBuilder(Schema.COL_DATA).append(" = ?");
+    for (BlobField field : fields) { cols.append(", ").append(field.column).append(" = ?"); }
+    return "update " + table + " set " + cols + " where " + Schema.SQL_WHERE_COL_ID;
+  }
+
+  /** @return update of the value of the given field, of the row with the given id */
+  String updateField(BlobField field) {
+    return "update " + table + " set " + field.column + " = ? where " + Schema.SQL_WHERE_COL_ID;
+  }
+
+  String createFieldIndex(BlobField field) {
+    return "create index if not exists " + table + "_" + field.column + " on " + table + "(" + field.column + ")";
+  }
+
+  String addFieldColumn(BlobField field) {
+    return "alter table " + table + " add column " + field.column + " " + field.type.sqlType;
+  }
+
+  /** @return the statement that renames this table, its indexes and triggers keep the names they have */
+  String renameTo(String newTable) {
+    return "alter table " + table + " rename to " + newTable;
+  }
+
+}//end class Sql
+
 }//end class DB_blob
\ No newline at end of file
@@ -19,12 +19,16 @@ package zen.core.db;
 import android.content.*;
 import android.database.*;
 import android.database.sqlite.*;
+import android.os.*;
 import android.provider.*;
-import zen.core.localevent.*;
+import zen.core.db.engine.*;
+import zen.core.observableprops.*;
 import zen.framework.*;
 import zen.utlis.*;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * You have to provide the dbName and dbVersion params to create an object of this type.
@@ -34,6 +38,16 @@ import java.util.*;
  * <li>Key (string) column that uniquely identifies this row</li>
  * <li>Payload (string) column that contains a String which is the payload text</li>
  * </ol>
+ * Rows can be given a time to live, per row ({@link #add(String, String, long)}) or for the whole db
+ * ({@link #setDefaultTtl(long)}). The expiry is kept in an indexed column; every lookup filters out expired
+ * rows in the same query, and {@link DBExpirySweeper} deletes them later on a background thread.
+ * <p/>
+ * A db can also be backed by a {@link StorageEngine} instead of SQLite
+ * ({@link #DB_kvp(Context, String, StorageEngine)}). Engine-backed dbs support all the operations by key,
+ * including expiry, the cache, write-behind mode, batches, the conditional operations, and snapshots; the
+ * rows are encoded as {@link KvpRecord}s. Their rows have ids too (see {@link KvpEngineTable}), so the
+ * operations by id, {@link #getPage(long, int)}, {@link #getAllCursor()}, and {@link #sortedView()} work the
+ * same way; the sorted views scan the key range of the engine, instead of querying an index.
  *
  * @author Nazmul Idris
  * @version 1.0
@@ -41,15 +55,325 @@ import java.util.*;
  */
 public class DB_kvp extends DB_base {
 
+/** the statements for {@link #tableName} */
+private final    Sql            sql;
+/** the rows of the {@link #engine}, null if this db isn't engine-backed */
+final            KvpEngineTable table;
+/** time to live given to rows that are written without one, 0 means they never expire */
+private volatile long           defaultTtlMs;
+/** optional read-through cache for lookups, see {@link #setCache(KvpCache)} */
+private volatile KvpCache       cache;
+/** optional write-behind queue for writes, see {@link #enableWriteBehind(int, long)} */
+private volatile KvpWriteBehind writeBehind;
+/** optional filter for lookups of missing keys, see {@link #enableBloomFilter(long, double)} */
+private volatile KvpBloomFilter bloomFilter;
+/** what {@link #bloomFilter} is sized for when it's rebuilt, 0 means that it's off */
+private          long           bloomExpectedKeys;
+private          double         bloomFalsePositiveRate;
+/** serializes the (re)builds of {@link #bloomFilter} */
+private final    Object         bloomLock = new Object();
+/** runs the re-evaluations of the {@link KvpLiveQuery}s on this db, created when the first one is */
+private          ThreadPoolExecutor liveQueryExecutor;
+private          Handler            handlerMainThread;
+
 /** constructor that creates the db connection, release this in {@link #shutdown()} */
 public DB_kvp(Context ctx, String dbName, int dbVersion) {
-  super(ctx, dbName, dbVersion);
+  this(ctx, dbName, dbVersion, false);
+}
+
+/**
+ * constructor that creates the db connection, release this in {@link #shutdown()}
+ *
+ * @param inMemory true to keep the db in memory only, eg: for session caches, tests, and benchmarks. it
+ *                 has the same API, but nothing is written to flash, and the rows are gone after
+ *                 {@link #shutdown()}.
+ */
+public DB_kvp(Context ctx, String dbName, int dbVersion, boolean inMemory) {
+  super(ctx, dbName, dbVersion, Schema.TABLE_MAP, null, inMemory);
+  sql = new Sql(tableName);
+  table = null;
+  _ensureExpiresColumn();
+}
+
+/**
+ * constructor for a db that's hosted in a table (named after the db) of the given shared file, which must
+ * have already created it; see {@link DBSharedFile}
+ */
+public DB_kvp(Context ctx, String dbName, DBSharedFile sharedFile) {
+  super(ctx, dbName, sharedFile.dbVersion, dbName, sharedFile);
+  sql = new Sql(tableName);
+  table = null;
+  _ensureExpiresColumn();
+}
+
+/**
+ * constructor for a db whose rows are held by the given engine, instead of an SQLite db; the engine is
+ * closed in {@link #shutdown()}
+ */
+public DB_kvp(Context ctx, String dbName, StorageEngine engine) {
+  super(ctx, dbName, DbVersion, engine);
+  sql = new Sql(tableName);
+  table = new KvpEngineTable(engine);
+  if (engine instanceof LogStructuredEngine) {
+    // the engine compacts itself in the background, not on the DBCompactor thread
+    ((LogStructuredEngine) engine).setCompactionListener(new Runnable() {
+      public void run() {
+        onCompacted();
+      }
+    });
+  }
+}
+
+/** tables that were created before {@link Schema#COL_EXPIRES} existed get it (and its index) here */
+private void _ensureExpiresColumn() {
+  ensureColumn(Schema.COL_EXPIRES, "integer");
+  dbConnection.execSQL(sql.createExpiresIndex);
 }
 
 /** actually create the db connection, release this in {@link #shutdown()} */
 @Override
 public SQLiteDatabase actuallyCreateDatabase() {
-  return new Schema(ctx, dbName, dbVersion).getWritableDatabase();
+  return openDatabase(new Schema(ctx, getDatabaseFileName(), dbVersion));
+}
+
+@Override
+public int getChangeEventId() {
+  return R.id.evt_db_kvp_change;
+}
+
+/**
+ * put a {@link KvpCache} in front of the lookups in this db ({@link #get(String)}, {@link #get(long)},
+ * and {@link #containsKey(String)}). pass null to turn the cache off.
+ */
+public void setCache(KvpCache cache) {this.cache = cache;}
+
+/** @return the {@link KvpCache} in front of this db, this may be null */
+public KvpCache getCache() {return cache;}
+
+/**
+ * put a {@link KvpBloomFilter} in front of the lookups by key in this db ({@link #get(String)} and
+ * {@link #containsKey(String)}), so that most lookups for missing keys return without querying the db.
+ * the filter is built here, by streaming all the keys in the db, so don't call this on the main thread.
+ * every write adds its key to the filter, and the filter is rebuilt (and resized) after the db is
+ * compacted, which is when the keys that were removed since it was built are dropped from it.
+ *
+ * @param expectedKeys      size the filter for this many keys, or for {@link #BloomFilterHeadroom} times
+ *                          the number of keys in the db, whichever is more
+ * @param falsePositiveRate eg: {@link #BloomFilterFalsePositiveRate}
+ *
+ * @return the new filter; it's replaced every time that it's rebuilt, so use {@link #getBloomFilter()} to
+ * get the current one (and its stats) later on
+ *
+ * @throws IllegalArgumentException if expectedKeys isn't positive, or the rate isn't in (0, 1)
+ */
+public KvpBloomFilter enableBloomFilter(long expectedKeys, double falsePositiveRate) {
+  if (expectedKeys <= 0) { throw new IllegalArgumentException("expectedKeys must be positive"); }
+  if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+    throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+  }
+  synchronized (bloomLock) {
+    bloomExpectedKeys = expectedKeys;
+    bloomFalsePositiveRate = falsePositiveRate;
+    return _buildBloomFilter();
+  }
+}
+
+/** take the {@link KvpBloomFilter} out of the lookups of this db */
+public void disableBloomFilter() {
+  synchronized (bloomLock) {
+    bloomExpectedKeys = 0;
+    bloomFilter = null;
+  }
+}
+
+/** @return the {@link KvpBloomFilter} in front of this db, this may be null */
+public KvpBloomFilter getBloomFilter() {return bloomFilter;}
+
+/**
+ * build a new {@link KvpBloomFilter} from the keys in this db, and swap it in. this is called after the
+ * db is compacted, it only has to be called directly after lots of keys have been removed.
+ *
+ * @return the new filter, null if the filter is off
+ */
+public KvpBloomFilter rebuildBloomFilter() {
+  synchronized (bloomLock) {
+    return bloomExpectedKeys == 0 ? null : _buildBloomFilter();
+  }
+}
+
+/**
+ * stream the keys into a new filter, and swap it in, in one write transaction. no other writer can
+ * commit while the keys are streamed, and every writer adds its key to the filter after it commits, so
+ * a key that's written while this runs either makes it into the stream, or is added to the new filter.
+ */
+private KvpBloomFilter _buildBloomFilter() {
+  long start = SystemClock.elapsedRealtime();
+  KvpBloomFilter retval;
+  if (engine != null) {
+    retval = table.runInTransaction(new Callable<KvpBloomFilter>() {
+      public KvpBloomFilter call() {
+        final KvpBloomFilter filter = _newBloomFilter(table.count());
+        table.scan(null, null, new ScanVisitor() {
+          public boolean onEntry(String key, byte[] value) {
+            filter.add(key);
+            return true;
+          }
+        });
+        bloomFilter = filter;
+        return filter;
+      }
+    });
+  }
+  else {
+    beginWriteTransaction();
+    try {
+      retval = _newBloomFilter(DatabaseUtils.longForQuery(dbConnection, sql.count, null));
+      Cursor cursor = dbConnection.rawQuery(sql.allKeys, null);
+      try {
+        while (cursor.moveToNext()) {
+          retval.add(cursor.getString(0));
+        }
+      }
+      finally {
+        cursor.close();
+      }
+      bloomFilter = retval;
+      dbConnection.setTransactionSuccessful();
+    }
+    finally {
+      dbConnection.endTransaction();
+    }
+  }
+  AndroidUtils.log(IconPaths.Storage,
+                   String.format("DB_kvp - [%s] built bloom filter in %d ms, %s",
+                                 dbName, SystemClock.elapsedRealtime() - start, retval));
+  return retval;
+}
+
+private KvpBloomFilter _newBloomFilter(long keys) {
+  return new KvpBloomFilter(Math.max(bloomExpectedKeys, keys * BloomFilterHeadroom), bloomFalsePositiveRate);
+}
+
+/** keys were removed from the db, they stay in the {@link #bloomFilter} until it's rebuilt */
+private void _onKeysRemoved(long count) {
+  KvpBloomFilter bloom = bloomFilter;
+  if (bloom != null && count > 0) { bloom.onRemoved(count); }
+}
+
+/**
+ * other connections could have cached the old values of the rows that the shared transaction wrote, and
+ * this one the new values if it was rolled back, so the cache starts over; a key that the bloom filter
+ * picked up in a rolled back write just costs a lookup
+ */
+@Override
+protected void onSharedTransactionEnd(boolean committed) {
+  KvpCache cache = this.cache;
+  if (cache != null) { cache.clear(); }
+  super.onSharedTransactionEnd(committed);
+}
+
+/** the free pages (or garbage) that the removed keys left behind are gone, so are they from the filter */
+@Override
+protected void onCompacted() {
+  try {
+    rebuildBloomFilter();
+  }
+  catch (Exception e) {
+    // the old filter is still correct, it just has more false positives
+    AndroidUtils.logErr(IconPaths.Storage, "DB_kvp - [" + dbName + "] problem rebuilding bloom filter", e);
+  }
+}
+
+/**
+ * set the time to live of the rows that are written without one (by {@link #add(String, String)},
+ * {@link #update(String, String)}, {@link #putIfAbsent(String, String)}, etc). every write resets the
+ * expiry of the row. expired rows are treated as absent by every lookup, and they are deleted later by
+ * {@link #sweepExpired(int)}.
+ *
+ * @param ttlMs 0 means that rows never expire (this is the default)
+ */
+public void setDefaultTtl(long ttlMs) {
+  if (ttlMs < 0) { throw new IllegalArgumentException("ttlMs can't be negative"); }
+  defaultTtlMs = ttlMs;
+}
+
+public long getDefaultTtl() {return defaultTtlMs;}
+
+/** @return when a row that's written now with the given time to live expires, 0 means never */
+static long expiresAt(long ttlMs) {
+  return ttlMs > 0 ? System.currentTimeMillis() + ttlMs : 0;
+}
+
+/**
+ * turn on write-behind mode: {@link #add(String, String)}, {@link #update(String, String)}, and
+ * {@link #remove(String)} (and the updates and removes by id) queue their writes (coalesced per key) in a
+ * {@link KvpWriteBehind}, and return without writing to the db. a dedicated writer thread commits them in
+ * batches. lookups by key and by id see the queued writes right away. every other operation (scans, counts,
+ * and the atomic operations) flushes the queue on the caller's thread before it runs, so it sees them too;
+ * this costs nothing when the queue is empty.
+ *
+ * @param maxPending flush as soon as this many keys are queued
+ * @param maxDelayMs flush once the oldest queued write is this old
+ */
+public synchronized void enableWriteBehind(int maxPending, long maxDelayMs) {
+  if (writeBehind != null) { disableWriteBehind(); }
+  writeBehind = new KvpWriteBehind(this, maxPending, maxDelayMs);
+}
+
+/**
+ * flush the queued writes and turn off write-behind mode
+ *
+ * @return false if the queued writes couldn't be committed, see {@link KvpWriteBehind#shutdown()}
+ */
+public synchronized boolean disableWriteBehind() {
+  KvpWriteBehind queue = writeBehind;
+  if (queue == null) { return true; }
+  writeBehind = null;
+  return queue.shutdown();
+}
+
+/** @return the {@link KvpWriteBehind} queue for this db, this is null unless write-behind mode is on */
+public KvpWriteBehind getWriteBehind() {return writeBehind;}
+
+/**
+ * in write-behind mode, write out all the queued writes on the caller's thread. this returns right away
+ * if write-behind mode is off, or if nothing is queued.
+ *
+ * @return false if the queued writes couldn't be committed
+ */
+public boolean flush() {
+  KvpWriteBehind queue = writeBehind;
+  return queue == null || queue.flush();
+}
+
+/**
+ * in write-behind mode, block until all the writes queued so far have been committed. this returns
+ * right away if write-behind mode is off.
+ *
+ * @param timeoutMs max time to wait, 0 means wait forever
+ *
+ * @return false if the wait timed out, or the queued writes couldn't be committed
+ */
+public boolean awaitDurable(long timeoutMs) {
+  KvpWriteBehind queue = writeBehind;
+  return queue == null || queue.awaitDurable(timeoutMs);
+}
+
+/**
+ * drop whatever is cached for the given key, and add it to the bloom filter; call this after the row for
+ * the key has been written
+ */
+private void _invalidate(String key) {
+  KvpCache cache = this.cache;
+  if (cache != null) { cache.invalidateKey(key); }
+  KvpBloomFilter bloom = bloomFilter;
+  if (bloom != null) { bloom.add(key); }
+}
+
+/** drop whatever is cached for the given id, call this after the row with the id has been written */
+private void _invalidate(long id) {
+  KvpCache cache = this.cache;
+  if (cache != null) { cache.invalidateId(id); }
 }
 
 /**
@@ -58,12 +382,28 @@ public SQLiteDatabase actuallyCreateDatabase() {
  * @return null if the id couldn't be found, otherwise returns the value that was removed ({@link Schema#COL_VALUE})
  */
 public String remove(long id) {
-  String retval = get(id);
-  int rowCount = dbConnection.delete(Schema.TABLE_MAP,
-                                     Schema.SQL_WHERE_COL_ID,
-                                     new String[]{String.valueOf(id)});
-  if (rowCount > 0) { dbConnection.execSQL(Schema.SQL_PURGE); }
-  LocalEventsManager.fireEvent(ctx, R.id.evt_db_kvp_change, dbName, null);
+  long start = stats.start();
+  KvpWriteBehind queue = writeBehind;
+  if (queue != null) {
+    DBRow row = _getQueuedRow(queue, id);
+    if (row != null) { queue.remove(row.key); }
+    stats.record(DBStats.Op.Remove, start, row == null ? 0 : 1, row == null ? 0 : DBStats.sizeOf(null, row.value));
+    return row == null ? null : row.value;
+  }
+  if (engine != null) {
+    String retval = _engineWriteById(Schema.OP_REMOVE, id, null);
+    stats.record(DBStats.Op.Remove, start, retval == null ? 0 : 1, DBStats.sizeOf(null, retval));
+    return retval;
+  }
+  String retval = _getById(id);
+  int rowCount = _executeDelete(sql.deleteById, null, id);
+  if (rowCount > 0) {
+    _invalidate(id);
+    _onKeysRemoved(rowCount);
+    onRowsDeleted();
+    changeNotifier.commit(DBChange.Op.Remove, null, id);
+  }
+  stats.record(DBStats.Op.Remove, start, rowCount, DBStats.sizeOf(null, retval));
   return retval;
 }
 
@@ -75,12 +415,15 @@ public String remove(long id) {
  * @return null if the key couldn't be found, otherwise returns the value that was removed ({@link Schema#COL_VALUE})
  */
 public String remove(String key) {
-  String retval = get(key);
-  int rowCount = dbConnection.delete(Schema.TABLE_MAP,
-                                     Schema.SQL_WHERE_COL_KEY,
-                                     new String[]{key});
-  if (rowCount > 0) { dbConnection.execSQL(Schema.SQL_PURGE); }
-  LocalEventsManager.fireEvent(ctx, R.id.evt_db_kvp_change, dbName, null);
+  long start = stats.start();
+  String retval;
+  KvpWriteBehind queue = writeBehind;
+  if (queue != null) {
+    retval = _lookup(key);
+    if (retval != null) { queue.remove(key); }
+  }
+  else { retval = _getAndWrite(Schema.OP_REMOVE, key, null); }
+  stats.record(DBStats.Op.Remove, start, retval == null ? 0 : 1, DBStats.sizeOf(key, retval));
   return retval;
 }
 
@@ -90,13 +433,26 @@ public String remove(String key) {
  * @return true means that the key exists, false means that it doesn't
  */
 public boolean containsKey(String key) {
-  Cursor cursor = dbConnection.query(Schema.TABLE_MAP,
-                                     Schema.COLS,
-                                     Schema.SQL_WHERE_COL_KEY,
-                                     new String[]{key},
-                                     null, null, null);
-  if (cursor.getCount() > 0) {return true;}
-  else { return false; }
+  long start = stats.start();
+  boolean retval = _containsKey(key);
+  stats.record(DBStats.Op.Get, start, retval ? 1 : 0, DBStats.sizeOf(key, null));
+  return retval;
+}
+
+private boolean _containsKey(String key) {
+  if (cache != null || writeBehind != null || engine != null) { return _lookup(key) != null; }
+  KvpBloomFilter bloom = bloomFilter;
+  if (bloom != null && !bloom.mightContain(key)) { return false; }
+  SQLiteStatement statement = statementCache.acquire(sql.countByKey);
+  try {
+    statement.bindString(1, key);
+    boolean retval = statement.simpleQueryForLong() > 0;
+    if (!retval && bloom != null) { bloom.onFalsePositive(); }
+    return retval;
+  }
+  finally {
+    statementCache.release(sql.countByKey, statement);
+  }
 }
 
 /**
@@ -105,13 +461,46 @@ public boolean containsKey(String key) {
  * @return null if the key can't be found, otherwise returns the value from the {@link Schema#COL_VALUE}
  */
 public String get(String key) {
-  Cursor cursor = dbConnection.query(Schema.TABLE_MAP,
+  long start = stats.start();
+  String retval = _lookup(key);
+  stats.record(DBStats.Op.Get, start, retval == null ? 0 : 1, DBStats.sizeOf(key, retval));
+  return retval;
+}
+
+/** {@link #get(String)}, without recording it in the {@link #stats} */
+private String _lookup(String key) {
+  KvpWriteBehind queue = writeBehind;
+  if (queue != null) {
+    KvpWriteBehind.PendingWrite write = queue.lookup(key);
+    if (write != null) { return write.isExpired(System.currentTimeMillis()) ? null : write.value; }
+  }
+
+  KvpBloomFilter bloom = bloomFilter;
+  if (bloom == null) { return _get(key); }
+  if (!bloom.mightContain(key)) { return null; }
+  String retval = _get(key);
+  if (retval == null) { bloom.onFalsePositive(); }
+  return retval;
+}
+
+/** {@link #get(String)}, past the write-behind queue and the bloom filter */
+private String _get(String key) {
+  KvpCache cache = this.cache;
+  if (engine != null) { return _engineGet(key, cache); }
+  if (cache == null) { return _queryString(sql.valueByKey, key, 0); }
+  KvpCache.Entry entry = cache.getByKey(key);
+  if (entry != null) { return entry.value; }
+  long stamp = cache.stamp();
+
+  Cursor cursor = dbConnection.query(tableName,
                                      Schema.COLS,
-                                     Schema.SQL_WHERE_COL_KEY,
+                                     Schema.SQL_WHERE_COL_KEY + " and " + Schema.SQL_WHERE_LIVE,
                                      new String[]{key},
                                      null, null, null);
   cursor.moveToFirst();
   String retval = resolveCursor(cursor);
+  if (retval == null) { cache.put(stamp, key, -1, null, 0); }
+  else { cache.put(stamp, key, resolveCursorId(cursor), retval, resolveCursorExpiresAt(cursor)); }
   cursor.close();
   return retval;
 }
@@ -122,13 +511,73 @@ public String get(String key) {
  * @return null if the id can't be found, otherwise returns the value from the {@link Schema#COL_VALUE}
  */
 public String get(long id) {
-  Cursor cursor = dbConnection.query(Schema.TABLE_MAP,
+  long start = stats.start();
+  String retval;
+  KvpWriteBehind queue = writeBehind;
+  if (queue != null) {
+    DBRow row = _getQueuedRow(queue, id);
+    retval = row == null ? null : row.value;
+  }
+  else { retval = _getById(id); }
+  stats.record(DBStats.Op.Get, start, retval == null ? 0 : 1, DBStats.sizeOf(null, retval));
+  return retval;
+}
+
+/**
+ * in write-behind mode, find the live row with the given id, and apply the write that's queued for its
+ * key (if any) to it. rows that are added in write-behind mode don't have an id until they're flushed.
+ *
+ * @return null if there's no such row, or if it's going to be removed
+ */
+private DBRow _getQueuedRow(KvpWriteBehind queue, long id) {
+  String key;
+  String value;
+  if (engine != null) {
+    KvpEngineTable.Row row = table.getRow(id);
+    if (row == null || KvpRecord.isAbsent(row.record, System.currentTimeMillis())) { return null; }
+    key = row.key;
+    value = KvpRecord.getValue(row.record);
+  }
+  else {
+    Cursor cursor = dbConnection.query(tableName,
+                                       Schema.COLS,
+                                       Schema.SQL_WHERE_COL_ID + " and " + Schema.SQL_WHERE_LIVE,
+                                       new String[]{String.valueOf(id)},
+                                       null, null, null);
+    try {
+      if (!cursor.moveToFirst()) { return null; }
+      key = resolveCursorKey(cursor);
+      value = resolveCursor(cursor);
+    }
+    finally {
+      cursor.close();
+    }
+  }
+  KvpWriteBehind.PendingWrite write = queue.lookup(key);
+  if (write != null) {
+    if (write.removed || write.isExpired(System.currentTimeMillis())) { return null; }
+    value = write.value;
+  }
+  return new DBRow(id, key, value);
+}
+
+/** {@link #get(long)}, without recording it in the {@link #stats} */
+private String _getById(long id) {
+  KvpCache cache = this.cache;
+  if (engine != null) { return _engineGetById(id, cache); }
+  if (cache == null) { return _queryString(sql.valueById, null, id); }
+  KvpCache.Entry entry = cache.getById(id);
+  if (entry != null) { return entry.value; }
+  long stamp = cache.stamp();
+
+  Cursor cursor = dbConnection.query(tableName,
                                      Schema.COLS,
-                                     Schema.SQL_WHERE_COL_ID,
+                                     Schema.SQL_WHERE_COL_ID + " and " + Schema.SQL_WHERE_LIVE,
                                      new String[]{String.valueOf(id)},
                                      null, null, null);
   cursor.moveToFirst();
   String retval = resolveCursor(cursor);
+  if (retval != null) { cache.put(stamp, resolveCursorKey(cursor), id, retval, resolveCursorExpiresAt(cursor)); }
   cursor.close();
   return retval;
 }
@@ -139,7 +588,75 @@ public String get(long id) {
  * @return number of rows in the table
  */
 public long getRowCount() {
-  return DatabaseUtils.queryNumEntries(dbConnection, Schema.TABLE_MAP);
+  flush();
+  if (engine != null) { return table.countLive(System.currentTimeMillis()); }
+  SQLiteStatement statement = statementCache.acquire(sql.count);
+  try {
+    return statement.simpleQueryForLong();
+  }
+  finally {
+    statementCache.release(sql.count, statement);
+  }
+}
+
+/**
+ * run a precompiled single value query, that has either a String arg or a long arg
+ *
+ * @param key if this is null, the long arg is bound instead
+ *
+ * @return the value, null if there's no such row
+ */
+private String _queryString(String sql, String key, long id) {
+  SQLiteStatement statement = statementCache.acquire(sql);
+  try {
+    if (key != null) { statement.bindString(1, key); }
+    else { statement.bindLong(1, id); }
+    return statement.simpleQueryForString();
+  }
+  finally {
+    statementCache.release(sql, statement);
+  }
+}
+
+/**
+ * run a precompiled update, whose args are (in order) the value, its expiry, and then either a key or an id
+ *
+ * @param key       if this is null, the id is bound instead
+ * @param expiresAt see {@link #expiresAt(long)}
+ *
+ * @return the number of rows that were changed
+ */
+private int _executeUpdate(String sql, String key, String value, long expiresAt, long id) {
+  SQLiteStatement statement = statementCache.acquire(sql);
+  try {
+    statement.bindString(1, value);
+    _bindExpiresAt(statement, 2, expiresAt);
+    if (key != null) { statement.bindString(3, key); }
+    else { statement.bindLong(3, id); }
+    return statement.executeUpdateDelete();
+  }
+  finally {
+    statementCache.release(sql, statement);
+  }
+}
+
+/**
+ * run a precompiled delete, whose only arg is either a key or an id
+ *
+ * @param key if this is null, the id is bound instead
+ *
+ * @return the number of rows that were deleted
+ */
+private int _executeDelete(String sql, String key, long id) {
+  SQLiteStatement statement = statementCache.acquire(sql);
+  try {
+    if (key != null) { statement.bindString(1, key); }
+    else { statement.bindLong(1, id); }
+    return statement.executeUpdateDelete();
+  }
+  finally {
+    statementCache.release(sql, statement);
+  }
 }
 
 //XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
@@ -148,9 +665,24 @@ public long getRowCount() {
 
 /** simply drops and re-creates the db */
 public void removeAll() {
-  dbConnection.execSQL(Schema.SQL_DROP_DB);
-  dbConnection.execSQL(Schema.SQL_CREATE_DB);
-  LocalEventsManager.fireEvent(ctx, R.id.evt_db_kvp_change, dbName, null);
+  flush();
+  _recreateTable();
+  onRowsDeleted();
+  if (cache != null) { cache.clear(); }
+  rebuildBloomFilter();
+  changeNotifier.clear();
+  changeNotifier.commit();
+}
+
+private void _recreateTable() {
+  if (engine != null) {
+    table.clear();
+    return;
+  }
+  dbConnection.execSQL(sql.dropTable);
+  dbConnection.execSQL(sql.createTable);
+  dbConnection.execSQL(sql.createExpiresIndex);
+  statementCache.clear();
 }
 
 /**
@@ -160,24 +692,79 @@ public void removeAll() {
  */
 public ArrayList<String> getAll() {
   ArrayList<String> retval = new ArrayList<String>();
+  long bytes = 0;
+  if (engine != null) {
+    flush();
+    long start = stats.start();
+    _engineGetAll(retval);
+    for (String value : retval) { bytes += value.length(); }
+    stats.record(DBStats.Op.Scan, start, retval.size(), bytes);
+    return retval;
+  }
 
   Cursor cursor = getAllCursor();
-  cursor.moveToFirst();
-  String value = null;
-  do {
-    value = resolveCursor(cursor);
-    if (value != null) { retval.add(value); }
+  long start = stats.start();
+  try {
+    int valueIndex = cursor.getColumnIndex(Schema.COL_VALUE);
+    while (cursor.moveToNext()) {
+      String value = cursor.getString(valueIndex);
+      if (value != null) {
+        retval.add(value);
+        bytes += value.length();
+      }
+    }
   }
-  while (cursor.moveToNext());
-  cursor.close();
+  finally {
+    cursor.close();
+  }
+  stats.record(DBStats.Op.Scan, start, retval.size(), bytes);
 
   return retval;
 }
 
+/**
+ * keyset pagination over the rows of the table, see {@link DB_base#getPage(long, int)}. use
+ * {@link #forEach(DBRowVisitor)} or {@link #iterator()} instead of {@link #getAll()} for large tables.
+ */
+@Override
+public ArrayList<DBRow> getPage(long afterId, int limit) {
+  if (limit <= 0) { throw new IllegalArgumentException("limit must be positive"); }
+  flush();
+  long start = stats.start();
+  if (engine != null) {
+    ArrayList<DBRow> retval = table.getPage(afterId, limit, System.currentTimeMillis());
+    stats.record(DBStats.Op.Scan, start, retval.size(), DBStats.sizeOf(retval));
+    return retval;
+  }
+  ArrayList<DBRow> retval = new ArrayList<DBRow>(Math.min(limit, ScanWindowSize));
+  Cursor cursor = dbConnection.query(tableName,
+                                     Schema.COLS,
+                                     Schema.SQL_WHERE_ID_GT + " and " + Schema.SQL_WHERE_LIVE,
+                                     new String[]{String.valueOf(afterId)},
+                                     null, null,
+                                     Schema.COL_ID,
+                                     String.valueOf(limit));
+  try {
+    int idIndex = cursor.getColumnIndex(Schema.COL_ID);
+    int keyIndex = cursor.getColumnIndex(Schema.COL_KEY);
+    int valueIndex = cursor.getColumnIndex(Schema.COL_VALUE);
+    while (cursor.moveToNext()) {
+      retval.add(new DBRow(cursor.getLong(idIndex), cursor.getString(keyIndex), cursor.getString(valueIndex)));
+    }
+  }
+  finally {
+    cursor.close();
+  }
+  stats.record(DBStats.Op.Scan, start, retval.size(), DBStats.sizeOf(retval));
+  return retval;
+}
+
 public Cursor getAllCursor() {
-  return dbConnection.query(Schema.TABLE_MAP,
+  flush();
+  if (engine != null) { return _engineGetAllCursor(); }
+  return dbConnection.query(tableName,
                             Schema.COLS,
-                            null, null, null, null, null);
+                            Schema.SQL_WHERE_LIVE, null, null, null, null);
 }
 
 /**
@@ -194,10 +781,30 @@ private String resolveCursor(Cursor cursor) {
   }
 }
 
+/** simple helper to get the value of the {@link Schema#COL_KEY} from the given cursor */
+private String resolveCursorKey(Cursor cursor) {
+  return cursor.getString(cursor.getColumnIndex(Schema.COL_KEY));
+}
+
+/** simple helper to get the value of the {@link Schema#COL_ID} from the given cursor */
+private long resolveCursorId(Cursor cursor) {
+  return cursor.getLong(cursor.getColumnIndex(Schema.COL_ID));
+}
+
+/** simple helper to get the value of the {@link Schema#COL_EXPIRES} from the given cursor, 0 means never */
+private long resolveCursorExpiresAt(Cursor cursor) {
+  int index = cursor.getColumnIndex(Schema.COL_EXPIRES);
+  return cursor.isNull(index) ? 0 : cursor.getLong(index);
+}
+
 /** test all the code in this class, assume that onCreate() has already been called */
 public void test() {
 
   AndroidUtils.log(IconPaths.Storage, ">> " + getClass().getSimpleName() + " <<");
+  if (engine != null) {
+    _testEngine();
+    return;
+  }
 
   // add & get
   AndroidUtils.log(IconPaths.Storage, ">> add() <<");
@@ -227,7 +834,7 @@ public void test() {
 
   // dumping db contents
   AndroidUtils.log(IconPaths.Storage, ">> dumping entire table contents <<");
-  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(Schema.TABLE_MAP,
+  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(tableName,
                                                                                           Schema.COLS,
                                                                                           null,
                                                                                           null,
@@ -261,7 +868,7 @@ public void test() {
 
   // dumping db contents
   AndroidUtils.log(IconPaths.Storage, ">> dumping entire table contents <<");
-  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(Schema.TABLE_MAP,
+  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(tableName,
                                                                                           Schema.COLS,
                                                                                           null,
                                                                                           null,
@@ -269,6 +876,108 @@ public void test() {
                                                                                           null,
                                                                                           null)));
 
+  // streaming
+  AndroidUtils.log(IconPaths.Storage, ">> getPage() <<");
+  AndroidUtils.log(IconPaths.Storage, getPage(0, 2).toString());
+  AndroidUtils.log(IconPaths.Storage, ">> forEach() <<");
+  forEach(new DBRowVisitor() {
+    public boolean onRow(DBRow row) {
+      AndroidUtils.log(IconPaths.Storage, " .. " + row);
+      return true;
+    }
+  });
+
+  // batch
+  AndroidUtils.log(IconPaths.Storage, ">> putAll() <<");
+  HashMap<String, String> batchMap = new HashMap<String, String>();
+  batchMap.put("key4", "value4");
+  batchMap.put("key5", "value5");
+  AndroidUtils.log(IconPaths.Storage, "added {key4,key5}, ids:" + Arrays.toString(putAll(batchMap)));
+  AndroidUtils.log(IconPaths.Storage, ">> batch() <<");
+  long[] batchResults = batch().update("key4", "value4mod").remove("key5").commit();
+  AndroidUtils.log(IconPaths.Storage, "updated key4, removed key5, results:" + Arrays.toString(batchResults));
+  AndroidUtils.log(IconPaths.Storage, " .. get key4: " + get("key4") + ", get key5: " + get("key5"));
+
+  // conditional operations
+  AndroidUtils.log(IconPaths.Storage, ">> compareAndSet() / getAndPut() / getAndRemove() / putIfAbsent() <<");
+  AndroidUtils.log(IconPaths.Storage, "putIfAbsent(cas,v1): " + putIfAbsent("cas", "v1") +
+                                      ", putIfAbsent(cas,v2): " + putIfAbsent("cas", "v2"));
+  AndroidUtils.log(IconPaths.Storage, "compareAndSet(cas,v2,v3): " + compareAndSet("cas", "v2", "v3") +
+                                      ", compareAndSet(cas,v1,v3): " + compareAndSet("cas", "v1", "v3"));
+  AndroidUtils.log(IconPaths.Storage, "getAndPut(cas,v4): " + getAndPut("cas", "v4") +
+                                      ", getAndRemove(cas): " + getAndRemove("cas") +
+                                      ", containsKey(cas): " + containsKey("cas"));
+
+  // expiry
+  AndroidUtils.log(IconPaths.Storage, ">> add() with a ttl / sweepExpired() <<");
+  add("ttl1", "expires right away", 1);
+  add("ttl2", "expires in a minute", 60 * 1000);
+  SystemClock.sleep(10);
+  AndroidUtils.log(IconPaths.Storage, "ttl1: " + get("ttl1") + ", ttl2: " + get("ttl2") +
+                                      ", containsKey(ttl1): " + containsKey("ttl1"));
+  AndroidUtils.log(IconPaths.Storage, "sweepExpired: " + sweepExpired(ExpirySweepBatchSize) +
+                                      ", putIfAbsent(ttl1,v2): " + putIfAbsent("ttl1", "v2"));
+
+  // sorted view
+  AndroidUtils.log(IconPaths.Storage, ">> sortedView() <<");
+  HashMap<String, String> users = new HashMap<String, String>();
+  users.put("user:1:name", "one");
+  users.put("user:1:email", "one@x");
+  users.put("user:2:name", "two");
+  putAll(users);
+  KvpSortedView view = sortedView();
+  AndroidUtils.log(IconPaths.Storage, "first:" + view.firstKey() + ", last:" + view.lastKey());
+  AndroidUtils.log(IconPaths.Storage, "floor(user:1:z):" + view.floorKey("user:1:z") +
+                                      ", ceiling(user:2):" + view.ceilingKey("user:2"));
+  KvpSortedView user1 = prefixScan("user:1:");
+  AndroidUtils.log(IconPaths.Storage, user1 + " size:" + user1.size() + ", keys:" + user1.keys());
+
+  // change sets
+  AndroidUtils.log(IconPaths.Storage, ">> addChangeListener() <<");
+  DBChangeListener listener = new DBChangeListener() {
+    public void onChanges(DBChangeSet changeSet) {
+      AndroidUtils.log(IconPaths.Storage, "change set: " + changeSet);
+    }
+  };
+  addChangeListener(listener);
+  batch().add("cs1", "v1").update("cs1", "v2").remove("user:2:name").commit();
+  removeChangeListener(listener);
+
+  // live queries
+  AndroidUtils.log(IconPaths.Storage, ">> observe() / observePrefix() <<");
+  ObservablePropertyListener observer = new ObservablePropertyListener() {
+    public int getPropertyId() {return 0;}
+
+    public String getName() {return "DB_kvp.test";}
+
+    public void onChange(int propertyId, Object value) {
+      AndroidUtils.log(IconPaths.Storage, "live query value: " + value);
+    }
+  };
+  KvpLiveQuery liveKey = observe("cs1", observer);
+  KvpLiveQuery livePrefix = observePrefix("user:1:", observer);
+  add("cs1", "v3");
+  add("cs1", "v3");
+  add("unrelated", "v1");
+  flush();
+  AndroidUtils.log(IconPaths.Storage, liveKey + "\n" + livePrefix);
+  liveKey.shutdown();
+  livePrefix.shutdown();
+
+  // snapshots
+  AndroidUtils.log(IconPaths.Storage, ">> exportTo() / importFrom() <<");
+  try {
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    long exported = exportTo(snapshot, true);
+    long imported = importFrom(new ByteArrayInputStream(snapshot.toByteArray()), true);
+    AndroidUtils.log(IconPaths.Storage, "exported:" + exported + ", snapshot bytes:" + snapshot.size() +
+                                        ", imported:" + imported + ", rows:" + getRowCount() +
+                                        ", cs1:" + get("cs1"));
+  }
+  catch (IOException e) {
+    AndroidUtils.logErr(IconPaths.Storage, "problem with snapshot", e);
+  }
+
   // removeAll
   AndroidUtils.log(IconPaths.Storage, ">> removeAll() <<");
   removeAll();
@@ -282,7 +991,7 @@ public void test() {
 
   // dumping db contents
   AndroidUtils.log(IconPaths.Storage, ">> dumping entire table contents <<");
-  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(Schema.TABLE_MAP,
+  AndroidUtils.log(IconPaths.Storage, DatabaseUtils.dumpCursorToString(dbConnection.query(tableName,
                                                                                           Schema.COLS,
                                                                                           null,
                                                                                           null,
@@ -290,6 +999,113 @@ public void test() {
                                                                                           null,
                                                                                           null)));
 
+  // bloom filter
+  _testBloomFilter();
+
+}
+
+/** the filter is turned off again at the end, unless it was already on */
+private void _testBloomFilter() {
+  AndroidUtils.log(IconPaths.Storage, ">> enableBloomFilter() <<");
+  boolean wasOn = bloomFilter != null;
+  add("bloom1", "v1");
+  KvpBloomFilter bloom = wasOn ? bloomFilter : enableBloomFilter(1000, BloomFilterFalsePositiveRate);
+  add("bloom2", "v2");
+  AndroidUtils.log(IconPaths.Storage, "bloom1: " + get("bloom1") + ", bloom2: " + containsKey("bloom2") +
+                                      ", missing: " + get("bloom_missing") + ", " + containsKey("bloom_missing"));
+  remove("bloom1");
+  remove("bloom2");
+  AndroidUtils.log(IconPaths.Storage, "removed both, bloom1: " + get("bloom1") + ", bloom2: " + get("bloom2"));
+  AndroidUtils.log(IconPaths.Storage, "filter: " + bloom);
+  AndroidUtils.log(IconPaths.Storage, "rebuilt: " + rebuildBloomFilter());
+  if (!wasOn) { disableBloomFilter(); }
+}
+
+/** the parts of {@link #test()} that apply to an engine-backed db, ie: everything that's done by key */
+private void _testEngine() {
+
+  AndroidUtils.log(IconPaths.Storage, ">> engine: " + engine.getName() + " <<");
+  removeAll();
+
+  // crud
+  AndroidUtils.log(IconPaths.Storage, ">> add() / get() / update() / remove() <<");
+  add("key1", "value1");
+  add("key2", "value2");
+  AndroidUtils.log(IconPaths.Storage, "key1: " + get("key1") + ", containsKey(key2): " + containsKey("key2") +
+                                      ", containsKey(key3): " + containsKey("key3"));
+  AndroidUtils.log(IconPaths.Storage, "update(key1): " + update("key1", "value1b") + " -> " + get("key1") +
+                                      ", update(key3): " + update("key3", "value3"));
+  AndroidUtils.log(IconPaths.Storage, "remove(key2): " + remove("key2") + ", rows: " + getRowCount());
+
+  // conditional operations
+  AndroidUtils.log(IconPaths.Storage, ">> compareAndSet() / putIfAbsent() / getAndPut() <<");
+  AndroidUtils.log(IconPaths.Storage, "cas(null,v1): " + compareAndSet("cas", null, "v1") +
+                                      ", cas(x,v2): " + compareAndSet("cas", "x", "v2") +
+                                      ", cas(v1,v2): " + compareAndSet("cas", "v1", "v2") +
+                                      ", putIfAbsent(cas,v3): " + putIfAbsent("cas", "v3") +
+                                      ", getAndPut(cas,v4): " + getAndPut("cas", "v4"));
+
+  // expiry
+  AndroidUtils.log(IconPaths.Storage, ">> add() with a ttl / sweepExpired() <<");
+  add("ttl1", "expires right away", 1);
+  SystemClock.sleep(10);
+  AndroidUtils.log(IconPaths.Storage, "ttl1: " + get("ttl1") + ", sweepExpired: " + sweepExpired(ExpirySweepBatchSize));
+
+  // batch
+  AndroidUtils.log(IconPaths.Storage, ">> batch() <<");
+  long[] results = batch().add("b1", "v1").update("b1", "v2").remove("key1").remove("missing").commit();
+  AndroidUtils.log(IconPaths.Storage, "results: " + Arrays.toString(results) + ", b1: " + get("b1"));
+
+  // snapshots
+  AndroidUtils.log(IconPaths.Storage, ">> exportTo() / importFrom() <<");
+  try {
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    long exported = exportTo(snapshot, true);
+    long imported = importFrom(new ByteArrayInputStream(snapshot.toByteArray()), true);
+    AndroidUtils.log(IconPaths.Storage, "exported:" + exported + ", imported:" + imported + ", all:" + getAll());
+  }
+  catch (IOException e) {
+    AndroidUtils.logErr(IconPaths.Storage, "problem with snapshot", e);
+  }
+
+  // row ids
+  AndroidUtils.log(IconPaths.Storage, ">> get(id) / update(id) / remove(id) / getPage() <<");
+  long id1 = add("id1", "value1");
+  long id2 = add("id2", "value2");
+  AndroidUtils.log(IconPaths.Storage, "id1:" + id1 + ", id2:" + id2 + ", get(id1): " + get(id1) +
+                                      ", update(id1): " + update(id1, "value1b") + " -> " + get("id1"));
+  AndroidUtils.log(IconPaths.Storage, "update(id1) keeps the id: " + (getPage(id1 - 1, 1).get(0).id == id1) +
+                                      ", re-adding gets a new one: " + (add("id1", "value1c") != id1));
+  AndroidUtils.log(IconPaths.Storage, "remove(id2): " + remove(id2) + ", get(id2): " + get(id2) +
+                                      ", page: " + getPage(0, 10));
+  Cursor cursor = getAllCursor();
+  AndroidUtils.log(IconPaths.Storage, "getAllCursor(): " + DatabaseUtils.dumpCursorToString(cursor));
+  cursor.close();
+  KvpSortedView view = sortedView();
+  AndroidUtils.log(IconPaths.Storage, "sortedView: " + view + ", first: " + view.firstKey() +
+                                      ", last: " + view.lastKey() + ", size: " + view.size() +
+                                      ", floor(id1~): " + view.floorKey("id1~") +
+                                      ", higher(id1): " + view.higherKey("id1") +
+                                      ", prefix(id): " + getPrefix("id"));
+
+  removeAll();
+  AndroidUtils.log(IconPaths.Storage, "rows after removeAll(): " + getRowCount());
+
+  _testBloomFilter();
+
+  // crash recovery, on a scratch log of its own
+  if (engine instanceof LogStructuredEngine) {
+    AndroidUtils.log(IconPaths.Storage, ">> LogStructuredEngine.test() <<");
+    try {
+      for (String line : LogStructuredEngine.test(new File(ctx.getCacheDir(), dbName + "_recovery_test"))) {
+        AndroidUtils.log(IconPaths.Storage, line);
+      }
+    }
+    catch (Exception e) {
+      AndroidUtils.logErr(IconPaths.Storage, "LogStructuredEngine.test() failed", e);
+    }
+  }
+
 }
 
 /**
@@ -297,18 +1113,32 @@ public void test() {
  *
  * @return null means that the row with given id couldn't be found,
  * otherwise return the old value of {@link Schema#COL_VALUE} before the update.
+ *
+ * @throws IllegalArgumentException if the payload is null
  */
 public String update(long id, String newPayload) {
-  ContentValues map = new ContentValues();
-  map.put(Schema.COL_VALUE, newPayload);
-  String retval = get(id);
+  if (newPayload == null) { throw new IllegalArgumentException("payload can't be null"); }
+  long start = stats.start();
+  KvpWriteBehind queue = writeBehind;
+  if (queue != null) {
+    DBRow row = _getQueuedRow(queue, id);
+    if (row != null) { queue.update(row.key, newPayload, expiresAt(defaultTtlMs)); }
+    stats.record(DBStats.Op.Update, start, row == null ? 0 : 1, row == null ? 0 : DBStats.sizeOf(null, newPayload));
+    return row == null ? null : row.value;
+  }
+  if (engine != null) {
+    String retval = _engineWriteById(Schema.OP_UPDATE, id, newPayload);
+    stats.record(DBStats.Op.Update, start, retval == null ? 0 : 1, retval == null ? 0 : DBStats.sizeOf(null, newPayload));
+    return retval;
+  }
+  String retval = _getById(id);
+  int rowCount = 0;
   if (retval != null) {
-    dbConnection.update(Schema.TABLE_MAP,
-                        map,
-                        Schema.SQL_WHERE_COL_ID,
-                        new String[]{String.valueOf(id)});
-    LocalEventsManager.fireEvent(ctx, R.id.evt_db_kvp_change, dbName, null);
+    rowCount = _executeUpdate(sql.updateById, null, newPayload, expiresAt(defaultTtlMs), id);
+    _invalidate(id);
+    if (rowCount > 0) { changeNotifier.commit(DBChange.Op.Update, null, id); }
   }
+  stats.record(DBStats.Op.Update, start, rowCount, rowCount == 0 ? 0 : DBStats.sizeOf(null, newPayload));
   return retval;
 }
 
@@ -317,50 +1147,1046 @@ public String update(long id, String newPayload) {
  *
  * @return null means that the row with the given key couldn't be found,
  * otherwise return the old value of {@link Schema#COL_VALUE} before th update.
+ *
+ * @throws IllegalArgumentException if the key or value is null
  */
 public String update(String key, String newValue) {
-  ContentValues map = new ContentValues();
-  map.put(Schema.COL_VALUE, newValue);
-  String retval = get(key);
-  if (retval != null) {
-    dbConnection.update(Schema.TABLE_MAP,
-                        map,
-                        Schema.SQL_WHERE_COL_KEY,
-                        new String[]{key});
-    LocalEventsManager.fireEvent(ctx, R.id.evt_db_kvp_change, dbName, null);
+  if (key == null || newValue == null) { throw new IllegalArgumentException("key or value can't be null"); }
+  long start = stats.start();
+  String retval;
+  KvpWriteBehind queue = writeBehind;
+  if (queue != null) {
+    retval = _lookup(key);
+    if (retval != null) { queue.update(key, newValue, expiresAt(defaultTtlMs)); }
   }
+  else { retval = _getAndWrite(Schema.OP_UPDATE, key, newValue); }
+  stats.record(DBStats.Op.Update, start, retval == null ? 0 : 1, retval == null ? 0 : DBStats.sizeOf(key, newValue));
   return retval;
 }
 
 /**
  * simply insert the given payload into the table and create a new ID ({@link Schema#COL_ID}) for the
- * payload (in the table) which is returned.
+ * payload (in the table) which is returned. the row gets the default time to live, see
+ * {@link #setDefaultTtl(long)}.
  *
- * @return -1 means that an error occurred, otherwise
- * returns the {@link Schema#COL_ID} value for the newly created row
+ * @return -1 means that an error occurred, {@link #RowIdPending} means that the write was queued
+ * (in write-behind mode), otherwise returns the {@link Schema#COL_ID} value for the newly created row
  *
  * @throws IllegalArgumentException if the key or value is null
  */
 public long add(String key, String value) {
+  return add(key, value, defaultTtlMs);
+}
+
+/**
+ * same as {@link #add(String, String)}, with the given time to live instead of the default one
+ *
+ * @param ttlMs the row is treated as absent this many ms from now, 0 means never
+ */
+public long add(String key, String value, long ttlMs) {
   if (key == null || value == null) { throw new IllegalArgumentException("key or value can't be null"); }
-  ContentValues map = new ContentValues();
-  map.put(Schema.COL_KEY, key);
-  map.put(Schema.COL_VALUE, value);
-  long rowId = dbConnection.replace(Schema.TABLE_MAP, null, map);
-  LocalEventsManager.fireEvent(ctx, R.id.evt_db_kvp_change, dbName, null);
+  if (ttlMs < 0) { throw new IllegalArgumentException("ttlMs can't be negative"); }
+  long start = stats.start();
+  long rowId = _add(key, value, expiresAt(ttlMs));
+  stats.record(DBStats.Op.Add, start, rowId == -1 ? 0 : 1, rowId == -1 ? 0 : DBStats.sizeOf(key, value));
+  return rowId;
+}
+
+/** {@link #add(String, String, long)}, without recording it in the {@link #stats} */
+private long _add(String key, String value, long expiresAt) {
+  KvpWriteBehind queue = writeBehind;
+  if (queue != null) {
+    queue.put(key, value, expiresAt);
+    return RowIdPending;
+  }
+  if (engine != null) { return _engineAdd(key, value, expiresAt); }
+  long rowId;
+  try {
+    rowId = _insert(sql.replace, key, value, expiresAt);
+  }
+  catch (SQLException e) {
+    AndroidUtils.logErr(IconPaths.Storage, "DB_kvp - [" + dbName + "] problem adding key:" + key, e);
+    rowId = -1;
+  }
+  _invalidate(key);
+  if (rowId != -1) { changeNotifier.commit(DBChange.Op.Add, key, rowId); }
   return rowId;
 }
 
+/**
+ * run a precompiled insert of the given key value pair
+ *
+ * @return the {@link Schema#COL_ID} of the row, -1 if nothing was inserted (for "insert or ignore")
+ */
+private long _insert(String sql, String key, String value, long expiresAt) {
+  SQLiteStatement statement = statementCache.acquire(sql);
+  try {
+    statement.bindString(1, key);
+    statement.bindString(2, value);
+    _bindExpiresAt(statement, 3, expiresAt);
+    return statement.executeInsert();
+  }
+  finally {
+    statementCache.release(sql, statement);
+  }
+}
+
+/** @param expiresAt 0 is stored as null, which means that the row never expires */
+private static void _bindExpiresAt(SQLiteStatement statement, int index, long expiresAt) {
+  if (expiresAt > 0) { statement.bindLong(index, expiresAt); }
+  else { statement.bindNull(index); }
+}
+
+/**
+ * insert the key value pair, but only if the key doesn't exist. an expired row with the same key is treated
+ * as absent, so it's deleted first. run this in a write transaction.
+ *
+ * @return true if the pair was inserted
+ */
+private boolean _insertAbsent(String key, String value, long expiresAt) {
+  _executeDelete(sql.deleteExpiredByKey, key, 0);
+  return _insert(sql.insertAbsent, key, value, expiresAt) != -1;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// conditional operations
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * atomically set the value of the key to newValue, but only if its current value is expected. this is a
+ * single statement, so no other writer can get in between the comparison and the write; use it for
+ * optimistic concurrency (read a value, compute a new one, and retry if this returns false).
+ * <p/>
+ * in write-behind mode, the queue is flushed first, and this goes straight to the db.
+ *
+ * @param expected null means that the key must not exist
+ *
+ * @return true if the value was set
+ *
+ * @throws IllegalArgumentException if the key or newValue is null
+ */
+public boolean compareAndSet(String key, String expected, String newValue) {
+  if (key == null || newValue == null) { throw new IllegalArgumentException("key or value can't be null"); }
+  flush();
+  long start = stats.start();
+  long expiresAt = expiresAt(defaultTtlMs);
+  boolean retval;
+  if (engine != null) { retval = _engineCompareAndSet(key, expected, newValue, expiresAt); }
+  else if (expected == null) {
+    beginWriteTransaction();
+    try {
+      retval = _insertAbsent(key, newValue, expiresAt);
+      dbConnection.setTransactionSuccessful();
+    }
+    finally {
+      dbConnection.endTransaction();
+    }
+  }
+  else {
+    SQLiteStatement statement = statementCache.acquire(sql.casByKey);
+    try {
+      statement.bindString(1, newValue);
+      _bindExpiresAt(statement, 2, expiresAt);
+      statement.bindString(3, key);
+      statement.bindString(4, expected);
+      retval = statement.executeUpdateDelete() > 0;
+    }
+    finally {
+      statementCache.release(sql.casByKey, statement);
+    }
+  }
+  if (retval) {
+    _invalidate(key);
+    changeNotifier.commit(expected == null ? DBChange.Op.Add : DBChange.Op.Update, key, -1);
+  }
+  stats.record(expected == null ? DBStats.Op.Add : DBStats.Op.Update, start, retval ? 1 : 0,
+               retval ? DBStats.sizeOf(key, newValue) : 0);
+  return retval;
+}
+
+/**
+ * atomically add (or replace) the key value pair, and return the value it replaced. the read and the
+ * write run in one transaction, so the returned value is exactly the one that was overwritten.
+ * <p/>
+ * in write-behind mode, the queue is flushed first, and this goes straight to the db.
+ *
+ * @return the old value, null if the key didn't exist
+ *
+ * @throws IllegalArgumentException if the key or value is null
+ */
+public String getAndPut(String key, String value) {
+  if (key == null || value == null) { throw new IllegalArgumentException("key or value can't be null"); }
+  flush();
+  long start = stats.start();
+  String retval = _getAndWrite(Schema.OP_ADD, key, value);
+  stats.record(DBStats.Op.Add, start, 1, DBStats.sizeOf(key, value) + DBStats.sizeOf(null, retval));
+  return retval;
+}
+
+/**
+ * atomically remove the key, and return the value it had. the read and the delete run in one
+ * transaction.
+ * <p/>
+ * in write-behind mode, the queue is flushed first, and this goes straight to the db.
+ *
+ * @return the value that was removed, null if the key didn't exist
+ */
+public String getAndRemove(String key) {
+  if (key == null) { throw new IllegalArgumentException("key can't be null"); }
+  flush();
+  long start = stats.start();
+  String retval = _getAndWrite(Schema.OP_REMOVE, key, null);
+  stats.record(DBStats.Op.Remove, start, retval == null ? 0 : 1, DBStats.sizeOf(key, retval));
+  return retval;
+}
+
+/**
+ * atomically add the key value pair, but only if the key doesn't exist. the insert and (if the key
+ * exists) the read of the existing value run in one transaction.
+ * <p/>
+ * in write-behind mode, the queue is flushed first, and this goes straight to the db.
+ *
+ * @return null if the pair was added, otherwise the value that the key already has
+ *
+ * @throws IllegalArgumentException if the key or value is null
+ */
+public String putIfAbsent(String key, String value) {
+  if (key == null || value == null) { throw new IllegalArgumentException("key or value can't be null"); }
+  flush();
+  long start = stats.start();
+  String retval = _putIfAbsent(key, value);
+  stats.record(DBStats.Op.Add, start, retval == null ? 1 : 0, DBStats.sizeOf(key, retval == null ? value : retval));
+  return retval;
+}
+
+/** {@link #putIfAbsent(String, String)}, without recording it in the {@link #stats} */
+private String _putIfAbsent(String key, String value) {
+  if (engine != null) { return _enginePutIfAbsent(key, value, expiresAt(defaultTtlMs)); }
+  String retval = null;
+  boolean inserted;
+  beginWriteTransaction();
+  try {
+    inserted = _insertAbsent(key, value, expiresAt(defaultTtlMs));
+    if (!inserted) { retval = _queryString(sql.valueByKey, key, 0); }
+    dbConnection.setTransactionSuccessful();
+  }
+  finally {
+    dbConnection.endTransaction();
+  }
+  if (inserted) {
+    _invalidate(key);
+    changeNotifier.commit(DBChange.Op.Add, key, -1);
+  }
+  return retval;
+}
+
+/**
+ * read the current value of the key and then write it, in one transaction, without going through the
+ * write-behind queue or the cache
+ *
+ * @param op {@link Schema#OP_ADD} adds or replaces the value, {@link Schema#OP_UPDATE} replaces the
+ *           value only if the key exists, {@link Schema#OP_REMOVE} removes the key
+ *
+ * @return the value before the write, null if the key didn't exist
+ */
+private String _getAndWrite(int op, String key, String value) {
+  long expiresAt = expiresAt(defaultTtlMs);
+  if (engine != null) { return _engineGetAndWrite(op, key, value, expiresAt); }
+  String retval;
+  boolean changed = false;
+  beginWriteTransaction();
+  try {
+    retval = _queryString(sql.valueByKey, key, 0);
+    switch (op) {
+      case Schema.OP_ADD:
+        changed = _insert(sql.replace, key, value, expiresAt) != -1;
+        break;
+      case Schema.OP_UPDATE:
+        if (retval != null) { changed = _executeUpdate(sql.updateByKey, key, value, expiresAt, 0) > 0; }
+        break;
+      case Schema.OP_REMOVE:
+        if (retval != null) { changed = _executeDelete(sql.deleteByKey, key, 0) > 0; }
+        break;
+    }
+    dbConnection.setTransactionSuccessful();
+  }
+  finally {
+    dbConnection.endTransaction();
+  }
+  if (changed) {
+    if (op == Schema.OP_REMOVE) {
+      _onKeysRemoved(1);
+      onRowsDeleted();
+    }
+    _invalidate(key);
+    changeNotifier.commit(op == Schema.OP_REMOVE ? DBChange.Op.Remove :
+                          retval == null ? DBChange.Op.Add : DBChange.Op.Update,
+                          key, -1);
+  }
+  return retval;
+}
+
+/**
+ * @return a read-only, sorted view over all the keys in this db, that supports prefix scans, range
+ * queries, and floor/ceiling lookups using the index on {@link Schema#COL_KEY} (or the key order of the
+ * {@link #engine}); see {@link KvpSortedView}
+ */
+public KvpSortedView sortedView() {
+  return new KvpSortedView(this, null, null);
+}
+
+/** @return a sorted view of the keys that start with the given prefix, see {@link KvpSortedView#prefixScan} */
+public KvpSortedView prefixScan(String prefix) {
+  return sortedView().prefixScan(prefix);
+}
+
+/**
+ * @return the keys that start with the given prefix, and their values, in key order. this reads all the
+ * matching rows into memory, so only use it for prefixes that match a bounded number of keys.
+ */
+public LinkedHashMap<String, String> getPrefix(String prefix) {
+  final LinkedHashMap<String, String> retval = new LinkedHashMap<String, String>();
+  prefixScan(prefix).forEach(new DBRowVisitor() {
+    public boolean onRow(DBRow row) {
+      retval.put(row.key, row.value);
+      return true;
+    }
+  });
+  return retval;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// live queries
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * deliver the value of the given key to the listener on the main thread, now and whenever it changes,
+ * see {@link KvpLiveQuery}. it's only re-read when the key is written, and only delivered when it's
+ * different from the last value that was delivered.
+ *
+ * @return call {@link KvpLiveQuery#shutdown()} on this to stop observing
+ */
+public KvpLiveQuery observe(String key, ObservablePropertyListener listener) {
+  return new KvpLiveQuery(this, key, false, listener, _getLiveQueryExecutor(), _getHandlerMainThread()).start();
+}
+
+/**
+ * same as {@link #observe(String, ObservablePropertyListener)}, for all the keys that start with the given
+ * prefix; the value is a map of the keys to their values (see {@link #getPrefix(String)})
+ */
+public KvpLiveQuery observePrefix(String prefix, ObservablePropertyListener listener) {
+  return new KvpLiveQuery(this, prefix, true, listener, _getLiveQueryExecutor(), _getHandlerMainThread()).start();
+}
+
+/**
+ * one thread (that goes away when it's idle) for all the live queries on this db, so they're re-evaluated
+ * one at a time, off the main thread
+ */
+private synchronized ThreadPoolExecutor _getLiveQueryExecutor() {
+  if (liveQueryExecutor == null) {
+    liveQueryExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                               new ThreadFactory() {
+                                                 public Thread newThread(Runnable runnable) {
+                                                   Thread thread = new Thread(runnable, "KvpLiveQuery-" + dbName);
+                                                   thread.setDaemon(true);
+                                                   return thread;
+                                                 }
+                                               });
+    liveQueryExecutor.allowCoreThreadTimeOut(true);
+  }
+  return liveQueryExecutor;
+}
+
+private synchronized Handler _getHandlerMainThread() {
+  if (handlerMainThread == null) { handlerMainThread = new Handler(Looper.getMainLooper()); }
+  return handlerMainThread;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// expiry
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * delete up to limit expired rows (see {@link #setDefaultTtl(long)}). lookups already treat these rows as
+ * absent, so this just gives their space back; no changes are emitted for them. it's called in bounded
+ * batches by {@link DBExpirySweeper}.
+ *
+ * @return the number of rows that were deleted, 0 if the db has been shut down
+ */
+public int sweepExpired(int limit) {
+  if (engine != null) { return _engineSweepExpired(limit); }
+  if (dbConnection == null || !dbConnection.isOpen()) { return 0; }
+  int rowCount;
+  SQLiteStatement statement = statementCache.acquire(sql.deleteExpired);
+  try {
+    statement.bindLong(1, limit);
+    rowCount = statement.executeUpdateDelete();
+  }
+  finally {
+    statementCache.release(sql.deleteExpired, statement);
+  }
+  if (rowCount > 0) {
+    _onKeysRemoved(rowCount);
+    onRowsDeleted();
+  }
+  return rowCount;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// snapshots
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** expired rows are left out, see {@link DB_base#exportTo(OutputStream, boolean)} */
+@Override
+public long exportTo(OutputStream out, boolean compress) throws IOException {
+  flush();
+  DBSnapshot.Writer writer = new DBSnapshot.Writer(out, DBSnapshot.KIND_KVP, compress);
+  if (engine != null) {
+    _engineExport(writer);
+    writer.finish();
+    return writer.getRowCount();
+  }
+  long lastId = 0;
+  int rows = ScanWindowSize;
+  while (rows == ScanWindowSize) {
+    rows = 0;
+    Cursor cursor = dbConnection.query(tableName,
+                                       Schema.COLS,
+                                       Schema.SQL_WHERE_ID_GT + " and " + Schema.SQL_WHERE_LIVE,
+                                       new String[]{String.valueOf(lastId)},
+                                       null, null,
+                                       Schema.COL_ID,
+                                       String.valueOf(ScanWindowSize));
+    try {
+      int idIndex = cursor.getColumnIndex(Schema.COL_ID);
+      int keyIndex = cursor.getColumnIndex(Schema.COL_KEY);
+      int valueIndex = cursor.getColumnIndex(Schema.COL_VALUE);
+      int expiresIndex = cursor.getColumnIndex(Schema.COL_EXPIRES);
+      while (cursor.moveToNext()) {
+        rows++;
+        lastId = cursor.getLong(idIndex);
+        writer.writeKvp(cursor.getString(keyIndex),
+                        cursor.getString(valueIndex),
+                        cursor.isNull(expiresIndex) ? 0 : cursor.getLong(expiresIndex));
+      }
+    }
+    finally {
+      cursor.close();
+    }
+  }
+  writer.finish();
+  return writer.getRowCount();
+}
+
+/**
+ * rows replace the existing rows with the same key, and rows that have expired since the snapshot was
+ * taken are left out. see {@link DB_base#importFrom(InputStream, boolean)}
+ */
+@Override
+public long importFrom(InputStream in, boolean replace) throws IOException {
+  // the header is checked before anything in the db is touched
+  DBSnapshot.Reader reader = new DBSnapshot.Reader(in, DBSnapshot.KIND_KVP);
+  long now = System.currentTimeMillis();
+  long imported = 0;
+  boolean changed = false;
+  try {
+    flush();
+    if (engine != null) { imported = replace ? _importReplacing(reader, now) : _importRows(reader, now); }
+    else if (replace) { imported = _importStaged(reader, now); }
+    else { imported = _importRows(reader, sql, now); }
+    changed = true;
+  }
+  finally {
+    reader.close();
+    // without replace, the batches that were committed before a bad chunk are in the db
+    if (changed || !replace) {
+      if (replace) { onRowsDeleted(); }
+      if (cache != null) { cache.clear(); }
+      // the imported keys weren't added to the filter one by one
+      rebuildBloomFilter();
+      changeNotifier.clear();
+      changeNotifier.commit();
+    }
+  }
+  AndroidUtils.log(IconPaths.Storage, "DB_kvp - [" + dbName + "] imported " + imported + " rows");
+  return imported;
+}
+
+/** read the rows into the given table, {@link #SnapshotImportBatchRows} per transaction */
+private long _importRows(DBSnapshot.Reader reader, Sql target, long now) throws IOException {
+  long imported = 0;
+  boolean more = true;
+  while (more) {
+    int rows = 0;
+    SQLiteStatement statement = statementCache.acquire(target.replace);
+    beginWriteTransaction();
+    try {
+      while (rows < SnapshotImportBatchRows && (more = reader.next())) {
+        long expiresAt = reader.getExpiresAt();
+        if (expiresAt > 0 && expiresAt <= now) { continue; }
+        statement.bindString(1, reader.getKey());
+        statement.bindString(2, reader.getValue());
+        _bindExpiresAt(statement, 3, expiresAt);
+        statement.executeInsert();
+        rows++;
+      }
+      dbConnection.setTransactionSuccessful();
+    }
+    finally {
+      dbConnection.endTransaction();
+      statementCache.release(target.replace, statement);
+    }
+    imported += rows;
+  }
+  return imported;
+}
+
+/**
+ * read the rows into a staging table, which takes the place of the db's table in a single transaction once
+ * the whole stream has been read (and its row count checked); if the stream is corrupt, the db's table
+ * isn't touched
+ */
+private long _importStaged(DBSnapshot.Reader reader, long now) throws IOException {
+  Sql staging = new Sql(sql.table + SnapshotStagingSuffix);
+  dbConnection.execSQL(staging.dropTable);
+  dbConnection.execSQL(staging.createTable);
+  boolean swapped = false;
+  try {
+    long imported = _importRows(reader, staging, now);
+    beginWriteTransaction();
+    try {
+      dbConnection.execSQL(sql.dropTable);
+      dbConnection.execSQL(staging.renameTo(sql.table));
+      dbConnection.execSQL(sql.createExpiresIndex);
+      dbConnection.setTransactionSuccessful();
+    }
+    finally {
+      dbConnection.endTransaction();
+    }
+    swapped = true;
+    return imported;
+  }
+  finally {
+    // the cached statements of both tables are stale now
+    statementCache.clear();
+    if (!swapped) {
+      try {
+        dbConnection.execSQL(staging.dropTable);
+      }
+      catch (SQLException e) {
+        AndroidUtils.logErr(IconPaths.Storage, "DB_kvp - [" + dbName + "] problem dropping the import table", e);
+      }
+    }
+  }
+}
+
+/** read the rows into the engine, {@link #SnapshotImportBatchRows} per transaction */
+private long _importRows(DBSnapshot.Reader reader, long now) throws IOException {
+  long imported = 0;
+  boolean more = true;
+  while (more) {
+    final ArrayList<String[]> rows = new ArrayList<String[]>();
+    final ArrayList<Long> expiresList = new ArrayList<Long>();
+    while (rows.size() < SnapshotImportBatchRows && (more = reader.next())) {
+      long expiresAt = reader.getExpiresAt();
+      if (expiresAt > 0 && expiresAt <= now) { continue; }
+      rows.add(new String[]{reader.getKey(), reader.getValue()});
+      expiresList.add(expiresAt);
+    }
+    table.runInTransaction(new Callable<Void>() {
+      public Void call() {
+        for (int i = 0; i < rows.size(); i++) { table.put(rows.get(i)[0], rows.get(i)[1], expiresList.get(i)); }
+        return null;
+      }
+    });
+    imported += rows.size();
+  }
+  return imported;
+}
+
+/**
+ * clear the engine and read all the rows into it in a single transaction, which is dropped if the stream
+ * turns out to be corrupt. the engine has nothing like a table to rename, so its transaction stands in for
+ * the staging table (the engine might keep its writes in memory until it commits).
+ */
+private long _importReplacing(final DBSnapshot.Reader reader, final long now) throws IOException {
+  try {
+    return table.runInTransaction(new Callable<Long>() {
+      public Long call() throws IOException {
+        table.clear();
+        long imported = 0;
+        while (reader.next()) {
+          long expiresAt = reader.getExpiresAt();
+          if (expiresAt > 0 && expiresAt <= now) { continue; }
+          table.put(reader.getKey(), reader.getValue(), expiresAt);
+          imported++;
+        }
+        return imported;
+      }
+    });
+  }
+  catch (StorageException e) {
+    if (e.getCause() instanceof IOException) { throw (IOException) e.getCause(); }
+    throw e;
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// batch operations
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * add (or replace) all the given key value pairs in one transaction, and emit a single
+ * {@link DBChangeSet} for all of them.
+ *
+ * @return the {@link Schema#COL_ID} values for the rows, in the iteration order of the map
+ *
+ * @throws IllegalArgumentException if any key or value is null
+ */
+public long[] putAll(Map<String, String> map) {
+  Batch batch = batch();
+  for (Map.Entry<String, String> entry : map.entrySet()) {
+    batch.add(entry.getKey(), entry.getValue());
+  }
+  return batch.commit();
+}
+
+/** @return a new {@link Batch} for this db, nothing is written until {@link Batch#commit()} is called */
+public Batch batch() {
+  return new Batch();
+}
+
+/**
+ * Collects add/update/remove operations and runs all of them in a single transaction when
+ * {@link #commit()} is called. Each kind of operation uses one precompiled statement from the
+ * {@link DBStatementCache} for every row. All the rows that were changed are emitted in a single
+ * {@link DBChangeSet} after the commit.
+ */
+public class Batch {
+
+  private final ArrayList<Integer> opList      = new ArrayList<Integer>();
+  private final ArrayList<String>  keyList     = new ArrayList<String>();
+  private final ArrayList<String>  valueList   = new ArrayList<String>();
+  /** when each added or updated row expires, see {@link DB_kvp#expiresAt(long)} */
+  private final ArrayList<Long>    expiresList = new ArrayList<Long>();
+
+  private Batch() {}
+
+  /**
+   * queue an add (or replace) of the given key value pair, same as {@link DB_kvp#add(String, String)}
+   *
+   * @throws IllegalArgumentException if the key or value is null
+   */
+  public Batch add(String key, String value) {
+    return add(key, value, defaultTtlMs);
+  }
+
+  /**
+   * queue an add (or replace) of the given key value pair, same as {@link DB_kvp#add(String, String, long)}
+   *
+   * @throws IllegalArgumentException if the key or value is null
+   */
+  public Batch add(String key, String value, long ttlMs) {
+    if (ttlMs < 0) { throw new IllegalArgumentException("ttlMs can't be negative"); }
+    return addExpiringAt(key, value, expiresAt(ttlMs));
+  }
+
+  /** queue an add (or replace) of a row that expires at the given time, 0 means never */
+  Batch addExpiringAt(String key, String value, long expiresAt) {
+    if (key == null || value == null) { throw new IllegalArgumentException("key or value can't be null"); }
+    return _queue(Schema.OP_ADD, key, value, expiresAt);
+  }
+
+  /**
+   * queue an update of the row that matches the given key, same as {@link DB_kvp#update(String, String)}
+   *
+   * @throws IllegalArgumentException if the key or value is null
+   */
+  public Batch update(String key, String newValue) {
+    return updateExpiringAt(key, newValue, expiresAt(defaultTtlMs));
+  }
+
+  /** queue an update of the row that matches the given key, with a new expiry time, 0 means never */
+  Batch updateExpiringAt(String key, String newValue, long expiresAt) {
+    if (key == null || newValue == null) { throw new IllegalArgumentException("key or value can't be null"); }
+    return _queue(Schema.OP_UPDATE, key, newValue, expiresAt);
+  }
+
+  /**
+   * queue a removal of the row that matches the given key, same as {@link DB_kvp#remove(String)}
+   *
+   * @throws IllegalArgumentException if the key is null
+   */
+  public Batch remove(String key) {
+    if (key == null) { throw new IllegalArgumentException("key can't be null"); }
+    return _queue(Schema.OP_REMOVE, key, null, 0);
+  }
+
+  /** @return the number of operations queued so far */
+  public int size() {return opList.size();}
+
+  private Batch _queue(int op, String key, String value, long expiresAt) {
+    opList.add(op);
+    keyList.add(key);
+    valueList.add(value);
+    expiresList.add(expiresAt);
+    return this;
+  }
+
+  /**
+   * run all the queued operations in one transaction. if any of them fails, then none of them
+   * are applied, and no changes are emitted.
+   *
+   * @return one result per queued operation (in the order they were queued): for adds, this is the
+   * {@link Schema#COL_ID} of the row (-1 means an error occurred); for updates and removes, this is
+   * the number of rows that were changed.
+   */
+  public long[] commit() {
+    flush();
+    return _commit();
+  }
+
+  /** same as {@link #commit()}, without flushing the write-behind queue first (it's used to flush it) */
+  long[] _commit() {
+    long[] retval = new long[opList.size()];
+    if (retval.length == 0) { return retval; }
+    long start = stats.start();
+    if (engine != null) { _engineCommit(retval); }
+    else { _sqlCommit(retval); }
+    long bytes = 0;
+    for (int i = 0; i < retval.length; i++) { bytes += DBStats.sizeOf(keyList.get(i), valueList.get(i)); }
+    stats.record(DBStats.Op.Batch, start, retval.length, bytes);
+    return retval;
+  }
+
+  private void _sqlCommit(long[] retval) {
+
+    SQLiteStatement addStmt = null;
+    SQLiteStatement updateStmt = null;
+    SQLiteStatement removeStmt = null;
+    boolean rowsRemoved = false;
+
+    beginWriteTransaction();
+    try {
+      for (int i = 0; i < retval.length; i++) {
+        switch (opList.get(i)) {
+          case Schema.OP_ADD:
+            if (addStmt == null) { addStmt = statementCache.acquire(sql.replace); }
+            addStmt.bindString(1, keyList.get(i));
+            addStmt.bindString(2, valueList.get(i));
+            _bindExpiresAt(addStmt, 3, expiresList.get(i));
+            retval[i] = addStmt.executeInsert();
+            break;
+          case Schema.OP_UPDATE:
+            if (updateStmt == null) { updateStmt = statementCache.acquire(sql.updateByKey); }
+            updateStmt.bindString(1, valueList.get(i));
+            _bindExpiresAt(updateStmt, 2, expiresList.get(i));
+            updateStmt.bindString(3, keyList.get(i));
+            retval[i] = updateStmt.executeUpdateDelete();
+            break;
+          case Schema.OP_REMOVE:
+            if (removeStmt == null) { removeStmt = statementCache.acquire(sql.deleteByKey); }
+            removeStmt.bindString(1, keyList.get(i));
+            retval[i] = removeStmt.executeUpdateDelete();
+            if (retval[i] > 0) { rowsRemoved = true; }
+            break;
+        }
+      }
+      dbConnection.setTransactionSuccessful();
+    }
+    finally {
+      dbConnection.endTransaction();
+      if (addStmt != null) { statementCache.release(sql.replace, addStmt); }
+      if (updateStmt != null) { statementCache.release(sql.updateByKey, updateStmt); }
+      if (removeStmt != null) { statementCache.release(sql.deleteByKey, removeStmt); }
+    }
+
+    if (rowsRemoved) { onRowsDeleted(); }
+    _emit(retval);
+  }
+
+  /**
+   * invalidate the cached keys, and emit the changes, after the batch has been committed. operations
+   * that didn't change a row (an update or remove of a missing key) are skipped.
+   */
+  private void _emit(long[] retval) {
+    for (int i = 0; i < retval.length; i++) {
+      String key = keyList.get(i);
+      switch (opList.get(i)) {
+        case Schema.OP_ADD:
+          if (retval[i] != -1) {
+            _invalidate(key);
+            changeNotifier.add(DBChange.Op.Add, key, retval[i]);
+          }
+          break;
+        case Schema.OP_UPDATE:
+          if (retval[i] > 0) {
+            _invalidate(key);
+            changeNotifier.add(DBChange.Op.Update, key, -1);
+          }
+          break;
+        case Schema.OP_REMOVE:
+          if (retval[i] > 0) {
+            _invalidate(key);
+            _onKeysRemoved(1);
+            changeNotifier.add(DBChange.Op.Remove, key, -1);
+          }
+          break;
+      }
+    }
+    changeNotifier.commit();
+  }
+
+  /** same as {@link #_commit()}, on the {@link #table}, in one of its transactions */
+  private void _engineCommit(final long[] retval) {
+    table.runInTransaction(new Callable<Void>() {
+      public Void call() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < retval.length; i++) {
+          String key = keyList.get(i);
+          switch (opList.get(i)) {
+            case Schema.OP_ADD:
+              retval[i] = table.put(key, valueList.get(i), expiresList.get(i));
+              break;
+            case Schema.OP_UPDATE:
+              if (table.update(key, valueList.get(i), expiresList.get(i), now) != 0) { retval[i] = 1; }
+              break;
+            case Schema.OP_REMOVE:
+              if (table.remove(key, now) != 0) { retval[i] = 1; }
+              break;
+          }
+        }
+        return null;
+      }
+    });
+    _emit(retval);
+  }
+
+}//end class Batch
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// storage engine
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** same as {@link #get(String)}, on the {@link #table} */
+private String _engineGet(String key, KvpCache cache) {
+  KvpCache.Entry entry = cache == null ? null : cache.getByKey(key);
+  if (entry != null) { return entry.value; }
+  long stamp = cache == null ? 0 : cache.stamp();
+  byte[] record = table.get(key);
+  String retval = KvpRecord.getLiveValue(record, System.currentTimeMillis());
+  if (cache != null) {
+    if (retval == null) { cache.put(stamp, key, -1, null, 0); }
+    else { cache.put(stamp, key, KvpRecord.getId(record), retval, KvpRecord.getExpiresAt(record)); }
+  }
+  return retval;
+}
+
+/** same as {@link #get(long)}, on the {@link #table} */
+private String _engineGetById(long id, KvpCache cache) {
+  KvpCache.Entry entry = cache == null ? null : cache.getById(id);
+  if (entry != null) { return entry.value; }
+  long stamp = cache == null ? 0 : cache.stamp();
+  KvpEngineTable.Row row = table.getRow(id);
+  String retval = row == null ? null : KvpRecord.getLiveValue(row.record, System.currentTimeMillis());
+  if (retval != null && cache != null) { cache.put(stamp, row.key, id, retval, KvpRecord.getExpiresAt(row.record)); }
+  return retval;
+}
+
+/**
+ * same as {@link #update(long, String)} ({@link Schema#OP_UPDATE}) and {@link #remove(long)}
+ * ({@link Schema#OP_REMOVE}), on the {@link #table}
+ *
+ * @return the value before the write, null if there's no live row with the given id
+ */
+private String _engineWriteById(final int op, final long id, final String value) {
+  final long expiresAt = expiresAt(defaultTtlMs);
+  final String[] key = {null};
+  String retval = table.runInTransaction(new Callable<String>() {
+    public String call() {
+      long now = System.currentTimeMillis();
+      KvpEngineTable.Row row = table.getRow(id);
+      String current = row == null ? null : KvpRecord.getLiveValue(row.record, now);
+      if (current == null) { return null; }
+      key[0] = row.key;
+      if (op == Schema.OP_UPDATE) { table.update(row.key, value, expiresAt, now); }
+      else { table.remove(row.key, now); }
+      return current;
+    }
+  });
+  if (retval != null) {
+    if (op == Schema.OP_REMOVE) {
+      _onKeysRemoved(1);
+      onRowsDeleted();
+    }
+    _invalidate(key[0]);
+    _invalidate(id);
+    changeNotifier.commit(op == Schema.OP_REMOVE ? DBChange.Op.Remove : DBChange.Op.Update, key[0], id);
+  }
+  return retval;
+}
+
+/** add the values of all the rows in the {@link #table} that haven't expired to the given list */
+private void _engineGetAll(final ArrayList<String> list) {
+  final long now = System.currentTimeMillis();
+  table.scan(null, null, new ScanVisitor() {
+    public boolean onEntry(String key, byte[] record) {
+      if (!KvpRecord.isAbsent(record, now)) { list.add(KvpRecord.getValue(record)); }
+      return true;
+    }
+  });
+}
+
+/** same as {@link #getAllCursor()}, on the {@link #table}; the rows are in key order, in memory */
+private Cursor _engineGetAllCursor() {
+  final long now = System.currentTimeMillis();
+  final MatrixCursor retval = new MatrixCursor(Schema.COLS);
+  table.scan(null, null, new ScanVisitor() {
+    public boolean onEntry(String key, byte[] record) {
+      if (KvpRecord.isAbsent(record, now)) { return true; }
+      long expiresAt = KvpRecord.getExpiresAt(record);
+      retval.addRow(new Object[]{KvpRecord.getId(record), key, KvpRecord.getValue(record),
+                                 expiresAt == 0 ? null : expiresAt});
+      return true;
+    }
+  });
+  return retval;
+}
+
+/** same as {@link #add(String, String, long)}, on the {@link #table} */
+private long _engineAdd(final String key, final String value, final long expiresAt) {
+  long rowId;
+  try {
+    rowId = table.runInTransaction(new Callable<Long>() {
+      public Long call() {
+        return table.put(key, value, expiresAt);
+      }
+    });
+  }
+  catch (StorageException e) {
+    AndroidUtils.logErr(IconPaths.Storage, "DB_kvp - [" + dbName + "] problem adding key:" + key, e);
+    _invalidate(key);
+    return -1;
+  }
+  _invalidate(key);
+  changeNotifier.commit(DBChange.Op.Add, key, rowId);
+  return rowId;
+}
+
+/** the write of {@link #compareAndSet(String, String, String)}, on the {@link #table} */
+private boolean _engineCompareAndSet(final String key, final String expected, final String newValue,
+                                     final long expiresAt)
+{
+  return table.runInTransaction(new Callable<Boolean>() {
+    public Boolean call() {
+      long now = System.currentTimeMillis();
+      String current = KvpRecord.getLiveValue(table.get(key), now);
+      if (expected == null ? current != null : !expected.equals(current)) { return false; }
+      if (expected == null) { table.put(key, newValue, expiresAt); }
+      else { table.update(key, newValue, expiresAt, now); }
+      return true;
+    }
+  });
+}
+
+/** same as {@link #putIfAbsent(String, String)}, on the {@link #table} */
+private String _enginePutIfAbsent(final String key, final String value, final long expiresAt) {
+  String retval = table.runInTransaction(new Callable<String>() {
+    public String call() {
+      String current = KvpRecord.getLiveValue(table.get(key), System.currentTimeMillis());
+      if (current == null) { table.put(key, value, expiresAt); }
+      return current;
+    }
+  });
+  if (retval == null) {
+    _invalidate(key);
+    changeNotifier.commit(DBChange.Op.Add, key, -1);
+  }
+  return retval;
+}
+
+/** same as {@link #_getAndWrite(int, String, String)}, on the {@link #table} */
+private String _engineGetAndWrite(final int op, final String key, final String value, final long expiresAt) {
+  String retval = table.runInTransaction(new Callable<String>() {
+    public String call() {
+      long now = System.currentTimeMillis();
+      String current = KvpRecord.getLiveValue(table.get(key), now);
+      switch (op) {
+        case Schema.OP_ADD:
+          table.put(key, value, expiresAt);
+          break;
+        case Schema.OP_UPDATE:
+          table.update(key, value, expiresAt, now);
+          break;
+        case Schema.OP_REMOVE:
+          table.remove(key, now);
+          break;
+      }
+      return current;
+    }
+  });
+  if (op == Schema.OP_ADD || retval != null) {
+    if (op == Schema.OP_REMOVE) {
+      _onKeysRemoved(1);
+      onRowsDeleted();
+    }
+    _invalidate(key);
+    changeNotifier.commit(op == Schema.OP_REMOVE ? DBChange.Op.Remove :
+                          retval == null ? DBChange.Op.Add : DBChange.Op.Update,
+                          key, -1);
+  }
+  return retval;
+}
+
+/** same as {@link #sweepExpired(int)}, on the {@link #table} */
+private int _engineSweepExpired(final int limit) {
+  final long now = System.currentTimeMillis();
+  int rowCount = table.runInTransaction(new Callable<Integer>() {
+    public Integer call() {
+      return table.sweepExpired(limit, now);
+    }
+  });
+  if (rowCount > 0) {
+    _onKeysRemoved(rowCount);
+    onRowsDeleted();
+  }
+  return rowCount;
+}
+
+/** write all the rows in the {@link #table} that haven't expired to the snapshot, in key order */
+private void _engineExport(final DBSnapshot.Writer writer) throws IOException {
+  final long now = System.currentTimeMillis();
+  final IOException[] error = {null};
+  table.scan(null, null, new ScanVisitor() {
+    public boolean onEntry(String key, byte[] value) {
+      if (KvpRecord.isAbsent(value, now)) { return true; }
+      try {
+        writer.writeKvp(key, KvpRecord.getValue(value), KvpRecord.getExpiresAt(value));
+        return true;
+      }
+      catch (IOException e) {
+        error[0] = e;
+        return false;
+      }
+    }
+  });
+  if (error[0] != null) { throw error[0]; }
+}
+
 //XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
 // self test method
 //XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
 
 /** close the db connection */
 public void shutdown() {
-  if (dbConnection != null) {
-    dbConnection.close();
-    dbConnection = null;
+  disableWriteBehind();
+  changeNotifier.emit();
+  synchronized (this) {
+    if (liveQueryExecutor != null) { liveQueryExecutor.shutdownNow(); }
   }
+  statementCache.clear();
+  closeConnection();
+  if (engine != null) { engine.close(); }
 }
 
 //XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
@@ -378,38 +2204,135 @@ public static class Schema extends SQLiteOpenHelper implements DBConstantsIF {
   public static final  String   COL_ID            = BaseColumns._ID;
   public static final  String   COL_KEY           = "key";
   public static final  String   COL_VALUE         = "value";
+  /** when the row expires (ms since the epoch), null means never; see {@link DB_kvp#setDefaultTtl(long)} */
+  public static final  String   COL_EXPIRES       = "expires_at";
   /** all the cols in the table */
-  public static final  String[] COLS              = {COL_ID, COL_KEY, COL_VALUE};
-  /** command to <a href="http://sqlite.org/lang_vacuum.html">purge</a> deleted rows */
+  public static final  String[] COLS              = {COL_ID, COL_KEY, COL_VALUE, COL_EXPIRES};
+  /**
+   * command to <a href="http://sqlite.org/lang_vacuum.html">purge</a> deleted rows
+   *
+   * @deprecated a full VACUUM after every delete blocks all the other writers; deleted rows are now
+   * reclaimed in the background by the {@link DBCompactor} (see {@link DBCompactor#compact(DB_base)})
+   */
+  @Deprecated
   public static final  String   SQL_PURGE         = "VACUUM";
   public static final  String   SQL_WHERE_COL_KEY = COL_KEY + " = ?";
-  /** create a table with 2 cols. the PK col is autoincrement, so nothing has to be set on it */
-  private static final String   SQL_CREATE_DB     = "create table " + TABLE_MAP + "(" +
-                                                    COL_ID + " integer primary key autoincrement, " +
-                                                    COL_KEY + " text unique not null, " +
-                                                    COL_VALUE + " text not null" +
-                                                    ")";
-  private static final String   SQL_DROP_DB       = "drop table if exists " + TABLE_MAP;
-  private static final String   SQL_WHERE_COL_ID  = COL_ID + " = ?";
+  static final         String   SQL_WHERE_COL_ID  = COL_ID + " = ?";
+  static final         String   SQL_WHERE_ID_GT   = COL_ID + " > ?";
+  /** the current time in ms since the epoch, evaluated by sqlite (once per statement) */
+  static final         String   SQL_NOW_MS        = "cast((julianday('now') - 2440587.5) * 86400000 as integer)";
+  /** rows that haven't expired, every lookup uses this, so that expired rows are treated as absent */
+  public static final  String   SQL_WHERE_LIVE    = "(" + COL_EXPIRES + " is null or " + COL_EXPIRES + " > " +
+                                                    SQL_NOW_MS + ")";
+  static final         String   SQL_WHERE_EXPIRED = COL_EXPIRES + " <= " + SQL_NOW_MS;
+  /** operation types queued in a {@link Batch} */
+  private static final int      OP_ADD            = 0;
+  private static final int      OP_UPDATE         = 1;
+  private static final int      OP_REMOVE         = 2;
+
+  /** the statements for {@link #TABLE_MAP}, which is the only table in a db file of its own */
+  private static final Sql      SQL               = new Sql(TABLE_MAP);
 
   /** constructor */
   private Schema(Context context, String dbName, int dbVersion) {
     super(context, dbName, null, dbVersion);
   }
 
+  /** put the db in incremental auto_vacuum mode before any tables are created, see {@link DBCompactor} */
+  public void onConfigure(SQLiteDatabase database) {
+    DBCompactor.configure(database);
+  }
+
   /** create the database for the first time */
   public void onCreate(SQLiteDatabase database) {
-    database.execSQL(SQL_CREATE_DB);
+    database.execSQL(SQL.createTable);
+    database.execSQL(SQL.createExpiresIndex);
   }
 
   /** upgrade the db when the version changes */
   public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
     AndroidUtils.logErr(IconPaths.Storage,
                         getClass().getSimpleName() + "upgrading db to a newer version");
-    database.execSQL(SQL_DROP_DB);
+    database.execSQL(SQL.dropTable);
     onCreate(database);
   }
 
 }//end class Schema
 
+/**
+ * The statements for a single kvp table. A db in a file of its own uses {@link Schema#TABLE_MAP}, and a db
+ * that's hosted in a {@link DBSharedFile} uses a table named after the db.
+ */
+static class Sql {
+
+  final String table;
+  final String createTable;
+  final String createExpiresIndex;
+  final String dropTable;
+  /**
+   * statements that are precompiled in the {@link DBStatementCache}. the lookups use a scalar subquery,
+   * so that a missing row comes back as null, instead of an exception. they (and the writes that depend
+   * on the current value) skip expired rows.
+   */
+  final String valueByKey;
+  final String valueById;
+  final String countByKey;
+  final String count;
+  /** all the keys, including the expired ones, for building the {@link KvpBloomFilter} */
+  final String allKeys;
+  final String replace;
+  final String updateByKey;
+  final String updateById;
+  final String insertAbsent;
+  final String casByKey;
+  /**
+   * deletes that skip expired rows, so that removing a key that's already gone (but not swept yet) doesn't
+   * count as a change; expired rows are left for the {@link DBExpirySweeper}
+   */
+  final String deleteByKey;
+  final String deleteById;
+  /** clears the way for an insert, when the key is taken by an expired row */
+  final String deleteExpiredByKey;
+  /** deletes up to ? expired rows, using the index on {@link Schema#COL_EXPIRES} */
+  final String deleteExpired;
+
+  Sql(String table) {
+    this.table = table;
+    String live = " and " + Schema.SQL_WHERE_LIVE;
+    String setValue = " set " + Schema.COL_VALUE + " = ?, " + Schema.COL_EXPIRES + " = ? where ";
+    String insertCols = "(" + Schema.COL_KEY + ", " + Schema.COL_VALUE + ", " + Schema.COL_EXPIRES + ") values (?, ?, ?)";
+    createTable = "create table if not exists " + table + "(" +
+                  Schema.COL_ID + " integer primary key autoincrement, " +
+                  Schema.COL_KEY + " text unique not null, " +
+                  Schema.COL_VALUE + " text not null, " +
+                  Schema.COL_EXPIRES + " integer" +
+                  ")";
+    createExpiresIndex = "create index if not exists " + table + "_" + Schema.COL_EXPIRES + " on " + table +
+                         "(" + Schema.COL_EXPIRES + ")";
+    dropTable = "drop table if exists " + table;
+    valueByKey = "select (select " + Schema.COL_VALUE + " from " + table + " where " + Schema.SQL_WHERE_COL_KEY + live + ")";
+    valueById = "select (select " + Schema.COL_VALUE + " from " + table + " where " + Schema.SQL_WHERE_COL_ID + live + ")";
+    countByKey = "select count(*) from " + table + " where " + Schema.SQL_WHERE_COL_KEY + live;
+    count = "select count(*) from " + table + " where " + Schema.SQL_WHERE_LIVE;
+    allKeys = "select " + Schema.COL_KEY + " from " + table;
+    replace = "insert or replace into " + table + insertCols;
+    updateByKey = "update " + table + setValue + Schema.SQL_WHERE_COL_KEY + live;
+    updateById = "update " + table + setValue + Schema.SQL_WHERE_COL_ID + live;
+    insertAbsent = "insert or ignore into " + table + insertCols;
+    casByKey = "update " + table + setValue + Schema.SQL_WHERE_COL_KEY + " and " + Schema.COL_VALUE + " = ?" + live;
+    deleteByKey = "delete from " + table + " where " + Schema.SQL_WHERE_COL_KEY + live;
+    deleteById = "delete from " + table + " where " + Schema.SQL_WHERE_COL_ID + live;
+    deleteExpiredByKey = "delete from " + table + " where " + Schema.SQL_WHERE_COL_KEY + " and " +
+                         Schema.SQL_WHERE_EXPIRED;
+    deleteExpired = "delete from " + table + " where " + Schema.COL_ID + " in (select " + Schema.COL_ID +
+                    " from " + table + " where " + Schema.SQL_WHERE_EXPIRED + " limit ?)";
+  }
+
+  /** @return the statement that renames this table, its index keeps the name it has */
+  String renameTo(String newTable) {
+    return "alter table " + table + " rename to " + newTable;
+  }
+
+}//end class Sql
+
 }//end class DB_kvp
\ No newline at end of file
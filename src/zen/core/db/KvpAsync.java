@@ -0,0 +1,155 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import android.os.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The {@link DBAsync} facade of a {@link DB_kvp}, see {@link DBManager#getAsync_KVP(int, zen.core.LifecycleHelper)}.
+ * Each method runs the {@link DB_kvp} method of the same name on the executor, and passes what it returns
+ * to the callback on the main thread:
+ * <pre>
+ * data.dbManager.getAsync_KVP(R.id.db_kvp_settings, lifecycleHelper).get("theme", new DBCallback&lt;String&gt;() {
+ *   public void onResult(String theme) {
+ *     applyTheme(theme);
+ *   }
+ * });
+ * </pre>
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 8:50 PM
+ */
+public class KvpAsync extends DBAsync<DB_kvp> {
+
+KvpAsync(DBHandle<DB_kvp> handle, Executor executor, Handler handlerMainThread) {
+  super(handle, executor, handlerMainThread);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// reads
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** see {@link DB_kvp#get(String)} */
+public DBFuture<String> get(final String key, DBCallback<String> callback) {
+  return submit(new Operation<DB_kvp, String>() {
+    public String run(DB_kvp db) {
+      return db.get(key);
+    }
+  }, callback);
+}
+
+/** see {@link DB_kvp#containsKey(String)} */
+public DBFuture<Boolean> containsKey(final String key, DBCallback<Boolean> callback) {
+  return submit(new Operation<DB_kvp, Boolean>() {
+    public Boolean run(DB_kvp db) {
+      return db.containsKey(key);
+    }
+  }, callback);
+}
+
+/** see {@link DB_kvp#getAll()} */
+public DBFuture<ArrayList<String>> getAll(DBCallback<ArrayList<String>> callback) {
+  return submit(new Operation<DB_kvp, ArrayList<String>>() {
+    public ArrayList<String> run(DB_kvp db) {
+      return db.getAll();
+    }
+  }, callback);
+}
+
+/** see {@link DB_kvp#getPage(long, int)} */
+public DBFuture<ArrayList<DBRow>> getPage(final long afterId, final int limit, DBCallback<ArrayList<DBRow>> callback) {
+  return submit(new Operation<DB_kvp, ArrayList<DBRow>>() {
+    public ArrayList<DBRow> run(DB_kvp db) {
+      return db.getPage(afterId, limit);
+    }
+  }, callback);
+}
+
+/** see {@link DB_kvp#getRowCount()} */
+public DBFuture<Long> getRowCount(DBCallback<Long> callback) {
+  return submit(new Operation<DB_kvp, Long>() {
+    public Long run(DB_kvp db) {
+      return db.getRowCount();
+    }
+  }, callback);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// writes
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** see {@link DB_kvp#add(String, String)} */
+public DBFuture<Long> add(final String key, final String value, DBCallback<Long> callback) {
+  return submit(new Operation<DB_kvp, Long>() {
+    public Long run(DB_kvp db) {
+      return db.add(key, value);
+    }
+  }, callback);
+}
+
+/** see {@link DB_kvp#update(String, String)} */
+public DBFuture<String> update(final String key, final String newValue, DBCallback<String> callback) {
+  return submit(new Operation<DB_kvp, String>() {
+    public String run(DB_kvp db) {
+      return db.update(key, newValue);
+    }
+  }, callback);
+}
+
+/** see {@link DB_kvp#remove(String)} */
+public DBFuture<String> remove(final String key, DBCallback<String> callback) {
+  return submit(new Operation<DB_kvp, String>() {
+    public String run(DB_kvp db) {
+      return db.remove(key);
+    }
+  }, callback);
+}
+
+/** see {@link DB_kvp#putAll(Map)} */
+public DBFuture<long[]> putAll(final Map<String, String> map, DBCallback<long[]> callback) {
+  return submit(new Operation<DB_kvp, long[]>() {
+    public long[] run(DB_kvp db) {
+      return db.putAll(map);
+    }
+  }, callback);
+}
+
+/** see {@link DB_kvp#compareAndSet(String, String, String)} */
+public DBFuture<Boolean> compareAndSet(final String key, final String expected, final String newValue,
+                                       DBCallback<Boolean> callback)
+{
+  return submit(new Operation<DB_kvp, Boolean>() {
+    public Boolean run(DB_kvp db) {
+      return db.compareAndSet(key, expected, newValue);
+    }
+  }, callback);
+}
+
+/** see {@link DB_kvp#putIfAbsent(String, String)} */
+public DBFuture<String> putIfAbsent(final String key, final String value, DBCallback<String> callback) {
+  return submit(new Operation<DB_kvp, String>() {
+    public String run(DB_kvp db) {
+      return db.putIfAbsent(key, value);
+    }
+  }, callback);
+}
+
+}//end class KvpAsync
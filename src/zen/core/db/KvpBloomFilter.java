@@ -0,0 +1,203 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A Bloom filter over the keys of a {@link DB_kvp}, that sits in front of its lookups by key
+ * ({@link DB_kvp#get(String)} and {@link DB_kvp#containsKey(String)}). When it says that a key isn't
+ * there, the lookup returns right away, without querying the db; when it says that a key might be there,
+ * the db is queried as usual. It never says that a key that's in the db isn't there, since every key is
+ * added to it after it's written.
+ * <p/>
+ * The bits can't be cleared when a key is removed (other keys may share them), so removed keys become
+ * false positives until the filter is rebuilt; {@link DB_kvp} rebuilds it from the keys in the db after
+ * the db is compacted (see {@link DB_kvp#rebuildBloomFilter()}), which is also when the filter is resized
+ * for the number of keys that the db has grown to.
+ * <p/>
+ * The bits are set with a compare-and-set per word, so adds and lookups don't lock anything. The positions
+ * of a key are derived from one 64 bit hash of it, with the double hashing scheme of Kirsch and
+ * Mitzenmacher ("Less hashing, same performance: building a better Bloom filter").
+ * <p/>
+ * Use {@link DBManager#enableBloomFilter(int, long)} to turn this on for a declared db.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 6:20 PM
+ */
+public class KvpBloomFilter {
+
+private static final double LN2 = Math.log(2);
+
+private final AtomicLongArray words;
+private final long            bitCount;
+private final int             hashCount;
+private final long            expectedKeys;
+private final double          targetFalsePositiveRate;
+
+/** lookups that this filter answered without going to the db */
+private final AtomicLong negatives      = new AtomicLong();
+/** lookups that this filter let through, but that didn't find a live row in the db */
+private final AtomicLong falsePositives = new AtomicLong();
+/** keys that were added, including the ones that were added more than once */
+private final AtomicLong adds           = new AtomicLong();
+/** keys that were removed from the db since this filter was built, their bits are still set */
+private final AtomicLong removals       = new AtomicLong();
+
+/**
+ * size the filter so that it has the given false positive rate once it holds the given number of keys
+ *
+ * @throws IllegalArgumentException if expectedKeys isn't positive, or the rate isn't in (0, 1)
+ */
+public KvpBloomFilter(long expectedKeys, double falsePositiveRate) {
+  if (expectedKeys <= 0) { throw new IllegalArgumentException("expectedKeys must be positive"); }
+  if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+    throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+  }
+  this.expectedKeys = expectedKeys;
+  this.targetFalsePositiveRate = falsePositiveRate;
+  long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (LN2 * LN2));
+  words = new AtomicLongArray((int) Math.max(1, (bits + 63) / 64));
+  bitCount = words.length() * 64L;
+  hashCount = (int) Math.max(1, Math.round((double) bitCount / expectedKeys * LN2));
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// keys
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+public void add(String key) {
+  long hash = _hash(key);
+  int h1 = (int) hash;
+  int h2 = (int) (hash >>> 32);
+  for (int i = 1; i <= hashCount; i++) {
+    long bit = _position(h1, h2, i);
+    int index = (int) (bit >>> 6);
+    long mask = 1L << bit;
+    long word;
+    do {
+      word = words.get(index);
+      if ((word & mask) != 0) { break; }
+    } while (!words.compareAndSet(index, word, word | mask));
+  }
+  adds.incrementAndGet();
+}
+
+/** @return false if the key is definitely not in the db, true if it might be */
+public boolean mightContain(String key) {
+  long hash = _hash(key);
+  int h1 = (int) hash;
+  int h2 = (int) (hash >>> 32);
+  for (int i = 1; i <= hashCount; i++) {
+    long bit = _position(h1, h2, i);
+    if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+      negatives.incrementAndGet();
+      return false;
+    }
+  }
+  return true;
+}
+
+/** {@link DB_kvp} calls this when {@link #mightContain(String)} was true, but the db didn't have the key */
+void onFalsePositive() {
+  falsePositives.incrementAndGet();
+}
+
+/** {@link DB_kvp} calls this when keys are removed from the db */
+void onRemoved(long count) {
+  removals.addAndGet(count);
+}
+
+private long _position(int h1, int h2, int i) {
+  int combined = h1 + i * h2;
+  if (combined < 0) { combined = ~combined; }
+  return (combined * 0x9E3779B97F4A7C15L >>> 1) % bitCount;
+}
+
+/** FNV-1a over the chars of the key, with the murmur3 finalizer to spread the bits */
+private static long _hash(String key) {
+  long hash = 0xcbf29ce484222325L;
+  for (int i = 0; i < key.length(); i++) {
+    hash ^= key.charAt(i);
+    hash *= 0x100000001b3L;
+  }
+  hash ^= hash >>> 33;
+  hash *= 0xff51afd7ed558ccdL;
+  hash ^= hash >>> 33;
+  hash *= 0xc4ceb9fe1a85ec53L;
+  hash ^= hash >>> 33;
+  return hash;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// stats
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * @return the fraction of the lookups for missing keys that this filter let through to the db; this
+ * includes the keys that were removed since the filter was built, and rows that have expired
+ */
+public double getFalsePositiveRate() {
+  long falsePositives = this.falsePositives.get();
+  long total = falsePositives + negatives.get();
+  return total == 0 ? 0 : (double) falsePositives / total;
+}
+
+/**
+ * @return the false positive rate that the bits that are set work out to, ie: the chance that a key that
+ * was never added is let through. this grows past {@link #getTargetFalsePositiveRate()} once more than
+ * {@link #getExpectedKeys()} keys have been added.
+ */
+public double getExpectedFalsePositiveRate() {
+  long set = 0;
+  for (int i = 0; i < words.length(); i++) {
+    set += Long.bitCount(words.get(i));
+  }
+  return Math.pow((double) set / bitCount, hashCount);
+}
+
+public double getTargetFalsePositiveRate() {return targetFalsePositiveRate;}
+
+public long getExpectedKeys() {return expectedKeys;}
+
+/** @return the heap taken up by the bits */
+public long getSizeInBytes() {return words.length() * 8L;}
+
+public long getBitCount() {return bitCount;}
+
+public int getHashCount() {return hashCount;}
+
+/** @return the number of lookups that were answered without going to the db */
+public long getNegativeCount() {return negatives.get();}
+
+public long getFalsePositiveCount() {return falsePositives.get();}
+
+public long getAddCount() {return adds.get();}
+
+/** @return the number of keys that were removed from the db since this filter was built */
+public long getRemovedCount() {return removals.get();}
+
+public String toString() {
+  return String.format("bits:%d (%d bytes), hashes:%d, adds:%d, removed:%d, negatives:%d, " +
+                       "false positives:%d (%.4f), expected fpp:%.4f",
+                       bitCount, getSizeInBytes(), hashCount, getAddCount(), getRemovedCount(),
+                       getNegativeCount(), getFalsePositiveCount(), getFalsePositiveRate(),
+                       getExpectedFalsePositiveRate());
+}
+
+}//end class KvpBloomFilter
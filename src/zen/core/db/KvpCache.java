@@ -0,0 +1,224 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import java.util.*;
+
+/**
+ * A size bounded, in memory LRU cache that sits in front of the lookups in a {@link DB_kvp}. It's
+ * bounded by the number of entries, and by the (approximate) number of bytes that the keys and values
+ * take up on the heap. Keys that aren't in the db are cached too (negative caching), so that repeated
+ * lookups for missing keys don't hit the db either.
+ * <p/>
+ * Entries are found by key and by {@link DB_kvp.Schema#COL_ID}, and {@link DB_kvp} invalidates them
+ * after every write that touches them. To keep a slow reader from putting a value back in the cache
+ * after a writer has invalidated it, readers grab a {@link #stamp()} before they query the db, and
+ * {@link #put(long, String, long, String, long)} drops the value if anything was invalidated since then.
+ * <p/>
+ * Use {@link DBManager#enableCache(int, int, long)} to turn this on for a declared db.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 11:40 AM
+ */
+public class KvpCache {
+
+/** rough per entry overhead (map nodes, entry object, string headers) added to the weight of each entry */
+private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+private final int  maxEntries;
+private final long maxBytes;
+
+/** access ordered, so that iteration starts with the least recently used entry */
+private final LinkedHashMap<String, Entry> byKey = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+/** secondary index, only holds entries that are actually in the db */
+private final HashMap<Long, Entry>         byId  = new HashMap<Long, Entry>();
+
+private long bytes;
+private long invalidations;
+private long hits;
+private long misses;
+private long evictions;
+
+/**
+ * @param maxEntries max number of entries (including negative ones) held in the cache
+ * @param maxBytes   max number of bytes (approximately) held in the cache
+ *
+ * @throws IllegalArgumentException if either bound isn't positive
+ */
+public KvpCache(int maxEntries, long maxBytes) {
+  if (maxEntries <= 0 || maxBytes <= 0) { throw new IllegalArgumentException("cache bounds must be positive"); }
+  this.maxEntries = maxEntries;
+  this.maxBytes = maxBytes;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// lookups
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * @return null if the key isn't cached. otherwise the cached entry, whose {@link Entry#value} is null if
+ * the key is known to be missing from the db.
+ */
+public synchronized Entry getByKey(String key) {
+  Entry entry = _live(byKey.get(key));
+  if (entry == null) { misses++; }
+  else { hits++; }
+  return entry;
+}
+
+/** @return null if the id isn't cached, otherwise the cached entry (this is never a negative entry) */
+public synchronized Entry getById(long id) {
+  Entry entry = _live(byId.get(id));
+  if (entry == null) {
+    misses++;
+    return null;
+  }
+  hits++;
+  byKey.get(entry.key); // touch it, so it's moved to the end of the LRU order
+  return entry;
+}
+
+/** drop the given entry if its row has expired, so that the row is looked up (and found missing) in the db */
+private Entry _live(Entry entry) {
+  if (entry == null || entry.expiresAt == 0 || entry.expiresAt > System.currentTimeMillis()) { return entry; }
+  _remove(entry);
+  return null;
+}
+
+/** grab one of these before querying the db, and pass it to {@link #put(long, String, long, String, long)} */
+public synchronized long stamp() {
+  return invalidations;
+}
+
+/**
+ * cache the result of a db lookup. this is silently dropped if anything was invalidated after the
+ * given stamp was taken.
+ *
+ * @param stamp     value of {@link #stamp()} taken before the db was queried
+ * @param id        {@link DB_kvp.Schema#COL_ID} of the row, ignored if value is null, or if it isn't a real
+ *                  row id
+ * @param value     null means that the key isn't in the db
+ * @param expiresAt {@link DB_kvp.Schema#COL_EXPIRES} of the row, the entry is dropped once it's reached.
+ *                  0 means never.
+ */
+public synchronized void put(long stamp, String key, long id, String value, long expiresAt) {
+  if (key == null || stamp != invalidations) { return; }
+  _remove(byKey.get(key));
+  Entry entry = new Entry(key, value == null ? -1 : id, value, value == null ? 0 : expiresAt);
+  byKey.put(key, entry);
+  // rows that were cached without a real id can only be found by key
+  if (value != null && id > 0) { byId.put(id, entry); }
+  bytes += entry.weight;
+  _trim();
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// invalidation
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** drop the entry for the given key (call this after the row for the key has been written) */
+public synchronized void invalidateKey(String key) {
+  invalidations++;
+  _remove(byKey.get(key));
+}
+
+/** drop the entry for the given id (call this after the row with the id has been written) */
+public synchronized void invalidateId(long id) {
+  invalidations++;
+  _remove(byId.get(id));
+}
+
+/** drop everything */
+public synchronized void clear() {
+  invalidations++;
+  byKey.clear();
+  byId.clear();
+  bytes = 0;
+}
+
+private void _remove(Entry entry) {
+  if (entry == null) { return; }
+  byKey.remove(entry.key);
+  if (entry.value != null) { byId.remove(entry.id); }
+  bytes -= entry.weight;
+}
+
+/** evict least recently used entries until the cache is within its bounds */
+private void _trim() {
+  Iterator<Entry> iterator = byKey.values().iterator();
+  while ((byKey.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+    Entry eldest = iterator.next();
+    iterator.remove();
+    if (eldest.value != null) { byId.remove(eldest.id); }
+    bytes -= eldest.weight;
+    evictions++;
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// stats
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+public synchronized long getHitCount() {return hits;}
+
+public synchronized long getMissCount() {return misses;}
+
+public synchronized long getEvictionCount() {return evictions;}
+
+public synchronized int getSize() {return byKey.size();}
+
+public synchronized long getSizeInBytes() {return bytes;}
+
+public int getMaxEntries() {return maxEntries;}
+
+public long getMaxBytes() {return maxBytes;}
+
+public synchronized String toString() {
+  long lookups = hits + misses;
+  return String.format("entries:%d/%d bytes:%d/%d hits:%d misses:%d (%.1f%% hit) evictions:%d",
+                       byKey.size(), maxEntries, bytes, maxBytes, hits, misses,
+                       lookups == 0 ? 0f : 100f * hits / lookups, evictions);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// cache entry
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** an immutable cached row */
+public static class Entry {
+
+  public final String key;
+  /** -1 for negative entries */
+  public final long   id;
+  /** null means that the key isn't in the db */
+  public final String value;
+  /** when the row expires (ms since the epoch), 0 means never */
+  public final long   expiresAt;
+  final int weight;
+
+  Entry(String key, long id, String value, long expiresAt) {
+    this.key = key;
+    this.id = id;
+    this.value = value;
+    this.expiresAt = expiresAt;
+    weight = ENTRY_OVERHEAD_BYTES + 2 * (key.length() + (value == null ? 0 : value.length()));
+  }
+
+}//end class Entry
+
+}//end class KvpCache
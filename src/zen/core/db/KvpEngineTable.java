@@ -0,0 +1,276 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import zen.core.db.engine.*;
+
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The rows of an engine-backed {@link DB_kvp}, laid out in the keyspace of its {@link StorageEngine} so
+ * that they have ids, just like the rows of the SQLite table:
+ * <pre>
+ * "k" + key              -> {@link KvpRecord} (expiry, id, value)
+ * "i" + id (16 hex chars) -> key (UTF-8), the index that the lookups by id, and the pages, go through
+ * "m:lastId"             -> the highest id that's been reserved (8 bytes, big endian)
+ * </pre>
+ * Ids work the way they do with "insert or replace" in SQLite: adding a key (or replacing it) gives the row
+ * a new id, and updating it keeps the id it has. Ids are handed out from a block that's reserved (and
+ * persisted) {@link #IdBlockSize} at a time, in the transaction of the first write that needs it, so ids
+ * are never reused, even after a crash; a restart just skips the rest of the block.
+ * <p/>
+ * All the writes have to run in {@link #runInTransaction(Callable)}, which keeps the row and its index
+ * entry in step.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 11:20 PM
+ */
+class KvpEngineTable {
+
+/** the number of ids that are reserved at a time */
+static final int IdBlockSize = 1024;
+
+private static final String  ROW_PREFIX  = "k";
+private static final String  ROW_END     = "l";
+private static final String  ID_PREFIX   = "i";
+private static final String  ID_END      = "j";
+private static final String  LAST_ID_KEY = "m:lastId";
+private static final Charset UTF8        = Charset.forName("UTF-8");
+
+final StorageEngine engine;
+/** the last id that was handed out */
+private long lastId;
+/** the last id of the block that's been persisted, 0 means that the next id has to reserve a block */
+private long reservedId;
+
+KvpEngineTable(StorageEngine engine) {
+  this.engine = engine;
+  byte[] bytes = engine.get(LAST_ID_KEY);
+  lastId = bytes == null ? 0 : KvpRecord.getLong(bytes, 0);
+  reservedId = lastId;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// reads
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** @return the record of the row with the given key, null if there isn't one (it might have expired) */
+byte[] get(String key) {
+  return engine.get(ROW_PREFIX + key);
+}
+
+/** @return the row with the given id, null if there isn't one (it might have expired) */
+Row getRow(long id) {
+  byte[] bytes = engine.get(_idKey(id));
+  if (bytes == null) { return null; }
+  String key = new String(bytes, UTF8);
+  Row retval = new Row(key, get(key));
+  // the row could have been replaced (and given a new id) between the two reads
+  return retval.record == null || KvpRecord.getId(retval.record) != id ? null : retval;
+}
+
+/** @return the number of rows, including the expired ones that haven't been swept yet */
+long count() {
+  // every row has an index entry, and the reserved id is the only other entry
+  return engine.count() / 2;
+}
+
+/** @return the number of rows that haven't expired by the given time */
+long countLive(final long now) {
+  final long[] count = {0};
+  scan(null, null, new ScanVisitor() {
+    public boolean onEntry(String key, byte[] record) {
+      if (!KvpRecord.isAbsent(record, now)) { count[0]++; }
+      return true;
+    }
+  });
+  return count[0];
+}
+
+/**
+ * stream the rows whose keys are in [fromKey, toKey) through the visitor, in key order; the visitor gets
+ * the keys of the rows, and their {@link KvpRecord}s, expired or not
+ *
+ * @param fromKey null means start with the first key
+ * @param toKey   null means go on to the last key
+ */
+long scan(String fromKey, String toKey, final ScanVisitor visitor) {
+  return engine.scan(fromKey == null ? ROW_PREFIX : ROW_PREFIX + fromKey,
+                     toKey == null ? ROW_END : ROW_PREFIX + toKey,
+                     new ScanVisitor() {
+                       public boolean onEntry(String key, byte[] record) {
+                         return visitor.onEntry(key.substring(ROW_PREFIX.length()), record);
+                       }
+                     });
+}
+
+/**
+ * keyset pagination over the rows that haven't expired by the given time, in id order, see
+ * {@link DB_base#getPage(long, int)}
+ */
+ArrayList<DBRow> getPage(long afterId, int limit, long now) {
+  ArrayList<DBRow> retval = new ArrayList<DBRow>(Math.min(limit, DBConstantsIF.ScanWindowSize));
+  final ArrayList<String> idKeys = new ArrayList<String>();
+  final ArrayList<String> keys = new ArrayList<String>();
+  final int window = limit;
+  String from = _idKey(Math.max(afterId, 0) + 1);
+  while (retval.size() < limit) {
+    // the index is read a window at a time, and the rows are read after the scan is done
+    idKeys.clear();
+    keys.clear();
+    engine.scan(from, ID_END, new ScanVisitor() {
+      public boolean onEntry(String idKey, byte[] key) {
+        idKeys.add(idKey);
+        keys.add(new String(key, UTF8));
+        return idKeys.size() < window;
+      }
+    });
+    for (int i = 0; i < keys.size() && retval.size() < limit; i++) {
+      long id = Long.parseLong(idKeys.get(i).substring(ID_PREFIX.length()), 16);
+      byte[] record = get(keys.get(i));
+      if (record == null || KvpRecord.getId(record) != id || KvpRecord.isAbsent(record, now)) { continue; }
+      retval.add(new DBRow(id, keys.get(i), KvpRecord.getValue(record)));
+    }
+    if (idKeys.size() < window) { break; }
+    from = idKeys.get(idKeys.size() - 1) + '\0';
+  }
+  return retval;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// writes, run these in runInTransaction()
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * run the body in a transaction of the engine, see {@link StorageEngine#runInTransaction(Callable)}. if it
+ * fails, the block of ids that it might have reserved is reserved again by the next write.
+ */
+<T> T runInTransaction(Callable<T> body) {
+  try {
+    return engine.runInTransaction(body);
+  }
+  catch (RuntimeException e) {
+    synchronized (this) { reservedId = 0; }
+    throw e;
+  }
+}
+
+/**
+ * add the row, or replace it; either way it gets a new id
+ *
+ * @param expiresAt see {@link DB_kvp#expiresAt(long)}, 0 means never
+ *
+ * @return the id of the row
+ */
+long put(String key, String value, long expiresAt) {
+  byte[] old = get(key);
+  if (old != null) { engine.delete(_idKey(KvpRecord.getId(old))); }
+  long id = _nextId();
+  engine.put(ROW_PREFIX + key, KvpRecord.encode(value, expiresAt, id));
+  engine.put(_idKey(id), key.getBytes(UTF8));
+  return id;
+}
+
+/**
+ * replace the value of the row, if it hasn't expired by the given time; the row keeps its id
+ *
+ * @return the id of the row, 0 if there's no such row
+ */
+long update(String key, String value, long expiresAt, long now) {
+  byte[] old = get(key);
+  if (KvpRecord.isAbsent(old, now)) { return 0; }
+  long id = KvpRecord.getId(old);
+  engine.put(ROW_PREFIX + key, KvpRecord.encode(value, expiresAt, id));
+  return id;
+}
+
+/**
+ * remove the row, an expired row is removed too (it's absent either way)
+ *
+ * @return the id of the row, 0 if there was no such row, or if it had expired by the given time
+ */
+long remove(String key, long now) {
+  byte[] old = get(key);
+  if (old == null) { return 0; }
+  long id = KvpRecord.getId(old);
+  engine.delete(ROW_PREFIX + key);
+  engine.delete(_idKey(id));
+  return KvpRecord.isAbsent(old, now) ? 0 : id;
+}
+
+/**
+ * remove up to limit rows that have expired by the given time
+ *
+ * @return the number of rows that were removed
+ */
+int sweepExpired(final int limit, final long now) {
+  final WriteBatch batch = new WriteBatch();
+  final int[] count = {0};
+  scan(null, null, new ScanVisitor() {
+    public boolean onEntry(String key, byte[] record) {
+      if (KvpRecord.isAbsent(record, now)) {
+        batch.delete(ROW_PREFIX + key);
+        batch.delete(_idKey(KvpRecord.getId(record)));
+        count[0]++;
+      }
+      return count[0] < limit;
+    }
+  });
+  engine.write(batch);
+  return count[0];
+}
+
+/** remove all the rows, the ids that were handed out aren't reused */
+void clear() {
+  engine.clear();
+  synchronized (this) { reservedId = 0; }
+}
+
+private synchronized long _nextId() {
+  if (++lastId > reservedId) {
+    reservedId = lastId + IdBlockSize - 1;
+    byte[] bytes = new byte[8];
+    KvpRecord.putLong(bytes, 0, reservedId);
+    engine.put(LAST_ID_KEY, bytes);
+  }
+  return lastId;
+}
+
+/** A row of the table, as it's found by its id */
+static class Row {
+
+  final String key;
+  /** the {@link KvpRecord} of the row, expired or not */
+  final byte[] record;
+
+  private Row(String key, byte[] record) {
+    this.key = key;
+    this.record = record;
+  }
+
+}//end class Row
+
+/** @return the key of the index entry for the id, it's zero padded so that the entries are in id order */
+private static String _idKey(long id) {
+  String hex = Long.toHexString(id);
+  return ID_PREFIX + "0000000000000000".substring(hex.length()) + hex;
+}
+
+}//end class KvpEngineTable
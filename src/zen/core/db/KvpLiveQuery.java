@@ -0,0 +1,195 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package zen.core.db;
+
+import android.os.*;
+import zen.core.*;
+import zen.core.observableprops.*;
+import zen.framework.*;
+import zen.utlis.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A live query on a {@link DB_kvp}: the value of one key ({@link DB_kvp#observe(String, ObservablePropertyListener)}),
+ * or the keys & values that start with a prefix ({@link DB_kvp#observePrefix(String, ObservablePropertyListener)}),
+ * that's delivered to an {@link ObservablePropertyListener} on the main thread, once when the query is
+ * created, and again whenever it changes.
+ * <p/>
+ * The query listens to the {@link DBChangeSet}s of the db (see {@link DB_base#addChangeListener(DBChangeListener)}),
+ * and is only re-evaluated when a change set has a key that matches it (or was a write by id, or cleared
+ * the db); writes to other keys cost a string compare. Re-evaluations run on the live query thread of the
+ * db, never on the main thread, and the ones that are triggered while one is already queued are folded
+ * into it. The result is compared (equals) to the last one that was delivered, and it's only posted to
+ * the main thread if it's different, so writes that don't change the value (eg: putting the same value
+ * again) never reach the UI thread.
+ * <p/>
+ * The value passed to {@link ObservablePropertyListener#onChange(int, Object)} is the String value of the
+ * key (null if it's missing or has expired), or an unmodifiable {@link Map} of the matching keys to their
+ * values, in key order, for prefix queries. The propertyId is the one the listener returns from
+ * {@link ObservablePropertyListener#getPropertyId()}.
+ * <p/>
+ * Call {@link #shutdown()} to stop listening; once it returns, the listener won't be called again. This is
+ * a {@link Shutdownable}, so it can be added to a {@link LifecycleHelper} (see
+ * {@link DBManager#observe_KVP(int, String, ObservablePropertyListener, LifecycleHelper)}).
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 9:40 PM
+ */
+public class KvpLiveQuery implements DBChangeListener, Shutdownable {
+
+/** the value of {@link #lastValue} before anything has been delivered, so that a null value is delivered */
+private static final Object NOT_DELIVERED = new Object();
+
+private final DB_kvp                     db;
+/** the key, or the prefix if {@link #isPrefix} */
+private final String                     key;
+private final boolean                    isPrefix;
+private final ObservablePropertyListener listener;
+private final Executor                   executor;
+private final Handler                    handlerMainThread;
+/** true while an evaluation is queued on the {@link #executor}, and hasn't started yet */
+private final AtomicBoolean              scheduled   = new AtomicBoolean();
+/** number of times that the query was run */
+private final AtomicLong                 evaluations = new AtomicLong();
+/** number of values that were posted to the main thread */
+private final AtomicLong                 deliveries  = new AtomicLong();
+private final Runnable                   evaluator   = new Runnable() {
+  public void run() {
+    _evaluate();
+  }
+};
+/** the last value that was posted to the main thread, only touched by the {@link #executor} */
+private          Object                  lastValue = NOT_DELIVERED;
+private volatile boolean                 shutdown;
+
+/** use {@link DB_kvp#observe(String, ObservablePropertyListener)} or {@link DB_kvp#observePrefix} */
+KvpLiveQuery(DB_kvp db, String key, boolean isPrefix, ObservablePropertyListener listener, Executor executor,
+             Handler handlerMainThread) {
+  if (key == null) { throw new IllegalArgumentException("key can't be null"); }
+  if (listener == null) { throw new IllegalArgumentException("listener can't be null"); }
+  this.db = db;
+  this.key = key;
+  this.isPrefix = isPrefix;
+  this.listener = listener;
+  this.executor = executor;
+  this.handlerMainThread = handlerMainThread;
+}
+
+/** start listening to the changes of the db, and run the query for the first time */
+KvpLiveQuery start() {
+  db.addChangeListener(this);
+  _schedule();
+  return this;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// changes
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+public void onChanges(DBChangeSet changeSet) {
+  if (!shutdown && matches(changeSet)) { _schedule(); }
+}
+
+/** @return true if the given change set might have changed the result of this query */
+public boolean matches(DBChangeSet changeSet) {
+  if (!isPrefix) { return changeSet.affectsKey(key); }
+  if (changeSet.isCleared()) { return true; }
+  for (DBChange change : changeSet.getChanges()) {
+    if (change.key == null || change.key.startsWith(key)) { return true; }
+  }
+  return false;
+}
+
+/** queue an evaluation, unless one is already queued (it will see this change too, since it hasn't run yet) */
+private void _schedule() {
+  if (!scheduled.compareAndSet(false, true)) { return; }
+  try {
+    executor.execute(evaluator);
+  }
+  catch (RejectedExecutionException e) {
+    scheduled.set(false);
+    if (!shutdown) {
+      AndroidUtils.logErr(IconPaths.Storage, "KvpLiveQuery - " + this + " couldn't be re-evaluated", e);
+    }
+  }
+}
+
+/** run the query, and post its result to the main thread if it's not the same as the last one */
+private void _evaluate() {
+  // cleared before the query runs, so that changes that land while it runs queue another evaluation
+  scheduled.set(false);
+  if (shutdown) { return; }
+  final Object value;
+  try {
+    value = isPrefix ? Collections.unmodifiableMap(db.getPrefix(key)) : db.get(key);
+  }
+  catch (Exception e) {
+    AndroidUtils.logErr(IconPaths.Storage, "KvpLiveQuery - " + this + " problem running query", e);
+    return;
+  }
+  evaluations.incrementAndGet();
+  if (lastValue != NOT_DELIVERED && (value == null ? lastValue == null : value.equals(lastValue))) { return; }
+  lastValue = value;
+  deliveries.incrementAndGet();
+  handlerMainThread.post(new Runnable() {
+    public void run() {
+      if (shutdown) { return; }
+      try {
+        listener.onChange(listener.getPropertyId(), value);
+      }
+      catch (Exception e) {
+        AndroidUtils.logErr(IconPaths.Storage, String.format("KvpLiveQuery - %s problem running listener [%s]",
+                                                             KvpLiveQuery.this, listener.getName()), e);
+      }
+    }
+  });
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// lifecycle
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** stop listening to the db; values that were already posted to the main thread are dropped */
+public void shutdown() {
+  shutdown = true;
+  db.removeChangeListener(this);
+}
+
+public boolean isShutdown() {return shutdown;}
+
+public String getKey() {return key;}
+
+public boolean isPrefix() {return isPrefix;}
+
+/** @return the number of times that the query was run */
+public long getEvaluationCount() {return evaluations.get();}
+
+/** @return the number of values that were posted to the main thread, the rest were the same as the last one */
+public long getDeliveryCount() {return deliveries.get();}
+
+public String toString() {
+  return String.format("[%s] %s:%s -> %s, evaluations:%d, deliveries:%d", db.dbName,
+                       isPrefix ? "prefix" : "key", key, listener.getName(), getEvaluationCount(),
+                       getDeliveryCount());
+}
+
+}//end class KvpLiveQuery
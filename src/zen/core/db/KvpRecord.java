@@ -0,0 +1,98 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import java.nio.charset.*;
+
+/**
+ * The format of the values that an engine-backed {@link DB_kvp} writes to its
+ * {@link zen.core.db.engine.StorageEngine}. The engine only stores bytes, so the expiry and the id of the
+ * row are kept in front of the value:
+ * <pre>
+ * [0..7]  when the row expires, ms since the epoch (big endian), 0 means never
+ * [8..15] the id of the row (big endian), see {@link KvpEngineTable}
+ * [16..]  the UTF-8 value
+ * </pre>
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:40 PM
+ */
+public class KvpRecord {
+
+public static final int HEADER_LENGTH = 16;
+
+private static final Charset UTF8 = Charset.forName("UTF-8");
+
+private KvpRecord() {}
+
+/**
+ * @param expiresAt see {@link DB_kvp#expiresAt(long)}, 0 means never
+ * @param id        the id of the row, real row ids start at 1
+ */
+public static byte[] encode(String value, long expiresAt, long id) {
+  byte[] utf8 = value.getBytes(UTF8);
+  byte[] retval = new byte[HEADER_LENGTH + utf8.length];
+  putLong(retval, 0, expiresAt);
+  putLong(retval, 8, id);
+  System.arraycopy(utf8, 0, retval, HEADER_LENGTH, utf8.length);
+  return retval;
+}
+
+/** @return when the row expires, 0 means never */
+public static long getExpiresAt(byte[] record) {
+  return getLong(record, 0);
+}
+
+/** @return the id of the row */
+public static long getId(byte[] record) {
+  return getLong(record, 8);
+}
+
+public static String getValue(byte[] record) {
+  return new String(record, HEADER_LENGTH, record.length - HEADER_LENGTH, UTF8);
+}
+
+/** @return true if the record is null, or has expired by the given time */
+public static boolean isAbsent(byte[] record, long now) {
+  if (record == null) { return true; }
+  long expiresAt = getExpiresAt(record);
+  return expiresAt > 0 && expiresAt <= now;
+}
+
+/** @return the value of the record, null if it's absent (see {@link #isAbsent(byte[], long)}) */
+public static String getLiveValue(byte[] record, long now) {
+  return isAbsent(record, now) ? null : getValue(record);
+}
+
+/** write the long at the given offset, big endian */
+static void putLong(byte[] bytes, int offset, long value) {
+  for (int i = 0; i < 8; i++) {
+    bytes[offset + i] = (byte) (value >>> (56 - 8 * i));
+  }
+}
+
+/** read the long at the given offset, big endian */
+static long getLong(byte[] bytes, int offset) {
+  long retval = 0;
+  for (int i = 0; i < 8; i++) {
+    retval = (retval << 8) | (bytes[offset + i] & 0xFF);
+  }
+  return retval;
+}
+
+}//end class KvpRecord
@@ -0,0 +1,408 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import android.database.*;
+import zen.core.db.engine.*;
+
+import java.util.*;
+
+/**
+ * A read-only, {@link NavigableMap} style view over the keys of a {@link DB_kvp}, in key order. Get one
+ * with {@link DB_kvp#sortedView()}, and narrow it with {@link #subMap(String, String)},
+ * {@link #headMap(String)}, {@link #tailMap(String)}, or {@link #prefixScan(String)}.
+ * <p/>
+ * A view doesn't hold any rows. Every call is a range query (<code>key >= ? and key < ?</code>) on
+ * {@link DB_kvp.Schema#COL_KEY}, which is answered by the unique index that SQLite keeps on that column,
+ * so a lookup costs O(log n) and a scan over k rows costs O(log n + k), instead of a full table scan.
+ * Scans ({@link #forEach(DBRowVisitor)}, {@link #iterator()}) stream the rows in windows of
+ * {@link DBConstantsIF#ScanWindowSize}, with keyset pagination on the key.
+ * <p/>
+ * On an engine-backed db, every call is a {@link StorageEngine#scan(String, String, ScanVisitor)} of the key
+ * range instead. Engines only scan forward, so {@link #lastKey()}, {@link #floorKey(String)},
+ * {@link #lowerKey(String)}, and {@link #size()} read the whole range of the view.
+ * <p/>
+ * Keys are ordered the way SQLite compares them (byte by byte, in UTF-8). This is the same as
+ * {@link String#compareTo(String)}, except for keys that contain characters outside the basic
+ * multilingual plane.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:15 PM
+ */
+public class KvpSortedView {
+
+private static final String[] COLS_KEY = {DB_kvp.Schema.COL_KEY};
+private static final String   ASC      = DB_kvp.Schema.COL_KEY + " asc";
+private static final String   DESC     = DB_kvp.Schema.COL_KEY + " desc";
+
+private final DB_kvp db;
+/** inclusive lower bound, null means unbounded */
+private final String fromKey;
+/** exclusive upper bound, null means unbounded */
+private final String toKey;
+
+/**
+ * @param fromKey inclusive lower bound, null means unbounded
+ * @param toKey   exclusive upper bound, null means unbounded
+ */
+KvpSortedView(DB_kvp db, String fromKey, String toKey) {
+  this.db = db;
+  this.fromKey = fromKey;
+  this.toKey = toKey;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// sub views
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * @return a view of the keys in [fromKey, toKey) that are also in this view. either bound can be null,
+ * which means that side isn't narrowed.
+ */
+public KvpSortedView subMap(String fromKey, String toKey) {
+  String from = this.fromKey;
+  if (fromKey != null && (from == null || fromKey.compareTo(from) > 0)) { from = fromKey; }
+  String to = this.toKey;
+  if (toKey != null && (to == null || toKey.compareTo(to) < 0)) { to = toKey; }
+  return new KvpSortedView(db, from, to);
+}
+
+/** @return a view of the keys that are less than toKey */
+public KvpSortedView headMap(String toKey) {
+  return subMap(null, toKey);
+}
+
+/** @return a view of the keys that are greater than or equal to fromKey */
+public KvpSortedView tailMap(String fromKey) {
+  return subMap(fromKey, null);
+}
+
+/** @return a view of the keys that start with the given prefix (eg: "user:123:") */
+public KvpSortedView prefixScan(String prefix) {
+  if (prefix == null || prefix.length() == 0) { return this; }
+  return subMap(prefix, prefixEnd(prefix));
+}
+
+/**
+ * @return the smallest string that's greater than every string that starts with the given prefix, or null
+ * if there isn't one
+ */
+static String prefixEnd(String prefix) {
+  char[] chars = prefix.toCharArray();
+  for (int i = chars.length - 1; i >= 0; i--) {
+    if (chars[i] != Character.MAX_VALUE) {
+      chars[i]++;
+      return new String(chars, 0, i + 1);
+    }
+  }
+  return null;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// navigation
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** @return the smallest key in this view, or null if it's empty */
+public String firstKey() {
+  if (db.engine != null) { return _engineKey(null, null, true); }
+  return _key(null, null, ASC);
+}
+
+/** @return the largest key in this view, or null if it's empty */
+public String lastKey() {
+  if (db.engine != null) { return _engineKey(null, null, false); }
+  return _key(null, null, DESC);
+}
+
+/** @return the largest key in this view that's less than or equal to the given key, or null */
+public String floorKey(String key) {
+  if (db.engine != null) { return _engineKey(null, key + '\0', false); }
+  return _key(DB_kvp.Schema.COL_KEY + " <= ?", key, DESC);
+}
+
+/** @return the largest key in this view that's strictly less than the given key, or null */
+public String lowerKey(String key) {
+  if (db.engine != null) { return _engineKey(null, key, false); }
+  return _key(DB_kvp.Schema.COL_KEY + " < ?", key, DESC);
+}
+
+/** @return the smallest key in this view that's greater than or equal to the given key, or null */
+public String ceilingKey(String key) {
+  if (db.engine != null) { return _engineKey(key, null, true); }
+  return _key(DB_kvp.Schema.COL_KEY + " >= ?", key, ASC);
+}
+
+/** @return the smallest key in this view that's strictly greater than the given key, or null */
+public String higherKey(String key) {
+  if (db.engine != null) { return _engineKey(key + '\0', null, true); }
+  return _key(DB_kvp.Schema.COL_KEY + " > ?", key, ASC);
+}
+
+/** @return the value for the key, or null if the key isn't in this view (or the db) */
+public String get(String key) {
+  if (!_inRange(key)) { return null; }
+  return db.get(key);
+}
+
+/** @return true if the key is in this view (and in the db) */
+public boolean containsKey(String key) {
+  return _inRange(key) && db.containsKey(key);
+}
+
+/** @return the number of keys in this view, this is a count over the index range */
+public long size() {
+  db.flush();
+  if (db.engine != null) {
+    final long now = System.currentTimeMillis();
+    final long[] count = {0};
+    db.table.scan(fromKey, toKey, new ScanVisitor() {
+      public boolean onEntry(String key, byte[] record) {
+        if (!KvpRecord.isAbsent(record, now)) { count[0]++; }
+        return true;
+      }
+    });
+    return count[0];
+  }
+  ArrayList<String> args = new ArrayList<String>(2);
+  String where = _where(null, null, args);
+  return DatabaseUtils.queryNumEntries(db.dbConnection, db.tableName, where,
+                                       args.toArray(new String[args.size()]));
+}
+
+/** @return true if there are no keys in this view */
+public boolean isEmpty() {
+  return firstKey() == null;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// streaming
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * keyset pagination over the rows in this view, in key order. to get the next page, pass in the key of
+ * the last row of this page.
+ *
+ * @param afterKey null means start at the beginning of the view
+ * @param limit    max number of rows, must be positive
+ *
+ * @return this might be empty if there are no more rows, but will never be null
+ *
+ * @throws IllegalArgumentException if limit isn't positive
+ */
+public ArrayList<DBRow> getPage(String afterKey, int limit) {
+  if (limit <= 0) { throw new IllegalArgumentException("limit must be positive"); }
+  db.flush();
+  long start = db.stats.start();
+  ArrayList<DBRow> retval = new ArrayList<DBRow>(Math.min(limit, DBConstantsIF.ScanWindowSize));
+  if (db.engine != null) {
+    _engineGetPage(afterKey, limit, retval);
+    db.stats.record(DBStats.Op.Scan, start, retval.size(), DBStats.sizeOf(retval));
+    return retval;
+  }
+  ArrayList<String> args = new ArrayList<String>(3);
+  String where = _where(afterKey == null ? null : DB_kvp.Schema.COL_KEY + " > ?", afterKey, args);
+  Cursor cursor = db.dbConnection.query(db.tableName,
+                                        DB_kvp.Schema.COLS,
+                                        where,
+                                        args.toArray(new String[args.size()]),
+                                        null, null,
+                                        ASC,
+                                        String.valueOf(limit));
+  try {
+    int idIndex = cursor.getColumnIndex(DB_kvp.Schema.COL_ID);
+    int keyIndex = cursor.getColumnIndex(DB_kvp.Schema.COL_KEY);
+    int valueIndex = cursor.getColumnIndex(DB_kvp.Schema.COL_VALUE);
+    while (cursor.moveToNext()) {
+      retval.add(new DBRow(cursor.getLong(idIndex), cursor.getString(keyIndex), cursor.getString(valueIndex)));
+    }
+  }
+  finally {
+    cursor.close();
+  }
+  db.stats.record(DBStats.Op.Scan, start, retval.size(), DBStats.sizeOf(retval));
+  return retval;
+}
+
+/**
+ * stream the rows in this view through the given visitor, in key order, reading
+ * {@link DBConstantsIF#ScanWindowSize} rows at a time.
+ *
+ * @return the number of rows that were visited
+ */
+public long forEach(DBRowVisitor visitor) {
+  long count = 0;
+  String lastKey = null;
+  while (true) {
+    ArrayList<DBRow> window = getPage(lastKey, DBConstantsIF.ScanWindowSize);
+    for (DBRow row : window) {
+      count++;
+      if (!visitor.onRow(row)) { return count; }
+    }
+    if (window.size() < DBConstantsIF.ScanWindowSize) { return count; }
+    lastKey = window.get(window.size() - 1).key;
+  }
+}
+
+/**
+ * @return an iterator over the rows in this view, in key order. it reads one window of rows at a time,
+ * doesn't hold a cursor open between windows, and never needs to be closed.
+ */
+public Iterator<DBRow> iterator() {
+  return new Iterator<DBRow>() {
+    private ArrayList<DBRow> window = new ArrayList<DBRow>();
+    private int position;
+    private String lastKey;
+    private boolean done;
+
+    public boolean hasNext() {
+      if (position < window.size()) { return true; }
+      if (done) { return false; }
+      window = getPage(lastKey, DBConstantsIF.ScanWindowSize);
+      position = 0;
+      if (window.size() < DBConstantsIF.ScanWindowSize) { done = true; }
+      if (window.isEmpty()) { return false; }
+      lastKey = window.get(window.size() - 1).key;
+      return true;
+    }
+
+    public DBRow next() {
+      if (!hasNext()) { throw new NoSuchElementException(); }
+      return window.get(position++);
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException("this view is read-only");
+    }
+  };
+}
+
+/** @return all the keys in this view, in key order. this loads all of them, prefer {@link #forEach} */
+public ArrayList<String> keys() {
+  final ArrayList<String> retval = new ArrayList<String>();
+  forEach(new DBRowVisitor() {
+    public boolean onRow(DBRow row) {
+      retval.add(row.key);
+      return true;
+    }
+  });
+  return retval;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// query helpers
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+private boolean _inRange(String key) {
+  if (key == null) { return false; }
+  if (fromKey != null && key.compareTo(fromKey) < 0) { return false; }
+  if (toKey != null && key.compareTo(toKey) >= 0) { return false; }
+  return true;
+}
+
+/**
+ * build the where clause for the bounds of this view, plus an optional extra condition. expired rows are
+ * always left out.
+ *
+ * @param args the args for the where clause are added to this list
+ */
+private String _where(String extraCondition, String extraArg, ArrayList<String> args) {
+  StringBuilder where = new StringBuilder(DB_kvp.Schema.SQL_WHERE_LIVE);
+  if (fromKey != null) {
+    where.append(" and ").append(DB_kvp.Schema.COL_KEY).append(" >= ?");
+    args.add(fromKey);
+  }
+  if (toKey != null) {
+    where.append(" and ").append(DB_kvp.Schema.COL_KEY).append(" < ?");
+    args.add(toKey);
+  }
+  if (extraCondition != null) {
+    where.append(" and ").append(extraCondition);
+    args.add(extraArg);
+  }
+  return where.toString();
+}
+
+/** @return the first key (in the given order) in this view that matches the extra condition, or null */
+private String _key(String extraCondition, String extraArg, String orderBy) {
+  db.flush();
+  ArrayList<String> args = new ArrayList<String>(3);
+  String where = _where(extraCondition, extraArg, args);
+  Cursor cursor = db.dbConnection.query(db.tableName,
+                                        COLS_KEY,
+                                        where,
+                                        args.toArray(new String[args.size()]),
+                                        null, null,
+                                        orderBy,
+                                        "1");
+  try {
+    return cursor.moveToFirst() ? cursor.getString(0) : null;
+  }
+  finally {
+    cursor.close();
+  }
+}
+
+/** @return the bounds of this view, narrowed to [lower, upper); either one can be null, for no narrowing */
+private String[] _engineRange(String lower, String upper) {
+  String from = fromKey;
+  if (lower != null && (from == null || lower.compareTo(from) > 0)) { from = lower; }
+  String to = toKey;
+  if (upper != null && (to == null || upper.compareTo(to) < 0)) { to = upper; }
+  return new String[]{from, to};
+}
+
+/**
+ * same as {@link #_key(String, String, String)}, on the {@link DB_kvp#table}
+ *
+ * @param first true for the smallest key in [lower, upper), false for the largest one
+ */
+private String _engineKey(String lower, String upper, final boolean first) {
+  db.flush();
+  String[] range = _engineRange(lower, upper);
+  final long now = System.currentTimeMillis();
+  final String[] retval = {null};
+  db.table.scan(range[0], range[1], new ScanVisitor() {
+    public boolean onEntry(String key, byte[] record) {
+      if (KvpRecord.isAbsent(record, now)) { return true; }
+      retval[0] = key;
+      return !first;
+    }
+  });
+  return retval[0];
+}
+
+/** same as {@link #getPage(String, int)}, on the {@link DB_kvp#table} */
+private void _engineGetPage(String afterKey, final int limit, final ArrayList<DBRow> list) {
+  String[] range = _engineRange(afterKey == null ? null : afterKey + '\0', null);
+  final long now = System.currentTimeMillis();
+  db.table.scan(range[0], range[1], new ScanVisitor() {
+    public boolean onEntry(String key, byte[] record) {
+      if (KvpRecord.isAbsent(record, now)) { return true; }
+      list.add(new DBRow(KvpRecord.getId(record), key, KvpRecord.getValue(record)));
+      return list.size() < limit;
+    }
+  });
+}
+
+public String toString() {
+  return String.format("%s[%s, %s)", db.dbName,
+                       fromKey == null ? "-inf" : fromKey,
+                       toKey == null ? "+inf" : toKey);
+}
+
+}//end class KvpSortedView
@@ -0,0 +1,362 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db;
+
+import android.os.*;
+import zen.utlis.*;
+
+import java.util.*;
+
+/**
+ * Write-behind queue for a {@link DB_kvp}. When this is turned on (see
+ * {@link DB_kvp#enableWriteBehind(int, long)}), adds, updates, and removes by key don't touch the db on the
+ * caller's thread; they are put in an in-memory queue, and a dedicated writer thread writes them out
+ * in a single {@link DB_kvp.Batch} once {@link #maxPending} keys are queued, or the oldest queued write
+ * is {@link #maxDelayMs} old, whichever comes first.
+ * <p/>
+ * Writes are coalesced per key (the last write wins), so a key that's rewritten every few hundred ms
+ * only costs one row write per flush. Updates are queued as updates (not as adds), so the row keeps
+ * its {@link DB_kvp.Schema#COL_ID}. Until a write has been committed, {@link #lookup(String)} returns it,
+ * which is how {@link DB_kvp#get(String)} and {@link DB_kvp#get(long)} get to read their own writes.
+ * <p/>
+ * Use {@link #flush()} or {@link #awaitDurable(long)} when you need the writes to actually be on disk.
+ * {@link #shutdown()} stops the writer thread, and then flushes whatever is still queued on the
+ * caller's thread.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 1:05 PM
+ */
+public class KvpWriteBehind {
+
+private final DB_kvp db;
+private final int    maxPending;
+private final long   maxDelayMs;
+private final Object lock       = new Object();
+/** held while a batch is taken from the queue and committed, so batches are committed in order */
+private final Object commitLock = new Object();
+private final Thread writerThread;
+
+/** writes that are waiting for the writer thread */
+private LinkedHashMap<String, PendingWrite> pending  = new LinkedHashMap<String, PendingWrite>();
+/** writes that the writer thread is busy committing, these are still visible to {@link #lookup(String)} */
+private LinkedHashMap<String, PendingWrite> inFlight = null;
+/** when the oldest write in {@link #pending} was queued */
+private long    oldestPendingTime;
+/** sequence number of the last write that was queued */
+private long    queuedSeq;
+/** sequence number of the last write that was committed */
+private long    durableSeq;
+/** sequence number of the last write that the writer thread failed to commit */
+private long    failedSeq;
+private boolean stopped;
+
+/**
+ * create the queue and start its writer thread
+ *
+ * @param maxPending flush as soon as this many keys are queued
+ * @param maxDelayMs flush once the oldest queued write is this old
+ */
+public KvpWriteBehind(DB_kvp db, int maxPending, long maxDelayMs) {
+  if (maxPending <= 0 || maxDelayMs <= 0) { throw new IllegalArgumentException("maxPending and maxDelayMs must be positive"); }
+  this.db = db;
+  this.maxPending = maxPending;
+  this.maxDelayMs = maxDelayMs;
+  writerThread = new Thread(new Runnable() {
+    public void run() {
+      _writerLoop();
+    }
+  }, "KvpWriteBehind-" + db.dbName);
+  writerThread.setDaemon(true);
+  writerThread.start();
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// queueing writes
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * queue an add (or replace) of the given key value pair
+ *
+ * @param expiresAt when the row expires, 0 means never; see {@link DB_kvp#setDefaultTtl(long)}
+ */
+public void put(String key, String value, long expiresAt) {
+  _queue(key, new PendingWrite(value, expiresAt, false));
+}
+
+/**
+ * queue an update of the given key, this only changes the row if the key exists when it's written, and
+ * the row keeps its {@link DB_kvp.Schema#COL_ID}
+ *
+ * @param expiresAt when the row expires, 0 means never; see {@link DB_kvp#setDefaultTtl(long)}
+ */
+public void update(String key, String value, long expiresAt) {
+  _queue(key, new PendingWrite(value, expiresAt, true));
+}
+
+/** queue a removal of the given key */
+public void remove(String key) {
+  _queue(key, PendingWrite.REMOVED);
+}
+
+private void _queue(String key, PendingWrite write) {
+  synchronized (lock) {
+    if (stopped) { throw new IllegalStateException("write-behind queue for " + db.dbName + " has been shut down"); }
+    if (pending.isEmpty()) { oldestPendingTime = SystemClock.uptimeMillis(); }
+    pending.put(key, PendingWrite.merge(pending.get(key), write));
+    queuedSeq++;
+    if (pending.size() == 1 || pending.size() >= maxPending) { lock.notifyAll(); }
+  }
+}
+
+/**
+ * @return null if there's no write queued for the key. otherwise the queued write, whose
+ * {@link PendingWrite#removed} is true if the key is going to be removed.
+ */
+public PendingWrite lookup(String key) {
+  synchronized (lock) {
+    PendingWrite write = pending.get(key);
+    if (write == null && inFlight != null) { write = inFlight.get(key); }
+    return write;
+  }
+}
+
+/** @return number of keys that haven't been committed yet */
+public int getPendingCount() {
+  synchronized (lock) {
+    return pending.size() + (inFlight == null ? 0 : inFlight.size());
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// durability
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * write out everything that's queued right now, on the caller's thread, instead of handing it to the
+ * writer thread and waiting for it. if the writer thread is busy committing, this waits for it to finish
+ * first, so that the writes are committed in the order they were queued. this returns right away if
+ * nothing is queued.
+ *
+ * @return false if the writes couldn't be committed (the error is logged, and they stay queued for the
+ * next flush), or if this is called while a flush is running on this thread (eg from a change listener)
+ */
+public boolean flush() {
+  synchronized (lock) {
+    if (pending.isEmpty() && inFlight == null) { return true; }
+  }
+  return _commitPending();
+}
+
+/**
+ * block until all the writes that were queued before this call have been committed, without asking
+ * for an early flush.
+ *
+ * @param timeoutMs max time to wait, 0 means wait forever
+ *
+ * @return true if they were committed, false if the wait timed out or the writer thread failed to
+ * commit them
+ */
+public boolean awaitDurable(long timeoutMs) {
+  if (Thread.currentThread() == writerThread) { return false; }
+  long deadline = timeoutMs > 0 ? SystemClock.uptimeMillis() + timeoutMs : Long.MAX_VALUE;
+  synchronized (lock) {
+    long targetSeq = queuedSeq;
+    try {
+      while (durableSeq < targetSeq) {
+        if (failedSeq >= targetSeq) { return false; }
+        if (stopped && !writerThread.isAlive()) { return false; }
+        long wait = deadline - SystemClock.uptimeMillis();
+        if (wait <= 0) { return false; }
+        lock.wait(deadline == Long.MAX_VALUE ? 0 : wait);
+      }
+      return true;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+}
+
+/**
+ * stop the writer thread, and then flush everything that's still queued on the caller's thread. nothing
+ * can be queued after this.
+ *
+ * @return false if the queued writes couldn't be committed. each of the keys that wasn't written is
+ * logged as an error, and the writes are kept in this queue (see {@link #getPendingCount()}), so that
+ * {@link #flush()} can retry them.
+ */
+public boolean shutdown() {
+  synchronized (lock) {
+    if (!stopped) {
+      stopped = true;
+      lock.notifyAll();
+    }
+  }
+  try {
+    writerThread.join();
+  }
+  catch (InterruptedException e) {
+    Thread.currentThread().interrupt();
+  }
+  if (_commitPending()) { return true; }
+  synchronized (lock) {
+    for (Map.Entry<String, PendingWrite> entry : pending.entrySet()) {
+      AndroidUtils.logErr(IconPaths.Storage,
+                          String.format("KvpWriteBehind - [%s] shut down without writing key:%s, removed:%b",
+                                        db.dbName, entry.getKey(), entry.getValue().removed));
+    }
+  }
+  return false;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// writer thread
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+private void _writerLoop() {
+  while (true) {
+    synchronized (lock) {
+      try {
+        while (true) {
+          // shutdown() flushes whatever is left, on its own thread
+          if (stopped) { return; }
+          if (pending.isEmpty()) {
+            lock.wait();
+            continue;
+          }
+          long age = SystemClock.uptimeMillis() - oldestPendingTime;
+          if (pending.size() >= maxPending || age >= maxDelayMs) { break; }
+          lock.wait(maxDelayMs - age);
+        }
+      }
+      catch (InterruptedException e) {
+        // keep going, shutdown() is the only way to stop this thread
+        continue;
+      }
+    }
+    _commitPending();
+  }
+}
+
+/**
+ * take everything that's queued, and commit it in one {@link DB_kvp.Batch} on the caller's thread
+ *
+ * @return false if the commit failed (the writes that haven't been superseded are put back in the
+ * queue, so they're retried on the next flush)
+ */
+private boolean _commitPending() {
+  // a flush from inside this commit (eg from a change listener) can't wait for it to finish
+  if (Thread.holdsLock(commitLock)) { return false; }
+  synchronized (commitLock) {
+    LinkedHashMap<String, PendingWrite> toWrite;
+    long seq;
+    synchronized (lock) {
+      if (pending.isEmpty()) { return true; }
+      toWrite = pending;
+      inFlight = toWrite;
+      pending = new LinkedHashMap<String, PendingWrite>();
+      seq = queuedSeq;
+    }
+
+    boolean committed = false;
+    try {
+      DB_kvp.Batch batch = db.batch();
+      for (Map.Entry<String, PendingWrite> entry : toWrite.entrySet()) {
+        PendingWrite write = entry.getValue();
+        if (write.removed) { batch.remove(entry.getKey()); }
+        else if (write.update) { batch.updateExpiringAt(entry.getKey(), write.value, write.expiresAt); }
+        else { batch.addExpiringAt(entry.getKey(), write.value, write.expiresAt); }
+      }
+      batch._commit();
+      committed = true;
+    }
+    catch (Exception e) {
+      AndroidUtils.logErr(IconPaths.Storage,
+                          String.format("KvpWriteBehind - [%s] problem writing %d keys", db.dbName, toWrite.size()),
+                          e);
+    }
+
+    synchronized (lock) {
+      inFlight = null;
+      if (committed) { durableSeq = seq; }
+      else {
+        // put back the writes, merged with the ones that were queued since, so they're retried on the next flush
+        failedSeq = seq;
+        LinkedHashMap<String, PendingWrite> queued = pending;
+        pending = toWrite;
+        for (Map.Entry<String, PendingWrite> entry : queued.entrySet()) {
+          pending.put(entry.getKey(), PendingWrite.merge(pending.get(entry.getKey()), entry.getValue()));
+        }
+        oldestPendingTime = SystemClock.uptimeMillis();
+      }
+      lock.notifyAll();
+    }
+    return committed;
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// queued write
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** an immutable write that's waiting to be committed */
+public static class PendingWrite {
+
+  static final PendingWrite REMOVED = new PendingWrite(null, 0, false);
+
+  /** the new value, null if the key is being removed */
+  public final String  value;
+  /** true if the key is being removed */
+  public final boolean removed;
+  /** true if the key is only updated if it exists (keeping its row id), false if it's added or replaced */
+  public final boolean update;
+  /** when the new value expires (ms since the epoch), 0 means never */
+  public final long    expiresAt;
+
+  private PendingWrite(String value, long expiresAt, boolean update) {
+    this.value = value;
+    this.removed = value == null;
+    this.update = update;
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * coalesce two writes to the same key
+   *
+   * @param older the write that was queued first, can be null
+   *
+   * @return the write that has the same effect as running older, and then newer
+   */
+  static PendingWrite merge(PendingWrite older, PendingWrite newer) {
+    if (older == null || !newer.update) { return newer; }
+    // updating a key that's being removed doesn't bring it back
+    if (older.removed) { return older; }
+    // the key is being added, so add it with the new value
+    if (!older.update) { return new PendingWrite(newer.value, newer.expiresAt, false); }
+    return newer;
+  }
+
+  /** @return true if the new value has expired (by the given time), so the key should be treated as absent */
+  public boolean isExpired(long now) {
+    return expiresAt > 0 && expiresAt <= now;
+  }
+
+}//end class PendingWrite
+
+}//end class KvpWriteBehind
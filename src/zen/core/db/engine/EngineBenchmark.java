@@ -0,0 +1,199 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db.engine;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Load test for a {@link StorageEngine}. It doesn't depend on Android, so it can be run on a plain JVM
+ * (eg: in CI), against a {@link JdbcStorageEngine}, at production data sizes:
+ * <pre>
+ * java -cp zen.jar:sqlite-jdbc.jar zen.core.db.engine.EngineBenchmark jdbc:sqlite:/tmp/bench.db 1000000 256
+ * java -cp zen.jar zen.core.db.engine.EngineBenchmark log:/tmp/bench_log 1000000 256
+ * </pre>
+ * On a device, pass a {@link SQLiteStorageEngine} (or any other engine) to {@link #run(StorageEngine, int, int)}
+ * instead. Like {@link zen.core.db.DBBenchmark}, this writes to (and then clears) the engine that's passed
+ * in, so only run it on a scratch engine.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:40 PM
+ */
+public class EngineBenchmark {
+
+/** number of writes per {@link WriteBatch} in the batched phases */
+public static final int BatchSize = 1000;
+
+private EngineBenchmark() {}
+
+/**
+ * args: [jdbc url, or log:dir for a {@link LogStructuredEngine}, default is an in-memory sqlite db]
+ * [rows, default 100000] [value bytes, default 256]
+ */
+public static void main(String[] args) {
+  String url = args.length > 0 ? args[0] : "jdbc:sqlite::memory:";
+  int rows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+  int valueBytes = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+  StorageEngine engine = url.startsWith("log:") ? LogStructuredEngine.open(new File(url.substring(4)))
+                                                : JdbcStorageEngine.open(url, "bench");
+  try {
+    System.out.println(String.format("EngineBenchmark - [%s] rows:%d valueBytes:%d",
+                                     engine.getName(), rows, valueBytes));
+    for (Result result : run(engine, rows, valueBytes)) {
+      System.out.println(" .. " + result);
+    }
+  }
+  finally {
+    engine.close();
+  }
+}
+
+/**
+ * load the engine with the given number of rows, and then time point reads (hits and misses), a full scan,
+ * overwrites, and deletes on it. the keys are read and written in a random (but repeatable) order.
+ *
+ * @return one result per phase, in the order they ran
+ */
+public static ArrayList<Result> run(final StorageEngine engine, final int rows, int valueBytes) {
+  final String[] keys = new String[rows];
+  final int[] order = new int[rows];
+  Random random = new Random(rows);
+  for (int i = 0; i < rows; i++) {
+    keys[i] = String.format("bench_key_%010d", i);
+    order[i] = i;
+  }
+  for (int i = rows - 1; i > 0; i--) {
+    int j = random.nextInt(i + 1);
+    int swap = order[i];
+    order[i] = order[j];
+    order[j] = swap;
+  }
+  final byte[] value = new byte[valueBytes];
+  random.nextBytes(value);
+
+  ArrayList<Result> retval = new ArrayList<Result>();
+  engine.clear();
+
+  retval.add(_measure("batched put", rows, new Runnable() {
+    public void run() {
+      WriteBatch batch = new WriteBatch();
+      for (int i : order) {
+        batch.put(keys[i], value);
+        if (batch.size() == BatchSize) {
+          engine.write(batch);
+          batch.clear();
+        }
+      }
+      engine.write(batch);
+    }
+  }));
+  retval.add(_measure("get hit", rows, new Runnable() {
+    public void run() {
+      for (int i : order) {
+        if (engine.get(keys[i]) == null) { throw new StorageException("missing key:" + keys[i]); }
+      }
+    }
+  }));
+  retval.add(_measure("get miss", rows, new Runnable() {
+    public void run() {
+      for (int i : order) {
+        if (engine.get(keys[i] + "_missing") != null) { throw new StorageException("unexpected key"); }
+      }
+    }
+  }));
+  retval.add(_measure("scan", rows, new Runnable() {
+    public void run() {
+      long count = engine.scan(null, null, new ScanVisitor() {
+        public boolean onEntry(String key, byte[] value) {
+          return true;
+        }
+      });
+      if (count != rows) { throw new StorageException("scanned " + count + " of " + rows + " rows"); }
+    }
+  }));
+
+  // single writes are a lot slower than batched ones (one commit each), so only a slice of the keys is used
+  final int singleOps = Math.min(rows, BatchSize * 10);
+  retval.add(_measure("put", singleOps, new Runnable() {
+    public void run() {
+      for (int n = 0; n < singleOps; n++) {
+        engine.put(keys[order[n]], value);
+      }
+    }
+  }));
+  retval.add(_measure("delete", singleOps, new Runnable() {
+    public void run() {
+      for (int n = 0; n < singleOps; n++) {
+        engine.delete(keys[order[n]]);
+      }
+    }
+  }));
+  retval.add(_measure("batched delete", rows - singleOps, new Runnable() {
+    public void run() {
+      WriteBatch batch = new WriteBatch();
+      for (int n = singleOps; n < rows; n++) {
+        batch.delete(keys[order[n]]);
+        if (batch.size() == BatchSize) {
+          engine.write(batch);
+          batch.clear();
+        }
+      }
+      engine.write(batch);
+    }
+  }));
+
+  if (engine.count() != 0) { throw new StorageException("rows left after deleting all of them"); }
+  return retval;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// measuring
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** run the given code once, and measure its time */
+static Result _measure(String name, int ops, Runnable code) {
+  long start = System.nanoTime();
+  code.run();
+  return new Result(name, ops, System.nanoTime() - start);
+}
+
+/** the cost of running one phase of the benchmark */
+public static class Result {
+
+  public final String name;
+  public final int    ops;
+  public final long   nanos;
+
+  Result(String name, int ops, long nanos) {
+    this.name = name;
+    this.ops = ops;
+    this.nanos = nanos;
+  }
+
+  public double getMicrosPerOp() {return ops == 0 ? 0 : nanos / 1000d / ops;}
+
+  public double getOpsPerSecond() {return nanos == 0 ? 0 : ops * 1e9d / nanos;}
+
+  public String toString() {
+    return String.format("%-16s %8.1f us/op %12.0f ops/s", name, getMicrosPerOp(), getOpsPerSecond());
+  }
+
+}//end class Result
+
+}//end class EngineBenchmark
@@ -0,0 +1,76 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db.engine;
+
+/**
+ * The statements for the table of an SQL backed {@link StorageEngine}. {@link SQLiteStorageEngine} and
+ * {@link JdbcStorageEngine} run exactly the same SQL (in the SQLite dialect), so that a benchmark run on
+ * a JVM with sqlite-jdbc exercises the same queries as the app does on a device.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:40 PM
+ */
+class EngineSql {
+
+static final String COL_KEY   = "key";
+static final String COL_VALUE = "value";
+
+final String table;
+final String createTable;
+final String get;
+final String put;
+final String delete;
+final String count;
+final String clear;
+
+EngineSql(String table) {
+  this.table = table;
+  createTable = "create table if not exists " + table + " (" +
+                COL_KEY + " text primary key not null, " +
+                COL_VALUE + " blob not null)";
+  get = "select " + COL_VALUE + " from " + table + " where " + COL_KEY + " = ?";
+  put = "insert or replace into " + table + " (" + COL_KEY + ", " + COL_VALUE + ") values (?, ?)";
+  delete = "delete from " + table + " where " + COL_KEY + " = ?";
+  count = "select count(*) from " + table;
+  clear = "delete from " + table;
+}
+
+/**
+ * @return the query for {@link StorageEngine#scan(String, String, ScanVisitor)}, its args are the bounds
+ * that are used (fromKey first)
+ */
+String scan(boolean hasFrom, boolean hasTo) {
+  StringBuilder sb = new StringBuilder();
+  sb.append("select ").append(COL_KEY).append(", ").append(COL_VALUE).append(" from ").append(table);
+  if (hasFrom || hasTo) { sb.append(" where "); }
+  if (hasFrom) { sb.append(COL_KEY).append(" >= ?"); }
+  if (hasFrom && hasTo) { sb.append(" and "); }
+  if (hasTo) { sb.append(COL_KEY).append(" < ?"); }
+  sb.append(" order by ").append(COL_KEY);
+  return sb.toString();
+}
+
+/** @return the args for {@link #scan(boolean, boolean)}, leaving out the null bounds */
+static String[] scanArgs(String fromKey, String toKey) {
+  if (fromKey != null && toKey != null) { return new String[]{fromKey, toKey}; }
+  if (fromKey != null) { return new String[]{fromKey}; }
+  if (toKey != null) { return new String[]{toKey}; }
+  return new String[0];
+}
+
+}//end class EngineSql
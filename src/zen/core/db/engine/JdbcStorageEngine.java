@@ -0,0 +1,317 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db.engine;
+
+import java.sql.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link StorageEngine} that keeps its entries in a table of a JDBC database. It doesn't depend on
+ * Android at all, so it's the reference engine for running the storage layer on a plain JVM (eg: in CI),
+ * at production data sizes. It runs the same {@link EngineSql} as {@link SQLiteStorageEngine}, which is in
+ * the SQLite dialect, so the driver should be <a href="https://github.com/xerial/sqlite-jdbc">sqlite-jdbc</a>:
+ * <pre>
+ * StorageEngine engine = JdbcStorageEngine.open("jdbc:sqlite:/tmp/kvp.db", "kvp");
+ * </pre>
+ * A JDBC {@link Connection} can't be used by more than one thread at a time, so every call is serialized on
+ * this engine, and a thread that's in {@link #runInTransaction(Callable)} keeps the other threads out until
+ * it's done.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:40 PM
+ */
+public class JdbcStorageEngine implements StorageEngine {
+
+private final Connection connection;
+private final EngineSql  sql;
+/** true if {@link #close()} closes the connection */
+private final boolean    ownsConnection;
+
+private PreparedStatement getStmt;
+private PreparedStatement putStmt;
+private PreparedStatement deleteStmt;
+
+/** number of transactions that the current thread is nested in, 0 means auto commit */
+private int     transactionDepth;
+/** set when a nested transaction fails, so that the outermost one is rolled back */
+private boolean rollbackOnly;
+
+/**
+ * keep the entries in the given table of the connection, it's created if it doesn't exist
+ *
+ * @param ownsConnection true to close the connection in {@link #close()}
+ *
+ * @throws StorageException if the table can't be created
+ */
+public JdbcStorageEngine(Connection connection, String table, boolean ownsConnection) {
+  this.connection = connection;
+  this.sql = new EngineSql(table);
+  this.ownsConnection = ownsConnection;
+  try {
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute(sql.createTable);
+    }
+    finally {
+      statement.close();
+    }
+    getStmt = connection.prepareStatement(sql.get);
+    putStmt = connection.prepareStatement(sql.put);
+    deleteStmt = connection.prepareStatement(sql.delete);
+  }
+  catch (SQLException e) {
+    throw new StorageException("problem creating table " + table, e);
+  }
+}
+
+/**
+ * open a connection to the given JDBC url, and keep the entries in the given table. sqlite-jdbc
+ * connections are put in write-ahead logging mode, same as the dbs on the device.
+ *
+ * @throws StorageException if the connection can't be opened
+ */
+public static JdbcStorageEngine open(String url, String table) {
+  try {
+    Connection connection = DriverManager.getConnection(url);
+    if (url.startsWith("jdbc:sqlite:")) {
+      Statement statement = connection.createStatement();
+      try {
+        statement.execute("PRAGMA journal_mode = WAL");
+      }
+      finally {
+        statement.close();
+      }
+    }
+    return new JdbcStorageEngine(connection, table, true);
+  }
+  catch (SQLException e) {
+    throw new StorageException("problem opening " + url, e);
+  }
+}
+
+public String getName() {
+  try {
+    return "jdbc:" + connection.getMetaData().getURL() + "/" + sql.table;
+  }
+  catch (SQLException e) {
+    return "jdbc:?/" + sql.table;
+  }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// reads
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+public synchronized byte[] get(String key) {
+  try {
+    getStmt.setString(1, key);
+    ResultSet resultSet = getStmt.executeQuery();
+    try {
+      return resultSet.next() ? resultSet.getBytes(1) : null;
+    }
+    finally {
+      resultSet.close();
+    }
+  }
+  catch (SQLException e) {
+    throw new StorageException("problem getting key:" + key + " from " + getName(), e);
+  }
+}
+
+public synchronized long count() {
+  try {
+    Statement statement = connection.createStatement();
+    try {
+      ResultSet resultSet = statement.executeQuery(sql.count);
+      return resultSet.next() ? resultSet.getLong(1) : 0;
+    }
+    finally {
+      statement.close();
+    }
+  }
+  catch (SQLException e) {
+    throw new StorageException("problem counting " + getName(), e);
+  }
+}
+
+public synchronized long scan(String fromKey, String toKey, ScanVisitor visitor) {
+  long count = 0;
+  try {
+    PreparedStatement statement = connection.prepareStatement(sql.scan(fromKey != null, toKey != null));
+    try {
+      String[] args = EngineSql.scanArgs(fromKey, toKey);
+      for (int i = 0; i < args.length; i++) {
+        statement.setString(i + 1, args[i]);
+      }
+      ResultSet resultSet = statement.executeQuery();
+      while (resultSet.next()) {
+        count++;
+        if (!visitor.onEntry(resultSet.getString(1), resultSet.getBytes(2))) { break; }
+      }
+    }
+    finally {
+      statement.close();
+    }
+  }
+  catch (SQLException e) {
+    throw new StorageException("problem scanning " + getName(), e);
+  }
+  return count;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// writes
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+public synchronized void put(String key, byte[] value) {
+  try {
+    _put(key, value);
+  }
+  catch (SQLException e) {
+    throw new StorageException("problem putting key:" + key + " in " + getName(), e);
+  }
+}
+
+public synchronized boolean delete(String key) {
+  try {
+    return _delete(key);
+  }
+  catch (SQLException e) {
+    throw new StorageException("problem deleting key:" + key + " from " + getName(), e);
+  }
+}
+
+public synchronized void write(WriteBatch batch) {
+  if (batch.isEmpty()) { return; }
+  boolean success = false;
+  _begin();
+  try {
+    for (int i = 0; i < batch.size(); i++) {
+      if (batch.isDelete(i)) { _delete(batch.getKey(i)); }
+      else { _put(batch.getKey(i), batch.getValue(i)); }
+    }
+    success = true;
+  }
+  catch (SQLException e) {
+    throw new StorageException("problem writing batch of " + batch.size() + " to " + getName(), e);
+  }
+  finally {
+    _end(success);
+  }
+}
+
+public synchronized <T> T runInTransaction(Callable<T> body) {
+  boolean success = false;
+  _begin();
+  try {
+    T retval = body.call();
+    success = true;
+    return retval;
+  }
+  catch (RuntimeException e) {
+    throw e;
+  }
+  catch (Exception e) {
+    throw new StorageException("problem running transaction on " + getName(), e);
+  }
+  finally {
+    _end(success);
+  }
+}
+
+public synchronized void clear() {
+  try {
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute(sql.clear);
+    }
+    finally {
+      statement.close();
+    }
+  }
+  catch (SQLException e) {
+    throw new StorageException("problem clearing " + getName(), e);
+  }
+}
+
+public synchronized void close() {
+  try {
+    getStmt.close();
+    putStmt.close();
+    deleteStmt.close();
+    if (ownsConnection) { connection.close(); }
+  }
+  catch (SQLException e) {
+    throw new StorageException("problem closing " + getName(), e);
+  }
+}
+
+private void _put(String key, byte[] value) throws SQLException {
+  putStmt.setString(1, key);
+  putStmt.setBytes(2, value);
+  putStmt.executeUpdate();
+}
+
+private boolean _delete(String key) throws SQLException {
+  deleteStmt.setString(1, key);
+  return deleteStmt.executeUpdate() > 0;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// transactions
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** only the outermost call actually starts a transaction, call this while holding the lock */
+private void _begin() {
+  if (transactionDepth == 0) {
+    try {
+      connection.setAutoCommit(false);
+    }
+    catch (SQLException e) {
+      throw new StorageException("problem starting transaction on " + getName(), e);
+    }
+  }
+  transactionDepth++;
+}
+
+/**
+ * only the outermost call commits (or rolls back); like Android's nested transactions, the outermost one
+ * is rolled back if any of the ones nested in it failed
+ */
+private void _end(boolean success) {
+  if (!success) { rollbackOnly = true; }
+  if (--transactionDepth > 0) { return; }
+  try {
+    if (rollbackOnly) { connection.rollback(); }
+    else { connection.commit(); }
+  }
+  catch (SQLException e) {
+    throw new StorageException("problem ending transaction on " + getName(), e);
+  }
+  finally {
+    rollbackOnly = false;
+    try {
+      connection.setAutoCommit(true);
+    }
+    catch (SQLException e) {
+      // the next _begin() sets it again anyway
+    }
+  }
+}
+
+}//end class JdbcStorageEngine
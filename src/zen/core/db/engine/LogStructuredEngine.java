@@ -0,0 +1,1380 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db.engine;
+
+import zen.core.db.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+/**
+ * A {@link StorageEngine} that never updates anything in place: every write is appended to a log, and an
+ * in-memory hash index maps each key to where its latest value is in the log. This is meant for the
+ * write-heavy stores (counters, session state that's rewritten every few seconds), where the B-tree
+ * updates of SQLite, and the vacuums that follow the deletes, cost a lot more I/O than the data is worth.
+ * <p/>
+ * The log is a dir of segment files, named by an increasing id. Only the newest one (the active segment)
+ * is written to; once it's {@link DBConstantsIF#LogSegmentBytes} long, it's sealed and memory mapped, and
+ * the reads of the keys in it go through the mapping. Each write (a single put/delete, a {@link WriteBatch},
+ * or all the writes of a {@link #runInTransaction(Callable)}) is appended as one frame:
+ * <pre>
+ * segment: [magic: int][version: short][flags: short] frame*
+ * frame:   [crc32 of the payload: int][payload length: int] payload
+ * payload: [entry count: int] ([key length: int][value length: int, -1 for a delete][key: UTF-8][value])*
+ * </pre>
+ * A frame is only applied if its checksum matches, so a batch or transaction is never half applied. When
+ * the engine is opened, the index is rebuilt by replaying the segments oldest first; a torn or corrupt
+ * frame at the end of the last segment (the app, or the device, died in the middle of a write) is
+ * truncated away, along with anything after it.
+ * <p/>
+ * Overwrites and deletes leave garbage behind in the sealed segments. Once there's enough of it (see
+ * {@link DBConstantsIF#LogCompactionGarbageRatio}), a background thread merges all the sealed segments
+ * into one that only has the live entries, without blocking the readers and writers for more than the
+ * swap at the end (see {@link #compact()}). The merged segment is flagged as compacted, which makes it
+ * supersede all the segments older than it, so a compaction that dies before it deletes its inputs
+ * doesn't bring back deleted keys.
+ * <p/>
+ * Reads share a lock, writes (and transactions) hold it exclusively. {@link #scan(String, String,
+ * ScanVisitor)} has to sort the keys, since the index is a hash map. The whole key set is kept in memory,
+ * so this is for stores with a moderate number of keys (which is what a kvp store on a device is).
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 5:10 PM
+ */
+public class LogStructuredEngine implements StorageEngine, DBConstantsIF {
+
+public static final int SEGMENT_MAGIC   = 0x5A4C4F47;
+public static final int SEGMENT_VERSION = 1;
+
+private static final int    SEGMENT_HEADER         = 8;
+private static final int    FLAG_COMPACTED         = 1;
+private static final int    FRAME_HEADER           = 8;
+private static final int    ENTRY_HEADER           = 8;
+private static final int    TOMBSTONE              = -1;
+/** compaction cuts its output into frames of about this size */
+private static final int    COMPACTION_FRAME_BYTES = 64 * 1024;
+private static final String SEGMENT_PREFIX         = "segment-";
+private static final String SEGMENT_SUFFIX         = ".log";
+private static final String COMPACTION_SUFFIX      = ".compact";
+private static final byte[] DELETED                = new byte[0];
+private static final Charset UTF8                  = Charset.forName("UTF-8");
+
+private final File    dir;
+private final int     segmentBytes;
+private final boolean syncWrites;
+
+private final ReentrantReadWriteLock lock     = new ReentrantReadWriteLock();
+private final HashMap<String, Location> index = new HashMap<String, Location>();
+/** oldest first, the last one is the active segment */
+private final ArrayList<Segment>     segments = new ArrayList<Segment>();
+private       Segment                active;
+private       boolean                closed;
+
+/** writes of the transaction that the thread holding the write lock is in, {@link #DELETED} for deletes */
+private LinkedHashMap<String, byte[]> pending;
+/** number of transactions that the thread holding the write lock is nested in */
+private int                           transactionDepth;
+/** set when a nested transaction fails, so that the outermost one is dropped */
+private boolean                       rollbackOnly;
+
+private final Object        compactionLock      = new Object();
+private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+private ExecutorService     compactionExecutor;
+private volatile Runnable   compactionListener;
+
+private          long droppedBytes;
+private volatile long compactionCount;
+private volatile long bytesReclaimed;
+
+/**
+ * open (or create) the log in the given dir, and rebuild the index from it
+ *
+ * @param segmentBytes seal the active segment once it's this big
+ * @param syncWrites   force every write to storage before it returns, see {@link DBConstantsIF#LogSyncWrites}
+ *
+ * @throws StorageException if the dir can't be created, or the segments in it can't be read
+ */
+public LogStructuredEngine(File dir, int segmentBytes, boolean syncWrites) {
+  if (segmentBytes < 1024) { throw new IllegalArgumentException("segmentBytes too small:" + segmentBytes); }
+  this.dir = dir;
+  this.segmentBytes = segmentBytes;
+  this.syncWrites = syncWrites;
+  if (!dir.isDirectory() && !dir.mkdirs()) { throw new StorageException("can't create dir " + dir); }
+  try {
+    _recover();
+  }
+  catch (IOException e) {
+    _closeSegments();
+    throw new StorageException("problem opening " + getName(), e);
+  }
+}
+
+/** open the log in the given dir, with the segment size and sync policy in {@link DBConstantsIF} */
+public static LogStructuredEngine open(File dir) {
+  return new LogStructuredEngine(dir, LogSegmentBytes, LogSyncWrites);
+}
+
+public String getName() {
+  return "log:" + dir.getPath();
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// reads
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+public byte[] get(String key) {
+  lock.readLock().lock();
+  try {
+    _checkOpen();
+    if (_inTransaction()) {
+      byte[] value = pending.get(key);
+      if (value != null) { return value == DELETED ? null : value; }
+    }
+    Location location = index.get(key);
+    return location == null ? null : location.segment.read(location.valueOffset, location.valueLength);
+  }
+  catch (IOException e) {
+    throw new StorageException("problem getting key:" + key + " from " + getName(), e);
+  }
+  finally {
+    lock.readLock().unlock();
+  }
+}
+
+public long count() {
+  lock.readLock().lock();
+  try {
+    _checkOpen();
+    long retval = index.size();
+    if (_inTransaction()) {
+      for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+        boolean exists = index.containsKey(entry.getKey());
+        if (entry.getValue() == DELETED && exists) { retval--; }
+        else if (entry.getValue() != DELETED && !exists) { retval++; }
+      }
+    }
+    return retval;
+  }
+  finally {
+    lock.readLock().unlock();
+  }
+}
+
+/**
+ * the keys in range are sorted up front (under the read lock), and then the values are read one at a time,
+ * so the visitor doesn't hold up the writers, and can even write to this engine itself. keys that are
+ * deleted while the scan is running are skipped.
+ */
+public long scan(String fromKey, String toKey, ScanVisitor visitor) {
+  TreeSet<String> keys = new TreeSet<String>();
+  lock.readLock().lock();
+  try {
+    _checkOpen();
+    for (String key : index.keySet()) {
+      if (_inRange(key, fromKey, toKey)) { keys.add(key); }
+    }
+    if (_inTransaction()) {
+      for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+        if (!_inRange(entry.getKey(), fromKey, toKey)) { continue; }
+        if (entry.getValue() == DELETED) { keys.remove(entry.getKey()); }
+        else { keys.add(entry.getKey()); }
+      }
+    }
+  }
+  finally {
+    lock.readLock().unlock();
+  }
+
+  long count = 0;
+  for (String key : keys) {
+    byte[] value = get(key);
+    if (value == null) { continue; }
+    count++;
+    if (!visitor.onEntry(key, value)) { break; }
+  }
+  return count;
+}
+
+private static boolean _inRange(String key, String fromKey, String toKey) {
+  return (fromKey == null || key.compareTo(fromKey) >= 0) && (toKey == null || key.compareTo(toKey) < 0);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// writes
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+public void put(String key, byte[] value) {
+  if (value == null) { throw new IllegalArgumentException("value can't be null, key:" + key); }
+  lock.writeLock().lock();
+  try {
+    _checkOpen();
+    if (_inTransaction()) { pending.put(key, value); }
+    else { _append(new String[]{key}, new byte[][]{value}, 1); }
+  }
+  finally {
+    lock.writeLock().unlock();
+  }
+  _maybeScheduleCompaction();
+}
+
+/** a delete is only written to the log if the key exists */
+public boolean delete(String key) {
+  boolean existed;
+  lock.writeLock().lock();
+  try {
+    _checkOpen();
+    byte[] value = _inTransaction() ? pending.get(key) : null;
+    existed = value != null ? value != DELETED : index.containsKey(key);
+    if (existed) {
+      if (_inTransaction()) { pending.put(key, DELETED); }
+      else { _append(new String[]{key}, new byte[][]{null}, 1); }
+    }
+  }
+  finally {
+    lock.writeLock().unlock();
+  }
+  if (existed) { _maybeScheduleCompaction(); }
+  return existed;
+}
+
+/** the whole batch is appended as one frame */
+public void write(WriteBatch batch) {
+  if (batch.isEmpty()) { return; }
+  lock.writeLock().lock();
+  try {
+    _checkOpen();
+    if (_inTransaction()) {
+      for (int i = 0; i < batch.size(); i++) {
+        pending.put(batch.getKey(i), batch.isDelete(i) ? DELETED : batch.getValue(i));
+      }
+    }
+    else {
+      String[] keys = new String[batch.size()];
+      byte[][] values = new byte[batch.size()][];
+      for (int i = 0; i < batch.size(); i++) {
+        keys[i] = batch.getKey(i);
+        values[i] = batch.isDelete(i) ? null : batch.getValue(i);
+      }
+      _append(keys, values, keys.length);
+    }
+  }
+  finally {
+    lock.writeLock().unlock();
+  }
+  _maybeScheduleCompaction();
+}
+
+/**
+ * the write lock is held while the body runs, and its writes are buffered in memory; the outermost call
+ * appends all of them as one frame
+ */
+public <T> T runInTransaction(Callable<T> body) {
+  lock.writeLock().lock();
+  try {
+    _checkOpen();
+    if (transactionDepth == 0) { pending = new LinkedHashMap<String, byte[]>(); }
+    transactionDepth++;
+    boolean success = false;
+    try {
+      T retval = body.call();
+      success = true;
+      return retval;
+    }
+    catch (RuntimeException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new StorageException("problem running transaction on " + getName(), e);
+    }
+    finally {
+      _endTransaction(success);
+    }
+  }
+  finally {
+    lock.writeLock().unlock();
+    _maybeScheduleCompaction();
+  }
+}
+
+private void _endTransaction(boolean success) {
+  if (!success) { rollbackOnly = true; }
+  if (--transactionDepth > 0) { return; }
+  LinkedHashMap<String, byte[]> writes = pending;
+  boolean rollback = rollbackOnly;
+  pending = null;
+  rollbackOnly = false;
+  if (rollback || writes.isEmpty() || closed) { return; }
+
+  String[] keys = new String[writes.size()];
+  byte[][] values = new byte[writes.size()][];
+  int count = 0;
+  for (Map.Entry<String, byte[]> entry : writes.entrySet()) {
+    boolean delete = entry.getValue() == DELETED;
+    // deleting a key that was only added in this transaction doesn't need to be logged
+    if (delete && !index.containsKey(entry.getKey())) { continue; }
+    keys[count] = entry.getKey();
+    values[count] = delete ? null : entry.getValue();
+    count++;
+  }
+  if (count > 0) { _append(keys, values, count); }
+}
+
+/** true if the current thread is in {@link #runInTransaction(Callable)} */
+private boolean _inTransaction() {
+  return pending != null && lock.isWriteLockedByCurrentThread();
+}
+
+/**
+ * crash safe: a new (empty) segment that's flagged as compacted is created first, which supersedes all
+ * the existing ones, even if deleting them doesn't finish
+ */
+public void clear() {
+  if (lock.isWriteLockedByCurrentThread()) {
+    // in a transaction (only they hold the write lock across calls), don't wait for the compaction lock
+    _clear();
+    return;
+  }
+  synchronized (compactionLock) {
+    _clear();
+  }
+}
+
+private void _clear() {
+  lock.writeLock().lock();
+  try {
+    _checkOpen();
+    if (_inTransaction()) {
+      for (String key : index.keySet()) {
+        pending.put(key, DELETED);
+      }
+      for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+        entry.setValue(DELETED);
+      }
+      return;
+    }
+    Segment empty = _createSegment(active.id + 1, true);
+    for (Segment segment : segments) {
+      segment.close();
+      if (!segment.file.delete()) { segment.file.deleteOnExit(); }
+    }
+    segments.clear();
+    segments.add(empty);
+    active = empty;
+    index.clear();
+  }
+  catch (IOException e) {
+    throw new StorageException("problem clearing " + getName(), e);
+  }
+  finally {
+    lock.writeLock().unlock();
+  }
+}
+
+/** waits for a running compaction to finish, and then forces the active segment to storage */
+public void close() {
+  ExecutorService executor;
+  synchronized (this) {
+    executor = compactionExecutor;
+    compactionExecutor = null;
+  }
+  if (executor != null) {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  synchronized (compactionLock) {
+    lock.writeLock().lock();
+    try {
+      if (closed) { return; }
+      closed = true;
+      try {
+        active.channel.force(false);
+      }
+      catch (IOException e) {
+        throw new StorageException("problem closing " + getName(), e);
+      }
+      finally {
+        _closeSegments();
+        index.clear();
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
+
+private void _checkOpen() {
+  if (closed) { throw new StorageException(getName() + " is closed"); }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// the log
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** append the first count writes as one frame to the active segment, and point the index at them */
+private void _append(String[] keys, byte[][] values, int count) {
+  byte[][] keyBytes = new byte[count][];
+  for (int i = 0; i < count; i++) {
+    keyBytes[i] = keys[i].getBytes(UTF8);
+  }
+  int[] valueOffsets = new int[count];
+  ByteBuffer frame = _encodeFrame(keyBytes, values, count, valueOffsets);
+
+  if (active.size > SEGMENT_HEADER && active.size + frame.remaining() > segmentBytes) { _roll(); }
+  long start = active.size;
+  try {
+    active.write(frame, start);
+    if (syncWrites) { active.channel.force(false); }
+  }
+  catch (IOException e) {
+    // don't leave a torn frame behind for the next write to be appended to
+    try {
+      active.channel.truncate(start);
+    }
+    catch (IOException ignored) {
+    }
+    throw new StorageException("problem appending " + count + " writes to " + getName(), e);
+  }
+  active.size = start + frame.limit();
+
+  for (int i = 0; i < count; i++) {
+    int valueLength = values[i] == null ? TOMBSTONE : values[i].length;
+    _index(active, keys[i], (int) start + valueOffsets[i], valueLength, _entryBytes(keyBytes[i], values[i]));
+  }
+}
+
+/**
+ * @param valueOffsets gets the offset of each value in the frame
+ *
+ * @return the frame, ready to be written
+ */
+private static ByteBuffer _encodeFrame(byte[][] keys, byte[][] values, int count, int[] valueOffsets) {
+  int payloadLength = 4;
+  for (int i = 0; i < count; i++) {
+    payloadLength += _entryBytes(keys[i], values[i]);
+  }
+  ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + payloadLength);
+  frame.putInt(0).putInt(payloadLength).putInt(count);
+  for (int i = 0; i < count; i++) {
+    frame.putInt(keys[i].length).putInt(values[i] == null ? TOMBSTONE : values[i].length).put(keys[i]);
+    valueOffsets[i] = frame.position();
+    if (values[i] != null) { frame.put(values[i]); }
+  }
+  CRC32 crc = new CRC32();
+  crc.update(frame.array(), FRAME_HEADER, payloadLength);
+  frame.putInt(0, (int) crc.getValue());
+  frame.flip();
+  return frame;
+}
+
+private static int _entryBytes(byte[] key, byte[] value) {
+  return ENTRY_HEADER + key.length + (value == null ? 0 : value.length);
+}
+
+/** point the index at the given entry, and account for the garbage that it leaves behind */
+private void _index(Segment segment, String key, int valueOffset, int valueLength, int entryBytes) {
+  Location old;
+  if (valueLength == TOMBSTONE) {
+    old = index.remove(key);
+    segment.garbage += entryBytes;
+  }
+  else {
+    old = index.put(key, new Location(segment, valueOffset, valueLength, entryBytes));
+  }
+  if (old != null) { old.segment.garbage += old.entryBytes; }
+}
+
+/** seal (and map) the active segment, and start a new one */
+private void _roll() {
+  try {
+    active.seal();
+    active = _createSegment(active.id + 1, false);
+    segments.add(active);
+  }
+  catch (IOException e) {
+    throw new StorageException("problem rolling over the active segment of " + getName(), e);
+  }
+}
+
+private Segment _createSegment(long id, boolean compacted) throws IOException {
+  File file = _segmentFile(id);
+  Segment segment = new Segment(id, file, compacted);
+  segment.channel.truncate(0);
+  ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+  header.putInt(SEGMENT_MAGIC).putShort((short) SEGMENT_VERSION).putShort((short) (compacted ? FLAG_COMPACTED : 0));
+  header.flip();
+  segment.write(header, 0);
+  segment.channel.force(true);
+  segment.size = SEGMENT_HEADER;
+  return segment;
+}
+
+private File _segmentFile(long id) {
+  return new File(dir, String.format(Locale.US, "%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+}
+
+/** @return the id of the segment file, null if it's not one */
+private static Long _segmentId(String fileName) {
+  if (!fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_SUFFIX)) { return null; }
+  try {
+    return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+  }
+  catch (NumberFormatException e) {
+    return null;
+  }
+}
+
+private void _closeSegments() {
+  for (Segment segment : segments) {
+    segment.close();
+  }
+  segments.clear();
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// recovery
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * rebuild the index by replaying the segments, oldest first:
+ * <ol>
+ * <li>the output of a compaction that didn't finish is deleted</li>
+ * <li>the segments that are older than the newest compacted one are left overs of a compaction (or
+ * {@link #clear()}) that didn't finish deleting its inputs, so they're deleted</li>
+ * <li>replaying a segment stops at the first torn or corrupt frame, the last segment is truncated there</li>
+ * </ol>
+ */
+private void _recover() throws IOException {
+  ArrayList<Long> ids = new ArrayList<Long>();
+  File[] files = dir.listFiles();
+  if (files == null) { throw new IOException("can't list " + dir); }
+  for (File file : files) {
+    if (file.getName().endsWith(COMPACTION_SUFFIX)) {
+      file.delete();
+      continue;
+    }
+    Long id = _segmentId(file.getName());
+    if (id != null) { ids.add(id); }
+  }
+  Collections.sort(ids);
+
+  for (long id : ids) {
+    Segment segment = new Segment(id, _segmentFile(id), false);
+    if (!segment.readHeader()) {
+      // a segment whose header didn't make it to storage has nothing in it
+      droppedBytes += segment.size;
+      segment.close();
+      segment.file.delete();
+      continue;
+    }
+    if (segment.compacted) {
+      for (Segment superseded : segments) {
+        superseded.close();
+        superseded.file.delete();
+      }
+      segments.clear();
+    }
+    segments.add(segment);
+  }
+
+  for (int i = 0; i < segments.size(); i++) {
+    final Segment segment = segments.get(i);
+    boolean last = i == segments.size() - 1;
+    segment.seal();
+    long end = _forEachEntry(segment, new EntryVisitor() {
+      public void onEntry(String key, int valueOffset, int valueLength, int entryBytes) {
+        _index(segment, key, valueOffset, valueLength, entryBytes);
+      }
+    });
+    if (end == segment.size) { continue; }
+    droppedBytes += segment.size - end;
+    if (last) {
+      segment.map = null;
+      segment.channel.truncate(end);
+      segment.channel.force(true);
+      segment.size = end;
+      segment.seal();
+    }
+    else {
+      // the frames after a corrupt one in a sealed segment can't be found, compaction drops them
+      segment.garbage += segment.size - end;
+    }
+  }
+
+  Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+  if (last != null && !last.compacted && last.size < segmentBytes) {
+    last.map = null;
+    active = last;
+  }
+  else {
+    active = _createSegment(last == null ? 0 : last.id + 1, false);
+    segments.add(active);
+  }
+}
+
+/** receives the entries of a segment, one valid frame at a time */
+private interface EntryVisitor {
+  /** @param valueLength {@link #TOMBSTONE} for a delete */
+  void onEntry(String key, int valueOffset, int valueLength, int entryBytes);
+}
+
+/**
+ * walk the frames of the given (sealed) segment, and pass their entries to the visitor. the entries of a
+ * frame are only passed on once the whole frame has been checked.
+ *
+ * @return the offset after the last valid frame, this is the size of the segment if all of them are valid
+ */
+private static long _forEachEntry(Segment segment, EntryVisitor visitor) {
+  ByteBuffer buffer = segment.map.duplicate();
+  int size = (int) segment.size;
+  int offset = SEGMENT_HEADER;
+  ArrayList<Object[]> entries = new ArrayList<Object[]>();
+  CRC32 crc = new CRC32();
+  while (offset + FRAME_HEADER <= size) {
+    int checksum = buffer.getInt(offset);
+    int payloadLength = buffer.getInt(offset + 4);
+    if (payloadLength < 4 || payloadLength > size - offset - FRAME_HEADER) { break; }
+    byte[] payload = new byte[payloadLength];
+    buffer.position(offset + FRAME_HEADER);
+    buffer.get(payload);
+    crc.reset();
+    crc.update(payload, 0, payloadLength);
+    if ((int) crc.getValue() != checksum) { break; }
+
+    entries.clear();
+    ByteBuffer entry = ByteBuffer.wrap(payload);
+    int count = entry.getInt();
+    boolean valid = count >= 0;
+    for (int i = 0; valid && i < count; i++) {
+      valid = entry.remaining() >= ENTRY_HEADER;
+      if (!valid) { break; }
+      int keyLength = entry.getInt();
+      int valueLength = entry.getInt();
+      int valueBytes = Math.max(valueLength, 0);
+      valid = keyLength >= 0 && valueLength >= TOMBSTONE && keyLength + valueBytes <= entry.remaining();
+      if (!valid) { break; }
+      String key = new String(payload, entry.position(), keyLength, UTF8);
+      int valueOffset = offset + FRAME_HEADER + entry.position() + keyLength;
+      entry.position(entry.position() + keyLength + valueBytes);
+      entries.add(new Object[]{key, valueOffset, valueLength, ENTRY_HEADER + keyLength + valueBytes});
+    }
+    if (!valid) { break; }
+
+    for (Object[] e : entries) {
+      visitor.onEntry((String) e[0], (Integer) e[1], (Integer) e[2], (Integer) e[3]);
+    }
+    offset += FRAME_HEADER + payloadLength;
+  }
+  return offset;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// compaction
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * @return true if the sealed segments hold at least {@link DBConstantsIF#LogCompactionMinGarbageBytes} of
+ * garbage, and it's at least {@link DBConstantsIF#LogCompactionGarbageRatio} of their size
+ */
+public boolean needsCompaction() {
+  lock.readLock().lock();
+  try {
+    if (closed) { return false; }
+    long size = 0, garbage = 0;
+    for (Segment segment : segments) {
+      if (segment == active) { continue; }
+      size += segment.size;
+      garbage += segment.garbage;
+    }
+    return garbage >= LogCompactionMinGarbageBytes && garbage >= size * LogCompactionGarbageRatio;
+  }
+  finally {
+    lock.readLock().unlock();
+  }
+}
+
+/**
+ * merge all the sealed segments into one, which only has their live entries. the live entries are copied
+ * without holding the write lock (sealed segments never change), so reads and writes carry on while this
+ * runs; the write lock is only held to swap the merged segment in at the end. the merged segment takes
+ * the id of the newest input, and is flagged as compacted, which makes it supersede all the inputs:
+ * <ol>
+ * <li>it's written to a temp file, which is deleted when the engine is opened if this dies before
+ * the next step</li>
+ * <li>the temp file is renamed over the newest input</li>
+ * <li>the other inputs are deleted, which is finished when the engine is opened if this dies before
+ * it's done</li>
+ * </ol>
+ * this runs in the background on its own when {@link #needsCompaction()}, it only has to be called to
+ * force a compaction.
+ *
+ * @return the number of bytes that were reclaimed
+ */
+public long compact() {
+  long before = compactionCount;
+  long retval = _compact();
+  Runnable listener = compactionListener;
+  if (listener != null && compactionCount != before) { listener.run(); }
+  return retval;
+}
+
+/**
+ * the given code is run after every compaction that swapped in a merged segment, on the thread that ran
+ * it (which is usually the background one), without holding any locks; null to remove it
+ */
+public void setCompactionListener(Runnable listener) {
+  compactionListener = listener;
+}
+
+private long _compact() {
+  synchronized (compactionLock) {
+    final ArrayList<Segment> inputs;
+    lock.readLock().lock();
+    try {
+      _checkOpen();
+      inputs = new ArrayList<Segment>(segments.subList(0, segments.size() - 1));
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+    if (inputs.isEmpty()) { return 0; }
+    Segment newest = inputs.get(inputs.size() - 1);
+    if (inputs.size() == 1 && newest.compacted && newest.garbage == 0) { return 0; }
+
+    File temp = new File(dir, newest.file.getName() + COMPACTION_SUFFIX);
+    final ArrayList<Moved> moved = new ArrayList<Moved>();
+    long mergedSize;
+    try {
+      mergedSize = _merge(inputs, temp, moved);
+    }
+    catch (IOException e) {
+      temp.delete();
+      throw new StorageException("problem compacting " + getName(), e);
+    }
+
+    long inputSize = 0;
+    lock.writeLock().lock();
+    try {
+      if (closed) {
+        temp.delete();
+        return 0;
+      }
+      if (!temp.renameTo(newest.file)) {
+        temp.delete();
+        throw new StorageException("problem renaming " + temp + " to " + newest.file);
+      }
+      // from here on the merged segment supersedes the inputs, even if they don't all get deleted
+      Segment merged = new Segment(newest.id, newest.file, true);
+      merged.size = mergedSize;
+      merged.seal();
+      for (Moved entry : moved) {
+        // entries that were overwritten (or deleted) while the merge was running are garbage in it
+        if (index.get(entry.key) == entry.from) {
+          index.put(entry.key, new Location(merged, entry.valueOffset, entry.from.valueLength, entry.from.entryBytes));
+        }
+        else {
+          merged.garbage += entry.from.entryBytes;
+        }
+      }
+      for (Segment input : inputs) {
+        inputSize += input.size;
+        input.close();
+        if (input != newest) { input.file.delete(); }
+      }
+      segments.removeAll(inputs);
+      segments.add(0, merged);
+      long reclaimed = inputSize - mergedSize;
+      compactionCount++;
+      bytesReclaimed += reclaimed;
+      return reclaimed;
+    }
+    catch (IOException e) {
+      throw new StorageException("problem swapping in the compacted segment of " + getName(), e);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+}
+
+/**
+ * copy the live entries of the inputs to the given file, as a compacted segment
+ *
+ * @param moved gets the entries that were copied
+ *
+ * @return the size of the file
+ */
+private long _merge(ArrayList<Segment> inputs, File file, final ArrayList<Moved> moved) throws IOException {
+  final Segment output = new Segment(inputs.get(inputs.size() - 1).id, file, true);
+  try {
+    output.channel.truncate(0);
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+    header.putInt(SEGMENT_MAGIC).putShort((short) SEGMENT_VERSION).putShort((short) FLAG_COMPACTED);
+    header.flip();
+    output.write(header, 0);
+    output.size = SEGMENT_HEADER;
+
+    final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+    final ArrayList<byte[]> values = new ArrayList<byte[]>();
+    final ArrayList<Moved> frameEntries = new ArrayList<Moved>();
+    final int[] frameBytes = new int[1];
+    final IOException[] error = new IOException[1];
+    for (final Segment input : inputs) {
+      _forEachEntry(input, new EntryVisitor() {
+        public void onEntry(String key, int valueOffset, int valueLength, int entryBytes) {
+          if (error[0] != null || valueLength == TOMBSTONE) { return; }
+          Location location;
+          lock.readLock().lock();
+          try {
+            location = index.get(key);
+          }
+          finally {
+            lock.readLock().unlock();
+          }
+          if (location == null || location.segment != input || location.valueOffset != valueOffset) { return; }
+          try {
+            keys.add(key.getBytes(UTF8));
+            values.add(input.read(valueOffset, valueLength));
+            frameEntries.add(new Moved(key, location));
+            frameBytes[0] += entryBytes;
+            if (frameBytes[0] >= COMPACTION_FRAME_BYTES) {
+              _flushMerged(output, keys, values, frameEntries, moved);
+              frameBytes[0] = 0;
+            }
+          }
+          catch (IOException e) {
+            error[0] = e;
+          }
+        }
+      });
+      if (error[0] != null) { throw error[0]; }
+    }
+    _flushMerged(output, keys, values, frameEntries, moved);
+    output.channel.force(true);
+    return output.size;
+  }
+  finally {
+    output.close();
+  }
+}
+
+/** append the buffered entries to the merged segment as one frame */
+private static void _flushMerged(Segment output, ArrayList<byte[]> keys, ArrayList<byte[]> values,
+                                 ArrayList<Moved> frameEntries, ArrayList<Moved> moved) throws IOException
+{
+  if (keys.isEmpty()) { return; }
+  int[] valueOffsets = new int[keys.size()];
+  ByteBuffer frame = _encodeFrame(keys.toArray(new byte[keys.size()][]), values.toArray(new byte[values.size()][]),
+                                  keys.size(), valueOffsets);
+  long start = output.size;
+  output.write(frame, start);
+  output.size = start + frame.limit();
+  for (int i = 0; i < frameEntries.size(); i++) {
+    Moved entry = frameEntries.get(i);
+    entry.valueOffset = (int) start + valueOffsets[i];
+    moved.add(entry);
+  }
+  keys.clear();
+  values.clear();
+  frameEntries.clear();
+}
+
+/** compact on a background thread, if it's needed and one isn't already scheduled */
+private void _maybeScheduleCompaction() {
+  if (!needsCompaction() || !compactionScheduled.compareAndSet(false, true)) { return; }
+  try {
+    _getCompactionExecutor().execute(new Runnable() {
+      public void run() {
+        try {
+          compact();
+        }
+        catch (StorageException e) {
+          // the garbage is still there, so the next write tries again
+        }
+        finally {
+          compactionScheduled.set(false);
+        }
+      }
+    });
+  }
+  catch (RejectedExecutionException e) {
+    compactionScheduled.set(false);
+  }
+}
+
+private synchronized ExecutorService _getCompactionExecutor() {
+  if (compactionExecutor == null) {
+    compactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "LogStructuredEngine-compactor:" + dir.getName());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+  }
+  return compactionExecutor;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// stats
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+public int getSegmentCount() {
+  lock.readLock().lock();
+  try {
+    return segments.size();
+  }
+  finally {
+    lock.readLock().unlock();
+  }
+}
+
+/** @return the size of all the segments on storage */
+public long getSizeInBytes() {
+  lock.readLock().lock();
+  try {
+    long retval = 0;
+    for (Segment segment : segments) {
+      retval += segment.size;
+    }
+    return retval;
+  }
+  finally {
+    lock.readLock().unlock();
+  }
+}
+
+/** @return the bytes in all the segments that are taken by overwritten or deleted entries */
+public long getGarbageBytes() {
+  lock.readLock().lock();
+  try {
+    long retval = 0;
+    for (Segment segment : segments) {
+      retval += segment.garbage;
+    }
+    return retval;
+  }
+  finally {
+    lock.readLock().unlock();
+  }
+}
+
+/** @return the bytes of torn or corrupt frames that were dropped when this engine was opened */
+public long getDroppedBytes() {
+  return droppedBytes;
+}
+
+public long getCompactionCount() {
+  return compactionCount;
+}
+
+public long getBytesReclaimed() {
+  return bytesReclaimed;
+}
+
+public String toString() {
+  return String.format("%s - segments:%d, bytes:%d, garbage:%d, compactions:%d, reclaimed:%d, dropped:%d",
+                       getName(), getSegmentCount(), getSizeInBytes(), getGarbageBytes(), compactionCount,
+                       bytesReclaimed, droppedBytes);
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// self test method
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/**
+ * crash recovery tests: write to an engine in the given (scratch) dir, damage its files the way a crash
+ * would (torn and corrupt frames, compactions and clears that died half way), and check what's left when
+ * it's opened again. the dir is deleted before and after.
+ *
+ * @return one line per check that passed
+ *
+ * @throws StorageException for the first check that failed
+ */
+public static ArrayList<String> test(File dir) throws IOException {
+  ArrayList<String> report = new ArrayList<String>();
+  _deleteDir(dir);
+  try {
+    // reopen replays puts, deletes, and batches
+    LogStructuredEngine engine = new LogStructuredEngine(dir, 4096, false);
+    engine.put("a", _bytes("1"));
+    engine.put("b", _bytes("2"));
+    engine.put("a", _bytes("3"));
+    engine.delete("b");
+    WriteBatch batch = new WriteBatch();
+    batch.put("c", _bytes("4"));
+    batch.put("d", _bytes("5"));
+    batch.delete("c");
+    engine.write(batch);
+    engine.close();
+    engine = new LogStructuredEngine(dir, 4096, false);
+    _check(report, "replay", "3".equals(_string(engine.get("a"))) && engine.get("b") == null &&
+                             engine.get("c") == null && "5".equals(_string(engine.get("d"))) &&
+                             engine.count() == 2);
+
+    // a torn frame at the end is truncated, and the log can be appended to after it
+    long size = _lastSegment(dir).length();
+    engine.put("torn", _bytes("lost"));
+    engine.close();
+    _truncate(_lastSegment(dir), size + 5);
+    engine = new LogStructuredEngine(dir, 4096, false);
+    _check(report, "torn frame dropped", engine.get("torn") == null && engine.getDroppedBytes() == 5 &&
+                                         "3".equals(_string(engine.get("a"))));
+    engine.put("after", _bytes("6"));
+    engine.close();
+    engine = new LogStructuredEngine(dir, 4096, false);
+    _check(report, "append after truncate", "6".equals(_string(engine.get("after"))));
+
+    // a frame whose checksum doesn't match is dropped
+    engine.put("corrupt", _bytes("xxxx"));
+    engine.close();
+    File last = _lastSegment(dir);
+    _flipByte(last, last.length() - 1);
+    engine = new LogStructuredEngine(dir, 4096, false);
+    _check(report, "corrupt frame dropped", engine.get("corrupt") == null && engine.getDroppedBytes() > 0 &&
+                                            "6".equals(_string(engine.get("after"))));
+
+    // a batch is one frame, so a torn batch leaves nothing behind
+    batch.clear();
+    batch.put("batch1", _bytes("1"));
+    batch.put("batch2", _bytes("2"));
+    batch.put("batch3", _bytes("3"));
+    size = _lastSegment(dir).length();
+    engine.write(batch);
+    engine.close();
+    _truncate(_lastSegment(dir), _lastSegment(dir).length() - 2);
+    engine = new LogStructuredEngine(dir, 4096, false);
+    _check(report, "torn batch dropped", engine.get("batch1") == null && engine.get("batch3") == null &&
+                                         _lastSegment(dir).length() == size);
+
+    // transactions read their own writes, and are dropped if they throw
+    final LogStructuredEngine txEngine = engine;
+    try {
+      txEngine.runInTransaction(new Callable<Object>() {
+        public Object call() throws Exception {
+          txEngine.put("tx1", _bytes("1"));
+          txEngine.runInTransaction(new Callable<Object>() {
+            public Object call() throws Exception {
+              txEngine.delete("a");
+              return null;
+            }
+          });
+          if (!"1".equals(_string(txEngine.get("tx1"))) || txEngine.get("a") != null) {
+            throw new StorageException("transaction can't read its own writes");
+          }
+          throw new IOException("roll back");
+        }
+      });
+    }
+    catch (StorageException e) {
+      if (!(e.getCause() instanceof IOException)) { throw e; }
+    }
+    _check(report, "transaction rolled back", engine.get("tx1") == null && engine.get("a") != null);
+    engine.runInTransaction(new Callable<Object>() {
+      public Object call() throws Exception {
+        txEngine.put("tx1", _bytes("1"));
+        txEngine.delete("a");
+        return null;
+      }
+    });
+    engine.close();
+    engine = new LogStructuredEngine(dir, 4096, false);
+    _check(report, "transaction committed", "1".equals(_string(engine.get("tx1"))) && engine.get("a") == null);
+
+    // overwrite enough to leave garbage in several sealed segments, then compact
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 50; i++) {
+        engine.put("k" + i, _bytes("round" + round + "_" + i));
+      }
+    }
+    engine.delete("k7");
+    for (int i = 0; i < 50; i++) {
+      engine.put("filler" + i, _bytes("filler"));
+    }
+    engine.close();
+    HashMap<String, byte[]> beforeCompaction = _readFiles(dir);
+    engine = new LogStructuredEngine(dir, 4096, false);
+    int segmentsBefore = engine.getSegmentCount();
+    long reclaimed = engine.compact();
+    _check(report, "compaction reclaimed " + reclaimed + " bytes, segments " + segmentsBefore + " -> " +
+                   engine.getSegmentCount(),
+           reclaimed > 0 && engine.getSegmentCount() == 2 && engine.get("k7") == null &&
+           "round4_8".equals(_string(engine.get("k8"))));
+    engine.close();
+
+    // a compaction that died before deleting its inputs (and left a temp file behind)
+    HashMap<String, byte[]> afterCompaction = _readFiles(dir);
+    for (Map.Entry<String, byte[]> file : beforeCompaction.entrySet()) {
+      if (!afterCompaction.containsKey(file.getKey())) { _writeFile(new File(dir, file.getKey()), file.getValue()); }
+    }
+    _writeFile(new File(dir, "segment-9999999999999999.log" + COMPACTION_SUFFIX), _bytes("half done"));
+    engine = new LogStructuredEngine(dir, 4096, false);
+    _check(report, "unfinished compaction", engine.get("k7") == null &&
+                                            "round4_8".equals(_string(engine.get("k8"))) &&
+                                            "1".equals(_string(engine.get("tx1"))) &&
+                                            _readFiles(dir).keySet().equals(afterCompaction.keySet()));
+
+    // a clear that died before deleting the old segments
+    engine.close();
+    HashMap<String, byte[]> beforeClear = _readFiles(dir);
+    engine = new LogStructuredEngine(dir, 4096, false);
+    engine.clear();
+    engine.put("new", _bytes("1"));
+    engine.close();
+    for (Map.Entry<String, byte[]> file : beforeClear.entrySet()) {
+      _writeFile(new File(dir, file.getKey()), file.getValue());
+    }
+    engine = new LogStructuredEngine(dir, 4096, false);
+    _check(report, "unfinished clear", engine.count() == 1 && "1".equals(_string(engine.get("new"))));
+
+    // scans are sorted and bounded, and see the writes of the transaction they're in
+    engine.put("s2", _bytes("2"));
+    engine.put("s1", _bytes("1"));
+    engine.put("s3", _bytes("3"));
+    final StringBuilder scanned = new StringBuilder();
+    final LogStructuredEngine scanEngine = engine;
+    engine.runInTransaction(new Callable<Object>() {
+      public Object call() throws Exception {
+        scanEngine.delete("s2");
+        scanEngine.put("s0", _bytes("0"));
+        return scanEngine.scan("s", "s3", new ScanVisitor() {
+          public boolean onEntry(String key, byte[] value) {
+            scanned.append(key);
+            return true;
+          }
+        });
+      }
+    });
+    _check(report, "scan", "s0s1".equals(scanned.toString()));
+    engine.close();
+  }
+  finally {
+    _deleteDir(dir);
+  }
+  return report;
+}
+
+private static void _check(ArrayList<String> report, String name, boolean passed) {
+  if (!passed) { throw new StorageException("LogStructuredEngine test failed: " + name); }
+  report.add("passed: " + name);
+}
+
+private static byte[] _bytes(String value) {
+  return value.getBytes(UTF8);
+}
+
+private static String _string(byte[] value) {
+  return value == null ? null : new String(value, UTF8);
+}
+
+private static File _lastSegment(File dir) {
+  File retval = null;
+  for (File file : dir.listFiles()) {
+    if (_segmentId(file.getName()) != null && (retval == null || file.getName().compareTo(retval.getName()) > 0)) {
+      retval = file;
+    }
+  }
+  return retval;
+}
+
+private static void _truncate(File file, long length) throws IOException {
+  RandomAccessFile raf = new RandomAccessFile(file, "rw");
+  try {
+    raf.setLength(length);
+  }
+  finally {
+    raf.close();
+  }
+}
+
+private static void _flipByte(File file, long position) throws IOException {
+  RandomAccessFile raf = new RandomAccessFile(file, "rw");
+  try {
+    raf.seek(position);
+    int value = raf.read();
+    raf.seek(position);
+    raf.write(value ^ 0xFF);
+  }
+  finally {
+    raf.close();
+  }
+}
+
+private static HashMap<String, byte[]> _readFiles(File dir) throws IOException {
+  HashMap<String, byte[]> retval = new HashMap<String, byte[]>();
+  for (File file : dir.listFiles()) {
+    byte[] content = new byte[(int) file.length()];
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      raf.readFully(content);
+    }
+    finally {
+      raf.close();
+    }
+    retval.put(file.getName(), content);
+  }
+  return retval;
+}
+
+private static void _writeFile(File file, byte[] content) throws IOException {
+  RandomAccessFile raf = new RandomAccessFile(file, "rw");
+  try {
+    raf.setLength(0);
+    raf.write(content);
+  }
+  finally {
+    raf.close();
+  }
+}
+
+private static void _deleteDir(File dir) {
+  File[] files = dir.listFiles();
+  if (files != null) {
+    for (File file : files) {
+      file.delete();
+    }
+  }
+  dir.delete();
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// segments
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+/** where the latest value of a key is */
+private static class Location {
+
+  final Segment segment;
+  final int     valueOffset;
+  final int     valueLength;
+  /** size of the whole entry, it becomes garbage when the key is overwritten or deleted */
+  final int     entryBytes;
+
+  Location(Segment segment, int valueOffset, int valueLength, int entryBytes) {
+    this.segment = segment;
+    this.valueOffset = valueOffset;
+    this.valueLength = valueLength;
+    this.entryBytes = entryBytes;
+  }
+
+}//end class Location
+
+/** an entry that compaction copied to the merged segment */
+private static class Moved {
+
+  final String   key;
+  final Location from;
+  int            valueOffset;
+
+  Moved(String key, Location from) {
+    this.key = key;
+    this.from = from;
+  }
+
+}//end class Moved
+
+/**
+ * one file of the log. the active segment is read and written through its channel; sealed segments never
+ * change, and are read through a read only mapping of the whole file.
+ */
+private static class Segment {
+
+  final long             id;
+  final File             file;
+  final RandomAccessFile raf;
+  final FileChannel      channel;
+  boolean                compacted;
+  MappedByteBuffer       map;
+  long                   size;
+  long                   garbage;
+
+  Segment(long id, File file, boolean compacted) throws IOException {
+    this.id = id;
+    this.file = file;
+    this.compacted = compacted;
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+    size = channel.size();
+  }
+
+  /** @return false if the file doesn't start with a valid header */
+  boolean readHeader() throws IOException {
+    if (size < SEGMENT_HEADER) { return false; }
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) < 0) { return false; }
+    }
+    header.flip();
+    if (header.getInt() != SEGMENT_MAGIC || header.getShort() != SEGMENT_VERSION) { return false; }
+    compacted = (header.getShort() & FLAG_COMPACTED) != 0;
+    return true;
+  }
+
+  /** force it to storage, and map it for reading */
+  void seal() throws IOException {
+    channel.force(false);
+    map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+  }
+
+  void write(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  byte[] read(int offset, int length) throws IOException {
+    byte[] retval = new byte[length];
+    if (map != null) {
+      ByteBuffer buffer = map.duplicate();
+      buffer.position(offset);
+      buffer.get(retval);
+      return retval;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(retval);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) { throw new EOFException(file.getPath()); }
+    }
+    return retval;
+  }
+
+  void close() {
+    map = null;
+    try {
+      raf.close();
+    }
+    catch (IOException e) {
+      // nothing left to do with it
+    }
+  }
+
+}//end class Segment
+
+}//end class LogStructuredEngine
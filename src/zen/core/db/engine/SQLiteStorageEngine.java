@@ -0,0 +1,221 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db.engine;
+
+import android.content.*;
+import android.database.*;
+import android.database.sqlite.*;
+import zen.core.db.*;
+
+import java.util.concurrent.*;
+
+/**
+ * A {@link StorageEngine} that keeps its entries in a table of an Android {@link SQLiteDatabase}. This is
+ * the on-device counterpart of {@link JdbcStorageEngine}; both run the same {@link EngineSql}.
+ * <p/>
+ * The write statements are precompiled, and kept in a small pool per statement (a {@link SQLiteStatement}
+ * can only be used by one thread at a time). Transactions are SQLite transactions, which already nest, and
+ * already give the thread that's in one exclusive access to the writes.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:40 PM
+ */
+public class SQLiteStorageEngine implements StorageEngine {
+
+private final SQLiteDatabase connection;
+private final EngineSql      sql;
+/** true if {@link #close()} closes the connection */
+private final boolean        ownsConnection;
+
+private final ConcurrentLinkedQueue<SQLiteStatement> idlePuts    = new ConcurrentLinkedQueue<SQLiteStatement>();
+private final ConcurrentLinkedQueue<SQLiteStatement> idleDeletes = new ConcurrentLinkedQueue<SQLiteStatement>();
+
+/**
+ * keep the entries in the given table of the connection, it's created if it doesn't exist
+ *
+ * @param ownsConnection true to close the connection in {@link #close()}
+ */
+public SQLiteStorageEngine(SQLiteDatabase connection, String table, boolean ownsConnection) {
+  this.connection = connection;
+  this.sql = new EngineSql(table);
+  this.ownsConnection = ownsConnection;
+  connection.execSQL(sql.createTable);
+}
+
+/**
+ * open (or create) a db file of its own for the engine, in write-ahead logging mode if
+ * {@link DBConstantsIF#EnableWriteAheadLogging} is true
+ *
+ * @param dbName name of the file, in the app's databases dir
+ */
+public static SQLiteStorageEngine open(Context ctx, String dbName, String table) {
+  SQLiteDatabase connection = SQLiteDatabase.openDatabase(ctx.getDatabasePath(dbName).getPath(), null,
+                                                          SQLiteDatabase.OPEN_READWRITE |
+                                                          SQLiteDatabase.CREATE_IF_NECESSARY);
+  if (DBConstantsIF.EnableWriteAheadLogging) { connection.enableWriteAheadLogging(); }
+  return new SQLiteStorageEngine(connection, table, true);
+}
+
+public String getName() {
+  return "sqlite:" + connection.getPath() + "/" + sql.table;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// reads
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+public byte[] get(String key) {
+  Cursor cursor = connection.rawQuery(sql.get, new String[]{key});
+  try {
+    return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+  }
+  finally {
+    cursor.close();
+  }
+}
+
+public long count() {
+  return DatabaseUtils.longForQuery(connection, sql.count, null);
+}
+
+public long scan(String fromKey, String toKey, ScanVisitor visitor) {
+  long count = 0;
+  Cursor cursor = connection.rawQuery(sql.scan(fromKey != null, toKey != null), EngineSql.scanArgs(fromKey, toKey));
+  try {
+    while (cursor.moveToNext()) {
+      count++;
+      if (!visitor.onEntry(cursor.getString(0), cursor.getBlob(1))) { break; }
+    }
+  }
+  finally {
+    cursor.close();
+  }
+  return count;
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// writes
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+public void put(String key, byte[] value) {
+  SQLiteStatement statement = _acquire(idlePuts, sql.put);
+  try {
+    _put(statement, key, value);
+  }
+  finally {
+    _release(idlePuts, statement);
+  }
+}
+
+public boolean delete(String key) {
+  SQLiteStatement statement = _acquire(idleDeletes, sql.delete);
+  try {
+    return _delete(statement, key);
+  }
+  finally {
+    _release(idleDeletes, statement);
+  }
+}
+
+public void write(WriteBatch batch) {
+  if (batch.isEmpty()) { return; }
+  SQLiteStatement putStmt = _acquire(idlePuts, sql.put);
+  SQLiteStatement deleteStmt = _acquire(idleDeletes, sql.delete);
+  _beginTransaction();
+  try {
+    for (int i = 0; i < batch.size(); i++) {
+      if (batch.isDelete(i)) { _delete(deleteStmt, batch.getKey(i)); }
+      else { _put(putStmt, batch.getKey(i), batch.getValue(i)); }
+    }
+    connection.setTransactionSuccessful();
+  }
+  finally {
+    connection.endTransaction();
+    _release(idlePuts, putStmt);
+    _release(idleDeletes, deleteStmt);
+  }
+}
+
+public <T> T runInTransaction(Callable<T> body) {
+  _beginTransaction();
+  try {
+    T retval = body.call();
+    connection.setTransactionSuccessful();
+    return retval;
+  }
+  catch (RuntimeException e) {
+    throw e;
+  }
+  catch (Exception e) {
+    throw new StorageException("problem running transaction on " + getName(), e);
+  }
+  finally {
+    connection.endTransaction();
+  }
+}
+
+public void clear() {
+  connection.execSQL(sql.clear);
+}
+
+public void close() {
+  _closeAll(idlePuts);
+  _closeAll(idleDeletes);
+  if (ownsConnection) { connection.close(); }
+}
+
+private void _put(SQLiteStatement statement, String key, byte[] value) {
+  statement.bindString(1, key);
+  statement.bindBlob(2, value);
+  statement.executeInsert();
+}
+
+private boolean _delete(SQLiteStatement statement, String key) {
+  statement.bindString(1, key);
+  return statement.executeUpdateDelete() > 0;
+}
+
+/** same as {@link zen.core.db.DB_base}, don't lock out the readers in write-ahead logging mode */
+private void _beginTransaction() {
+  if (connection.isWriteAheadLoggingEnabled()) { connection.beginTransactionNonExclusive(); }
+  else { connection.beginTransaction(); }
+}
+
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+// statement pool
+//XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
+
+private SQLiteStatement _acquire(ConcurrentLinkedQueue<SQLiteStatement> idle, String statementSql) {
+  SQLiteStatement statement = idle.poll();
+  return statement != null ? statement : connection.compileStatement(statementSql);
+}
+
+private void _release(ConcurrentLinkedQueue<SQLiteStatement> idle, SQLiteStatement statement) {
+  statement.clearBindings();
+  if (idle.size() < DBStatementCache.MaxIdlePerSql) { idle.offer(statement); }
+  else { statement.close(); }
+}
+
+private void _closeAll(ConcurrentLinkedQueue<SQLiteStatement> idle) {
+  SQLiteStatement statement;
+  while ((statement = idle.poll()) != null) {
+    statement.close();
+  }
+}
+
+}//end class SQLiteStorageEngine
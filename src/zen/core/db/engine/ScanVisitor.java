@@ -0,0 +1,36 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db.engine;
+
+/**
+ * Implement this to stream through the entries of a {@link StorageEngine} with
+ * {@link StorageEngine#scan(String, String, ScanVisitor)}.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:40 PM
+ */
+public interface ScanVisitor {
+
+/**
+ * this is called once for each entry, in ascending key order
+ *
+ * @return true to keep going, false to stop (no more entries are read after this)
+ */
+public boolean onEntry(String key, byte[] value);
+
+}//end interface ScanVisitor
@@ -0,0 +1,89 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db.engine;
+
+import java.util.concurrent.*;
+
+/**
+ * The storage SPI that an engine-backed {@link zen.core.db.DB_kvp} runs on (see
+ * {@link zen.core.db.DB_kvp#DB_kvp(android.content.Context, String, StorageEngine)}). An engine is an
+ * ordered map of String keys to byte[] values; everything else (expiry, caching, write-behind, change
+ * notifications, snapshots) is layered on top of it by the db, so an engine only has to get the bytes
+ * on and off storage.
+ * <p/>
+ * Implementations must be safe to call from multiple threads. This package, except for
+ * {@link SQLiteStorageEngine}, doesn't depend on Android, so the engines (and {@link EngineBenchmark}) can
+ * be run and load tested on a plain JVM; the dbs that run on top of them still need Android.
+ * <ul>
+ * <li>{@link SQLiteStorageEngine} - a table in an Android {@link android.database.sqlite.SQLiteDatabase}</li>
+ * <li>{@link JdbcStorageEngine} - a table in any JDBC database that speaks the SQLite dialect, eg: sqlite-jdbc</li>
+ * <li>{@link LogStructuredEngine} - an append-only log of segment files, with an in-memory index</li>
+ * </ul>
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:40 PM
+ */
+public interface StorageEngine {
+
+/** @return a short name for the engine and where it keeps its data, used in logs */
+public String getName();
+
+/** @return the value of the key, null if it doesn't exist */
+public byte[] get(String key);
+
+/** add the key, or replace its value */
+public void put(String key, byte[] value);
+
+/** @return true if the key existed (and was deleted) */
+public boolean delete(String key);
+
+/** @return the number of keys */
+public long count();
+
+/**
+ * stream the entries whose keys are in [fromKey, toKey) through the visitor, in ascending key order
+ *
+ * @param fromKey null means start with the first key
+ * @param toKey   null means go on to the last key
+ *
+ * @return the number of entries that were visited
+ */
+public long scan(String fromKey, String toKey, ScanVisitor visitor);
+
+/** apply all the writes in the batch atomically: either all of them make it to storage, or none do */
+public void write(WriteBatch batch);
+
+/**
+ * run the body with exclusive access to the writes of this engine; the writes that it makes are
+ * applied atomically when it returns, and dropped if it throws. reads in the body see its own writes.
+ * calls can be nested, only the outermost one commits.
+ *
+ * @return whatever the body returns
+ *
+ * @throws StorageException wrapping the checked exception that the body threw, runtime exceptions are
+ *                          thrown as they are
+ */
+public <T> T runInTransaction(Callable<T> body);
+
+/** delete all the keys */
+public void clear();
+
+/** release everything that's held by this engine, it can't be used after this */
+public void close();
+
+}//end interface StorageEngine
@@ -0,0 +1,40 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db.engine;
+
+/**
+ * Thrown by a {@link StorageEngine} when its storage can't be read or written. It's unchecked, like the
+ * {@link android.database.SQLException}s thrown by the SQLite backed dbs, and it wraps whatever the
+ * underlying storage threw (eg: a {@link java.sql.SQLException} or an {@link java.io.IOException}).
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:40 PM
+ */
+public class StorageException extends RuntimeException {
+
+private static final long serialVersionUID = 1L;
+
+public StorageException(String message) {
+  super(message);
+}
+
+public StorageException(String message, Throwable cause) {
+  super(message, cause);
+}
+
+}//end class StorageException
@@ -0,0 +1,80 @@
+/*
+ * Copyright [2013] [Nazmul Idris]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package zen.core.db.engine;
+
+import java.util.*;
+
+/**
+ * Puts and deletes that are applied atomically, in the order they were queued, by
+ * {@link StorageEngine#write(WriteBatch)}. It doesn't belong to any engine, so the same batch can be
+ * written to more than one of them.
+ *
+ * @author Nazmul Idris
+ * @version 1.0
+ * @since 10/16/26, 3:40 PM
+ */
+public class WriteBatch {
+
+private final ArrayList<String> keyList   = new ArrayList<String>();
+/** null values are deletes */
+private final ArrayList<byte[]> valueList = new ArrayList<byte[]>();
+
+/**
+ * queue an add (or replace) of the key
+ *
+ * @throws IllegalArgumentException if the key or value is null
+ */
+public WriteBatch put(String key, byte[] value) {
+  if (key == null || value == null) { throw new IllegalArgumentException("key or value can't be null"); }
+  keyList.add(key);
+  valueList.add(value);
+  return this;
+}
+
+/**
+ * queue a delete of the key
+ *
+ * @throws IllegalArgumentException if the key is null
+ */
+public WriteBatch delete(String key) {
+  if (key == null) { throw new IllegalArgumentException("key can't be null"); }
+  keyList.add(key);
+  valueList.add(null);
+  return this;
+}
+
+/** @return the number of writes queued so far */
+public int size() {return keyList.size();}
+
+public boolean isEmpty() {return keyList.isEmpty();}
+
+/** @return the key of the write at the given index */
+public String getKey(int index) {return keyList.get(index);}
+
+/** @return the value of the write at the given index, null if it's a delete */
+public byte[] getValue(int index) {return valueList.get(index);}
+
+/** @return true if the write at the given index is a delete */
+public boolean isDelete(int index) {return valueList.get(index) == null;}
+
+/** drop all the queued writes, so the batch can be reused */
+public void clear() {
+  keyList.clear();
+  valueList.clear();
+}
+
+}//end class WriteBatch
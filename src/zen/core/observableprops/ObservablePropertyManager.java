@@ -87,7 +87,7 @@ public ObservablePropertyListener addPropertyChangeObserver(ObservablePropertyLi
 
     // get the list if it exists, or create a new one & save it
     ArrayList<ObservablePropertyListener> observersForProperty;
-    if (mapOfFieldObservers.indexOfKey(propertyId) > 0) {
+    if (mapOfFieldObservers.indexOfKey(propertyId) >= 0) {
       observersForProperty = mapOfFieldObservers.get(propertyId);
     }
     else {
@@ -216,14 +216,14 @@ public void setValue(final int propertyId, final Object value) throws IllegalArg
 
   try {
     // check to see if the value already exists and is the same
-    if (mapOfFieldValues.indexOfKey(propertyId) > 0) {
+    if (mapOfFieldValues.indexOfKey(propertyId) >= 0) {
       if (mapOfFieldValues.get(propertyId).equals(value)) { return; }
     }
 
     // value does not exist, or is not the same, so save it, and send out update event
     mapOfFieldValues.put(propertyId, value);
 
-    if (mapOfFieldObservers.indexOfKey(propertyId) > 0) {
+    if (mapOfFieldObservers.indexOfKey(propertyId) >= 0) {
       ArrayList<ObservablePropertyListener> listOfObservers = mapOfFieldObservers.get(propertyId);
       for (final ObservablePropertyListener observer : listOfObservers) {
         handlerMainThread.post(new Runnable() {